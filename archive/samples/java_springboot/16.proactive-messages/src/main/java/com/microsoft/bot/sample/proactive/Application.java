@@ -9,11 +9,14 @@ import com.microsoft.bot.integration.BotFrameworkHttpAdapter;
 import com.microsoft.bot.integration.Configuration;
 import com.microsoft.bot.integration.spring.BotController;
 import com.microsoft.bot.integration.spring.BotDependencyConfiguration;
+import org.apache.commons.lang3.StringUtils;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Import;
 
+import java.nio.file.Paths;
+
 //
 // This is the starting point of the Sprint Boot Bot application.
 //
@@ -57,11 +60,84 @@ public class Application extends BotDependencyConfiguration {
      * The shared ConversationReference Map. This hold a list of conversations for
      * the bot.
      *
+     * <p>
+     *     When ConversationReferences.Directory is set, the map is kept in that
+     *     directory so the bot can still message everyone after a restart. Otherwise
+     *     it is kept in memory only.
+     * </p>
+     *
+     * @param configuration The Configuration object to use.
      * @return A ConversationReferences object.
      */
     @Bean
-    public ConversationReferences getConversationReferences() {
-        return new ConversationReferences();
+    public ConversationReferences getConversationReferences(Configuration configuration) {
+        String directory = configuration.getProperty("ConversationReferences.Directory");
+        if (StringUtils.isBlank(directory)) {
+            return new ConversationReferences();
+        }
+        return new ConversationReferences(new ReferenceJournal(
+            Paths.get(directory.trim()),
+            getIntProperty(configuration, "ConversationReferences.FlushIntervalMillis", 200),
+            getIntProperty(configuration, "ConversationReferences.CompactAfterRecords", 100000)));
+    }
+
+    /**
+     * The engine that sends proactive messages to many conversations at once,
+     * keeping a bounded number in flight and limiting the rate of each channel
+     * service.
+     *
+     * @param configuration The Configuration object to use.
+     * @return A BroadcastEngine object.
+     */
+    @Bean
+    public BroadcastEngine getBroadcastEngine(Configuration configuration) {
+        return new BroadcastEngine(
+            getIntProperty(configuration, "Broadcast.MaxConcurrency", 64),
+            getDoubleProperty(configuration, "Broadcast.MessagesPerSecondPerServiceUrl", 50),
+            getIntProperty(configuration, "Broadcast.MaxAttempts", 5),
+            getIntProperty(configuration, "Broadcast.BaseDelayMillis", 500));
+    }
+
+    /**
+     * Sends one proactive message to one conversation, through the adapter.
+     *
+     * @param adapter The BotFrameworkHttpAdapter to use.
+     * @param configuration The Configuration object to use.
+     * @return A ProactiveMessenger object.
+     */
+    @Bean
+    public ProactiveMessenger getProactiveMessenger(BotFrameworkHttpAdapter adapter, Configuration configuration) {
+        return new ProactiveMessenger(adapter, configuration.getProperty("MicrosoftAppId"));
+    }
+
+    /**
+     * Sends proactive messages at future times. When Scheduler.Directory is set,
+     * the messages not yet sent are kept in that directory, and are still sent
+     * after a restart. Otherwise they are kept in memory only.
+     *
+     * @param configuration The Configuration object to use.
+     * @param conversationReferences The conversations to send to.
+     * @param broadcastEngine The engine the messages that come due are sent through.
+     * @param messenger Sends each message.
+     * @return A MessageScheduler object.
+     */
+    @Bean
+    public MessageScheduler getMessageScheduler(
+        Configuration configuration,
+        ConversationReferences conversationReferences,
+        BroadcastEngine broadcastEngine,
+        ProactiveMessenger messenger
+    ) {
+        String directory = configuration.getProperty("Scheduler.Directory");
+        ScheduleJournal journal = StringUtils.isBlank(directory)
+            ? null
+            : new ScheduleJournal(Paths.get(directory.trim()));
+        return new MessageScheduler(
+            conversationReferences,
+            broadcastEngine,
+            messenger::send,
+            journal,
+            getIntProperty(configuration, "Scheduler.TickMillis", 100));
     }
 
     /**
@@ -74,4 +150,14 @@ public class Application extends BotDependencyConfiguration {
     public BotFrameworkHttpAdapter getBotFrameworkHttpAdaptor(Configuration configuration) {
         return new AdapterWithErrorHandler(configuration);
     }
+
+    private static int getIntProperty(Configuration configuration, String name, int defaultValue) {
+        String value = configuration.getProperty(name);
+        return StringUtils.isBlank(value) ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    private static double getDoubleProperty(Configuration configuration, String name, double defaultValue) {
+        String value = configuration.getProperty(name);
+        return StringUtils.isBlank(value) ? defaultValue : Double.parseDouble(value.trim());
+    }
 }
@@ -0,0 +1,352 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.proactive;
+
+import com.microsoft.bot.restclient.RestException;
+import com.microsoft.bot.schema.ConversationReference;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Sends a proactive message to many conversations without overloading this node or the Bot Connector.
+ *
+ * <p>
+ * A broadcast keeps at most a fixed number of messages in flight, and starts the next one as each completes, so
+ * messaging 100k users holds no more connections or memory than messaging a few hundred. Messages to each
+ * serviceUrl are also limited to a steady rate, with a token bucket per serviceUrl, because the Connector
+ * throttles each bot per channel service. A message that is throttled (429) or fails with a server error or a
+ * network error is retried after an exponential backoff, or after the Retry-After the service asked for.
+ * Waiting holds no thread: delays are scheduled on a single scheduler thread.
+ * </p>
+ *
+ * <p>
+ * Each broadcast is tracked by a {@link BroadcastJob}, which can be looked up by its id while it runs and for a
+ * while after it completes.
+ * </p>
+ */
+public class BroadcastEngine implements AutoCloseable {
+
+    /**
+     * The... ummm... logger.
+     */
+    private static Logger logger = LoggerFactory.getLogger(BroadcastEngine.class);
+
+    private static final int KEPT_JOBS = 100;
+    private static final long MAX_DELAY_MILLIS = 60000;
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final int SERVER_ERROR = 500;
+
+    private final int maxConcurrency;
+    private final double messagesPerSecond;
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final ConcurrentMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    // In the order the broadcasts started. Running jobs are always kept, and at most KEPT_JOBS completed ones.
+    private final Map<String, BroadcastJob> jobs = new LinkedHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Initializes a new instance of the {@link BroadcastEngine} class.
+     *
+     * @param withMaxConcurrency The most messages a broadcast keeps in flight.
+     * @param withMessagesPerSecond The most messages per second to send to any one serviceUrl, or 0 for no limit.
+     * @param withMaxAttempts The most times a message is tried.
+     * @param withBaseDelayMillis The delay before the first retry, doubled for each one after.
+     */
+    public BroadcastEngine(
+        int withMaxConcurrency,
+        double withMessagesPerSecond,
+        int withMaxAttempts,
+        long withBaseDelayMillis
+    ) {
+        if (withMaxConcurrency < 1) {
+            throw new IllegalArgumentException("withMaxConcurrency must be at least 1");
+        }
+        if (withMessagesPerSecond < 0) {
+            throw new IllegalArgumentException("withMessagesPerSecond cannot be negative");
+        }
+        if (withMaxAttempts < 1) {
+            throw new IllegalArgumentException("withMaxAttempts must be at least 1");
+        }
+        if (withBaseDelayMillis < 0) {
+            throw new IllegalArgumentException("withBaseDelayMillis cannot be negative");
+        }
+        maxConcurrency = withMaxConcurrency;
+        messagesPerSecond = withMessagesPerSecond;
+        maxAttempts = withMaxAttempts;
+        baseDelayMillis = withBaseDelayMillis;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "broadcast");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts sending to every conversation. The references are iterated as the broadcast proceeds, so a
+     * concurrent map's values can be passed as they are.
+     *
+     * @param references The conversations to send to.
+     * @param delivery Sends the message to one conversation. Its future fails if the message was not delivered.
+     * @return The job tracking the broadcast.
+     */
+    public BroadcastJob start(
+        Collection<ConversationReference> references,
+        Function<ConversationReference, CompletableFuture<Void>> delivery
+    ) {
+        return start(references, ConversationReference::getServiceUrl, delivery);
+    }
+
+    /**
+     * Starts sending a message for each of a collection of items, such as scheduled messages, each of which is
+     * sent to one conversation.
+     *
+     * @param items The items to send.
+     * @param serviceUrlOf Gets the serviceUrl of the conversation an item is sent to, which its rate is limited by.
+     * @param delivery Sends one item. Its future fails if the message was not delivered.
+     * @param <T> The type of the items.
+     * @return The job tracking the broadcast.
+     */
+    public <T> BroadcastJob start(
+        Collection<T> items,
+        Function<T, String> serviceUrlOf,
+        Function<T, CompletableFuture<Void>> delivery
+    ) {
+        if (items == null) {
+            throw new IllegalArgumentException("items cannot be null");
+        }
+        if (serviceUrlOf == null) {
+            throw new IllegalArgumentException("serviceUrlOf cannot be null");
+        }
+        if (delivery == null) {
+            throw new IllegalArgumentException("delivery cannot be null");
+        }
+
+        BroadcastJob job = new BroadcastJob(UUID.randomUUID().toString(), items.size());
+        synchronized (jobs) {
+            jobs.put(job.getId(), job);
+            forgetCompletedJobs();
+        }
+        new Broadcast<>(job, items.iterator(), serviceUrlOf, delivery).start(items.size());
+        return job;
+    }
+
+    /**
+     * Looks up a running or recently completed broadcast.
+     *
+     * @param id The job id.
+     * @return The job, or null if there is no such job or it completed too long ago.
+     */
+    public BroadcastJob getJob(String id) {
+        synchronized (jobs) {
+            return jobs.get(id);
+        }
+    }
+
+    /**
+     * Stops the scheduler. Broadcasts still running stop without completing.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    // Must be called holding the jobs lock. A long broadcast that started first does not hold back the jobs that
+    // completed after it, wherever they are in the map.
+    private void forgetCompletedJobs() {
+        int completed = 0;
+        for (BroadcastJob job : jobs.values()) {
+            if (job.isComplete()) {
+                completed++;
+            }
+        }
+        Iterator<BroadcastJob> oldest = jobs.values().iterator();
+        while (completed > KEPT_JOBS && oldest.hasNext()) {
+            if (oldest.next().isComplete()) {
+                oldest.remove();
+                completed--;
+            }
+        }
+    }
+
+    private TokenBucket bucketFor(String serviceUrl) {
+        return buckets.computeIfAbsent(
+            StringUtils.defaultString(serviceUrl), key -> new TokenBucket(messagesPerSecond));
+    }
+
+    // Honors the Retry-After of a throttled request, and otherwise backs off exponentially with jitter, so that
+    // conversations throttled together are not all retried together.
+    private long backoffMillis(int attempt, Throwable error) {
+        if (error instanceof RestException && ((RestException) error).response() != null) {
+            String retryAfter = ((RestException) error).response().headers().get("Retry-After");
+            if (StringUtils.isNumeric(retryAfter)) {
+                return Math.min(TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter)), MAX_DELAY_MILLIS);
+            }
+        }
+        long delay = Math.min(baseDelayMillis << Math.min(attempt - 1, 20), MAX_DELAY_MILLIS);
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private static boolean isRetryable(Throwable error) {
+        if (error instanceof RestException) {
+            RestException restException = (RestException) error;
+            if (restException.response() == null) {
+                return false;
+            }
+            int status = restException.response().code();
+            return status == TOO_MANY_REQUESTS || status >= SERVER_ERROR;
+        }
+        return error instanceof IOException;
+    }
+
+    private static String reason(Throwable error) {
+        if (error instanceof RestException && ((RestException) error).response() != null) {
+            return String.format("HTTP %d", ((RestException) error).response().code());
+        }
+        return error.getClass().getSimpleName();
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException)
+            && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    /**
+     * One running broadcast. Each of its slots sends one item at a time, and takes the next from the iterator when
+     * it is done.
+     */
+    private final class Broadcast<T> {
+        private final BroadcastJob job;
+        private final Iterator<T> remaining;
+        private final Function<T, String> serviceUrlOf;
+        private final Function<T, CompletableFuture<Void>> delivery;
+        private final AtomicInteger slots = new AtomicInteger();
+
+        Broadcast(
+            BroadcastJob withJob,
+            Iterator<T> withRemaining,
+            Function<T, String> withServiceUrlOf,
+            Function<T, CompletableFuture<Void>> withDelivery
+        ) {
+            job = withJob;
+            remaining = withRemaining;
+            serviceUrlOf = withServiceUrlOf;
+            delivery = withDelivery;
+        }
+
+        void start(int size) {
+            int window = Math.max(1, Math.min(maxConcurrency, size));
+            slots.set(window);
+            for (int i = 0; i < window; i++) {
+                scheduler.execute(this::next);
+            }
+        }
+
+        // Always called on the scheduler, so that deliveries that complete at once do not recurse.
+        private void next() {
+            T item;
+            synchronized (remaining) {
+                if (!remaining.hasNext()) {
+                    if (slots.decrementAndGet() == 0) {
+                        job.complete();
+                    }
+                    return;
+                }
+                item = remaining.next();
+            }
+            job.started();
+            attempt(item, 1);
+        }
+
+        private void attempt(T item, int attempt) {
+            long waitNanos = bucketFor(serviceUrlOf.apply(item)).reserve(System.nanoTime());
+            if (waitNanos > 0) {
+                scheduler.schedule(() -> send(item, attempt), waitNanos, TimeUnit.NANOSECONDS);
+            } else {
+                send(item, attempt);
+            }
+        }
+
+        private void send(T item, int attempt) {
+            CompletableFuture<Void> sent;
+            try {
+                sent = delivery.apply(item);
+            } catch (RuntimeException e) {
+                sent = new CompletableFuture<>();
+                sent.completeExceptionally(e);
+            }
+
+            sent.whenComplete((result, error) -> {
+                if (error == null) {
+                    job.recordSent();
+                    scheduler.execute(this::next);
+                    return;
+                }
+
+                Throwable cause = unwrap(error);
+                if (attempt < maxAttempts && isRetryable(cause)) {
+                    job.recordRetry();
+                    scheduler.schedule(
+                        () -> attempt(item, attempt + 1), backoffMillis(attempt, cause), TimeUnit.MILLISECONDS);
+                    return;
+                }
+                logger.debug("Broadcast {} could not send {}", job.getId(), item, cause);
+                job.recordFailed(reason(cause));
+                scheduler.execute(this::next);
+            });
+        }
+    }
+
+    /**
+     * Allows a steady rate of messages with bursts of up to a second's worth. A message that finds the bucket
+     * empty reserves the next token anyway and is told how long to wait for it, so waiting messages are sent in
+     * the order they arrived.
+     */
+    private static final class TokenBucket {
+        private final double tokensPerNano;
+        private final double capacity;
+        private double tokens;
+        private long updated = System.nanoTime();
+
+        TokenBucket(double perSecond) {
+            tokensPerNano = perSecond / TimeUnit.SECONDS.toNanos(1);
+            capacity = Math.max(1, perSecond);
+            tokens = capacity;
+        }
+
+        // Returns how long to wait before sending, in nanoseconds.
+        synchronized long reserve(long now) {
+            if (tokensPerNano == 0) {
+                return 0;
+            }
+            tokens = Math.min(capacity, tokens + (now - updated) * tokensPerNano);
+            updated = now;
+            tokens -= 1;
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerNano);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.proactive;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The progress of one broadcast started by a {@link BroadcastEngine}.
+ *
+ * <p>
+ * Counters are updated as messages are delivered, so a job can be watched while it runs. Each conversation is
+ * counted once, as sent or as failed, however many attempts it took.
+ * </p>
+ *
+ * @see NotifyController
+ */
+public class BroadcastJob {
+
+    private final String id;
+    private final long total;
+    private final Instant startedAt = Instant.now();
+    private volatile Instant completedAt;
+    private final AtomicLong inFlight = new AtomicLong();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final ConcurrentMap<String, LongAdder> failures = new ConcurrentHashMap<>();
+    private final CompletableFuture<BroadcastJob> completion = new CompletableFuture<>();
+
+    /**
+     * Creates a job.
+     *
+     * @param withId The job id.
+     * @param withTotal The number of conversations to message, as known when the job started.
+     */
+    public BroadcastJob(String withId, long withTotal) {
+        id = withId;
+        total = withTotal;
+    }
+
+    /**
+     * Gets the id the job's progress is looked up by.
+     *
+     * @return The job id.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Gets the number of conversations that were delivered to.
+     *
+     * @return The sent count.
+     */
+    public long getSent() {
+        return sent.sum();
+    }
+
+    /**
+     * Gets the number of conversations that could not be delivered to, after any retries.
+     *
+     * @return The failed count.
+     */
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * Gets the number of attempts that were retried after a throttling or server error.
+     *
+     * @return The retry count.
+     */
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    /**
+     * Tells whether every conversation has been sent to or has failed.
+     *
+     * @return True once the job is complete.
+     */
+    public boolean isComplete() {
+        return completion.isDone();
+    }
+
+    /**
+     * Gets a future that completes with this job when it is complete.
+     *
+     * @return The completion.
+     */
+    public CompletableFuture<BroadcastJob> getCompletion() {
+        return completion;
+    }
+
+    /**
+     * Summarizes the job for the progress endpoint.
+     *
+     * @return The job's state and counters, as a tree of maps that serializes to JSON.
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Long> failureCounts = new TreeMap<>();
+        failures.forEach((reason, count) -> failureCounts.put(reason, count.sum()));
+
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("id", id);
+        snapshot.put("state", isComplete() ? "completed" : "running");
+        snapshot.put("total", total);
+        snapshot.put("sent", getSent());
+        snapshot.put("failed", getFailed());
+        snapshot.put("inFlight", inFlight.get());
+        snapshot.put("retries", getRetries());
+        snapshot.put("failures", failureCounts);
+        snapshot.put("startedAt", startedAt.toString());
+        snapshot.put("completedAt", completedAt != null ? completedAt.toString() : null);
+        return snapshot;
+    }
+
+    void started() {
+        inFlight.incrementAndGet();
+    }
+
+    void recordSent() {
+        inFlight.decrementAndGet();
+        sent.increment();
+    }
+
+    void recordFailed(String reason) {
+        inFlight.decrementAndGet();
+        failed.increment();
+        failures.computeIfAbsent(reason, key -> new LongAdder()).increment();
+    }
+
+    void recordRetry() {
+        retries.increment();
+    }
+
+    void complete() {
+        completedAt = Instant.now();
+        completion.complete(this);
+    }
+}
@@ -5,13 +5,299 @@ package com.microsoft.bot.sample.proactive;
 
 import com.microsoft.bot.schema.ConversationReference;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 /**
  * A Map of ConversationReference object the bot handling.
  *
+ * <p>
+ * Given a {@link ReferenceJournal}, the map is loaded from disk when it is
+ * created, and every change made through its own methods is written back in the
+ * background. Removals made through the iterators of its views are not
+ * written.
+ * </p>
+ *
+ * <p>
+ * The references are also indexed by channel, tenant, service URL and the time
+ * they were last seen, which is when they were last put, so that
+ * {@link #select(ReferenceFilter)} finds those matching a filter without
+ * looking at every reference.
+ * </p>
+ *
  * @see NotifyController
  * @see ProactiveBot
  */
-public class ConversationReferences extends ConcurrentHashMap<String, ConversationReference> {
+public class ConversationReferences extends ConcurrentHashMap<String, ConversationReference>
+    implements AutoCloseable {
+
+    private transient ReferenceIndex index = new ReferenceIndex();
+    private transient ReferenceJournal journal;
+
+    /**
+     * Creates a map that is kept in memory only.
+     */
+    public ConversationReferences() {
+    }
+
+    /**
+     * Creates a map that is loaded from, and kept in, a journal.
+     *
+     * @param withJournal The journal.
+     */
+    public ConversationReferences(ReferenceJournal withJournal) {
+        if (withJournal == null) {
+            throw new IllegalArgumentException("withJournal cannot be null");
+        }
+        withJournal.open(this);
+        journal = withJournal;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ConversationReference put(String key, ConversationReference value) {
+        ConversationReference previous = super.put(key, value);
+        changed(key);
+        return previous;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ConversationReference putIfAbsent(String key, ConversationReference value) {
+        ConversationReference previous = super.putIfAbsent(key, value);
+        if (previous == null) {
+            changed(key);
+        }
+        return previous;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void putAll(Map<? extends String, ? extends ConversationReference> m) {
+        super.putAll(m);
+        m.keySet().forEach(this::changed);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ConversationReference remove(Object key) {
+        ConversationReference previous = super.remove(key);
+        if (previous != null) {
+            changed((String) key);
+        }
+        return previous;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean remove(Object key, Object value) {
+        boolean removed = super.remove(key, value);
+        if (removed) {
+            changed((String) key);
+        }
+        return removed;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean replace(String key, ConversationReference oldValue, ConversationReference newValue) {
+        boolean replaced = super.replace(key, oldValue, newValue);
+        if (replaced) {
+            changed(key);
+        }
+        return replaced;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ConversationReference replace(String key, ConversationReference value) {
+        ConversationReference previous = super.replace(key, value);
+        if (previous != null) {
+            changed(key);
+        }
+        return previous;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ConversationReference computeIfAbsent(
+        String key,
+        Function<? super String, ? extends ConversationReference> mappingFunction
+    ) {
+        boolean[] computed = new boolean[1];
+        ConversationReference value = super.computeIfAbsent(key, k -> {
+            ConversationReference mapped = mappingFunction.apply(k);
+            computed[0] = mapped != null;
+            return mapped;
+        });
+        if (computed[0]) {
+            changed(key);
+        }
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ConversationReference computeIfPresent(
+        String key,
+        BiFunction<? super String, ? super ConversationReference, ? extends ConversationReference> remappingFunction
+    ) {
+        boolean[] remapped = new boolean[1];
+        ConversationReference value = super.computeIfPresent(key, tracking(remappingFunction, remapped));
+        if (remapped[0]) {
+            changed(key);
+        }
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ConversationReference compute(
+        String key,
+        BiFunction<? super String, ? super ConversationReference, ? extends ConversationReference> remappingFunction
+    ) {
+        boolean[] remapped = new boolean[1];
+        ConversationReference value = super.compute(key, tracking(remappingFunction, remapped));
+        if (remapped[0]) {
+            changed(key);
+        }
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ConversationReference merge(
+        String key,
+        ConversationReference value,
+        BiFunction<? super ConversationReference, ? super ConversationReference, ? extends ConversationReference>
+            remappingFunction
+    ) {
+        Objects.requireNonNull(value);
+        Objects.requireNonNull(remappingFunction);
+        boolean[] remapped = new boolean[1];
+        ConversationReference merged = super.compute(key, tracking(
+            (k, previous) -> previous == null ? value : remappingFunction.apply(previous, value), remapped));
+        if (remapped[0]) {
+            changed(key);
+        }
+        return merged;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void replaceAll(
+        BiFunction<? super String, ? super ConversationReference, ? extends ConversationReference> function
+    ) {
+        for (String key : keySet()) {
+            computeIfPresent(key, (k, previous) -> Objects.requireNonNull(function.apply(k, previous)));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clear() {
+        List<String> keys = new ArrayList<>(keySet());
+        super.clear();
+        keys.forEach(this::changed);
+    }
+
+    /**
+     * Finds the references that match a filter.
+     *
+     * @param filter The filter.
+     * @return The matching references.
+     */
+    public List<ConversationReference> select(ReferenceFilter filter) {
+        if (filter == null) {
+            throw new IllegalArgumentException("filter cannot be null");
+        }
+        List<ConversationReference> selected = new ArrayList<>();
+        for (String key : index.select(filter)) {
+            ConversationReference reference = get(key);
+            if (reference != null) {
+                selected.add(reference);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Gets when the reference of a key was last put.
+     *
+     * @param key The key.
+     * @return The time in epoch milliseconds, or 0 if there is no such reference.
+     */
+    public long getLastSeenMillis(String key) {
+        return index.getLastSeenMillis(key);
+    }
+
+    /**
+     * Writes the remaining changes to the journal, if there is one.
+     */
+    @Override
+    public void close() {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    // Puts or, given null, removes a reference read from the journal, which is not written back to it.
+    void load(String key, ConversationReference reference, long lastSeenMillis) {
+        if (reference != null) {
+            super.put(key, reference);
+        } else {
+            super.remove(key);
+        }
+        index.update(key, this::get, lastSeenMillis);
+    }
+
+    // Notes whether a remapping function changed the value, so a key it left alone is not indexed or written again.
+    private static BiFunction<String, ConversationReference, ConversationReference> tracking(
+        BiFunction<? super String, ? super ConversationReference, ? extends ConversationReference> remappingFunction,
+        boolean[] remapped
+    ) {
+        return (key, previous) -> {
+            ConversationReference value = remappingFunction.apply(key, previous);
+            remapped[0] = value != previous;
+            return value;
+        };
+    }
+
+    private void changed(String key) {
+        index.update(key, this::get, System.currentTimeMillis());
+        if (journal != null) {
+            journal.changed(key);
+        }
+    }
 }
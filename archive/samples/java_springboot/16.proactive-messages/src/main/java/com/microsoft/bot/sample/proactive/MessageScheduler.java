@@ -0,0 +1,241 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.proactive;
+
+import com.microsoft.bot.schema.ConversationReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiFunction;
+
+/**
+ * Sends proactive messages at future times, such as reminders and follow-ups.
+ *
+ * <p>
+ * Pending messages wait in a {@link TimerWheel}, so scheduling and cancelling take constant time however many
+ * are pending, and a single thread advances the wheel every tick. The messages that come due in a tick are handed
+ * to the {@link BroadcastEngine} as one broadcast, so a burst of them is sent within its concurrency and rate
+ * limits, and throttled sends are retried.
+ * </p>
+ *
+ * <p>
+ * Given a {@link ScheduleJournal}, pending messages are kept on disk. A message is removed from the journal once
+ * the broadcast it went out in has completed, so one that was due when the bot stopped is sent after it starts
+ * again, possibly twice if it stopped mid-send. Messages that came due while the bot was down are all sent on the
+ * first tick.
+ * </p>
+ */
+public class MessageScheduler implements AutoCloseable {
+
+    /**
+     * The... ummm... logger.
+     */
+    private static Logger logger = LoggerFactory.getLogger(MessageScheduler.class);
+
+    private final ConversationReferences references;
+    private final BroadcastEngine broadcastEngine;
+    private final BiFunction<ConversationReference, String, CompletableFuture<Void>> delivery;
+    private final ScheduleJournal journal;
+    private final ConcurrentMap<String, TimerWheel.Timer<ScheduledMessage>> pending = new ConcurrentHashMap<>();
+    private final Set<CompletableFuture<Void>> sending = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService ticker;
+
+    // Guards the wheel.
+    private final Object lock = new Object();
+    private final TimerWheel<ScheduledMessage> wheel;
+
+    /**
+     * Initializes a new instance of the {@link MessageScheduler} class.
+     *
+     * @param withReferences The conversations, by the user ids messages are scheduled for.
+     * @param withBroadcastEngine Sends the messages that come due.
+     * @param withDelivery Sends one message to one conversation.
+     * @param withJournal Keeps the pending messages on disk, or null to keep them in memory only.
+     * @param withTickMillis The resolution of the schedule.
+     */
+    public MessageScheduler(
+        ConversationReferences withReferences,
+        BroadcastEngine withBroadcastEngine,
+        BiFunction<ConversationReference, String, CompletableFuture<Void>> withDelivery,
+        ScheduleJournal withJournal,
+        long withTickMillis
+    ) {
+        if (withReferences == null) {
+            throw new IllegalArgumentException("withReferences cannot be null");
+        }
+        if (withBroadcastEngine == null) {
+            throw new IllegalArgumentException("withBroadcastEngine cannot be null");
+        }
+        if (withDelivery == null) {
+            throw new IllegalArgumentException("withDelivery cannot be null");
+        }
+        references = withReferences;
+        broadcastEngine = withBroadcastEngine;
+        delivery = withDelivery;
+        journal = withJournal;
+        wheel = new TimerWheel<>(withTickMillis, System.currentTimeMillis());
+
+        if (journal != null) {
+            Collection<ScheduledMessage> loaded = journal.load();
+            long now = System.currentTimeMillis();
+            long overdue = loaded.stream().filter(message -> message.getDueAtMillis() <= now).count();
+            synchronized (lock) {
+                for (ScheduledMessage message : loaded) {
+                    pending.put(message.getId(), wheel.schedule(message, message.getDueAtMillis()));
+                }
+            }
+            if (overdue > 0) {
+                logger.info("Sending {} scheduled messages that came due while the bot was down", overdue);
+            }
+        }
+
+        ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "message-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::tick, withTickMillis, withTickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedules a message.
+     *
+     * @param user The key of the user's reference in {@link ConversationReferences}.
+     * @param text The message.
+     * @param dueAtMillis When to send it, in epoch milliseconds. A time in the past sends it on the next tick.
+     * @return The scheduled message, whose id it can be cancelled by.
+     */
+    public ScheduledMessage schedule(String user, String text, long dueAtMillis) {
+        ScheduledMessage message = new ScheduledMessage(UUID.randomUUID().toString(), user, text, dueAtMillis);
+        // Journaled first, so that the removal of a message sent at once cannot be written before it.
+        if (journal != null) {
+            journal.added(message);
+        }
+        synchronized (lock) {
+            pending.put(message.getId(), wheel.schedule(message, dueAtMillis));
+        }
+        return message;
+    }
+
+    /**
+     * Cancels a message that has not been sent.
+     *
+     * @param id The id of the message.
+     * @return True if the message was cancelled, false if there is no such message or it has come due.
+     */
+    public boolean cancel(String id) {
+        TimerWheel.Timer<ScheduledMessage> timer = pending.remove(id);
+        if (timer == null) {
+            return false;
+        }
+        boolean cancelled;
+        synchronized (lock) {
+            cancelled = wheel.cancel(timer);
+        }
+        if (cancelled && journal != null) {
+            journal.removed(id);
+        }
+        return cancelled;
+    }
+
+    /**
+     * Looks up a message that has not come due.
+     *
+     * @param id The id of the message.
+     * @return The message, or null if there is no such message or it has come due.
+     */
+    public ScheduledMessage get(String id) {
+        TimerWheel.Timer<ScheduledMessage> timer = pending.get(id);
+        return timer != null ? timer.getValue() : null;
+    }
+
+    /**
+     * Gets the number of messages that have not come due.
+     *
+     * @return The number of messages.
+     */
+    public int getPendingCount() {
+        synchronized (lock) {
+            return wheel.size();
+        }
+    }
+
+    /**
+     * Stops the ticks, waits a while for the messages being sent, and writes the journal. Messages that have
+     * come due but are still being sent after that are sent again after a restart.
+     */
+    @Override
+    public void close() {
+        ticker.shutdown();
+        try {
+            ticker.awaitTermination(10, TimeUnit.SECONDS);
+            CompletableFuture.allOf(sending.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            logger.warn("Closing with {} scheduled broadcasts still sending", sending.size());
+        }
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    private void tick() {
+        try {
+            List<ScheduledMessage> due;
+            synchronized (lock) {
+                due = wheel.advance(System.currentTimeMillis());
+            }
+            if (!due.isEmpty()) {
+                send(due);
+            }
+            if (journal != null) {
+                journal.flush();
+            }
+        } catch (Throwable t) {
+            logger.error("Message scheduler tick failed: {}", t.toString());
+        }
+    }
+
+    private void send(List<ScheduledMessage> due) {
+        due.forEach(message -> pending.remove(message.getId()));
+        BroadcastJob job = broadcastEngine.start(
+            due,
+            message -> {
+                ConversationReference reference = references.get(message.getUser());
+                return reference != null ? reference.getServiceUrl() : null;
+            },
+            message -> {
+                ConversationReference reference = references.get(message.getUser());
+                if (reference == null) {
+                    CompletableFuture<Void> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(
+                        new IllegalStateException("No conversation reference for " + message.getUser()));
+                    return failed;
+                }
+                return delivery.apply(reference, message.getText());
+            });
+        logger.debug("Sending {} scheduled messages as broadcast {}", due.size(), job.getId());
+
+        CompletableFuture<Void> sent = job.getCompletion().thenRun(() -> {
+            if (journal != null) {
+                due.forEach(message -> journal.removed(message.getId()));
+            }
+        });
+        sending.add(sent);
+        sent.thenRun(() -> sending.remove(sent));
+    }
+}
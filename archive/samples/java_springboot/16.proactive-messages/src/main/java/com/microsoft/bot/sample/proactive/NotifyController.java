@@ -3,62 +3,83 @@
 
 package com.microsoft.bot.sample.proactive;
 
-import com.microsoft.bot.integration.BotFrameworkHttpAdapter;
-import com.microsoft.bot.integration.Configuration;
 import com.microsoft.bot.schema.ConversationReference;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
-import java.util.UUID;
+import java.net.URI;
+import java.util.Collection;
 
 /**
- * This controller will receive GET requests at /api/notify and send a message
- * to all ConversationReferences.
+ * This controller will receive GET requests at /api/notify and start a broadcast
+ * that sends a message to all ConversationReferences, or with
+ * filter={expression} to those a {@link ReferenceFilter} selects. The progress
+ * of the broadcast can be followed at /api/notify/{id}.
  *
  * @see ConversationReferences
+ * @see ReferenceFilter
+ * @see BroadcastEngine
  * @see ProactiveBot
  * @see Application
  */
 @RestController
 public class NotifyController {
     /**
-     * The BotFrameworkHttpAdapter to use. Note is is provided by dependency
-     * injection via the constructor.
+     * Sends each message through the BotFrameworkHttpAdapter. Note it is provided
+     * by dependency injection via the constructor.
      *
-     * @see com.microsoft.bot.integration.spring.BotDependencyConfiguration
+     * @see Application#getProactiveMessenger
      */
-    private final BotFrameworkHttpAdapter adapter;
+    private final ProactiveMessenger messenger;
 
     private ConversationReferences conversationReferences;
-    private String appId;
+    private BroadcastEngine broadcastEngine;
 
     @Autowired
     public NotifyController(
-        BotFrameworkHttpAdapter withAdapter,
-        Configuration withConfiguration,
-        ConversationReferences withReferences
+        ProactiveMessenger withMessenger,
+        ConversationReferences withReferences,
+        BroadcastEngine withBroadcastEngine
     ) {
-        adapter = withAdapter;
+        messenger = withMessenger;
         conversationReferences = withReferences;
-        appId = withConfiguration.getProperty("MicrosoftAppId");
+        broadcastEngine = withBroadcastEngine;
     }
 
     @GetMapping("/api/notify")
-    public ResponseEntity<Object> proactiveMessage() {
-        for (ConversationReference reference : conversationReferences.values()) {
-            adapter.continueConversation(
-                appId, reference, turnContext -> turnContext.sendActivity("proactive hello").thenApply(resourceResponse -> null)
-            );
+    public ResponseEntity<Object> proactiveMessage(@RequestParam(required = false) String filter) {
+        Collection<ConversationReference> recipients;
+        if (StringUtils.isBlank(filter)) {
+            recipients = conversationReferences.values();
+        } else {
+            try {
+                recipients = conversationReferences.select(ReferenceFilter.parse(filter));
+            } catch (IllegalArgumentException e) {
+                return new ResponseEntity<>(e.getMessage(), HttpStatus.BAD_REQUEST);
+            }
         }
 
-        // Let the caller know proactive messages have been sent
-        return new ResponseEntity<>(
-            "<html><body><h1>Proactive messages have been sent.</h1></body></html>",
-            HttpStatus.ACCEPTED
-        );
+        BroadcastJob job = broadcastEngine.start(
+            recipients, reference -> messenger.send(reference, "proactive hello"));
+
+        // Let the caller know the proactive messages are being sent, and where to follow them
+        return ResponseEntity.accepted()
+            .location(URI.create("/api/notify/" + job.getId()))
+            .body(job.snapshot());
+    }
+
+    @GetMapping("/api/notify/{id}")
+    public ResponseEntity<Object> broadcastProgress(@PathVariable String id) {
+        BroadcastJob job = broadcastEngine.getJob(id);
+        if (job == null) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        return ResponseEntity.ok(job.snapshot());
     }
 }
@@ -0,0 +1,68 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.proactive;
+
+import com.microsoft.bot.integration.BotFrameworkHttpAdapter;
+import com.microsoft.bot.schema.ConversationReference;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends a proactive message to one conversation, and reports whether it was
+ * delivered.
+ *
+ * @see NotifyController
+ * @see MessageScheduler
+ */
+public class ProactiveMessenger {
+    private final BotFrameworkHttpAdapter adapter;
+    private final String appId;
+
+    /**
+     * Creates a messenger.
+     *
+     * @param withAdapter The adapter to continue conversations with.
+     * @param withAppId The bot's MicrosoftAppId.
+     */
+    public ProactiveMessenger(BotFrameworkHttpAdapter withAdapter, String withAppId) {
+        if (withAdapter == null) {
+            throw new IllegalArgumentException("withAdapter cannot be null");
+        }
+        adapter = withAdapter;
+        appId = withAppId;
+    }
+
+    /**
+     * Sends a message to a conversation.
+     *
+     * @param reference The conversation.
+     * @param text The message.
+     * @return A future that completes when the message was delivered, or fails
+     *         with the error of the send.
+     */
+    public CompletableFuture<Void> send(ConversationReference reference, String text) {
+        // The adapter's error handler would otherwise swallow a failed send, so the
+        // outcome of the send is passed on before the turn ends.
+        CompletableFuture<Void> delivered = new CompletableFuture<>();
+        adapter.continueConversation(
+            appId, reference, turnContext -> turnContext.sendActivity(text)
+                .handle((resourceResponse, error) -> {
+                    if (error != null) {
+                        delivered.completeExceptionally(error);
+                    } else {
+                        delivered.complete(null);
+                    }
+                    return null;
+                })
+        ).whenComplete((result, error) -> {
+            if (error != null) {
+                delivered.completeExceptionally(error);
+            } else if (!delivered.isDone()) {
+                delivered.completeExceptionally(
+                    new IllegalStateException("The conversation could not be continued"));
+            }
+        });
+        return delivered;
+    }
+}
@@ -0,0 +1,198 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.proactive;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.microsoft.bot.schema.ChannelAccount;
+import com.microsoft.bot.schema.ConversationAccount;
+import com.microsoft.bot.schema.ConversationReference;
+import com.microsoft.bot.schema.RoleTypes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Encodes the {@link ConversationReference} records of a {@link ReferenceJournal}.
+ *
+ * <p>
+ * Decoding JSON with Jackson is what would bound how fast millions of references load, so a reference is
+ * written as its fields in a fixed order, each string prefixed with its length. A reference whose accounts carry
+ * extra properties, which the fixed fields do not cover, is written as JSON instead.
+ * </p>
+ *
+ * <p>
+ * Most references of a bot share their channel, serviceUrl, locale, bot account and tenant. Decoded copies of
+ * those strings are shared, which roughly halves the memory, and so the garbage collection, of a large load.
+ * </p>
+ */
+final class ReferenceCodec {
+
+    private static final byte FIELDS = 0;
+    private static final byte JSON = 1;
+    private static final int NULL = -1;
+    private static final RoleTypes[] ROLES = RoleTypes.values();
+    private static final int MAX_SHARED = 10000;
+
+    private final ObjectReader reader;
+    private final ObjectWriter writer;
+    private final ConcurrentMap<String, String> shared = new ConcurrentHashMap<>();
+
+    ReferenceCodec() {
+        ObjectMapper mapper = new ObjectMapper()
+            .findAndRegisterModules()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        reader = mapper.readerFor(ConversationReference.class);
+        writer = mapper.writerFor(ConversationReference.class);
+    }
+
+    byte[] encode(ConversationReference reference) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        if (hasProperties(reference)) {
+            out.writeByte(JSON);
+            writer.writeValue((OutputStream) out, reference);
+            return bytes.toByteArray();
+        }
+
+        out.writeByte(FIELDS);
+        writeString(out, reference.getActivityId());
+        writeString(out, reference.getChannelId());
+        writeString(out, reference.getLocale());
+        writeString(out, reference.getServiceUrl());
+        writeAccount(out, reference.getUser());
+        writeAccount(out, reference.getBot());
+
+        ConversationAccount conversation = reference.getConversation();
+        out.writeBoolean(conversation != null);
+        if (conversation != null) {
+            writeString(out, conversation.getId());
+            writeString(out, conversation.getName());
+            writeString(out, conversation.getAadObjectId());
+            writeRole(out, conversation.getRole());
+            writeString(out, conversation.getConversationType());
+            writeString(out, conversation.getTenantId());
+            out.writeBoolean(conversation.isGroup());
+        }
+        return bytes.toByteArray();
+    }
+
+    ConversationReference decode(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer in = buffer.duplicate();
+        in.position(offset);
+        in.limit(offset + length);
+        if (in.get() == JSON) {
+            byte[] bytes = new byte[in.remaining()];
+            in.get(bytes);
+            try {
+                return reader.readValue(bytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        ConversationReference reference = new ConversationReference();
+        reference.setActivityId(readString(in));
+        reference.setChannelId(readShared(in));
+        reference.setLocale(readShared(in));
+        reference.setServiceUrl(readShared(in));
+        reference.setUser(readAccount(in, false));
+        reference.setBot(readAccount(in, true));
+        if (in.get() != 0) {
+            ConversationAccount conversation = new ConversationAccount();
+            conversation.setId(readString(in));
+            conversation.setName(readString(in));
+            conversation.setAadObjectId(readString(in));
+            conversation.setRole(readRole(in));
+            conversation.setConversationType(readShared(in));
+            conversation.setTenantId(readShared(in));
+            conversation.setIsGroup(in.get() != 0);
+            reference.setConversation(conversation);
+        }
+        return reference;
+    }
+
+    private static boolean hasProperties(ConversationReference reference) {
+        return reference.getUser() != null && !reference.getUser().getProperties().isEmpty()
+            || reference.getBot() != null && !reference.getBot().getProperties().isEmpty()
+            || reference.getConversation() != null && !reference.getConversation().getProperties().isEmpty();
+    }
+
+    private static void writeAccount(DataOutputStream out, ChannelAccount account) throws IOException {
+        out.writeBoolean(account != null);
+        if (account != null) {
+            writeString(out, account.getId());
+            writeString(out, account.getName());
+            writeString(out, account.getAadObjectId());
+            writeRole(out, account.getRole());
+        }
+    }
+
+    private ChannelAccount readAccount(ByteBuffer in, boolean isShared) {
+        if (in.get() == 0) {
+            return null;
+        }
+        ChannelAccount account = new ChannelAccount();
+        account.setId(isShared ? readShared(in) : readString(in));
+        account.setName(isShared ? readShared(in) : readString(in));
+        account.setAadObjectId(isShared ? readShared(in) : readString(in));
+        account.setRole(readRole(in));
+        return account;
+    }
+
+    private static void writeRole(DataOutputStream out, RoleTypes role) throws IOException {
+        out.writeByte(role != null ? role.ordinal() : NULL);
+    }
+
+    private static RoleTypes readRole(ByteBuffer in) {
+        byte ordinal = in.get();
+        return ordinal == NULL ? null : ROLES[ordinal];
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(NULL);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length == NULL) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Once the table is full, values not already in it are no longer shared.
+    private String readShared(ByteBuffer in) {
+        String value = readString(in);
+        if (value == null) {
+            return null;
+        }
+        String existing = shared.get(value);
+        if (existing != null) {
+            return existing;
+        }
+        if (shared.size() >= MAX_SHARED) {
+            return value;
+        }
+        existing = shared.putIfAbsent(value, value);
+        return existing != null ? existing : value;
+    }
+}
@@ -0,0 +1,163 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.proactive;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Selects conversation references by their channel, tenant, service URL and the time they were last seen, such
+ * as everyone in a Teams tenant who has talked to the bot this week.
+ *
+ * <p>
+ * A filter is one or more conditions joined by {@code and}, for example
+ * {@code channelId==msteams and tenant==72f988bf and lastSeen>P7D}. The channelId, tenant and serviceUrl of a
+ * reference are matched exactly with {@code ==}. The lastSeen time can be compared with {@code >}, {@code >=},
+ * {@code <}, {@code <=} or {@code ==} to an ISO-8601 instant, or to an ISO-8601 duration meaning that long ago.
+ * Values may be quoted.
+ * </p>
+ *
+ * @see ConversationReferences#select(ReferenceFilter)
+ */
+public final class ReferenceFilter {
+
+    private static final Pattern CONDITION =
+        Pattern.compile("\\s*(channelId|tenant|serviceUrl|lastSeen)\\s*(==|>=|<=|>|<)\\s*(.*?)\\s*");
+    private static final Pattern AND = Pattern.compile("\\s+and\\s+", Pattern.CASE_INSENSITIVE);
+
+    private final List<String> channelIds = new ArrayList<>();
+    private final List<String> tenants = new ArrayList<>();
+    private final List<String> serviceUrls = new ArrayList<>();
+    private long seenFromMillis = Long.MIN_VALUE;
+    private long seenUntilMillis = Long.MAX_VALUE;
+
+    private ReferenceFilter() {
+    }
+
+    /**
+     * Parses a filter.
+     *
+     * @param expression The filter. A blank filter selects every reference.
+     * @return The filter.
+     * @throws IllegalArgumentException The filter is not valid.
+     */
+    public static ReferenceFilter parse(String expression) {
+        ReferenceFilter filter = new ReferenceFilter();
+        if (StringUtils.isBlank(expression)) {
+            return filter;
+        }
+        long now = System.currentTimeMillis();
+        for (String condition : AND.split(expression.trim())) {
+            Matcher matcher = CONDITION.matcher(condition);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("Not a filter condition: " + condition.trim());
+            }
+            String field = matcher.group(1);
+            String operator = matcher.group(2);
+            String value = StringUtils.unwrap(StringUtils.unwrap(matcher.group(3), '"'), '\'');
+            if (value.isEmpty()) {
+                throw new IllegalArgumentException("Missing value in " + condition.trim());
+            }
+            if (field.equals("lastSeen")) {
+                filter.addSeen(operator, parseTime(value, now));
+            } else if (!operator.equals("==")) {
+                throw new IllegalArgumentException(field + " can only be compared with ==");
+            } else if (field.equals("channelId")) {
+                filter.channelIds.add(value);
+            } else if (field.equals("tenant")) {
+                filter.tenants.add(value);
+            } else {
+                filter.serviceUrls.add(value);
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * Tests a reference against the filter.
+     *
+     * @param channelId The channel of the reference.
+     * @param tenant The tenant of the reference's conversation.
+     * @param serviceUrl The service URL of the reference.
+     * @param lastSeenMillis When the reference was last seen, in epoch milliseconds.
+     * @return True if the reference matches.
+     */
+    public boolean matches(String channelId, String tenant, String serviceUrl, long lastSeenMillis) {
+        return matchesValues(channelId, tenant, serviceUrl)
+            && lastSeenMillis >= seenFromMillis
+            && lastSeenMillis < seenUntilMillis;
+    }
+
+    boolean hasValueConditions() {
+        return !channelIds.isEmpty() || !tenants.isEmpty() || !serviceUrls.isEmpty();
+    }
+
+    boolean matchesValues(String channelId, String tenant, String serviceUrl) {
+        return all(channelIds, channelId) && all(tenants, tenant) && all(serviceUrls, serviceUrl);
+    }
+
+    boolean hasSeenRange() {
+        return seenFromMillis != Long.MIN_VALUE || seenUntilMillis != Long.MAX_VALUE;
+    }
+
+    // Inclusive.
+    long getSeenFromMillis() {
+        return seenFromMillis;
+    }
+
+    // Exclusive.
+    long getSeenUntilMillis() {
+        return seenUntilMillis;
+    }
+
+    private void addSeen(String operator, long millis) {
+        switch (operator) {
+            case ">":
+                seenFromMillis = Math.max(seenFromMillis, millis + 1);
+                break;
+            case ">=":
+                seenFromMillis = Math.max(seenFromMillis, millis);
+                break;
+            case "<":
+                seenUntilMillis = Math.min(seenUntilMillis, millis);
+                break;
+            case "<=":
+                seenUntilMillis = Math.min(seenUntilMillis, millis + 1);
+                break;
+            default:
+                seenFromMillis = Math.max(seenFromMillis, millis);
+                seenUntilMillis = Math.min(seenUntilMillis, millis + 1);
+                break;
+        }
+    }
+
+    private static long parseTime(String value, long now) {
+        try {
+            if (value.startsWith("P") || value.startsWith("p")) {
+                return now - Duration.parse(value).toMillis();
+            }
+            return Instant.parse(value).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException(
+                "lastSeen must be compared to an ISO-8601 instant or duration, not " + value);
+        }
+    }
+
+    private static boolean all(List<String> values, String actual) {
+        for (String value : values) {
+            if (!Objects.equals(value, actual)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,171 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.proactive;
+
+import com.microsoft.bot.schema.ConversationReference;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * The secondary indexes of the {@link ConversationReferences}, which let a {@link ReferenceFilter} select its
+ * references without looking at every one.
+ *
+ * <p>
+ * The keys are grouped by their combination of channel, tenant and service URL. A bot has many references but
+ * few such combinations, so a filter on any of the three looks through the groups and takes the keys of those
+ * that match. This costs each reference a place in one set rather than one per field, which is what bounds how
+ * fast millions of references are indexed at startup. For filters on the time they were last seen alone, the
+ * keys are also grouped by the hour they were last seen, which is much cheaper to keep than a sorted set of them.
+ * Either way, only the keys found are tested against the whole filter.
+ * </p>
+ *
+ * <p>
+ * A reference is indexed again after each change to its key. The index entry of a key is replaced under that
+ * key's lock, and reads the map's value while holding it, so concurrent changes to a key leave it indexed with
+ * the latest value.
+ * </p>
+ */
+final class ReferenceIndex {
+
+    private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Group, Group> groups = new ConcurrentHashMap<>();
+    private final ConcurrentNavigableMap<Long, Set<String>> byHourSeen = new ConcurrentSkipListMap<>();
+
+    /**
+     * Indexes the current reference of a key.
+     *
+     * @param key The key.
+     * @param current Reads the key's reference, or null if it was removed.
+     * @param lastSeenMillis When the reference was seen, if it is not the one already indexed.
+     */
+    void update(String key, Function<String, ConversationReference> current, long lastSeenMillis) {
+        entries.compute(key, (k, previous) -> {
+            ConversationReference reference = current.apply(k);
+            if (previous != null && previous.reference == reference) {
+                return previous;
+            }
+            if (previous != null) {
+                previous.group.keys.remove(k);
+                byHourSeen.get(hour(previous.lastSeenMillis)).remove(k);
+            }
+            if (reference == null) {
+                return null;
+            }
+            // Groups and hours are left in place once emptied, so a key is never added to one that was just
+            // dropped, and a common one is found without taking a lock.
+            Group group = groups.computeIfAbsent(new Group(reference), created -> created);
+            group.keys.add(k);
+            byHourSeen.computeIfAbsent(hour(lastSeenMillis), hour -> ConcurrentHashMap.newKeySet()).add(k);
+            return new Entry(reference, group, lastSeenMillis);
+        });
+    }
+
+    /**
+     * Gets when a key's reference was last seen.
+     *
+     * @param key The key.
+     * @return The time in epoch milliseconds, or 0 if there is no such reference.
+     */
+    long getLastSeenMillis(String key) {
+        Entry entry = entries.get(key);
+        return entry != null ? entry.lastSeenMillis : 0;
+    }
+
+    /**
+     * Finds the keys of the references that match a filter.
+     *
+     * @param filter The filter.
+     * @return The keys.
+     */
+    List<String> select(ReferenceFilter filter) {
+        List<Iterable<String>> candidates = new ArrayList<>();
+        if (filter.hasValueConditions()) {
+            for (Group group : groups.keySet()) {
+                if (filter.matchesValues(group.channelId, group.tenant, group.serviceUrl)) {
+                    candidates.add(group.keys);
+                }
+            }
+        } else if (filter.hasSeenRange()) {
+            long firstHour = hour(filter.getSeenFromMillis());
+            long lastHour = hour(filter.getSeenUntilMillis() - 1);
+            if (firstHour <= lastHour) {
+                candidates.addAll(byHourSeen.subMap(firstHour, true, lastHour, true).values());
+            }
+        } else {
+            candidates.add(entries.keySet());
+        }
+
+        List<String> keys = new ArrayList<>();
+        for (Iterable<String> group : candidates) {
+            for (String key : group) {
+                Entry entry = entries.get(key);
+                if (entry != null && filter.matches(
+                    entry.group.channelId, entry.group.tenant, entry.group.serviceUrl, entry.lastSeenMillis)) {
+                    keys.add(key);
+                }
+            }
+        }
+        return keys;
+    }
+
+    private static long hour(long millis) {
+        return Math.floorDiv(millis, HOUR_MILLIS);
+    }
+
+    private static final class Entry {
+        private final ConversationReference reference;
+        private final Group group;
+        private final long lastSeenMillis;
+
+        private Entry(ConversationReference withReference, Group withGroup, long withLastSeenMillis) {
+            reference = withReference;
+            group = withGroup;
+            lastSeenMillis = withLastSeenMillis;
+        }
+    }
+
+    // Equal to any group with the same values, whatever its keys.
+    private static final class Group {
+        private final String channelId;
+        private final String tenant;
+        private final String serviceUrl;
+        private final int hashCode;
+        private final Set<String> keys = ConcurrentHashMap.newKeySet();
+
+        private Group(ConversationReference reference) {
+            channelId = reference.getChannelId();
+            tenant = reference.getConversation() != null ? reference.getConversation().getTenantId() : null;
+            serviceUrl = reference.getServiceUrl();
+            hashCode = Objects.hash(channelId, tenant, serviceUrl);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Group)) {
+                return false;
+            }
+            Group other = (Group) obj;
+            return hashCode == other.hashCode
+                && Objects.equals(channelId, other.channelId)
+                && Objects.equals(tenant, other.tenant)
+                && Objects.equals(serviceUrl, other.serviceUrl);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,498 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.proactive;
+
+import com.microsoft.bot.schema.ConversationReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the {@link ConversationReferences} on local disk, so the bot can still message everyone after a restart.
+ *
+ * <p>
+ * Changes are written to an append-only log. They are not written as they happen: a change only marks its key,
+ * and every flush interval a single writer thread appends the current reference of each marked key and forces the
+ * log to disk once. A user who messages the bot many times between two flushes costs one record, and the bot's
+ * turns never wait for the disk.
+ * </p>
+ *
+ * <p>
+ * Once the log holds as many records as there are references, the writer compacts it: it starts a new log and
+ * writes every reference to a new snapshot file, which replaces the old one, and the old log is deleted. Reading
+ * the snapshot at startup is what keeps startup fast with millions of references. The file is memory-mapped in
+ * chunks of up to 2GB, its records are located in one pass, and they are decoded in parallel by a
+ * {@link ReferenceCodec}. The logs written since the snapshot are then replayed in order, stopping at the first torn
+ * or corrupt record.
+ * </p>
+ *
+ * <p>
+ * Each log is numbered with a generation, and the snapshot records the generation of the first log it does not
+ * include. A crash at any point of a compaction leaves either the old snapshot and both logs, or the new snapshot
+ * and a log it already includes, which the next startup deletes.
+ * </p>
+ */
+public class ReferenceJournal implements AutoCloseable {
+
+    /**
+     * The... ummm... logger.
+     */
+    private static Logger logger = LoggerFactory.getLogger(ReferenceJournal.class);
+
+    private static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 200;
+    private static final long DEFAULT_COMPACT_AFTER_RECORDS = 100000;
+
+    // magic, generation, count; followed by the records, each a key, the time it was last seen and a value.
+    private static final int SNAPSHOT_MAGIC = 0x52454632;
+    private static final int SNAPSHOT_COUNT_OFFSET = Integer.BYTES + Long.BYTES;
+    private static final int SNAPSHOT_HEADER_BYTES = SNAPSHOT_COUNT_OFFSET + Integer.BYTES;
+    private static final String SNAPSHOT = "references.snapshot";
+    private static final String SNAPSHOT_TEMPORARY = "references.snapshot.tmp";
+
+    // length, crc; followed by the type, the key and, for a put, the time it was last seen and the value.
+    private static final int FRAME_BYTES = Integer.BYTES + Integer.BYTES;
+    private static final byte PUT = 0;
+    private static final byte REMOVE = 1;
+    private static final String LOG_PREFIX = "references-";
+    private static final String LOG_SUFFIX = ".log";
+
+    private final Path directory;
+    private final long flushIntervalMillis;
+    private final long compactAfterRecords;
+    private final int snapshotChunkBytes;
+    private final ReferenceCodec codec = new ReferenceCodec();
+    private final Set<String> changed = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService flusher;
+
+    // Only used by the flusher thread once opened.
+    private ConversationReferences references;
+    private volatile long generation;
+    private FileChannel log;
+    private long recordsSinceSnapshot;
+
+    /**
+     * The constructor of the {@link ReferenceJournal} class, flushing every 200ms.
+     * @param withDirectory The directory holding the snapshot and log files. It is created if needed.
+     */
+    public ReferenceJournal(Path withDirectory) {
+        this(withDirectory, DEFAULT_FLUSH_INTERVAL_MILLIS, DEFAULT_COMPACT_AFTER_RECORDS);
+    }
+
+    /**
+     * The constructor of the {@link ReferenceJournal} class.
+     * @param withDirectory The directory holding the snapshot and log files. It is created if needed.
+     * @param withFlushIntervalMillis How often changes are written to the log.
+     * @param withCompactAfterRecords The fewest log records that are compacted into a new snapshot. The log is
+     *                                allowed to grow to the number of references if that is larger.
+     */
+    public ReferenceJournal(Path withDirectory, long withFlushIntervalMillis, long withCompactAfterRecords) {
+        this(withDirectory, withFlushIntervalMillis, withCompactAfterRecords, Integer.MAX_VALUE);
+    }
+
+    // Tests map the snapshot in small chunks, so that a few references already span several.
+    ReferenceJournal(
+        Path withDirectory, long withFlushIntervalMillis, long withCompactAfterRecords, int withSnapshotChunkBytes) {
+        if (withDirectory == null) {
+            throw new IllegalArgumentException("withDirectory cannot be null");
+        }
+        if (withFlushIntervalMillis < 1) {
+            throw new IllegalArgumentException("withFlushIntervalMillis must be at least 1");
+        }
+        if (withCompactAfterRecords < 1) {
+            throw new IllegalArgumentException("withCompactAfterRecords must be at least 1");
+        }
+        directory = withDirectory;
+        flushIntervalMillis = withFlushIntervalMillis;
+        compactAfterRecords = withCompactAfterRecords;
+        snapshotChunkBytes = withSnapshotChunkBytes;
+
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "reference-journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Loads the references kept on disk into a map, and starts writing the map's changes. The map must not be
+     * changed by anyone else while it is loaded.
+     *
+     * @param withReferences The map to load into, which changes are then read from.
+     */
+    public void open(ConversationReferences withReferences) {
+        if (withReferences == null) {
+            throw new IllegalArgumentException("withReferences cannot be null");
+        }
+        references = withReferences;
+        try {
+            Files.createDirectories(directory);
+            recover();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        flusher.scheduleWithFixedDelay(this::flushAndCompact, flushIntervalMillis, flushIntervalMillis,
+            TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Marks a key whose reference was put or removed. Its current reference is written on the next flush.
+     *
+     * @param key The key.
+     */
+    public void changed(String key) {
+        changed.add(key);
+    }
+
+    /**
+     * Writes the changes marked so far, and compacts the log if it is due, waiting for both to reach the disk.
+     */
+    public void flush() {
+        try {
+            flusher.submit(() -> {
+                writeAndCompact();
+                return null;
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw new UncheckedIOException((IOException) e.getCause());
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Gets the generation of the log being written, which is advanced by each compaction.
+     *
+     * @return The generation.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Writes the remaining changes and closes the log.
+     */
+    @Override
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (log == null) {
+            return;
+        }
+        try {
+            write();
+            log.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close the reference journal in {}: {}", directory, e.toString());
+        }
+    }
+
+    private void recover() throws IOException {
+        long started = System.nanoTime();
+        Path snapshot = directory.resolve(SNAPSHOT);
+        if (Files.exists(snapshot)) {
+            generation = readSnapshot(snapshot);
+        }
+
+        List<Path> logs = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, LOG_PREFIX + "*" + LOG_SUFFIX)) {
+            stream.forEach(logs::add);
+        }
+        logs.sort(null);
+
+        Path current = null;
+        for (Path path : logs) {
+            String name = path.getFileName().toString();
+            long logGeneration =
+                Long.parseLong(name.substring(LOG_PREFIX.length(), name.length() - LOG_SUFFIX.length()));
+            if (logGeneration < generation) {
+                // Already in the snapshot; left behind by a compaction that did not finish cleaning up.
+                Files.delete(path);
+                continue;
+            }
+            recordsSinceSnapshot += replay(path);
+            generation = logGeneration;
+            current = path;
+        }
+
+        log = FileChannel.open(current != null ? current : logPath(generation),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        log.position(log.size());
+        logger.info("Loaded {} conversation references from {} in {}ms", references.size(), directory,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    }
+
+    // Returns the generation of the first log written after the snapshot.
+    private long readSnapshot(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer header = map(channel, 0, SNAPSHOT_HEADER_BYTES);
+            if (header.remaining() < SNAPSHOT_HEADER_BYTES || header.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Snapshot " + path + " is not a conversation reference snapshot");
+            }
+            long snapshotGeneration = header.getLong();
+            int count = header.getInt();
+
+            // Locating the records is a quick pass over their lengths. Decoding them is what takes the time, so
+            // that is spread over all the cores. A mapping holds at most 2GB, so each chunk starts at a record and
+            // the next one is mapped at the first record that does not end within it.
+            List<MappedByteBuffer> chunks = new ArrayList<>();
+            String[] keys = new String[count];
+            long[] lastSeen = new long[count];
+            int[] chunkOf = new int[count];
+            int[] offsets = new int[count];
+            int[] lengths = new int[count];
+            long chunkStart = SNAPSHOT_HEADER_BYTES;
+            MappedByteBuffer chunk = map(channel, chunkStart, snapshotChunkBytes);
+            chunks.add(chunk);
+            for (int i = 0; i < count; i++) {
+                if (!holdsRecord(chunk)) {
+                    chunkStart += chunk.position();
+                    chunk = map(channel, chunkStart, snapshotChunkBytes);
+                    if (!holdsRecord(chunk)) {
+                        // A record larger than a chunk gets a mapping as large as can be.
+                        chunk = map(channel, chunkStart, Integer.MAX_VALUE);
+                        if (!holdsRecord(chunk)) {
+                            throw new IOException("Snapshot " + path + " is truncated at " + chunkStart);
+                        }
+                    }
+                    chunks.add(chunk);
+                }
+                keys[i] = readString(chunk);
+                lastSeen[i] = chunk.getLong();
+                lengths[i] = chunk.getInt();
+                offsets[i] = chunk.position();
+                chunkOf[i] = chunks.size() - 1;
+                chunk.position(offsets[i] + lengths[i]);
+            }
+            IntStream.range(0, count).parallel().forEach(i -> references.load(
+                keys[i], codec.decode(chunks.get(chunkOf[i]), offsets[i], lengths[i]), lastSeen[i]));
+            return snapshotGeneration;
+        }
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long start, int maxBytes) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(channel.size() - start, maxBytes));
+    }
+
+    // Whether the snapshot record at the buffer's position ends within the buffer.
+    private static boolean holdsRecord(ByteBuffer buffer) {
+        long position = buffer.position();
+        if (buffer.limit() - position < Integer.BYTES) {
+            return false;
+        }
+        long valueLengthAt = position + Integer.BYTES + buffer.getInt((int) position) + Long.BYTES;
+        if (buffer.limit() - valueLengthAt < Integer.BYTES) {
+            return false;
+        }
+        return valueLengthAt + Integer.BYTES + buffer.getInt((int) valueLengthAt) <= buffer.limit();
+    }
+
+    // Returns the number of records replayed.
+    private int replay(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Log " + path + " is larger than 2GB");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            // Every record is checked before any is applied, and the values are decoded in parallel like the
+            // snapshot's. A record can only be applied after the ones before it, so that is done in order.
+            List<String> keys = new ArrayList<>();
+            List<Long> lastSeen = new ArrayList<>();
+            List<int[]> values = new ArrayList<>();
+            int valid = 0;
+            while (buffer.limit() - valid >= FRAME_BYTES) {
+                int length = buffer.getInt(valid);
+                int crc = buffer.getInt(valid + Integer.BYTES);
+                int start = valid + FRAME_BYTES;
+                if (length < Byte.BYTES + Integer.BYTES || length > buffer.limit() - start
+                    || crc != checksum(buffer, start, length)) {
+                    break;
+                }
+                buffer.position(start);
+                byte type = buffer.get();
+                keys.add(readString(buffer));
+                if (type == PUT) {
+                    lastSeen.add(buffer.getLong());
+                    int valueLength = buffer.getInt();
+                    values.add(new int[] {buffer.position(), valueLength});
+                } else {
+                    lastSeen.add(0L);
+                    values.add(null);
+                }
+                valid = start + length;
+            }
+            if (valid < channel.size()) {
+                logger.warn("Truncating {} at {} of {} bytes, after a torn or corrupt record",
+                    path, valid, channel.size());
+                channel.truncate(valid);
+            }
+
+            ConversationReference[] decoded = new ConversationReference[keys.size()];
+            IntStream.range(0, decoded.length).parallel()
+                .filter(i -> values.get(i) != null)
+                .forEach(i -> decoded[i] = codec.decode(buffer, values.get(i)[0], values.get(i)[1]));
+            for (int i = 0; i < decoded.length; i++) {
+                references.load(keys.get(i), decoded[i], lastSeen.get(i));
+            }
+            return decoded.length;
+        }
+    }
+
+    private void flushAndCompact() {
+        try {
+            writeAndCompact();
+        } catch (Throwable t) {
+            logger.error("Reference journal flush failed: {}", t.toString());
+        }
+    }
+
+    private void writeAndCompact() throws IOException {
+        write();
+        if (recordsSinceSnapshot >= Math.max(compactAfterRecords, references.size())) {
+            compact();
+        }
+    }
+
+    // Must run on the flusher thread, or after it has stopped.
+    private void write() throws IOException {
+        if (changed.isEmpty()) {
+            return;
+        }
+        List<String> keys = new ArrayList<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (String key : changed) {
+            changed.remove(key);
+            keys.add(key);
+
+            // The map holds the latest change, however many were marked.
+            ConversationReference reference = references.get(key);
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream record = new DataOutputStream(payload);
+            record.writeByte(reference != null ? PUT : REMOVE);
+            writeString(record, key);
+            if (reference != null) {
+                byte[] value = codec.encode(reference);
+                record.writeLong(references.getLastSeenMillis(key));
+                record.writeInt(value.length);
+                record.write(value);
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(payload.toByteArray());
+            out.writeInt(payload.size());
+            out.writeInt((int) crc.getValue());
+            payload.writeTo(out);
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                log.write(buffer);
+            }
+            log.force(false);
+            recordsSinceSnapshot += keys.size();
+        } catch (IOException e) {
+            // Written again on the next flush.
+            changed.addAll(keys);
+            throw e;
+        }
+    }
+
+    private void compact() throws IOException {
+        // Changes from here on go to the next log, which the new snapshot's generation says to replay.
+        long next = generation + 1;
+        FileChannel previous = log;
+        log = FileChannel.open(logPath(next), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        previous.close();
+
+        Path temporary = directory.resolve(SNAPSHOT_TEMPORARY);
+        int count = 0;
+        try (FileChannel channel = FileChannel.open(temporary,
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(next);
+            out.writeInt(0);
+            for (Map.Entry<String, ConversationReference> entry : references.entrySet()) {
+                byte[] value = codec.encode(entry.getValue());
+                writeString(out, entry.getKey());
+                out.writeLong(references.getLastSeenMillis(entry.getKey()));
+                out.writeInt(value.length);
+                out.write(value);
+                count++;
+            }
+            out.flush();
+            ByteBuffer header = ByteBuffer.allocate(Integer.BYTES).putInt(0, count);
+            channel.write(header, SNAPSHOT_COUNT_OFFSET);
+            channel.force(true);
+        }
+        Files.move(temporary, directory.resolve(SNAPSHOT),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        Files.deleteIfExists(logPath(generation));
+        generation = next;
+        recordsSinceSnapshot = 0;
+        logger.info("Compacted {} conversation references into {}", count, directory.resolve(SNAPSHOT));
+    }
+
+    private Path logPath(long logGeneration) {
+        return directory.resolve(String.format("%s%016d%s", LOG_PREFIX, logGeneration, LOG_SUFFIX));
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer covered = buffer.duplicate();
+        covered.position(offset);
+        covered.limit(offset + length);
+        CRC32 crc = new CRC32();
+        crc.update(covered);
+        return (int) crc.getValue();
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,86 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.proactive;
+
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.net.URI;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This controller schedules a message to be sent to a user at a future time.
+ * POST /api/schedule?user={id}&amp;delaySeconds={n}&amp;text={text} schedules it,
+ * or with at={ISO-8601 instant} instead of delaySeconds. The scheduled message
+ * can be read at, and cancelled by a DELETE to, /api/schedule/{id}.
+ *
+ * @see MessageScheduler
+ * @see ConversationReferences
+ * @see Application
+ */
+@RestController
+public class ScheduleController {
+    private MessageScheduler scheduler;
+    private ConversationReferences conversationReferences;
+
+    @Autowired
+    public ScheduleController(MessageScheduler withScheduler, ConversationReferences withReferences) {
+        scheduler = withScheduler;
+        conversationReferences = withReferences;
+    }
+
+    @PostMapping("/api/schedule")
+    public ResponseEntity<Object> schedule(
+        @RequestParam String user,
+        @RequestParam(required = false) String at,
+        @RequestParam(defaultValue = "0") long delaySeconds,
+        @RequestParam(defaultValue = "proactive hello") String text
+    ) {
+        if (!conversationReferences.containsKey(user)) {
+            return new ResponseEntity<>("No conversation with user " + user, HttpStatus.NOT_FOUND);
+        }
+
+        long dueAtMillis;
+        if (StringUtils.isNotBlank(at)) {
+            try {
+                dueAtMillis = Instant.parse(at.trim()).toEpochMilli();
+            } catch (DateTimeParseException e) {
+                return new ResponseEntity<>("at must be an ISO-8601 instant", HttpStatus.BAD_REQUEST);
+            }
+        } else {
+            dueAtMillis = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(delaySeconds);
+        }
+
+        ScheduledMessage message = scheduler.schedule(user, text, dueAtMillis);
+        return ResponseEntity.created(URI.create("/api/schedule/" + message.getId()))
+            .body(message.snapshot());
+    }
+
+    @GetMapping("/api/schedule/{id}")
+    public ResponseEntity<Object> scheduledMessage(@PathVariable String id) {
+        ScheduledMessage message = scheduler.get(id);
+        if (message == null) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        return ResponseEntity.ok(message.snapshot());
+    }
+
+    @DeleteMapping("/api/schedule/{id}")
+    public ResponseEntity<Object> cancel(@PathVariable String id) {
+        if (!scheduler.cancel(id)) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        return new ResponseEntity<>(HttpStatus.NO_CONTENT);
+    }
+}
@@ -0,0 +1,270 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.proactive;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the messages a {@link MessageScheduler} has yet to send on local disk, so they are still sent after a
+ * restart.
+ *
+ * <p>
+ * Each message is written to an append-only log when it is scheduled, and again as removed when it has been sent
+ * or cancelled. Records are queued by the callers and written, with a single force to disk, each time the
+ * scheduler ticks. Once the log holds more than twice as many records as there are messages left, it is rewritten
+ * with just those messages and atomically renamed over the old one. At startup the log is replayed, stopping at
+ * the first torn or corrupt record.
+ * </p>
+ */
+public class ScheduleJournal implements AutoCloseable {
+
+    /**
+     * The... ummm... logger.
+     */
+    private static Logger logger = LoggerFactory.getLogger(ScheduleJournal.class);
+
+    private static final int MIN_COMPACTION_RECORDS = 1000;
+
+    // length, crc; followed by the type, the id and, for an add, the user, the text and the due time.
+    private static final int FRAME_BYTES = Integer.BYTES + Integer.BYTES;
+    private static final byte ADD = 0;
+    private static final byte REMOVE = 1;
+    private static final String LOG = "scheduled-messages.log";
+    private static final String LOG_TEMPORARY = "scheduled-messages.log.tmp";
+
+    private final Path directory;
+    private final ConcurrentMap<String, ScheduledMessage> live = new ConcurrentHashMap<>();
+    private final Queue<byte[]> queued = new ConcurrentLinkedQueue<>();
+
+    // Only used by the thread that flushes.
+    private FileChannel log;
+    private long records;
+
+    /**
+     * The constructor of the {@link ScheduleJournal} class.
+     * @param withDirectory The directory holding the log. It is created if needed.
+     */
+    public ScheduleJournal(Path withDirectory) {
+        if (withDirectory == null) {
+            throw new IllegalArgumentException("withDirectory cannot be null");
+        }
+        directory = withDirectory;
+    }
+
+    /**
+     * Reads the messages that were scheduled and not yet sent or cancelled, and opens the log for writing.
+     *
+     * @return The messages.
+     */
+    public Collection<ScheduledMessage> load() {
+        try {
+            Files.createDirectories(directory);
+            Path path = directory.resolve(LOG);
+            log = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+            replay(path);
+            log.position(log.size());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        logger.info("Loaded {} scheduled messages from {}", live.size(), directory);
+        return new ArrayList<>(live.values());
+    }
+
+    /**
+     * Queues the record of a scheduled message.
+     *
+     * @param message The message.
+     */
+    public void added(ScheduledMessage message) {
+        live.put(message.getId(), message);
+        queued.add(encode(ADD, message.getId(), message));
+    }
+
+    /**
+     * Queues the record of a message that was sent or cancelled.
+     *
+     * @param id The id of the message.
+     */
+    public void removed(String id) {
+        if (live.remove(id) != null) {
+            queued.add(encode(REMOVE, id, null));
+        }
+    }
+
+    /**
+     * Writes the queued records and forces them to disk, then rewrites the log if it is mostly removed messages.
+     * Must only be called by one thread at a time.
+     */
+    public void flush() {
+        try {
+            write();
+            if (records > Math.max(MIN_COMPACTION_RECORDS, 2L * live.size())) {
+                compact();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes the queued records and closes the log.
+     */
+    @Override
+    public void close() {
+        if (log == null) {
+            return;
+        }
+        try {
+            write();
+            log.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close the schedule journal in {}: {}", directory, e.toString());
+        }
+    }
+
+    private void replay(Path path) throws IOException {
+        if (log.size() > Integer.MAX_VALUE) {
+            throw new IOException("Log " + path + " is larger than 2GB");
+        }
+        MappedByteBuffer buffer = log.map(FileChannel.MapMode.READ_ONLY, 0, log.size());
+        int valid = 0;
+        while (buffer.limit() - valid >= FRAME_BYTES) {
+            int length = buffer.getInt(valid);
+            int crc = buffer.getInt(valid + Integer.BYTES);
+            int start = valid + FRAME_BYTES;
+            if (length < Byte.BYTES + Integer.BYTES || length > buffer.limit() - start
+                || crc != checksum(buffer, start, length)) {
+                break;
+            }
+            buffer.position(start);
+            byte type = buffer.get();
+            String id = readString(buffer);
+            if (type == ADD) {
+                String user = readString(buffer);
+                String text = readString(buffer);
+                live.put(id, new ScheduledMessage(id, user, text, buffer.getLong()));
+            } else {
+                live.remove(id);
+            }
+            records++;
+            valid = start + length;
+        }
+        if (valid < log.size()) {
+            logger.warn("Truncating {} at {} of {} bytes, after a torn or corrupt record", path, valid, log.size());
+            log.truncate(valid);
+        }
+    }
+
+    private void write() throws IOException {
+        if (queued.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int count = 0;
+        for (byte[] record = queued.poll(); record != null; record = queued.poll()) {
+            bytes.write(record);
+            count++;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) {
+            log.write(buffer);
+        }
+        log.force(false);
+        records += count;
+    }
+
+    private void compact() throws IOException {
+        Path temporary = directory.resolve(LOG_TEMPORARY);
+        long count = 0;
+        try (FileChannel channel = FileChannel.open(temporary,
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            BufferedOutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+            // A message scheduled meanwhile may be written here and again from the queue, which replays the same.
+            for (ScheduledMessage message : live.values()) {
+                out.write(encode(ADD, message.getId(), message));
+                count++;
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Path path = directory.resolve(LOG);
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        log.close();
+        log = FileChannel.open(path, StandardOpenOption.WRITE);
+        log.position(log.size());
+        logger.debug("Compacted {} records into {} scheduled messages", records, count);
+        records = count;
+    }
+
+    private static byte[] encode(byte type, String id, ScheduledMessage message) {
+        try {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream record = new DataOutputStream(payload);
+            record.writeByte(type);
+            writeString(record, id);
+            if (message != null) {
+                writeString(record, message.getUser());
+                writeString(record, message.getText());
+                record.writeLong(message.getDueAtMillis());
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(payload.toByteArray());
+            ByteArrayOutputStream framed = new ByteArrayOutputStream(FRAME_BYTES + payload.size());
+            DataOutputStream out = new DataOutputStream(framed);
+            out.writeInt(payload.size());
+            out.writeInt((int) crc.getValue());
+            payload.writeTo(out);
+            return framed.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer covered = buffer.duplicate();
+        covered.position(offset);
+        covered.limit(offset + length);
+        CRC32 crc = new CRC32();
+        crc.update(covered);
+        return (int) crc.getValue();
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,103 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.proactive;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A proactive message to be sent to a user at a future time.
+ *
+ * @see MessageScheduler
+ */
+public class ScheduledMessage {
+
+    private final String id;
+    private final String user;
+    private final String text;
+    private final long dueAtMillis;
+
+    /**
+     * Creates a scheduled message.
+     *
+     * @param withId The id it is cancelled by.
+     * @param withUser The key of the user's reference in {@link ConversationReferences}.
+     * @param withText The message.
+     * @param withDueAtMillis When to send it, in epoch milliseconds.
+     */
+    public ScheduledMessage(String withId, String withUser, String withText, long withDueAtMillis) {
+        if (withId == null) {
+            throw new IllegalArgumentException("withId cannot be null");
+        }
+        if (withUser == null) {
+            throw new IllegalArgumentException("withUser cannot be null");
+        }
+        if (withText == null) {
+            throw new IllegalArgumentException("withText cannot be null");
+        }
+        id = withId;
+        user = withUser;
+        text = withText;
+        dueAtMillis = withDueAtMillis;
+    }
+
+    /**
+     * Gets the id the message is cancelled by.
+     *
+     * @return The id.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Gets the key of the user's reference in {@link ConversationReferences}.
+     *
+     * @return The user id.
+     */
+    public String getUser() {
+        return user;
+    }
+
+    /**
+     * Gets the message.
+     *
+     * @return The text.
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Gets when the message is to be sent.
+     *
+     * @return The time, in epoch milliseconds.
+     */
+    public long getDueAtMillis() {
+        return dueAtMillis;
+    }
+
+    /**
+     * Summarizes the message for the schedule endpoint.
+     *
+     * @return The message's fields, as a map that serializes to JSON.
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("id", id);
+        snapshot.put("user", user);
+        snapshot.put("text", text);
+        snapshot.put("dueAt", Instant.ofEpochMilli(dueAtMillis).toString());
+        return snapshot;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return String.format("%s for %s at %s", id, user, Instant.ofEpochMilli(dueAtMillis));
+    }
+}
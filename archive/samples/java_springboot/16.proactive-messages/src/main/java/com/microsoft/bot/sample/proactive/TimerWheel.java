@@ -0,0 +1,219 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.proactive;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel, which keeps millions of timers without a thread or a heap operation per timer.
+ *
+ * <p>
+ * Time advances in ticks. There are four levels of 256 slots: a slot of the first level holds the timers due in
+ * one tick, a slot of the second the timers due in 256 ticks, and so on, so the wheel covers 2^32 ticks, over 13
+ * years with 100ms ticks. Later timers wait in an overflow list. A timer is put in the lowest level whose range
+ * covers its delay, and each slot is a doubly linked list, so scheduling and cancelling take constant time.
+ * Whenever the first level comes round, the next slot of the second level is cascaded: its timers are put back,
+ * now into the first level, and likewise up the levels.
+ * </p>
+ *
+ * <p>
+ * Varghese and Lauck, "Hashed and Hierarchical Timing Wheels". The wheel is not thread safe.
+ * </p>
+ *
+ * @param <T> The type of the values the timers carry.
+ */
+final class TimerWheel<T> {
+
+    private static final int SLOT_BITS = 8;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    private final long tickMillis;
+    private final Slot<T>[][] levels;
+    private final Slot<T> overflow = new Slot<>();
+    private long currentTick;
+    private int size;
+
+    TimerWheel(long withTickMillis, long nowMillis) {
+        if (withTickMillis < 1) {
+            throw new IllegalArgumentException("withTickMillis must be at least 1");
+        }
+        tickMillis = withTickMillis;
+        currentTick = nowMillis / tickMillis;
+        // Arrays of a generic type can only be created raw.
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Slot<T>[][] slots = new Slot[LEVELS][SLOTS];
+        levels = slots;
+        for (Slot<T>[] level : levels) {
+            for (int i = 0; i < SLOTS; i++) {
+                level[i] = new Slot<>();
+            }
+        }
+    }
+
+    /**
+     * Adds a timer. A timer that is already due expires on the next tick.
+     *
+     * @param value The value handed back when the timer expires.
+     * @param dueMillis When the timer is due, in epoch milliseconds.
+     * @return The timer, which can be cancelled.
+     */
+    Timer<T> schedule(T value, long dueMillis) {
+        // Rounded up, so that a timer never expires before it is due.
+        Timer<T> timer = new Timer<>(value, (dueMillis + tickMillis - 1) / tickMillis);
+        place(timer, currentTick + 1);
+        size++;
+        return timer;
+    }
+
+    /**
+     * Removes a timer that has not expired.
+     *
+     * @param timer The timer.
+     * @return True if the timer was removed, false if it had already expired or been cancelled.
+     */
+    boolean cancel(Timer<T> timer) {
+        if (timer.slot == null) {
+            return false;
+        }
+        timer.slot.remove(timer);
+        size--;
+        return true;
+    }
+
+    /**
+     * Advances the wheel to the given time.
+     *
+     * @param nowMillis The time, in epoch milliseconds.
+     * @return The values of the timers that expired, tick by tick.
+     */
+    List<T> advance(long nowMillis) {
+        List<T> expired = new ArrayList<>();
+        long targetTick = nowMillis / tickMillis;
+        while (currentTick < targetTick) {
+            currentTick++;
+            cascade(1);
+            Slot<T> slot = levels[0][(int) (currentTick & SLOT_MASK)];
+            for (Timer<T> timer = slot.poll(); timer != null; timer = slot.poll()) {
+                expired.add(timer.value);
+                size--;
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Gets the number of timers waiting.
+     *
+     * @return The number of timers.
+     */
+    int size() {
+        return size;
+    }
+
+    // Puts back the timers of the current slot of a level once every level below it has come round.
+    private void cascade(int level) {
+        if (((currentTick >>> (SLOT_BITS * (level - 1))) & SLOT_MASK) != 0) {
+            return;
+        }
+        Slot<T> slot = level < LEVELS
+            ? levels[level][(int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK)]
+            : overflow;
+        // Taken as a whole first, since timers still too far off go back to the overflow list. The slot for
+        // the current tick has not been expired yet, so timers due now still go in it.
+        Timer<T> timer = slot.takeAll();
+        while (timer != null) {
+            Timer<T> next = timer.next;
+            timer.previous = null;
+            timer.next = null;
+            place(timer, currentTick);
+            timer = next;
+        }
+        if (level < LEVELS) {
+            cascade(level + 1);
+        }
+    }
+
+    private void place(Timer<T> timer, long earliestTick) {
+        long dueTick = Math.max(timer.dueTick, earliestTick);
+        long delay = dueTick - currentTick;
+        for (int level = 0; level < LEVELS; level++) {
+            if (delay < 1L << (SLOT_BITS * (level + 1))) {
+                levels[level][(int) ((dueTick >>> (SLOT_BITS * level)) & SLOT_MASK)].add(timer);
+                return;
+            }
+        }
+        overflow.add(timer);
+    }
+
+    /**
+     * A timer in the wheel.
+     *
+     * @param <T> The type of the value the timer carries.
+     */
+    static final class Timer<T> {
+        private final T value;
+        private final long dueTick;
+        private Slot<T> slot;
+        private Timer<T> previous;
+        private Timer<T> next;
+
+        private Timer(T withValue, long withDueTick) {
+            value = withValue;
+            dueTick = withDueTick;
+        }
+
+        T getValue() {
+            return value;
+        }
+    }
+
+    private static final class Slot<T> {
+        private Timer<T> head;
+
+        void add(Timer<T> timer) {
+            timer.slot = this;
+            timer.previous = null;
+            timer.next = head;
+            if (head != null) {
+                head.previous = timer;
+            }
+            head = timer;
+        }
+
+        void remove(Timer<T> timer) {
+            if (timer.previous != null) {
+                timer.previous.next = timer.next;
+            } else {
+                head = timer.next;
+            }
+            if (timer.next != null) {
+                timer.next.previous = timer.previous;
+            }
+            timer.slot = null;
+            timer.previous = null;
+            timer.next = null;
+        }
+
+        // Returns the first timer, still linked to the rest, and empties the slot.
+        Timer<T> takeAll() {
+            Timer<T> first = head;
+            for (Timer<T> timer = first; timer != null; timer = timer.next) {
+                timer.slot = null;
+            }
+            head = null;
+            return first;
+        }
+
+        Timer<T> poll() {
+            Timer<T> timer = head;
+            if (timer != null) {
+                remove(timer);
+            }
+            return timer;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.proactive;
+
+import com.microsoft.bot.restclient.RestException;
+import com.microsoft.bot.schema.ConversationAccount;
+import com.microsoft.bot.schema.ConversationReference;
+import okhttp3.ResponseBody;
+import org.junit.Assert;
+import org.junit.Test;
+import retrofit2.Response;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BroadcastEngineTest {
+
+    @Test
+    public void retriesThrottledSendsAndKeepsTheWindow() throws Exception {
+        List<ConversationReference> references = references(200, "https://service");
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger mostInFlight = new AtomicInteger();
+        Map<String, Integer> attempts = new ConcurrentHashMap<>();
+
+        try (BroadcastEngine engine = new BroadcastEngine(8, 0, 3, 1)) {
+            BroadcastJob job = engine.start(references, reference -> {
+                mostInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                int attempt = attempts.merge(reference.getConversation().getId(), 1, Integer::sum);
+                String id = reference.getConversation().getId();
+                CompletableFuture<Void> sent = CompletableFuture.runAsync(inFlight::decrementAndGet);
+                if (id.endsWith("7") && attempt == 1) {
+                    return sent.thenRun(() -> {
+                        throw error(429);
+                    });
+                }
+                if (id.endsWith("3")) {
+                    return sent.thenRun(() -> {
+                        throw error(403);
+                    });
+                }
+                return sent;
+            });
+
+            job.getCompletion().get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(180, job.getSent());
+            Assert.assertEquals(20, job.getFailed());
+            Assert.assertEquals(20, job.getRetries());
+            Assert.assertEquals(20L, ((Map<?, ?>) job.snapshot().get("failures")).get("HTTP 403"));
+            Assert.assertTrue(mostInFlight.get() <= 8);
+            Assert.assertSame(job, engine.getJob(job.getId()));
+        }
+    }
+
+    @Test
+    public void limitsTheRateOfEachServiceUrl() throws Exception {
+        List<ConversationReference> references = references(4, "https://one");
+        references.addAll(references(4, "https://two"));
+
+        try (BroadcastEngine engine = new BroadcastEngine(32, 2, 1, 1)) {
+            long started = System.nanoTime();
+            BroadcastJob job = engine.start(references, reference -> CompletableFuture.completedFuture(null));
+            job.getCompletion().get(10, TimeUnit.SECONDS);
+
+            // For each serviceUrl two messages go at once, and the other two wait half a second each. Only the
+            // lower bound is checked, since a slow machine can take any time longer.
+            long elapsed = System.nanoTime() - started;
+            Assert.assertEquals(8, job.getSent());
+            Assert.assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(900));
+        }
+    }
+
+    @Test
+    public void completesAnEmptyBroadcast() throws Exception {
+        try (BroadcastEngine engine = new BroadcastEngine(8, 0, 1, 1)) {
+            BroadcastJob job = engine.start(new ArrayList<>(), reference -> CompletableFuture.completedFuture(null));
+            job.getCompletion().get(10, TimeUnit.SECONDS);
+            Assert.assertEquals("completed", job.snapshot().get("state"));
+        }
+    }
+
+    @Test
+    public void keepsARunningJobWithoutHoldingOnToCompletedOnes() throws Exception {
+        CompletableFuture<Void> stuck = new CompletableFuture<>();
+        try (BroadcastEngine engine = new BroadcastEngine(8, 0, 1, 1)) {
+            BroadcastJob running = engine.start(references(1, "https://service"), reference -> stuck);
+
+            List<BroadcastJob> completed = new ArrayList<>();
+            for (int i = 0; i < 150; i++) {
+                BroadcastJob job =
+                    engine.start(new ArrayList<>(), reference -> CompletableFuture.completedFuture(null));
+                job.getCompletion().get(10, TimeUnit.SECONDS);
+                completed.add(job);
+            }
+            // Completed jobs are dropped as new ones start, so the last of them is counted on the next start.
+            engine.start(new ArrayList<>(), reference -> CompletableFuture.completedFuture(null))
+                .getCompletion().get(10, TimeUnit.SECONDS);
+
+            Assert.assertSame(running, engine.getJob(running.getId()));
+            Assert.assertNull(engine.getJob(completed.get(49).getId()));
+            Assert.assertSame(completed.get(50), engine.getJob(completed.get(50).getId()));
+            Assert.assertSame(completed.get(149), engine.getJob(completed.get(149).getId()));
+        } finally {
+            stuck.complete(null);
+        }
+    }
+
+    private static List<ConversationReference> references(int count, String serviceUrl) {
+        List<ConversationReference> references = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ConversationReference reference = new ConversationReference();
+            reference.setServiceUrl(serviceUrl);
+            reference.setConversation(new ConversationAccount(serviceUrl + "/" + i));
+            references.add(reference);
+        }
+        return references;
+    }
+
+    private static RestException error(int status) {
+        return new RestException("status " + status, Response.error(status, ResponseBody.create(null, "")));
+    }
+}
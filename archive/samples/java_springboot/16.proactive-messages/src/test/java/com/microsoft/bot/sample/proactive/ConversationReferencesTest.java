@@ -0,0 +1,222 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.proactive;
+
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.microsoft.bot.schema.ChannelAccount;
+import com.microsoft.bot.schema.ConversationAccount;
+import com.microsoft.bot.schema.ConversationReference;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class ConversationReferencesTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void referencesSurviveARestart() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        ReferenceJournal journal = new ReferenceJournal(directory, 1000, 1000);
+        long bobLastSeen;
+        try (ConversationReferences references = new ConversationReferences(journal)) {
+            references.put("alice", reference("alice", "tenant-a"));
+            references.put("bob", reference("bob", "tenant-b"));
+            references.put("bob", reference("bob", "tenant-c"));
+            references.remove("alice");
+
+            ConversationReference withProperties = reference("carol", "tenant-a");
+            withProperties.getUser().setProperties("department", TextNode.valueOf("sales"));
+            references.put("carol", withProperties);
+            bobLastSeen = references.getLastSeenMillis("bob");
+        }
+
+        try (ConversationReferences references = new ConversationReferences(new ReferenceJournal(directory))) {
+            Assert.assertEquals(2, references.size());
+            Assert.assertEquals(bobLastSeen, references.getLastSeenMillis("bob"));
+            Assert.assertEquals(1, references.select(ReferenceFilter.parse("tenant==tenant-a")).size());
+            Assert.assertNull(references.get("alice"));
+            Assert.assertEquals("tenant-c", references.get("bob").getConversation().getTenantId());
+            Assert.assertEquals("https://service/", references.get("bob").getServiceUrl());
+            Assert.assertEquals("sales", references.get("carol").getUser().getProperties().get("department").asText());
+        }
+    }
+
+    @Test
+    public void compactsTheLogIntoASnapshot() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        ReferenceJournal journal = new ReferenceJournal(directory, 1000, 10);
+        try (ConversationReferences references = new ConversationReferences(journal)) {
+            for (int i = 0; i < 100; i++) {
+                references.put("user" + i, reference("user" + i, "tenant"));
+            }
+            journal.flush();
+            Assert.assertEquals(1, journal.getGeneration());
+
+            references.remove("user0");
+        }
+        Assert.assertEquals(
+            Arrays.asList("references-0000000000000001.log", "references.snapshot"),
+            list(directory));
+
+        try (ConversationReferences references = new ConversationReferences(new ReferenceJournal(directory))) {
+            Assert.assertEquals(99, references.size());
+            Assert.assertEquals("user99", references.get("user99").getUser().getId());
+        }
+    }
+
+    @Test
+    public void readsASnapshotSpanningSeveralChunks() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        ReferenceJournal journal = new ReferenceJournal(directory, 1000, 10);
+        try (ConversationReferences references = new ConversationReferences(journal)) {
+            for (int i = 0; i < 100; i++) {
+                references.put("user" + i, reference("user" + i, "tenant"));
+            }
+            // One reference larger than a chunk.
+            ConversationReference large = reference("large", "tenant");
+            large.getUser().setName(String.join("", Collections.nCopies(2000, "x")));
+            references.put("large", large);
+            journal.flush();
+            Assert.assertEquals(1, journal.getGeneration());
+        }
+        Assert.assertTrue(Files.size(directory.resolve("references.snapshot")) > 10 * 1024);
+
+        ReferenceJournal chunked = new ReferenceJournal(directory, 1000, 1000, 1024);
+        try (ConversationReferences references = new ConversationReferences(chunked)) {
+            Assert.assertEquals(101, references.size());
+            for (int i = 0; i < 100; i++) {
+                Assert.assertEquals("user" + i, references.get("user" + i).getUser().getId());
+            }
+            Assert.assertEquals(2000, references.get("large").getUser().getName().length());
+        }
+    }
+
+    @Test
+    public void replaceAllAndComputeAreJournaledOnlyWhenTheyChangeSomething() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        long aliceLastSeen;
+        try (ConversationReferences references = new ConversationReferences(new ReferenceJournal(directory))) {
+            references.put("alice", reference("alice", "tenant-a"));
+            references.put("bob", reference("bob", "tenant-a"));
+            aliceLastSeen = references.getLastSeenMillis("alice");
+            Thread.sleep(5);
+
+            references.computeIfPresent("alice", (key, reference) -> reference);
+            references.compute("carol", (key, reference) -> null);
+            references.computeIfAbsent("alice", key -> reference(key, "tenant-c"));
+            Assert.assertEquals(aliceLastSeen, references.getLastSeenMillis("alice"));
+            Assert.assertEquals(0, references.getLastSeenMillis("carol"));
+
+            references.replaceAll((key, reference) -> reference(key, "tenant-b"));
+            Assert.assertEquals(Arrays.asList("alice", "bob"), select(references, "tenant==tenant-b"));
+            Assert.assertEquals(Arrays.asList(), select(references, "tenant==tenant-a"));
+        }
+
+        try (ConversationReferences references = new ConversationReferences(new ReferenceJournal(directory))) {
+            Assert.assertEquals(2, references.size());
+            Assert.assertEquals("tenant-b", references.get("alice").getConversation().getTenantId());
+            Assert.assertEquals("tenant-b", references.get("bob").getConversation().getTenantId());
+        }
+    }
+
+    @Test
+    public void ignoresATornRecordAtTheEndOfTheLog() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (ConversationReferences references = new ConversationReferences(new ReferenceJournal(directory))) {
+            references.put("alice", reference("alice", "tenant"));
+        }
+        Path log = directory.resolve("references-0000000000000000.log");
+        long written = Files.size(log);
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[] {0, 0, 0, 100, 1, 2, 3}));
+        }
+
+        try (ConversationReferences references = new ConversationReferences(new ReferenceJournal(directory))) {
+            Assert.assertEquals(1, references.size());
+            Assert.assertEquals(written, Files.size(log));
+            references.put("bob", reference("bob", "tenant"));
+        }
+        try (ConversationReferences references = new ConversationReferences(new ReferenceJournal(directory))) {
+            Assert.assertEquals(2, references.size());
+        }
+    }
+
+    @Test
+    public void selectsReferencesByChannelTenantServiceUrlAndLastSeen() {
+        long now = System.currentTimeMillis();
+        long day = TimeUnit.DAYS.toMillis(1);
+        ConversationReferences references = new ConversationReferences();
+        references.load("alice", reference("alice", "tenant-a"), now - 10 * day);
+        references.load("bob", reference("bob", "tenant-a"), now - day);
+        references.load("carol", reference("carol", "tenant-b"), now - day);
+        ConversationReference slack = reference("dave", null);
+        slack.setChannelId("slack");
+        slack.setServiceUrl("https://slack/");
+        references.load("dave", slack, now);
+
+        Assert.assertEquals(Arrays.asList("alice", "bob"), select(references, "tenant==tenant-a"));
+        Assert.assertEquals(Arrays.asList("bob"),
+            select(references, "channelId==msteams and tenant=='tenant-a' and lastSeen>P7D"));
+        Assert.assertEquals(Arrays.asList("bob", "carol", "dave"), select(references, "lastSeen>=P2D"));
+        Assert.assertEquals(Arrays.asList("dave"), select(references, "serviceUrl==\"https://slack/\""));
+        Assert.assertEquals(Arrays.asList("alice", "bob", "carol", "dave"), select(references, " "));
+        Assert.assertEquals(Arrays.asList(), select(references, "tenant==tenant-a AND tenant==tenant-b"));
+
+        // Indexed again when a user comes back, here in another tenant, and when removed.
+        ConversationReference moved = reference("alice", "tenant-b");
+        references.put("alice", moved);
+        Assert.assertEquals(Arrays.asList("alice", "carol"), select(references, "tenant==tenant-b and lastSeen>P2D"));
+        references.remove("carol");
+        Assert.assertEquals(Arrays.asList("alice"), select(references, "tenant==tenant-b"));
+
+        for (String invalid : Arrays.asList("tenant>x", "locale==en", "lastSeen>yesterday", "tenant==")) {
+            try {
+                ReferenceFilter.parse(invalid);
+                Assert.fail(invalid);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    private static List<String> select(ConversationReferences references, String filter) {
+        return references.select(ReferenceFilter.parse(filter)).stream()
+            .map(reference -> reference.getUser().getId())
+            .sorted()
+            .collect(Collectors.toList());
+    }
+
+    private static ConversationReference reference(String user, String tenant) {
+        ConversationReference reference = new ConversationReference();
+        reference.setChannelId("msteams");
+        reference.setServiceUrl("https://service/");
+        reference.setUser(new ChannelAccount(user, user));
+        reference.setBot(new ChannelAccount("bot", "bot"));
+        ConversationAccount conversation = new ConversationAccount(user + "-conversation");
+        conversation.setTenantId(tenant);
+        reference.setConversation(conversation);
+        return reference;
+    }
+
+    private static List<String> list(Path directory) throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(path -> path.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+}
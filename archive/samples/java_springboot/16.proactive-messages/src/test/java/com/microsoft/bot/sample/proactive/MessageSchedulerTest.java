@@ -0,0 +1,98 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.proactive;
+
+import com.microsoft.bot.schema.ChannelAccount;
+import com.microsoft.bot.schema.ConversationReference;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class MessageSchedulerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void sendsDueMessagesAndNotCancelledOnes() throws Exception {
+        BlockingQueue<String> sent = new LinkedBlockingQueue<>();
+        try (BroadcastEngine engine = new BroadcastEngine(8, 0, 1, 1);
+            MessageScheduler scheduler = new MessageScheduler(references("alice"), engine,
+                (reference, text) -> {
+                    sent.add(reference.getUser().getId() + ": " + text);
+                    return CompletableFuture.completedFuture(null);
+                }, null, 10)) {
+            long now = System.currentTimeMillis();
+            ScheduledMessage cancelled = scheduler.schedule("alice", "cancelled", now + 100);
+            ScheduledMessage reminder = scheduler.schedule("alice", "reminder", now + 200);
+            Assert.assertSame(reminder, scheduler.get(reminder.getId()));
+            Assert.assertTrue(scheduler.cancel(cancelled.getId()));
+
+            Assert.assertEquals("alice: reminder", sent.poll(5, TimeUnit.SECONDS));
+            Assert.assertTrue(System.currentTimeMillis() >= now + 200);
+            Assert.assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+            Assert.assertNull(scheduler.get(reminder.getId()));
+            Assert.assertEquals(0, scheduler.getPendingCount());
+        }
+    }
+
+    @Test
+    public void catchesUpOnMessagesThatCameDueWhileStopped() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        List<String> sent = new CopyOnWriteArrayList<>();
+        long now = System.currentTimeMillis();
+
+        try (BroadcastEngine engine = new BroadcastEngine(8, 0, 1, 1);
+            MessageScheduler scheduler = new MessageScheduler(references("alice", "bob"), engine,
+                (reference, text) -> {
+                    sent.add(text);
+                    return CompletableFuture.completedFuture(null);
+                }, new ScheduleJournal(directory), 10)) {
+            scheduler.schedule("alice", "soon", now + 300);
+            scheduler.schedule("bob", "later", now + 3600000);
+            scheduler.cancel(scheduler.schedule("bob", "cancelled", now + 300).getId());
+        }
+        Thread.sleep(400);
+
+        BlockingQueue<String> resent = new LinkedBlockingQueue<>();
+        try (BroadcastEngine engine = new BroadcastEngine(8, 0, 1, 1);
+            MessageScheduler scheduler = new MessageScheduler(references("alice", "bob"), engine,
+                (reference, text) -> {
+                    resent.add(text);
+                    return CompletableFuture.completedFuture(null);
+                }, new ScheduleJournal(directory), 10)) {
+            Assert.assertEquals("soon", resent.poll(5, TimeUnit.SECONDS));
+            Assert.assertEquals(1, scheduler.getPendingCount());
+        }
+        Assert.assertTrue(sent.isEmpty());
+        Assert.assertTrue(resent.isEmpty());
+
+        // Once sent, a message is not sent again.
+        try (BroadcastEngine engine = new BroadcastEngine(8, 0, 1, 1);
+            MessageScheduler scheduler = new MessageScheduler(references("alice", "bob"), engine,
+                (reference, text) -> CompletableFuture.completedFuture(null), new ScheduleJournal(directory), 10)) {
+            Assert.assertEquals(1, scheduler.getPendingCount());
+        }
+    }
+
+    private static ConversationReferences references(String... users) {
+        ConversationReferences references = new ConversationReferences();
+        for (String user : users) {
+            ConversationReference reference = new ConversationReference();
+            reference.setServiceUrl("https://service/");
+            reference.setUser(new ChannelAccount(user));
+            references.put(user, reference);
+        }
+        return references;
+    }
+}
@@ -0,0 +1,55 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.proactive;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class TimerWheelTest {
+
+    @Test
+    public void timersExpireOnTheirTickAcrossLevels() {
+        TimerWheel<Long> wheel = new TimerWheel<>(10, 1000);
+        List<Long> due = Arrays.asList(1010L, 1015L, 3550L, 1000L + 256 * 10, 1000L + 70000 * 10, 1000L + 300 * 10);
+        for (Long dueMillis : due) {
+            wheel.schedule(dueMillis, dueMillis);
+        }
+
+        List<Long> expired = new ArrayList<>();
+        for (long now = 1000; now <= 1000 + 70001 * 10; now += 10) {
+            for (Long dueMillis : wheel.advance(now)) {
+                // Never early, and no later than the tick it falls in.
+                Assert.assertTrue(dueMillis <= now);
+                Assert.assertTrue(now - dueMillis < 10);
+                expired.add(dueMillis);
+            }
+        }
+
+        List<Long> sorted = new ArrayList<>(due);
+        Collections.sort(sorted);
+        Assert.assertEquals(sorted, expired);
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void cancelledAndOverdueTimers() {
+        TimerWheel<String> wheel = new TimerWheel<>(100, 0);
+        TimerWheel.Timer<String> cancelled = wheel.schedule("cancelled", 50000);
+        wheel.schedule("kept", 50000);
+        wheel.schedule("overdue", -5000);
+        Assert.assertEquals(3, wheel.size());
+
+        Assert.assertTrue(wheel.cancel(cancelled));
+        Assert.assertFalse(wheel.cancel(cancelled));
+        Assert.assertEquals(Collections.singletonList("overdue"), wheel.advance(100));
+        Assert.assertEquals(Collections.emptyList(), wheel.advance(49900));
+        Assert.assertEquals(Collections.singletonList("kept"), wheel.advance(50000));
+        Assert.assertEquals(0, wheel.size());
+    }
+}
@@ -0,0 +1,80 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.microsoft.bot.connector.authentication.AuthenticationException;
+import com.microsoft.bot.schema.Activity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * This controller replaces the default BotController at /api/messages. Instead of always processing an Activity
+ * on the node that received it, it asks the {@link AffinityRouter} which node owns the conversation and forwards
+ * the Activity there when that is another node.
+ *
+ * @see AffinityRouter
+ * @see Application
+ */
+@RestController
+public class AffinityController {
+
+    /**
+     * The... ummm... logger.
+     */
+    private static Logger logger = LoggerFactory.getLogger(AffinityController.class);
+
+    private final AffinityRouter router;
+
+    /**
+     * Initializes a new instance of the {@link AffinityController} class.
+     * @param withRouter The router. Note is is provided by dependency injection via the constructor.
+     */
+    @Autowired
+    public AffinityController(AffinityRouter withRouter) {
+        router = withRouter;
+    }
+
+    /**
+     * Receives Activities from the channel, or forwarded by another node.
+     * @param activity The inbound Activity.
+     * @param authHeader The Authorization header.
+     * @param forwarded The forwarded marker set by {@link HttpNodeTransport}, if any.
+     * @return The response to the Activity.
+     */
+    @PostMapping("/api/messages")
+    public CompletableFuture<ResponseEntity<Object>> incoming(
+        @RequestBody Activity activity,
+        @RequestHeader(value = "Authorization", defaultValue = "") String authHeader,
+        @RequestHeader(value = AffinityRouter.FORWARDED_HEADER, required = false) String forwarded
+    ) {
+        return router.route(authHeader, activity, forwarded != null)
+            .handle((invokeResponse, exception) -> {
+                if (exception == null) {
+                    if (invokeResponse != null) {
+                        return new ResponseEntity<>(
+                            invokeResponse.getBody(),
+                            HttpStatus.valueOf(invokeResponse.getStatus()));
+                    }
+                    return new ResponseEntity<>(HttpStatus.ACCEPTED);
+                }
+
+                logger.error("Exception handling message", exception);
+                if (exception instanceof CompletionException
+                    && exception.getCause() instanceof AuthenticationException) {
+                    return new ResponseEntity<>(HttpStatus.UNAUTHORIZED);
+                }
+                return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+            });
+    }
+}
@@ -0,0 +1,280 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.microsoft.bot.builder.InvokeResponse;
+import com.microsoft.bot.schema.Activity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+/**
+ * Sends each inbound Activity to the node that owns its conversation, so that each node mostly handles its own
+ * conversations and etag conflicts between nodes become rare.
+ *
+ * <p>
+ * Ownership comes from a {@link ConsistentHashRing} over the current {@link Membership}, rebuilt whenever a node
+ * joins or leaves. Correctness never depends on the routing: a forwarded Activity is always processed where it
+ * lands, even if the receiving node's view of the membership disagrees, and if no connection to the owner can be
+ * made the Activity is processed locally. In both cases the etag check in ScaleoutBot still protects the state.
+ * Any other failure to forward, such as a timeout waiting for the owner's response, fails the Activity, since
+ * the owner may be processing it. An error status from the owner is returned as the response.
+ * </p>
+ *
+ * <p>
+ * With a {@link LeaseManager}, a node also takes the lease on a conversation before processing it. If another
+ * node already holds the lease, for example because the membership changed or the nodes' views of it disagree,
+ * the Activity is forwarded to the lease holder instead. An Activity that was already forwarded once is not
+ * forwarded again: it waits for the other node's lease to run out, and is then processed here.
+ * </p>
+ */
+public class AffinityRouter {
+
+    /**
+     * The header that marks an Activity as already forwarded once.
+     */
+    public static final String FORWARDED_HEADER = "X-Scaleout-Forwarded";
+
+    /**
+     * The... ummm... logger.
+     */
+    private static Logger logger = LoggerFactory.getLogger(AffinityRouter.class);
+
+    private final String nodeId;
+    private final int virtualNodes;
+    private final NodeTransport transport;
+    private final BiFunction<String, Activity, CompletableFuture<InvokeResponse>> localHandler;
+    private final LeaseManager leases;
+    private volatile Map<String, String> members;
+    private volatile ConsistentHashRing ring;
+
+    private final AtomicLong handledLocally = new AtomicLong();
+    private final AtomicLong forwarded = new AtomicLong();
+    private final AtomicLong forwardFailures = new AtomicLong();
+    private final AtomicLong forwardedToLeaseHolder = new AtomicLong();
+    private final AtomicLong waitedForLease = new AtomicLong();
+
+    /**
+     * Initializes a new instance of the {@link AffinityRouter} class.
+     *
+     * @param withNodeId The id of this node in the membership.
+     * @param membership The nodes sharing the conversations.
+     * @param withVirtualNodes The number of ring points per node.
+     * @param withTransport How Activities are handed to other nodes.
+     * @param withLocalHandler Processes an Activity on this node, given the Authorization header and the Activity.
+     */
+    public AffinityRouter(
+        String withNodeId,
+        Membership membership,
+        int withVirtualNodes,
+        NodeTransport withTransport,
+        BiFunction<String, Activity, CompletableFuture<InvokeResponse>> withLocalHandler) {
+        this(withNodeId, membership, withVirtualNodes, withTransport, withLocalHandler, null);
+    }
+
+    /**
+     * Initializes a new instance of the {@link AffinityRouter} class.
+     *
+     * @param withNodeId The id of this node in the membership. It must be the id the leases are taken under.
+     * @param membership The nodes sharing the conversations.
+     * @param withVirtualNodes The number of ring points per node.
+     * @param withTransport How Activities are handed to other nodes.
+     * @param withLocalHandler Processes an Activity on this node, given the Authorization header and the Activity.
+     * @param withLeases The leases on conversations. May be null, and then only the ring decides.
+     */
+    public AffinityRouter(
+        String withNodeId,
+        Membership membership,
+        int withVirtualNodes,
+        NodeTransport withTransport,
+        BiFunction<String, Activity, CompletableFuture<InvokeResponse>> withLocalHandler,
+        LeaseManager withLeases) {
+        if (withNodeId == null) {
+            throw new IllegalArgumentException("withNodeId cannot be null");
+        }
+        if (membership == null) {
+            throw new IllegalArgumentException("membership cannot be null");
+        }
+        if (withTransport == null) {
+            throw new IllegalArgumentException("withTransport cannot be null");
+        }
+        if (withLocalHandler == null) {
+            throw new IllegalArgumentException("withLocalHandler cannot be null");
+        }
+        nodeId = withNodeId;
+        virtualNodes = withVirtualNodes;
+        transport = withTransport;
+        localHandler = withLocalHandler;
+        leases = withLeases;
+
+        onMembershipChanged(membership.getMembers());
+        membership.addListener(this::onMembershipChanged);
+    }
+
+    /**
+     * Processes an inbound Activity here, or forwards it to the node that owns its conversation.
+     *
+     * @param authHeader The Authorization header sent with the Activity.
+     * @param activity The inbound Activity.
+     * @param alreadyForwarded True if another node already forwarded this Activity here.
+     * @return The response to the Activity, null if there is none.
+     */
+    public CompletableFuture<InvokeResponse> route(String authHeader, Activity activity, boolean alreadyForwarded) {
+        String owner = alreadyForwarded ? null : ownerOf(activity);
+        String address = owner != null ? members.get(owner) : null;
+        if (owner == null || owner.equals(nodeId) || address == null) {
+            return leases != null
+                ? routeByLease(authHeader, activity, alreadyForwarded)
+                : handleLocally(authHeader, activity);
+        }
+        return forward(owner, address, authHeader, activity);
+    }
+
+    /**
+     * Finds the node that owns the conversation of an Activity.
+     *
+     * @param activity The Activity.
+     * @return The id of the owning node, or null if the Activity has no conversation or there are no members.
+     */
+    public String ownerOf(Activity activity) {
+        String key = ScaleoutBot.conversationKey(activity);
+        return key != null ? ring.nodeFor(key) : null;
+    }
+
+    /**
+     * Gets the id of this node.
+     *
+     * @return The node id.
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Gets the number of Activities processed on this node.
+     *
+     * @return The local count.
+     */
+    public long getHandledLocally() {
+        return handledLocally.get();
+    }
+
+    /**
+     * Gets the number of Activities handed to another node.
+     *
+     * @return The forwarded count.
+     */
+    public long getForwarded() {
+        return forwarded.get();
+    }
+
+    /**
+     * Gets the number of forwards that could not connect to the owner and were processed here instead.
+     *
+     * @return The failed forward count.
+     */
+    public long getForwardFailures() {
+        return forwardFailures.get();
+    }
+
+    /**
+     * Gets the number of Activities handed to the node holding the lease on their conversation.
+     *
+     * @return The forwarded count.
+     */
+    public long getForwardedToLeaseHolder() {
+        return forwardedToLeaseHolder.get();
+    }
+
+    /**
+     * Gets the number of Activities that waited for another node's lease to run out.
+     *
+     * @return The waited count.
+     */
+    public long getWaitedForLease() {
+        return waitedForLease.get();
+    }
+
+    private CompletableFuture<InvokeResponse> routeByLease(
+        String authHeader,
+        Activity activity,
+        boolean alreadyForwarded) {
+        String key = ScaleoutBot.conversationKey(activity);
+        if (key == null) {
+            return handleLocally(authHeader, activity);
+        }
+
+        return leases.acquire(key).handle((lease, error) -> {
+            if (error != null) {
+                // The leases could not be read. Processing here is still correct, only possibly wasted.
+                logger.warn("Lease on {} could not be taken, handling locally: {}", key, error.toString());
+                return handleLocally(authHeader, activity);
+            }
+            if (lease.isHeldBy(nodeId)) {
+                return handleLocally(authHeader, activity);
+            }
+            String address = members.get(lease.getOwner());
+            if (!alreadyForwarded && address != null) {
+                forwardedToLeaseHolder.incrementAndGet();
+                return forward(lease.getOwner(), address, authHeader, activity);
+            }
+            // If the holder renews its lease in the meantime the turn runs here anyway, and the etag check decides.
+            waitedForLease.incrementAndGet();
+            return leases.acquireAfter(key, lease)
+                .handle((next, nextError) -> handleLocally(authHeader, activity))
+                .thenCompose(response -> response);
+        }).thenCompose(response -> response);
+    }
+
+    private CompletableFuture<InvokeResponse> forward(
+        String owner,
+        String address,
+        String authHeader,
+        Activity activity) {
+        forwarded.incrementAndGet();
+        CompletableFuture<InvokeResponse> result = new CompletableFuture<>();
+        transport.deliver(address, authHeader, activity).whenComplete((response, error) -> {
+            if (error == null) {
+                result.complete(response);
+                return;
+            }
+            Throwable cause = error instanceof CompletionException && error.getCause() != null
+                ? error.getCause()
+                : error;
+            if (!(cause instanceof NodeUnreachableException)) {
+                // The owner may have received the Activity and be running the turn, so running it here as well
+                // could answer the user twice.
+                logger.warn("Forward to {} failed: {}", owner, cause.toString());
+                result.completeExceptionally(cause);
+                return;
+            }
+            // The owner may be down or restarting. Handling the turn here is slower but still correct.
+            forwardFailures.incrementAndGet();
+            logger.warn("Forward to {} failed, handling locally: {}", owner, error.toString());
+            handleLocally(authHeader, activity).whenComplete((local, localError) -> {
+                if (localError != null) {
+                    result.completeExceptionally(localError);
+                } else {
+                    result.complete(local);
+                }
+            });
+        });
+        return result;
+    }
+
+    private CompletableFuture<InvokeResponse> handleLocally(String authHeader, Activity activity) {
+        handledLocally.incrementAndGet();
+        return localHandler.apply(authHeader, activity);
+    }
+
+    private void onMembershipChanged(Map<String, String> updated) {
+        members = updated;
+        ring = new ConsistentHashRing(updated.keySet(), virtualNodes);
+    }
+}
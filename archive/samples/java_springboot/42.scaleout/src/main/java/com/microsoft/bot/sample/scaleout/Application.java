@@ -7,8 +7,8 @@ import com.microsoft.bot.builder.Bot;
 import com.microsoft.bot.integration.AdapterWithErrorHandler;
 import com.microsoft.bot.integration.BotFrameworkHttpAdapter;
 import com.microsoft.bot.integration.Configuration;
-import com.microsoft.bot.integration.spring.BotController;
 import com.microsoft.bot.integration.spring.BotDependencyConfiguration;
+import org.apache.commons.lang3.StringUtils;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
@@ -19,12 +19,12 @@ import org.springframework.context.annotation.Import;
  */
 @SpringBootApplication
 
-// Use the default BotController to receive incoming Channel messages. A custom
-// controller could be used by eliminating this import and creating a new
-// org.springframework.web.bind.annotation.RestController.
-// The default controller is created by the Spring Boot container using
-// dependency injection. The default route is /api/messages.
-@Import({BotController.class})
+// Use the AffinityController to receive incoming Channel messages. It takes the place
+// of the default BotController at /api/messages, and forwards each Activity to the
+// node that owns its conversation when the bot is scaled out over several nodes.
+// With no other nodes configured it behaves exactly like the BotController.
+// The MetricsController serves this node's state metrics at /api/metrics.
+@Import({AffinityController.class, MetricsController.class})
 
 /**
  * This class extends the BotDependencyConfiguration which provides the default
@@ -42,6 +42,69 @@ public class Application extends BotDependencyConfiguration {
         SpringApplication.run(Application.class, args);
     }
 
+    /**
+     * Returns the storage the Dialog state, and the leases on conversations, are kept in.
+     *
+     * @param configuration The Configuration object to use.
+     * @param metrics Where the store's own counters are reported.
+     * @return The Store.
+     */
+    @Bean
+    public Store getStore(Configuration configuration, ScaleoutMetrics metrics) {
+        // If using Blob Storage. Fill these connection details in from configuration.
+        // String accountName = "<ACCOUNT-NAME>";
+        // String accountKey = "<ACCOUNT-KEY>";
+        // String container = "dialogs";
+        // InstrumentedExecutor executor = new InstrumentedExecutor("blob-store", 16, 1024);
+        // metrics.addExecutor("blob-store", executor);
+        // StateCodec codec = new InstrumentedStateCodec(JacksonStateCodec.json(), metrics);
+        // int compressionThreshold = getIntProperty(
+        //     configuration, "Scaleout.Blob.CompressionThresholdBytes", BlobStore.NO_COMPRESSION);
+        // Store store = new BlobStore(accountName, accountKey, container, executor, codec, compressionThreshold);
+        // To spread the keys over several containers or accounts, with a hash prefix on each blob name, and so
+        // over more partitions of the Blob service, pass a layout instead. Only ever add containers at the end,
+        // and while the keys move, pass the old layout as the previous one and run a BlobShardMigrator.
+        // BlobShardLayout layout = new BlobShardLayout(Arrays.asList(container1, container2), true);
+        // Store store = new BlobStore(layout, null, executor, codec, compressionThreshold);
+        // To keep recently used states and only download a blob when its etag has changed, add a near cache.
+        // BlobStore store = new BlobStore(layout, null, executor, codec, compressionThreshold,
+        //     getIntProperty(configuration, "Scaleout.Blob.NearCacheEntries", 10000));
+        // metrics.addStore("blob", store::snapshot);
+
+        // If using local disk, for a single node that should keep its conversations across restarts.
+        // Store store = new LogStore(Paths.get("dialogs"));
+
+        // If holding very many conversations in memory, keep their state serialized off the heap so the
+        // JsonNode trees don't fill the old generation. Raise -XX:MaxDirectMemorySize to match.
+        // OffHeapStore store = new OffHeapStore(4L << 30, JacksonStateCodec.smile());
+        // metrics.addStore("offheap", store::snapshot);
+
+        // Create the storage we'll be using for the Dialog state. (Memory is great for testing purposes.)
+        // Conversations idle for longer than the time to live are forgotten, as are the least recently used
+        // ones when there are more than the maximum, so memory use stays flat on a long running node.
+        // Pass a LogStore as a third argument to spill evicted conversations to disk instead of losing them.
+        BoundedMemoryStore store = new BoundedMemoryStore(
+            getIntProperty(configuration, "Scaleout.Memory.MaxConversations", 100000),
+            getIntProperty(configuration, "Scaleout.Memory.TimeToLiveMillis", 3600000));
+        metrics.addStore("memory", store::snapshot);
+        return store;
+    }
+
+    /**
+     * Returns the leases that give one node at a time ownership of a conversation.
+     *
+     * @param configuration The Configuration object to use.
+     * @param store The store the leases are kept in, shared by every node.
+     * @return The LeaseManager.
+     */
+    @Bean
+    public LeaseManager getLeaseManager(Configuration configuration, Store store) {
+        return new LeaseManager(
+            getNodeId(configuration),
+            store,
+            getIntProperty(configuration, "Scaleout.Lease.DurationMillis", 10000));
+    }
+
     /**
      * Returns the Bot for this application.
      *
@@ -50,22 +113,86 @@ public class Application extends BotDependencyConfiguration {
      * @Bean annotation.
      * </p>
      *
+     * @param configuration The Configuration object to use.
+     * @param store The storage for the Dialog state.
+     * @param leases The leases on conversations. The state of those this node holds is kept in memory.
+     * @param metrics Where the bot and its store record conflicts, retries and latencies.
      * @return The Bot implementation for this application.
      */
     @Bean
-    public Bot getBot() {
-        // If using Blob Storage. Fill these connection details in from configuration.
-        // String accountName = "<ACCOUNT-NAME>";
-        // String accountKey = "<ACCOUNT-KEY>";
-        // String container = "dialogs";
-        // Store store = new BlobStore(accountName, accountKey, container);
-
-        // Create the storage we'll be using for the Dialog state. (Memory is great for testing purposes.)
-        Store store = new MemoryStore();
+    public Bot getBot(Configuration configuration, Store store, LeaseManager leases, ScaleoutMetrics metrics) {
+        // While this node holds a conversation's lease, its turns load the state from memory.
+        LeasedStore leasedStore = new LeasedStore(new InstrumentedStore(store, metrics), leases);
+        metrics.addStore("leased", leasedStore::snapshot);
         // The Dialog that will be run by the bot.
         RootDialog rootDialog = new RootDialog();
+        // How often, and how far apart, a turn is retried when another replica saved the conversation first.
+        RetryPolicy retryPolicy = new RetryPolicy(
+            getIntProperty(configuration, "Scaleout.Retry.MaxAttempts", 8),
+            getIntProperty(configuration, "Scaleout.Retry.BaseDelayMillis", 10),
+            getIntProperty(configuration, "Scaleout.Retry.MaxDelayMillis", 1000));
+        // When a save loses the race, changes to different dialog instances or values are merged instead of
+        // running the turn again.
+        ConflictResolver conflictResolver =
+            getBooleanProperty(configuration, "Scaleout.Retry.MergeConflicts", true) ? new ThreeWayMerge() : null;
         // Create the bot as a transient.
-        return new ScaleoutBot<>(store, rootDialog);
+        return new ScaleoutBot<>(leasedStore, rootDialog, retryPolicy, metrics, conflictResolver);
+    }
+
+    /**
+     * Returns the metrics served at /api/metrics.
+     *
+     * @return The ScaleoutMetrics.
+     */
+    @Bean
+    public ScaleoutMetrics getScaleoutMetrics() {
+        return new ScaleoutMetrics();
+    }
+
+    /**
+     * The nodes sharing this bot's conversations, from the Scaleout.Nodes setting. With none listed, this node
+     * handles every conversation itself.
+     *
+     * @param configuration The Configuration object to use.
+     * @return The Membership.
+     */
+    @Bean
+    public Membership getMembership(Configuration configuration) {
+        return LocalMembership.parse(configuration.getProperty("Scaleout.Nodes"));
+    }
+
+    /**
+     * Returns the router that sends each Activity to the node owning its conversation.
+     *
+     * @param configuration The Configuration object to use.
+     * @param membership The nodes sharing this bot's conversations.
+     * @param adapter The adapter that processes Activities owned by this node.
+     * @param bot The bot that processes Activities owned by this node.
+     * @param metrics Where the forwarding executor's queue and latencies are reported.
+     * @param leases The leases on conversations, which take precedence over the ring.
+     * @return The AffinityRouter.
+     */
+    @Bean
+    public AffinityRouter getAffinityRouter(
+        Configuration configuration,
+        Membership membership,
+        BotFrameworkHttpAdapter adapter,
+        Bot bot,
+        ScaleoutMetrics metrics,
+        LeaseManager leases
+    ) {
+        InstrumentedExecutor executor = new InstrumentedExecutor("node-transport", 16, 1024);
+        metrics.addExecutor("node-transport", executor);
+        NodeTransport transport = new HttpNodeTransport(
+            executor,
+            getIntProperty(configuration, "Scaleout.ForwardTimeoutMillis", 15000));
+        return new AffinityRouter(
+            getNodeId(configuration),
+            membership,
+            getIntProperty(configuration, "Scaleout.VirtualNodes", 128),
+            transport,
+            (authHeader, activity) -> adapter.processIncomingActivity(authHeader, activity, bot),
+            leases);
     }
 
     /**
@@ -78,4 +205,19 @@ public class Application extends BotDependencyConfiguration {
     public BotFrameworkHttpAdapter getBotFrameworkHttpAdaptor(Configuration configuration) {
         return new AdapterWithErrorHandler(configuration);
     }
+
+    private static String getNodeId(Configuration configuration) {
+        String nodeId = configuration.getProperty("Scaleout.NodeId");
+        return StringUtils.isBlank(nodeId) ? "local" : nodeId;
+    }
+
+    private static int getIntProperty(Configuration configuration, String name, int defaultValue) {
+        String value = configuration.getProperty(name);
+        return StringUtils.isBlank(value) ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    private static boolean getBooleanProperty(Configuration configuration, String name, boolean defaultValue) {
+        String value = configuration.getProperty(name);
+        return StringUtils.isBlank(value) ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
 }
@@ -0,0 +1,194 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.blob.ListBlobItem;
+
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Decides which container, and under which blob name, {@link BlobStore} keeps each key.
+ *
+ * <p>
+ * The Blob service partitions a storage account by ranges of container and blob name, and every conversation
+ * key of a channel starts with the same {@code channelId/conversations/} prefix, so with one container all the
+ * traffic of a channel lands on one partition range. A layout can spread the keys two ways. A hash prefix puts
+ * two hex digits of the key's hash in front of the blob name, so the keys are spread over 256 evenly loaded name
+ * ranges. Several containers, which may be in different storage accounts, each take a share of the keys, so the
+ * request rate the layout can take grows with the number of accounts.
+ * </p>
+ *
+ * <p>
+ * The mapping is a fixed function of the key, so every node finds a key in the same place without any shared
+ * table. Keys are assigned to containers by jump consistent hashing: when a container is added at the end of the
+ * list, only the share of keys that the new container takes moves, and none move between the old containers.
+ * Containers must therefore only ever be added at the end. {@link BlobShardMigrator} copies the keys that move to
+ * their new place.
+ * </p>
+ */
+public class BlobShardLayout {
+
+    private static final int PREFIX_LENGTH = 3;
+
+    private final List<CloudBlobContainer> containers;
+    private final boolean hashPrefix;
+
+    /**
+     * Initializes a new instance of the {@link BlobShardLayout} class.
+     *
+     * @param withContainers The containers the keys are spread over. New ones must be added at the end.
+     * @param withHashPrefix True to put a prefix taken from the key's hash in front of each blob name.
+     */
+    public BlobShardLayout(List<CloudBlobContainer> withContainers, boolean withHashPrefix) {
+        if (withContainers == null || withContainers.isEmpty()) {
+            throw new IllegalArgumentException("withContainers cannot be null or empty");
+        }
+        if (withContainers.contains(null)) {
+            throw new IllegalArgumentException("withContainers cannot contain null");
+        }
+        containers = Collections.unmodifiableList(new ArrayList<>(withContainers));
+        hashPrefix = withHashPrefix;
+    }
+
+    /**
+     * Creates the layout that keeps every key in one container, under the key itself. This is how keys were
+     * kept before layouts were introduced.
+     *
+     * @param container The container.
+     * @return The layout.
+     */
+    public static BlobShardLayout single(CloudBlobContainer container) {
+        return new BlobShardLayout(Collections.singletonList(container), false);
+    }
+
+    /**
+     * Gets the number of containers the keys are spread over.
+     *
+     * @return The shard count.
+     */
+    public int getShardCount() {
+        return containers.size();
+    }
+
+    /**
+     * Gets the containers the keys are spread over.
+     *
+     * @return The containers, in shard order.
+     */
+    public List<CloudBlobContainer> getContainers() {
+        return containers;
+    }
+
+    /**
+     * Tells whether blob names start with a prefix taken from the key's hash.
+     *
+     * @return True if blob names are prefixed.
+     */
+    public boolean isHashPrefix() {
+        return hashPrefix;
+    }
+
+    /**
+     * Gets the shard a key is kept in.
+     *
+     * @param key The key.
+     * @return The index of the key's container.
+     */
+    public int shardOf(String key) {
+        return jumpConsistentHash(ConsistentHashRing.hash(key), containers.size());
+    }
+
+    /**
+     * Gets the name of the blob a key is kept in, within its container.
+     *
+     * @param key The key.
+     * @return The blob name.
+     */
+    public String blobName(String key) {
+        if (!hashPrefix) {
+            return key;
+        }
+        return String.format("%02x/%s", ConsistentHashRing.hash(key) >>> 56, key);
+    }
+
+    /**
+     * Gets the key kept in a blob, the reverse of {@link #blobName(String)}.
+     *
+     * @param blobName The blob name.
+     * @return The key.
+     */
+    public String keyOf(String blobName) {
+        return hashPrefix ? blobName.substring(PREFIX_LENGTH) : blobName;
+    }
+
+    /**
+     * Gets a reference to the blob a key is kept in.
+     *
+     * @param key The key.
+     * @return The blob.
+     * @throws URISyntaxException If the key does not make a valid blob address.
+     * @throws StorageException If the reference cannot be created.
+     */
+    public CloudBlockBlob blobFor(String key) throws URISyntaxException, StorageException {
+        return containers.get(shardOf(key)).getBlockBlobReference(blobName(key));
+    }
+
+    /**
+     * Tells whether a key is kept in the same place in another layout, so it need not be moved between the two.
+     *
+     * @param other The other layout.
+     * @param key The key.
+     * @return True if both layouts keep the key in the same container under the same name.
+     */
+    public boolean sameLocation(BlobShardLayout other, String key) {
+        CloudBlobContainer container = containers.get(shardOf(key));
+        CloudBlobContainer otherContainer = other.containers.get(other.shardOf(key));
+        return Objects.equals(container.getUri(), otherContainer.getUri())
+            && blobName(key).equals(other.blobName(key));
+    }
+
+    /**
+     * Lists the keys kept in one shard. The listing is paged lazily as the result is iterated.
+     *
+     * @param shard The index of the container.
+     * @return The keys.
+     */
+    public Iterable<String> keys(int shard) {
+        Iterable<ListBlobItem> items = containers.get(shard).listBlobs(null, true);
+        return () -> new Iterator<String>() {
+            private final Iterator<ListBlobItem> blobs = items.iterator();
+
+            @Override
+            public boolean hasNext() {
+                return blobs.hasNext();
+            }
+
+            @Override
+            public String next() {
+                return keyOf(((CloudBlob) blobs.next()).getName());
+            }
+        };
+    }
+
+    // Lamping and Veach, "A Fast, Minimal Memory, Consistent Hash Algorithm".
+    static int jumpConsistentHash(long key, int buckets) {
+        long bucket = -1;
+        long next = 0;
+        while (next < buckets) {
+            bucket = next;
+            key = key * 2862933555777941757L + 1;
+            next = (long) ((bucket + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) bucket;
+    }
+}
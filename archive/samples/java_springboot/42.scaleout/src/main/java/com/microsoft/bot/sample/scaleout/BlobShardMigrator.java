@@ -0,0 +1,125 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.microsoft.bot.schema.Pair;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies the keys that a change of {@link BlobShardLayout} moves from where the old layout keeps them to where
+ * the new one does.
+ *
+ * <p>
+ * The migration runs while the nodes serve traffic. First every node is restarted with a {@link BlobStore} on the
+ * new layout that is given the old one as its previous layout, so that keys not yet copied are still found, and
+ * each save writes its key to the new place. Then the migrator lists the keys of the old layout, shard by shard,
+ * loads those that move in batches and saves each to the new place only if it is not there yet, so a state a node
+ * has saved since is never overwritten. Once it has finished, the previous layout can be dropped from the nodes'
+ * configuration and the old blobs deleted.
+ * </p>
+ *
+ * <p>
+ * Adding containers at the end of the list moves only the share of keys the new containers take, and turning the
+ * hash prefix on or off moves every key.
+ * </p>
+ */
+public class BlobShardMigrator {
+
+    private final BlobStore source;
+    private final BlobStore target;
+    private final int batchSize;
+    private final AtomicLong listed = new AtomicLong();
+    private final AtomicLong copied = new AtomicLong();
+    private final AtomicLong alreadyMoved = new AtomicLong();
+
+    /**
+     * Initializes a new instance of the {@link BlobShardMigrator} class.
+     *
+     * @param withSource The store on the old layout.
+     * @param withTarget The store on the new layout.
+     * @param withBatchSize The number of keys loaded at a time.
+     */
+    public BlobShardMigrator(BlobStore withSource, BlobStore withTarget, int withBatchSize) {
+        if (withSource == null) {
+            throw new IllegalArgumentException("withSource cannot be null");
+        }
+        if (withTarget == null) {
+            throw new IllegalArgumentException("withTarget cannot be null");
+        }
+        if (withBatchSize < 1) {
+            throw new IllegalArgumentException("withBatchSize must be at least 1");
+        }
+        source = withSource;
+        target = withTarget;
+        batchSize = withBatchSize;
+    }
+
+    /**
+     * Copies every key that moves. The calling thread lists the keys and waits for each batch, so this is meant
+     * to be run on its own, not on a request thread.
+     *
+     * @return The counts of keys listed, copied, and found already moved by a save.
+     */
+    public Map<String, Object> run() {
+        BlobShardLayout from = source.getLayout();
+        BlobShardLayout to = target.getLayout();
+        for (int shard = 0; shard < from.getShardCount(); shard++) {
+            List<String> batch = new ArrayList<>(batchSize);
+            for (String key : from.keys(shard)) {
+                listed.incrementAndGet();
+                if (!to.sameLocation(from, key)) {
+                    batch.add(key);
+                }
+                if (batch.size() == batchSize) {
+                    copy(batch);
+                    batch.clear();
+                }
+            }
+            copy(batch);
+        }
+        return snapshot();
+    }
+
+    /**
+     * Summarizes the migration's progress for reporting.
+     *
+     * @return The counts of keys listed, copied, and found already moved by a save.
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("listed", listed.get());
+        snapshot.put("copied", copied.get());
+        snapshot.put("alreadyMoved", alreadyMoved.get());
+        return snapshot;
+    }
+
+    private void copy(List<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        Map<String, Pair<JsonNode, String>> loaded = source.loadMany(keys).join();
+        List<CompletableFuture<Void>> saves = new ArrayList<>(keys.size());
+        loaded.forEach((key, state) -> {
+            if (state.getRight() == null) {
+                // Deleted since it was listed.
+                return;
+            }
+            saves.add(target.saveIfAbsent(key, state.getLeft()).thenAccept(saved -> {
+                if (saved) {
+                    copied.incrementAndGet();
+                } else {
+                    alreadyMoved.incrementAndGet();
+                }
+            }));
+        });
+        CompletableFuture.allOf(saves.toArray(new CompletableFuture<?>[0])).join();
+    }
+}
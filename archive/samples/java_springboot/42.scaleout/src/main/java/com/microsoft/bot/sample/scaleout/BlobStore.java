@@ -19,18 +19,76 @@ import com.microsoft.bot.schema.Pair;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.http.HttpStatus;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URISyntaxException;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * An implementation of the ETag aware IStore interface against Azure Blob Storage.
+ *
+ * <p>
+ * The storage SDK only offers blocking calls, so every call is made on an {@link InstrumentedExecutor}
+ * and the caller receives a future that completes when the blob operation does.
+ * </p>
+ *
+ * <p>
+ * States larger than the compression threshold are deflated before upload and the blob's Content-Encoding is set to
+ * deflate. A blob is inflated on load only when its Content-Encoding says so, so blobs written uncompressed,
+ * before or after compression was turned on, stay readable. Compression is off unless a threshold is given,
+ * because nodes running an older build cannot read compressed blobs.
+ * </p>
+ *
+ * <p>
+ * Where each key's blob is kept is decided by a {@link BlobShardLayout}, which can spread the keys over several
+ * containers and accounts. While the keys are being moved to a new layout, the store can be given the previous
+ * one: a key not found in the new layout is then read from the previous one, and created in the new one by the
+ * next save, unless it was created there first. Its old blob is never written again.
+ * </p>
+ *
+ * <p>
+ * A near cache can keep the most recently used states with their etags. A load of a cached key still goes to the
+ * service, but asks for the blob only if its etag has changed, and a 304 Not Modified answer is served from the
+ * cache, so a node that saved a conversation and loads it again downloads nothing. Cached states are handed out as
+ * they are, as {@link MemoryStore} does, because dialog turns never change the state they are given. A save that
+ * loses the etag race drops the key, since another node has changed it.
+ * </p>
  */
 public class BlobStore implements Store {
 
-    private CloudBlobContainer container;
+    private static final int DEFAULT_THREADS = 16;
+    private static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    private static final String DEFLATE = "deflate";
+
+    /**
+     * The compression threshold that turns compression off.
+     */
+    public static final int NO_COMPRESSION = Integer.MAX_VALUE;
+
+    // The etag of a state found only in the previous layout. No blob has it, and saving with it creates the blob.
+    private static final String PREVIOUS_LAYOUT_ETAG = "previous-layout";
+
+    private final BlobShardLayout layout;
+    private final BlobShardLayout previousLayout;
+    private final NearCache nearCache;
+    private final InstrumentedExecutor executor;
+    private final StateCodec codec;
+    private final int compressionThreshold;
+    private final StateCodec jsonCodec = JacksonStateCodec.json();
     private final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
 
     /**
@@ -40,50 +98,234 @@ public class BlobStore implements Store {
      * @param containerName The container name.
      */
     public BlobStore(String accountName, String accountKey, String containerName) {
-        if (StringUtils.isBlank(accountName)) {
-            throw new IllegalArgumentException("accountName cannot be null or empty");
+        this(accountName, accountKey, containerName,
+            new InstrumentedExecutor("blob-store", DEFAULT_THREADS, DEFAULT_QUEUE_CAPACITY));
+    }
+
+    /**
+     * The constructor of the {@link BlobStore} class.
+     * @param accountName The account name of the Storage Account.
+     * @param accountKey The account key of the Storage Account.
+     * @param containerName The container name.
+     * @param withExecutor The executor the blocking blob calls are made on.
+     */
+    public BlobStore(String accountName, String accountKey, String containerName, InstrumentedExecutor withExecutor) {
+        this(accountName, accountKey, containerName, withExecutor, JacksonStateCodec.json());
+    }
+
+    /**
+     * The constructor of the {@link BlobStore} class.
+     * @param accountName The account name of the Storage Account.
+     * @param accountKey The account key of the Storage Account.
+     * @param containerName The container name.
+     * @param withExecutor The executor the blocking blob calls are made on.
+     * @param withCodec The encoding new blobs are written in. Blobs already written as JSON remain readable.
+     */
+    public BlobStore(
+        String accountName,
+        String accountKey,
+        String containerName,
+        InstrumentedExecutor withExecutor,
+        StateCodec withCodec) {
+        this(accountName, accountKey, containerName, withExecutor, withCodec, NO_COMPRESSION);
+    }
+
+    /**
+     * The constructor of the {@link BlobStore} class.
+     * @param accountName The account name of the Storage Account.
+     * @param accountKey The account key of the Storage Account.
+     * @param containerName The container name.
+     * @param withExecutor The executor the blocking blob calls are made on.
+     * @param withCodec The encoding new blobs are written in. Blobs already written as JSON remain readable.
+     * @param withCompressionThreshold The encoded size, in bytes, above which a state is compressed.
+     */
+    public BlobStore(
+        String accountName,
+        String accountKey,
+        String containerName,
+        InstrumentedExecutor withExecutor,
+        StateCodec withCodec,
+        int withCompressionThreshold) {
+        this(
+            containerReference(accountName, accountKey, containerName),
+            withExecutor,
+            withCodec,
+            withCompressionThreshold);
+    }
+
+    /**
+     * The constructor of the {@link BlobStore} class, for a container that is already configured, such as
+     * one on a storage emulator.
+     * @param withContainer The container the blobs are kept in.
+     * @param withExecutor The executor the blocking blob calls are made on.
+     * @param withCodec The encoding new blobs are written in. Blobs already written as JSON remain readable.
+     */
+    public BlobStore(CloudBlobContainer withContainer, InstrumentedExecutor withExecutor, StateCodec withCodec) {
+        this(withContainer, withExecutor, withCodec, NO_COMPRESSION);
+    }
+
+    /**
+     * The constructor of the {@link BlobStore} class, for a container that is already configured, such as
+     * one on a storage emulator.
+     * @param withContainer The container the blobs are kept in.
+     * @param withExecutor The executor the blocking blob calls are made on.
+     * @param withCodec The encoding new blobs are written in. Blobs already written as JSON remain readable.
+     * @param withCompressionThreshold The encoded size, in bytes, above which a state is compressed.
+     */
+    public BlobStore(
+        CloudBlobContainer withContainer,
+        InstrumentedExecutor withExecutor,
+        StateCodec withCodec,
+        int withCompressionThreshold) {
+        this(BlobShardLayout.single(withContainer), null, withExecutor, withCodec, withCompressionThreshold);
+    }
+
+    /**
+     * The constructor of the {@link BlobStore} class, for keys spread over several containers or accounts.
+     * @param withLayout Where each key's blob is kept.
+     * @param withPreviousLayout Where keys not yet moved to the new layout are read from, or null if none are
+     *                           being moved.
+     * @param withExecutor The executor the blocking blob calls are made on.
+     * @param withCodec The encoding new blobs are written in. Blobs already written as JSON remain readable.
+     * @param withCompressionThreshold The encoded size, in bytes, above which a state is compressed.
+     */
+    public BlobStore(
+        BlobShardLayout withLayout,
+        BlobShardLayout withPreviousLayout,
+        InstrumentedExecutor withExecutor,
+        StateCodec withCodec,
+        int withCompressionThreshold) {
+        this(withLayout, withPreviousLayout, withExecutor, withCodec, withCompressionThreshold, 0);
+    }
+
+    /**
+     * The constructor of the {@link BlobStore} class, for keys spread over several containers or accounts, with
+     * a near cache of recently used states.
+     * @param withLayout Where each key's blob is kept.
+     * @param withPreviousLayout Where keys not yet moved to the new layout are read from, or null if none are
+     *                           being moved.
+     * @param withExecutor The executor the blocking blob calls are made on.
+     * @param withCodec The encoding new blobs are written in. Blobs already written as JSON remain readable.
+     * @param withCompressionThreshold The encoded size, in bytes, above which a state is compressed.
+     * @param withNearCacheEntries The most states to keep for revalidation, or 0 for no near cache.
+     */
+    public BlobStore(
+        BlobShardLayout withLayout,
+        BlobShardLayout withPreviousLayout,
+        InstrumentedExecutor withExecutor,
+        StateCodec withCodec,
+        int withCompressionThreshold,
+        int withNearCacheEntries) {
+        if (withNearCacheEntries < 0) {
+            throw new IllegalArgumentException("withNearCacheEntries cannot be negative");
         }
-        if (StringUtils.isBlank(accountKey)) {
-            throw new IllegalArgumentException("accountKey cannot be null or empty");
+        nearCache = withNearCacheEntries > 0 ? new NearCache(withNearCacheEntries) : null;
+        if (withLayout == null) {
+            throw new IllegalArgumentException("withLayout cannot be null");
         }
-        if (StringUtils.isBlank(containerName)) {
-            throw new IllegalArgumentException("containerName cannot be null or empty");
+        layout = withLayout;
+        previousLayout = withPreviousLayout;
+        if (withExecutor == null) {
+            throw new IllegalArgumentException("withExecutor cannot be null");
+        }
+        executor = withExecutor;
+        if (withCodec == null) {
+            throw new IllegalArgumentException("withCodec cannot be null");
+        }
+        codec = withCodec;
+        if (withCompressionThreshold < 0) {
+            throw new IllegalArgumentException("withCompressionThreshold cannot be negative");
         }
+        compressionThreshold = withCompressionThreshold;
+    }
 
-        // Create storage credential from name and key
-        StorageCredentials storageCredentials = new StorageCredentialsAccountAndKey(accountName, accountKey);
-        // Create storage account
-        CloudStorageAccount cloudStorageAccount = null;
-        try {
-            cloudStorageAccount = new CloudStorageAccount(storageCredentials, true);
-            CloudBlobClient client = cloudStorageAccount.createCloudBlobClient();
-            container = client.getContainerReference(containerName);
-        } catch (URISyntaxException | StorageException e) {
-            e.printStackTrace();
+    /**
+     * Gets the executor the blob calls are made on. Its queue depth, in-flight count and latencies
+     * are what to look at when sizing the pool.
+     * @return The executor.
+     */
+    public InstrumentedExecutor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Summarizes the near cache for reporting.
+     * @return The cached state count, and how many loads were served from the cache after revalidation, had to
+     *         download a changed blob, or had nothing cached.
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        if (nearCache != null) {
+            snapshot.put("nearCacheEntries", nearCache.size());
+            snapshot.put("notModified", nearCache.notModified.get());
+            snapshot.put("modified", nearCache.modified.get());
+            snapshot.put("uncached", nearCache.uncached.get());
         }
+        return snapshot;
+    }
+
+    /**
+     * Gets where each key's blob is kept.
+     * @return The layout.
+     */
+    public BlobShardLayout getLayout() {
+        return layout;
     }
 
     /**
      * {@inheritDoc}
+     * A key found only in the previous layout is returned with an etag that makes the next save create it in
+     * the new layout, and fail as a conflict if another save or the migration created it first.
      */
     @Override
     public CompletableFuture<Pair<JsonNode, String>> load(String key) {
         if (StringUtils.isBlank(key)) {
             throw new IllegalArgumentException("key cannot be null or empty");
         }
+        return executor.supply(() -> {
+            try {
+                Pair<JsonNode, String> cached = nearCache != null ? nearCache.get(key) : null;
+                Pair<JsonNode, String> loaded = download(layout.blobFor(key), cached);
+                if (nearCache != null) {
+                    nearCache.update(key, loaded, cached);
+                }
+                if (loaded == null && previousLayout != null && !previousLayout.sameLocation(layout, key)) {
+                    loaded = download(previousLayout.blobFor(key), null);
+                    if (loaded != null) {
+                        loaded = new Pair<>(loaded.getLeft(), PREVIOUS_LAYOUT_ETAG);
+                    }
+                }
+                return loaded != null ? loaded : new Pair<>(objectMapper.nullNode(), null);
+            } catch (StorageException | IOException | URISyntaxException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    // Returns the state and etag of a blob, or null if there is no such blob. Given a cached state, the blob is
+    // only downloaded if its etag has changed, and otherwise the cached state is returned.
+    private Pair<JsonNode, String> download(CloudBlockBlob blob, Pair<JsonNode, String> cached)
+        throws StorageException, IOException {
         try {
-            CloudBlockBlob blob = container.getBlockBlobReference(key);
-            String content = blob.downloadText();
-            JsonNode obj = objectMapper.readTree(content);
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            AccessCondition accessCondition = cached != null
+                ? AccessCondition.generateIfNoneMatchCondition(cached.getRight())
+                : new AccessCondition();
+            blob.download(content, accessCondition, new BlobRequestOptions(), new OperationContext());
+            byte[] bytes = DEFLATE.equals(blob.getProperties().getContentEncoding())
+                ? inflate(content.toByteArray())
+                : content.toByteArray();
+            JsonNode obj = codecFor(blob.getProperties().getContentType()).decode(bytes);
             String etag = blob.getProperties().getEtag();
-            return CompletableFuture.completedFuture(new Pair<>(obj, etag));
-        } catch (IOException | URISyntaxException | StorageException e) {
-            if (e instanceof StorageException) {
-                if (((StorageException) e).getHttpStatusCode() == HttpStatus.NOT_FOUND.value()) {
-                    return CompletableFuture.completedFuture(new Pair<>(objectMapper.nullNode(), null));
-                }
+            return new Pair<>(obj, etag);
+        } catch (StorageException e) {
+            if (cached != null && e.getHttpStatusCode() == HttpStatus.NOT_MODIFIED.value()) {
+                return cached;
+            }
+            if (e.getHttpStatusCode() == HttpStatus.NOT_FOUND.value()) {
+                return null;
             }
-            throw new CompletionException(e);
+            throw e;
         }
     }
 
@@ -92,6 +334,30 @@ public class BlobStore implements Store {
      */
     @Override
     public CompletableFuture<Boolean> save(String key, JsonNode obj, String etag) {
+        return upload(key, obj, etag, false).thenApply(newEtag -> newEtag != null);
+    }
+
+    /**
+     * {@inheritDoc}
+     * The new etag is taken from the upload's response, so nothing is read back.
+     */
+    @Override
+    public CompletableFuture<Pair<Boolean, String>> saveAndGetETag(String key, JsonNode obj, String etag) {
+        return upload(key, obj, etag, false).thenApply(newEtag -> new Pair<>(newEtag != null, newEtag));
+    }
+
+    /**
+     * Saves a state only if there is no blob for its key yet, whatever its etag.
+     * @param key The key.
+     * @param obj The state.
+     * @return True if the state was saved, false if the key already had a blob.
+     */
+    public CompletableFuture<Boolean> saveIfAbsent(String key, JsonNode obj) {
+        return upload(key, obj, null, true).thenApply(newEtag -> newEtag != null);
+    }
+
+    // Returns the etag of the uploaded blob, or null if the etag did not match or the blob had to be absent.
+    private CompletableFuture<String> upload(String key, JsonNode obj, String etag, boolean ifAbsent) {
         if (StringUtils.isBlank(key)) {
             throw new IllegalArgumentException("key cannot be null or empty");
         }
@@ -99,30 +365,240 @@ public class BlobStore implements Store {
         if (obj == null) {
             throw new IllegalArgumentException("obj cannot be null or empty");
         }
-        try {
-            CloudBlockBlob blob = container.getBlockBlobReference(key);
-            blob.getProperties().setContentType("application/json");
-            String content = obj.toString();
-            if (etag != null) {
-                AccessCondition accessCondition = new AccessCondition();
-                accessCondition.setIfMatch(etag);
-                blob.uploadText(
+        if (nearCache == null) {
+            return uploadBlob(key, obj, etag, ifAbsent);
+        }
+        return uploadBlob(key, obj, etag, ifAbsent).whenComplete((newEtag, error) -> {
+            if (newEtag != null) {
+                nearCache.put(key, new Pair<>(obj, newEtag));
+            } else {
+                // Lost the race, or failed after it may have been written: either way the cached state is stale.
+                nearCache.remove(key);
+            }
+        });
+    }
+
+    private CompletableFuture<String> uploadBlob(String key, JsonNode obj, String etag, boolean ifAbsent) {
+        boolean create = ifAbsent || PREVIOUS_LAYOUT_ETAG.equals(etag);
+        return executor.supply(() -> {
+            try {
+                CloudBlockBlob blob = layout.blobFor(key);
+                blob.getProperties().setContentType(codec.getContentType());
+                byte[] content = codec.encode(obj);
+                if (content.length > compressionThreshold) {
+                    byte[] compressed = deflate(content);
+                    // Some states, such as small binary ones, do not shrink. Those are stored as they are.
+                    if (compressed.length < content.length) {
+                        content = compressed;
+                        blob.getProperties().setContentEncoding(DEFLATE);
+                    }
+                }
+                AccessCondition accessCondition = create
+                    ? AccessCondition.generateIfNotExistsCondition()
+                    : new AccessCondition();
+                if (etag != null && !create) {
+                    accessCondition.setIfMatch(etag);
+                }
+                blob.uploadFromByteArray(
                     content,
-                    StandardCharsets.UTF_8.name(),
+                    0,
+                    content.length,
                     accessCondition,
                     new BlobRequestOptions(),
                     new OperationContext());
-            } else {
-                blob.uploadText(content);
+                return blob.getProperties().getEtag();
+            } catch (StorageException e) {
+                // A create-only upload of a blob that exists is answered with 409 Blob Already Exists.
+                if (e.getHttpStatusCode() == HttpStatus.PRECONDITION_FAILED.value()
+                    || create && e.getHttpStatusCode() == HttpStatus.CONFLICT.value()) {
+                    return null;
+                }
+                throw new CompletionException(e);
+            } catch (IOException | URISyntaxException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * The blobs are downloaded in parallel, keeping one request in flight per executor thread.
+     */
+    @Override
+    public CompletableFuture<Map<String, Pair<JsonNode, String>>> loadMany(Collection<String> keys) {
+        return forEachKey(keys, this::load);
+    }
+
+    /**
+     * {@inheritDoc}
+     * The blobs are uploaded in parallel, keeping one request in flight per executor thread.
+     */
+    @Override
+    public CompletableFuture<Map<String, Boolean>> saveMany(Map<String, Pair<JsonNode, String>> items) {
+        return forEachKey(items.keySet(), key -> save(key, items.get(key).getLeft(), items.get(key).getRight()));
+    }
+
+    // Runs an operation for every key with a window as wide as the pool, so a large batch neither
+    // runs one key at a time nor floods the executor's queue.
+    private <T> CompletableFuture<Map<String, T>> forEachKey(
+        Collection<String> keys,
+        Function<String, CompletableFuture<T>> operation) {
+        Map<String, T> completed = new ConcurrentHashMap<>();
+        Iterator<String> remaining = new ArrayList<>(keys).iterator();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        AtomicInteger running = new AtomicInteger();
+
+        Runnable[] next = new Runnable[1];
+        next[0] = () -> {
+            String key;
+            synchronized (remaining) {
+                if (!remaining.hasNext() || done.isDone()) {
+                    if (running.decrementAndGet() == 0) {
+                        done.complete(null);
+                    }
+                    return;
+                }
+                key = remaining.next();
+            }
+            CompletableFuture<T> pending;
+            try {
+                pending = operation.apply(key);
+            } catch (RuntimeException e) {
+                done.completeExceptionally(e);
+                return;
+            }
+            pending.whenComplete((value, error) -> {
+                if (error != null) {
+                    done.completeExceptionally(error);
+                    return;
+                }
+                completed.put(key, value);
+                next[0].run();
+            });
+        };
+
+        int window = Math.max(1, Math.min(executor.getThreads(), keys.size()));
+        running.set(window);
+        for (int i = 0; i < window; i++) {
+            next[0].run();
+        }
+        return done.thenApply(finished -> {
+            Map<String, T> results = new LinkedHashMap<>();
+            for (String key : keys) {
+                results.put(key, completed.get(key));
+            }
+            return results;
+        });
+    }
+
+    // Blobs written before a binary codec was configured are still JSON, and say so in their content type.
+    private StateCodec codecFor(String contentType) {
+        boolean isText = contentType != null
+            && (contentType.startsWith(jsonCodec.getContentType()) || contentType.startsWith("text/"));
+        return isText ? jsonCodec : codec;
+    }
+
+    private static CloudBlobContainer containerReference(
+        String accountName,
+        String accountKey,
+        String containerName) {
+        if (StringUtils.isBlank(accountName)) {
+            throw new IllegalArgumentException("accountName cannot be null or empty");
+        }
+        if (StringUtils.isBlank(accountKey)) {
+            throw new IllegalArgumentException("accountKey cannot be null or empty");
+        }
+        if (StringUtils.isBlank(containerName)) {
+            throw new IllegalArgumentException("containerName cannot be null or empty");
+        }
+
+        // Create storage credential from name and key
+        StorageCredentials storageCredentials = new StorageCredentialsAccountAndKey(accountName, accountKey);
+        // Create storage account
+        CloudStorageAccount cloudStorageAccount = null;
+        try {
+            cloudStorageAccount = new CloudStorageAccount(storageCredentials, true);
+            CloudBlobClient client = cloudStorageAccount.createCloudBlobClient();
+            return client.getContainerReference(containerName);
+        } catch (URISyntaxException | StorageException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // The fastest deflate level. The state is mostly repeated property names, which even the fastest level finds.
+    private static byte[] deflate(byte[] content) throws IOException {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 4);
+        try (DeflaterOutputStream stream = new DeflaterOutputStream(compressed, deflater)) {
+            stream.write(content);
+        } finally {
+            deflater.end();
+        }
+        return compressed.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] compressed) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream(compressed.length * 4);
+        try (InflaterInputStream stream = new InflaterInputStream(new ByteArrayInputStream(compressed))) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                content.write(buffer, 0, read);
             }
-            return CompletableFuture.completedFuture(true);
-        } catch (IOException | URISyntaxException | StorageException e) {
-            if (e instanceof StorageException) {
-                if (((StorageException) e).getHttpStatusCode() == HttpStatus.PRECONDITION_FAILED.value()) {
-                    return CompletableFuture.completedFuture(false);
+        }
+        return content.toByteArray();
+    }
+
+    /**
+     * The most recently used states and their etags, dropping the least recently used when full.
+     */
+    private static final class NearCache {
+        private final Map<String, Pair<JsonNode, String>> entries;
+        private final AtomicLong notModified = new AtomicLong();
+        private final AtomicLong modified = new AtomicLong();
+        private final AtomicLong uncached = new AtomicLong();
+
+        NearCache(int maxEntries) {
+            entries = new LinkedHashMap<String, Pair<JsonNode, String>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Pair<JsonNode, String>> eldest) {
+                    return size() > maxEntries;
                 }
+            };
+        }
+
+        synchronized Pair<JsonNode, String> get(String key) {
+            return entries.get(key);
+        }
+
+        synchronized void put(String key, Pair<JsonNode, String> state) {
+            entries.put(key, state);
+        }
+
+        synchronized void remove(String key) {
+            entries.remove(key);
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+
+        // Counts how a load went, and keeps what it found.
+        void update(String key, Pair<JsonNode, String> loaded, Pair<JsonNode, String> cached) {
+            if (cached == null) {
+                uncached.incrementAndGet();
+            } else if (loaded == cached) {
+                notModified.incrementAndGet();
+                return;
+            } else {
+                modified.incrementAndGet();
+            }
+            if (loaded != null) {
+                put(key, loaded);
+            } else {
+                remove(key);
             }
-            throw new CompletionException(e);
         }
     }
 }
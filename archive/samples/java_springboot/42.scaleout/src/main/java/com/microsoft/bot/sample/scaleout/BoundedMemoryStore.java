@@ -0,0 +1,360 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.microsoft.bot.schema.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory Store that forgets idle conversations, so a long running node does not keep every conversation
+ * it has ever seen.
+ *
+ * <p>
+ * Saves are the same per key compare-and-set as {@link MemoryStore}. Every load and save also stamps the entry with
+ * the time it was last used. A background sweeper removes entries that have not been used for longer than the time
+ * to live, and when there are more entries than the maximum it removes the least recently used ones until a tenth
+ * of the room is free again. A save that takes the store over the maximum starts a sweep straight away, so under a
+ * steady stream of new conversations the number of entries stays close to the maximum.
+ * </p>
+ *
+ * <p>
+ * Evicted entries can be spilled to another Store, such as a {@link LogStore} on local disk. A load that misses in
+ * memory then falls back to the spill store, and the state it finds is taken back into memory. Without a spill
+ * store an evicted conversation starts again from an empty state.
+ * </p>
+ */
+public class BoundedMemoryStore implements Store, AutoCloseable {
+
+    /**
+     * The... ummm... logger.
+     */
+    private static Logger logger = LoggerFactory.getLogger(BoundedMemoryStore.class);
+
+    private static final long MIN_SWEEP_INTERVAL_MILLIS = 100;
+    private static final long MAX_SWEEP_INTERVAL_MILLIS = 60_000;
+
+    private final ConcurrentMap<String, Entry> store = new ConcurrentHashMap<>();
+    // Entries evicted whose spill has not finished yet. Loads look here so the state is never missing in between.
+    private final ConcurrentMap<String, Entry> spilling = new ConcurrentHashMap<>();
+    private final AtomicLong versions = new AtomicLong();
+    private final int maxEntries;
+    private final long timeToLiveNanos;
+    private final Store spillStore;
+    private final ScheduledExecutorService sweeper;
+    private final AtomicBoolean sweepPending = new AtomicBoolean();
+
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong overflowed = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private final AtomicLong spillFailures = new AtomicLong();
+    private final AtomicLong restored = new AtomicLong();
+
+    /**
+     * Initializes a new instance of the {@link BoundedMemoryStore} class, without a spill store.
+     *
+     * @param withMaxEntries The number of conversations to keep.
+     * @param withTimeToLiveMillis How long a conversation is kept after it was last loaded or saved.
+     */
+    public BoundedMemoryStore(int withMaxEntries, long withTimeToLiveMillis) {
+        this(withMaxEntries, withTimeToLiveMillis, null);
+    }
+
+    /**
+     * Initializes a new instance of the {@link BoundedMemoryStore} class. The sweeper runs ten times per time to
+     * live, but no more than ten times a second and no less than once a minute.
+     *
+     * @param withMaxEntries The number of conversations to keep.
+     * @param withTimeToLiveMillis How long a conversation is kept after it was last loaded or saved.
+     * @param withSpillStore Where evicted conversations are written, and read back from. May be null.
+     */
+    public BoundedMemoryStore(int withMaxEntries, long withTimeToLiveMillis, Store withSpillStore) {
+        this(
+            withMaxEntries,
+            withTimeToLiveMillis,
+            withSpillStore,
+            Math.max(MIN_SWEEP_INTERVAL_MILLIS, Math.min(MAX_SWEEP_INTERVAL_MILLIS, withTimeToLiveMillis / 10)));
+    }
+
+    /**
+     * Initializes a new instance of the {@link BoundedMemoryStore} class.
+     *
+     * @param withMaxEntries The number of conversations to keep.
+     * @param withTimeToLiveMillis How long a conversation is kept after it was last loaded or saved.
+     * @param withSpillStore Where evicted conversations are written, and read back from. May be null.
+     * @param withSweepIntervalMillis How often the sweeper runs.
+     */
+    public BoundedMemoryStore(
+        int withMaxEntries,
+        long withTimeToLiveMillis,
+        Store withSpillStore,
+        long withSweepIntervalMillis) {
+        if (withMaxEntries < 1) {
+            throw new IllegalArgumentException("withMaxEntries must be at least 1");
+        }
+        if (withTimeToLiveMillis < 1) {
+            throw new IllegalArgumentException("withTimeToLiveMillis must be at least 1");
+        }
+        if (withSweepIntervalMillis < 1) {
+            throw new IllegalArgumentException("withSweepIntervalMillis must be at least 1");
+        }
+        maxEntries = withMaxEntries;
+        timeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(withTimeToLiveMillis);
+        spillStore = withSpillStore;
+
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "memory-store-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(
+            this::sweepSafely, withSweepIntervalMillis, withSweepIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Pair<JsonNode, String>> load(String key) {
+        Entry entry = store.get(key);
+        if (entry == null) {
+            entry = spilling.get(key);
+            if (entry != null) {
+                return CompletableFuture.completedFuture(restore(key, entry.content));
+            }
+            if (spillStore != null) {
+                return spillStore.load(key).thenApply(spilled -> spilled.getRight() != null
+                    ? restore(key, spilled.getLeft())
+                    : new Pair<>(null, null));
+            }
+            return CompletableFuture.completedFuture(new Pair<>(null, null));
+        }
+        entry.touch();
+        return CompletableFuture.completedFuture(new Pair<>(entry.content, entry.etag()));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Boolean> save(String key, JsonNode content, String eTag) {
+        while (true) {
+            Entry current = store.get(key);
+            if (eTag != null && current != null && !eTag.equals(current.etag())) {
+                return CompletableFuture.completedFuture(false);
+            }
+
+            Entry updated = new Entry(content, versions.incrementAndGet());
+            boolean swapped = current == null
+                ? store.putIfAbsent(key, updated) == null
+                : store.replace(key, current, updated);
+            if (swapped) {
+                if (current == null && store.size() > maxEntries && sweepPending.compareAndSet(false, true)) {
+                    sweeper.execute(this::sweepSafely);
+                }
+                return CompletableFuture.completedFuture(true);
+            }
+            // Another writer got in between the read and the swap. Re-check its etag against ours.
+        }
+    }
+
+    /**
+     * Removes the expired entries and, if there are still too many, the least recently used ones.
+     * This runs on the sweeper on its own, and is only public so that it can be run on demand.
+     */
+    public synchronized void sweep() {
+        sweepPending.set(false);
+        long now = System.nanoTime();
+        // Each entry's access time is read once. Loads and saves keep changing it, which a sort must not see.
+        List<Pair<Long, Map.Entry<String, Entry>>> live = new ArrayList<>();
+        for (Map.Entry<String, Entry> item : store.entrySet()) {
+            long lastAccess = item.getValue().lastAccess;
+            if (now - lastAccess > timeToLiveNanos) {
+                evict(item.getKey(), item.getValue(), expired);
+            } else {
+                live.add(new Pair<>(lastAccess, item));
+            }
+        }
+
+        int excess = live.size() - maxEntries;
+        if (excess > 0) {
+            // Free a tenth of the room as well, so the next few new conversations do not each start a sweep.
+            int toEvict = Math.min(live.size(), excess + maxEntries / 10);
+            live.sort(Comparator.comparingLong(Pair::getLeft));
+            for (Pair<Long, Map.Entry<String, Entry>> item : live.subList(0, toEvict)) {
+                evict(item.getRight().getKey(), item.getRight().getValue(), overflowed);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of conversations held in memory.
+     *
+     * @return The entry count.
+     */
+    public int size() {
+        return store.size();
+    }
+
+    /**
+     * Gets the number of conversations evicted because they were idle for longer than the time to live.
+     *
+     * @return The expired count.
+     */
+    public long getExpired() {
+        return expired.get();
+    }
+
+    /**
+     * Gets the number of conversations evicted because the store was full.
+     *
+     * @return The overflowed count.
+     */
+    public long getOverflowed() {
+        return overflowed.get();
+    }
+
+    /**
+     * Gets the number of evicted conversations written to the spill store.
+     *
+     * @return The spilled count.
+     */
+    public long getSpilled() {
+        return spilled.get();
+    }
+
+    /**
+     * Gets the number of evicted conversations that could not be written to the spill store, and were lost.
+     *
+     * @return The spill failure count.
+     */
+    public long getSpillFailures() {
+        return spillFailures.get();
+    }
+
+    /**
+     * Gets the number of evicted conversations loaded back into memory.
+     *
+     * @return The restored count.
+     */
+    public long getRestored() {
+        return restored.get();
+    }
+
+    /**
+     * Summarizes the store for reporting.
+     *
+     * @return The entry count and eviction counters.
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("entries", size());
+        snapshot.put("maxEntries", maxEntries);
+        snapshot.put("expired", getExpired());
+        snapshot.put("overflowed", getOverflowed());
+        snapshot.put("spilled", getSpilled());
+        snapshot.put("spillFailures", getSpillFailures());
+        snapshot.put("restored", getRestored());
+        return snapshot;
+    }
+
+    /**
+     * Stops the sweeper. Entries are kept.
+     */
+    @Override
+    public void close() {
+        sweeper.shutdownNow();
+    }
+
+    private void sweepSafely() {
+        try {
+            sweep();
+        } catch (RuntimeException e) {
+            logger.error("Sweep failed", e);
+        }
+    }
+
+    // The removal only succeeds if the entry was not saved again since the sweep looked at it.
+    private void evict(String key, Entry entry, AtomicLong reason) {
+        if (spillStore == null) {
+            if (store.remove(key, entry)) {
+                reason.incrementAndGet();
+            }
+            return;
+        }
+
+        // The entry is in spilling before it leaves the store, so a load never misses both and reads an older
+        // spilled copy. A load in between finds the entry in the store as before.
+        spilling.put(key, entry);
+        if (!store.remove(key, entry)) {
+            spilling.remove(key, entry);
+            return;
+        }
+        reason.incrementAndGet();
+        CompletableFuture<Boolean> spill;
+        try {
+            spill = spillStore.save(key, entry.content, null);
+        } catch (RuntimeException e) {
+            spill = new CompletableFuture<>();
+            spill.completeExceptionally(e);
+        }
+        spill.whenComplete((saved, error) -> {
+            spilling.remove(key, entry);
+            if (error != null || !Boolean.TRUE.equals(saved)) {
+                spillFailures.incrementAndGet();
+                logger.error("Spill of {} failed", key, error);
+            } else {
+                spilled.incrementAndGet();
+            }
+        });
+    }
+
+    // An evicted conversation comes back as a new entry, unless it was saved again in the meantime.
+    private Pair<JsonNode, String> restore(String key, JsonNode content) {
+        Entry entry = store.computeIfAbsent(key, k -> {
+            restored.incrementAndGet();
+            return new Entry(content, versions.incrementAndGet());
+        });
+        entry.touch();
+        return new Pair<>(entry.content, entry.etag());
+    }
+
+    /**
+     * A versioned value and the time it was last used. Identity is what the compare-and-set in save compares,
+     * so the content and version never change, only the access time does.
+     */
+    private static final class Entry {
+        private final JsonNode content;
+        private final long version;
+        private volatile long lastAccess = System.nanoTime();
+
+        Entry(JsonNode withContent, long withVersion) {
+            content = withContent;
+            version = withVersion;
+        }
+
+        void touch() {
+            lastAccess = System.nanoTime();
+        }
+
+        String etag() {
+            return Long.toString(version);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Decides what to save when a turn's save loses the etag race, without running the turn again.
+ *
+ * <p>
+ * {@link ScaleoutBot} gives the resolver the state the turn started from, the state the turn produced, and the
+ * state another turn saved in between. If the resolver returns a state, that is saved under the other turn's etag
+ * and the turn's Activities are sent. If it returns null, the turn is run again from the other turn's state, as it
+ * is without a resolver.
+ * </p>
+ *
+ * @see ThreeWayMerge
+ */
+public interface ConflictResolver {
+
+    /**
+     * Combines two concurrent changes to a state.
+     * @param base The state both changes started from.
+     * @param mine The state this turn produced.
+     * @param theirs The state saved by the other turn.
+     * @return The state to save, or null if the changes cannot safely be combined.
+     */
+    JsonNode resolve(JsonNode base, JsonNode mine, JsonNode theirs);
+}
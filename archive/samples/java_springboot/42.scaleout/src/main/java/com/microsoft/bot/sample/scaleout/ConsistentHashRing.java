@@ -0,0 +1,93 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Maps keys to nodes so that each node owns roughly the same share of keys, and a membership change only moves
+ * the keys owned by the node that joined or left.
+ *
+ * <p>
+ * Each node is placed on the ring at a number of pseudo-random points, its virtual nodes, which evens out the
+ * share each node gets. A key belongs to the first point at or after the key's own hash. Instances are immutable,
+ * a membership change builds a new ring.
+ * </p>
+ */
+public final class ConsistentHashRing {
+
+    private final NavigableMap<Long, String> points;
+    private final int virtualNodes;
+
+    /**
+     * Initializes a new instance of the {@link ConsistentHashRing} class.
+     *
+     * @param nodes The ids of the nodes on the ring.
+     * @param withVirtualNodes The number of points each node is placed at.
+     */
+    public ConsistentHashRing(Collection<String> nodes, int withVirtualNodes) {
+        if (withVirtualNodes < 1) {
+            throw new IllegalArgumentException("withVirtualNodes must be at least 1");
+        }
+        virtualNodes = withVirtualNodes;
+
+        TreeMap<Long, String> ring = new TreeMap<>();
+        for (String node : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                // On the rare hash collision the smaller id wins, so every node builds the same ring.
+                ring.merge(hash(node + "#" + i), node, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+            }
+        }
+        points = Collections.unmodifiableNavigableMap(ring);
+    }
+
+    /**
+     * Finds the node that owns a key.
+     *
+     * @param key The key.
+     * @return The owning node's id, or null if the ring is empty.
+     */
+    public String nodeFor(String key) {
+        if (points.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> owner = points.ceilingEntry(hash(key));
+        return owner != null ? owner.getValue() : points.firstEntry().getValue();
+    }
+
+    /**
+     * Gets the number of points each node is placed at.
+     *
+     * @return The virtual node count.
+     */
+    public int getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    /**
+     * A 64-bit FNV-1a hash with a final avalanche step, so that similar keys land far apart.
+     * It must never change, because every node has to place keys identically.
+     *
+     * @param value The value to hash.
+     * @return The hash.
+     */
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,117 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Runs the turns for one conversation one after another, while turns for different conversations run in parallel.
+ *
+ * <p>
+ * Without this, two messages sent in quick succession to the same node load the same state, and one of them always
+ * loses the etag race and re-runs its dialog. With it, the etag check only has to catch writes made by other nodes.
+ * Each key's queue is a chain of futures, so a waiting turn holds no thread. A key is forgotten as soon as its
+ * queue drains.
+ * </p>
+ */
+public class ConversationMailbox {
+
+    private final ConcurrentMap<String, Slot> slots = new ConcurrentHashMap<>();
+
+    /**
+     * Queues a turn behind any turns already queued for the same key.
+     *
+     * @param key The conversation key.
+     * @param turn Starts the turn. It is not called until every earlier turn for the key has finished.
+     * @param <T> The type of the turn's result.
+     * @return A future that completes when the turn does.
+     */
+    public <T> CompletableFuture<T> submit(String key, Supplier<CompletableFuture<T>> turn) {
+        if (key == null) {
+            throw new IllegalArgumentException("key cannot be null");
+        }
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+        CompletableFuture<?>[] previous = new CompletableFuture<?>[1];
+        slots.compute(key, (k, slot) -> {
+            Slot current = slot != null ? slot : new Slot();
+            current.depth++;
+            previous[0] = current.tail;
+            current.tail = result;
+            return current;
+        });
+
+        // Chained outside of compute, because a turn that completes synchronously releases the key right away.
+        // Whatever happened to the previous turn, this one runs next.
+        previous[0].handle((value, error) -> null)
+            .thenCompose(ready -> start(turn))
+            .whenComplete((value, error) -> {
+                release(key);
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(value);
+                }
+            });
+        return result;
+    }
+
+    /**
+     * Gets the number of turns queued or running for a key.
+     *
+     * @param key The conversation key.
+     * @return The queue depth, zero if the key is idle.
+     */
+    public int getQueueDepth(String key) {
+        Slot slot = slots.get(key);
+        return slot != null ? slot.depth : 0;
+    }
+
+    /**
+     * Gets the queue depth of every key that has turns queued or running.
+     *
+     * @return A snapshot of the queue depth per key.
+     */
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new HashMap<>();
+        slots.forEach((key, slot) -> depths.put(key, slot.depth));
+        return depths;
+    }
+
+    /**
+     * Gets the number of keys that have turns queued or running.
+     *
+     * @return The number of busy keys.
+     */
+    public int getActiveKeys() {
+        return slots.size();
+    }
+
+    private void release(String key) {
+        slots.computeIfPresent(key, (k, slot) -> --slot.depth == 0 ? null : slot);
+    }
+
+    private static <T> CompletableFuture<T> start(Supplier<CompletableFuture<T>> turn) {
+        try {
+            return turn.get();
+        } catch (Throwable t) {
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(t);
+            return failed;
+        }
+    }
+
+    /**
+     * The queue for one key. Only read or written inside the map's per-key compute functions.
+     */
+    private static final class Slot {
+        private CompletableFuture<?> tail = CompletableFuture.completedFuture(null);
+        private volatile int depth;
+    }
+}
@@ -0,0 +1,35 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A Store that can persist a change to a value as a delta from the version named by the etag,
+ * instead of rewriting the whole value.
+ */
+public interface DeltaStore extends Store {
+
+    /**
+     * Saves a change to a value if the etag matches.
+     * The store may persist only the patch, or the full content when it decides a snapshot is due.
+     * @param key The key.
+     * @param patch The JSON Patch that turns the value loaded with this etag into content.
+     * @param content The full new value.
+     * @param etag The string representing the etag the patch was computed against.
+     * @return True if the change was saved.
+     */
+    CompletableFuture<Boolean> saveDelta(String key, JsonNode patch, JsonNode content, String etag);
+
+    /**
+     * Tells whether saveDelta can persist less than the full content, and so whether a patch is worth computing.
+     * A store that wraps another answers for the one it wraps.
+     * @return True if deltas are saved as deltas.
+     */
+    default boolean supportsDeltas() {
+        return true;
+    }
+}
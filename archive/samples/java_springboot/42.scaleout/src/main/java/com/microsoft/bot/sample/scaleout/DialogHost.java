@@ -3,10 +3,7 @@
 
 package com.microsoft.bot.sample.scaleout;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.microsoft.bot.builder.TurnContext;
 import com.microsoft.bot.builder.TurnContextImpl;
@@ -18,7 +15,9 @@ import com.microsoft.bot.schema.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * The essential code for running a dialog. The execution of the dialog is treated here as a pure function call.
@@ -35,10 +34,8 @@ public final class DialogHost {
     private static Logger logger = LoggerFactory.getLogger(DialogHost.class);
 
     // The serializer to use. Moving the serialization to this layer will make the storage layer more pluggable.
-    private static ObjectMapper objectMapper = new ObjectMapper()
-        .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
-        .findAndRegisterModules()
-        .enableDefaultTyping();
+    // Its reader and writer for DialogState are built here, once, rather than looked up on every turn.
+    private static StateTypeRegistry stateTypes = new StateTypeRegistry(DialogState.class);
 
     private DialogHost() { }
 
@@ -54,9 +51,29 @@ public final class DialogHost {
         Dialog dialog,
         Activity activity,
         JsonNode oldState) {
+        return run(dialog, activity, oldState, new TurnMemo());
+    }
+
+    /**
+     * A function to run a dialog while buffering the outbound Activities, remembering the external calls it
+     * makes across runs with the same inbound Activity.
+     *
+     * @param dialog The dialog to run.
+     * @param activity The inbound Activity to run it with.
+     * @param oldState The existing or old state.
+     * @param memo The memo of this inbound Activity's turn, shared by every run of it.
+     * @return An array of Activities 'sent' from the dialog as it executed. And the updated or new state.
+     */
+    public static CompletableFuture<Pair<Activity[], JsonNode>> run(
+        Dialog dialog,
+        Activity activity,
+        JsonNode oldState,
+        TurnMemo memo) {
         // A custom adapter and corresponding TurnContext that buffers any messages sent.
         DialogHostAdapter adapter = new DialogHostAdapter();
         TurnContext turnContext = new TurnContextImpl(adapter, activity);
+        // The dialog finds the memo through the TurnContext, see TurnMemo.of.
+        turnContext.getTurnState().add(memo);
 
         // Run the dialog using this TurnContext with the existing state.
         return runTurn(dialog, turnContext, oldState)
@@ -65,6 +82,18 @@ public final class DialogHost {
                 newState));
     }
 
+    /**
+     * Computes the change a turn made to the state, for stores that can persist a delta instead of the whole state.
+     *
+     * @param oldState The existing or old state, as loaded from the store.
+     * @param newState The updated or new state returned by {@link #run(Dialog, Activity, JsonNode)}.
+     * @return A JSON Patch that turns the old state into the new state.
+     * @see DeltaStore
+     */
+    public static JsonNode diff(JsonNode oldState, JsonNode newState) {
+        return JsonPatch.diff(oldState, newState);
+    }
+
     /**
      * Execute the turn of the bot. The functionality here closely resembles that which is found in the
      * IBot.OnTurnAsync method in an implementation that is using the regular BotFrameworkAdapter.
@@ -84,18 +113,12 @@ public final class DialogHost {
         }
         DialogState dialogState;
         try {
-            Class<?> cls = Class.forName(DialogState.class.getName());
-            dialogState = (DialogState) objectMapper.treeToValue(dialogStateProperty, cls);
-        } catch (JsonProcessingException e) {
+            dialogState = stateTypes.read(dialogStateProperty, DialogState.class);
+        } catch (IOException e) {
             logger.error("RunTurn failed: {}", e.toString());
             return Async.completeExceptionally(new RuntimeException(
                 String.format("RunTurn failed: %s", e.toString())
             ));
-        } catch (ClassNotFoundException e) {
-            logger.error("RunTurn failed: Could not load class DialogState");
-            return Async.completeExceptionally(new RuntimeException(
-                "RunTurn failed: Could not load class DialogState"
-            ));
         }
 
         // A custom accessor is used to pass a handle on the state to the dialog system.
@@ -106,9 +129,13 @@ public final class DialogHost {
             .thenApply(result -> {
                 // Serialize the result (available as Value on the accessor),
                 // and put its value back into a new JsonNode.
-                return JsonNodeFactory
-                    .instance
-                    .objectNode().set("DialogState", objectMapper.valueToTree(accessor.getValue()));
+                try {
+                    return JsonNodeFactory
+                        .instance
+                        .objectNode().set("DialogState", stateTypes.write(accessor.getValue(), DialogState.class));
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
             });
     }
 }
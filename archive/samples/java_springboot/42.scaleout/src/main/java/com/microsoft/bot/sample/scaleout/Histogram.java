@@ -0,0 +1,107 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free histogram of non-negative values, such as latencies or sizes.
+ *
+ * <p>
+ * Values are counted in power of two buckets, so recording is a handful of atomic increments and the memory used
+ * is fixed. Percentiles are reported as the upper bound of the bucket they fall in, which is within a factor of two
+ * of the true value and plenty to tell a slow store from a fast one.
+ * </p>
+ */
+public class Histogram {
+
+    private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE + 1);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records a value. Negative values are recorded as zero.
+     *
+     * @param value The value.
+     */
+    public void record(long value) {
+        long recorded = Math.max(0, value);
+        buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(recorded));
+        count.increment();
+        sum.add(recorded);
+        max.accumulate(recorded);
+    }
+
+    /**
+     * Gets the number of values recorded.
+     *
+     * @return The count.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Gets the mean of the values recorded.
+     *
+     * @return The mean, zero if nothing has been recorded.
+     */
+    public double getMean() {
+        long values = count.sum();
+        return values == 0 ? 0 : (double) sum.sum() / values;
+    }
+
+    /**
+     * Gets the largest value recorded.
+     *
+     * @return The maximum.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Gets an upper bound for a percentile of the values recorded.
+     *
+     * @param quantile The percentile as a fraction, for example 0.99.
+     * @return The upper bound of the bucket holding the percentile, zero if nothing has been recorded.
+     */
+    public long getPercentile(double quantile) {
+        long values = count.sum();
+        if (values == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * values);
+        long seen = 0;
+        for (int bucket = 0; bucket < buckets.length(); bucket++) {
+            seen += buckets.get(bucket);
+            if (seen >= rank) {
+                long upperBound = bucket == 0 ? 0 : bucket >= Long.SIZE ? Long.MAX_VALUE : (1L << bucket) - 1;
+                return Math.min(upperBound, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Summarizes the histogram for reporting.
+     *
+     * @param scale What to divide the values by, for example 1,000,000 to report nanoseconds as milliseconds.
+     * @return The count, mean, median, 99th percentile and maximum.
+     */
+    public Map<String, Object> snapshot(double scale) {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("count", getCount());
+        snapshot.put("mean", getMean() / scale);
+        snapshot.put("p50", getPercentile(0.5) / scale);
+        snapshot.put("p99", getPercentile(0.99) / scale);
+        snapshot.put("max", getMax() / scale);
+        return snapshot;
+    }
+}
@@ -0,0 +1,108 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.bot.builder.InvokeResponse;
+import com.microsoft.bot.schema.Activity;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A {@link NodeTransport} that posts the Activity to the owning node's /api/messages endpoint, passing the
+ * channel's Authorization header through unchanged so the owner authenticates it exactly as it would a direct call.
+ *
+ * <p>
+ * Whatever status the owner answers with is passed back, with its body. Only a failure to connect is reported as
+ * a {@link NodeUnreachableException}; once the Activity is sent, a read timeout or a dropped connection fails the
+ * call, since the owner may be running the turn.
+ * </p>
+ */
+public class HttpNodeTransport implements NodeTransport {
+
+    private final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+    private final InstrumentedExecutor executor;
+    private final int timeoutMillis;
+
+    /**
+     * Initializes a new instance of the {@link HttpNodeTransport} class.
+     * @param withExecutor The executor the blocking HTTP calls are made on.
+     * @param withTimeoutMillis The connect and read timeout of each call.
+     */
+    public HttpNodeTransport(InstrumentedExecutor withExecutor, int withTimeoutMillis) {
+        if (withExecutor == null) {
+            throw new IllegalArgumentException("withExecutor cannot be null");
+        }
+        executor = withExecutor;
+        timeoutMillis = withTimeoutMillis;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<InvokeResponse> deliver(String address, String authHeader, Activity activity) {
+        return executor.supply(() -> {
+            HttpURLConnection connection = (HttpURLConnection) new URL(address + "/api/messages").openConnection();
+            try {
+                connection.setRequestMethod("POST");
+                connection.setConnectTimeout(timeoutMillis);
+                connection.setReadTimeout(timeoutMillis);
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/json");
+                connection.setRequestProperty(AffinityRouter.FORWARDED_HEADER, "true");
+                if (StringUtils.isNotBlank(authHeader)) {
+                    connection.setRequestProperty("Authorization", authHeader);
+                }
+                try {
+                    connection.connect();
+                } catch (IOException e) {
+                    throw new NodeUnreachableException(address, e);
+                }
+                try (OutputStream body = connection.getOutputStream()) {
+                    objectMapper.writeValue(body, activity);
+                }
+
+                int status = connection.getResponseCode();
+                InputStream stream = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+                byte[] body = stream != null ? readAll(stream) : new byte[0];
+                if (body.length == 0) {
+                    // Like BotController, a plain 202 means the turn ran and there is nothing to return.
+                    return status == HttpURLConnection.HTTP_ACCEPTED ? null : new InvokeResponse(status, null);
+                }
+                return new InvokeResponse(status, readBody(body));
+            } finally {
+                connection.disconnect();
+            }
+        });
+    }
+
+    // An error page from something in front of the owner need not be JSON.
+    private Object readBody(byte[] body) {
+        try {
+            return objectMapper.readTree(body);
+        } catch (IOException e) {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        try (InputStream stream = input) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int read = stream.read(buffer); read != -1; read = stream.read(buffer)) {
+                output.write(buffer, 0, read);
+            }
+            return output.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * A fixed size thread pool with a bounded queue for blocking I/O, such as the calls made by the
+ * Azure Storage SDK. Work is handed back as a CompletableFuture so the thread running the turn is never blocked.
+ *
+ * <p>
+ * The queue depth, the number of tasks in flight, and the time tasks spend queued and running are tracked so
+ * the pool can be sized from real traffic. When the queue is full new work fails fast with a
+ * {@link RejectedExecutionException} rather than running on the caller's thread.
+ * </p>
+ */
+public class InstrumentedExecutor implements AutoCloseable {
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalQueueNanos = new AtomicLong();
+    private final AtomicLong totalRunNanos = new AtomicLong();
+    private final LongAccumulator maxRunNanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Initializes a new instance of the {@link InstrumentedExecutor} class.
+     *
+     * @param name The prefix for the names of the pool's threads.
+     * @param threads The number of threads in the pool.
+     * @param queueCapacity The maximum number of tasks waiting for a thread.
+     */
+    public InstrumentedExecutor(String name, int threads, int queueCapacity) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity must be at least 1");
+        }
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(
+            threads,
+            threads,
+            0L,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueCapacity),
+            runnable -> {
+                Thread thread = new Thread(runnable, name + "-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    /**
+     * Runs a blocking call on the pool.
+     *
+     * @param callable The blocking call.
+     * @param <T> The type of the result.
+     * @return A future that completes with the call's result, or exceptionally with what it threw.
+     */
+    public <T> CompletableFuture<T> supply(Callable<T> callable) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        long queuedAt = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                long startedAt = System.nanoTime();
+                totalQueueNanos.addAndGet(startedAt - queuedAt);
+                inFlight.incrementAndGet();
+                try {
+                    result.complete(callable.call());
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                } finally {
+                    long elapsed = System.nanoTime() - startedAt;
+                    inFlight.decrementAndGet();
+                    completed.incrementAndGet();
+                    totalRunNanos.addAndGet(elapsed);
+                    maxRunNanos.accumulate(elapsed);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Gets the number of threads in the pool.
+     *
+     * @return The thread count.
+     */
+    public int getThreads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * Gets the number of tasks waiting for a thread.
+     *
+     * @return The queue depth.
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Gets the number of tasks currently running.
+     *
+     * @return The in-flight count.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Gets the number of tasks that have finished, successfully or not.
+     *
+     * @return The completed count.
+     */
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * Gets the number of tasks turned away because the queue was full.
+     *
+     * @return The rejected count.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Gets the average time a finished task waited in the queue.
+     *
+     * @return The average queue time in milliseconds.
+     */
+    public double getAverageQueueMillis() {
+        return average(totalQueueNanos.get());
+    }
+
+    /**
+     * Gets the average time a finished task spent running.
+     *
+     * @return The average run time in milliseconds.
+     */
+    public double getAverageRunMillis() {
+        return average(totalRunNanos.get());
+    }
+
+    /**
+     * Gets the longest time any task spent running.
+     *
+     * @return The maximum run time in milliseconds.
+     */
+    public double getMaxRunMillis() {
+        return maxRunNanos.get() / 1_000_000.0;
+    }
+
+    /**
+     * Stops accepting work. Tasks already queued still run.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private double average(long totalNanos) {
+        long count = completed.get();
+        return count == 0 ? 0 : totalNanos / 1_000_000.0 / count;
+    }
+}
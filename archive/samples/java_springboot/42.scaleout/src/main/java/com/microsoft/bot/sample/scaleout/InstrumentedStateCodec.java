@@ -0,0 +1,63 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+
+/**
+ * Wraps a {@link StateCodec} and records the size of every state it encodes or decodes in a
+ * {@link ScaleoutMetrics}. Give it to a store that writes bytes, such as {@link BlobStore} or {@link LogStore},
+ * to see how large the stored state of conversations is.
+ */
+public class InstrumentedStateCodec implements StateCodec {
+
+    private final StateCodec codec;
+    private final ScaleoutMetrics metrics;
+
+    /**
+     * Initializes a new instance of the {@link InstrumentedStateCodec} class.
+     *
+     * @param withCodec The codec to wrap.
+     * @param withMetrics Where to record the sizes.
+     */
+    public InstrumentedStateCodec(StateCodec withCodec, ScaleoutMetrics withMetrics) {
+        if (withCodec == null) {
+            throw new IllegalArgumentException("withCodec cannot be null");
+        }
+        if (withMetrics == null) {
+            throw new IllegalArgumentException("withMetrics cannot be null");
+        }
+        codec = withCodec;
+        metrics = withMetrics;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] encode(JsonNode state) throws IOException {
+        byte[] bytes = codec.encode(state);
+        metrics.recordStateBytes(bytes.length);
+        return bytes;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public JsonNode decode(byte[] bytes) throws IOException {
+        metrics.recordStateBytes(bytes.length);
+        return codec.decode(bytes);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getContentType() {
+        return codec.getContentType();
+    }
+}
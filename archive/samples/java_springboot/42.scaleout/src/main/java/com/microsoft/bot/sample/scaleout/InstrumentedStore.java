@@ -0,0 +1,139 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.microsoft.bot.schema.Pair;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Wraps any Store and records the latency of every load and save, and every save that lost the etag race,
+ * in a {@link ScaleoutMetrics}.
+ *
+ * <p>
+ * It is a {@link DeltaStore} so it can wrap one without hiding it from {@link ScaleoutBot}. When the wrapped store
+ * cannot save deltas, {@link #supportsDeltas()} says so, and a delta is saved as the full content. In a batch,
+ * every key is recorded with the latency of the whole batch.
+ * </p>
+ */
+public class InstrumentedStore implements DeltaStore {
+
+    private final Store store;
+    private final ScaleoutMetrics metrics;
+
+    /**
+     * Initializes a new instance of the {@link InstrumentedStore} class.
+     *
+     * @param withStore The store to wrap.
+     * @param withMetrics Where to record the calls.
+     */
+    public InstrumentedStore(Store withStore, ScaleoutMetrics withMetrics) {
+        if (withStore == null) {
+            throw new IllegalArgumentException("withStore cannot be null");
+        }
+        if (withMetrics == null) {
+            throw new IllegalArgumentException("withMetrics cannot be null");
+        }
+        store = withStore;
+        metrics = withMetrics;
+    }
+
+    /**
+     * Gets the wrapped store.
+     *
+     * @return The store.
+     */
+    public Store getStore() {
+        return store;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Pair<JsonNode, String>> load(String key) {
+        long started = System.nanoTime();
+        return store.load(key)
+            .whenComplete((loaded, error) -> metrics.recordLoad(key, System.nanoTime() - started));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Boolean> save(String key, JsonNode content, String etag) {
+        long started = System.nanoTime();
+        return record(key, started, store.save(key, content, etag));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Pair<Boolean, String>> saveAndGetETag(String key, JsonNode content, String etag) {
+        long started = System.nanoTime();
+        return store.saveAndGetETag(key, content, etag).whenComplete((saved, error) -> {
+            if (saved != null) {
+                metrics.recordSave(key, System.nanoTime() - started, saved.getLeft());
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Boolean> saveDelta(String key, JsonNode patch, JsonNode content, String etag) {
+        long started = System.nanoTime();
+        CompletableFuture<Boolean> saved = supportsDeltas()
+            ? ((DeltaStore) store).saveDelta(key, patch, content, etag)
+            : store.save(key, content, etag);
+        return record(key, started, saved);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean supportsDeltas() {
+        return store instanceof DeltaStore && ((DeltaStore) store).supportsDeltas();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Map<String, Pair<JsonNode, String>>> loadMany(Collection<String> keys) {
+        long started = System.nanoTime();
+        return store.loadMany(keys).whenComplete((loaded, error) -> {
+            long elapsed = System.nanoTime() - started;
+            keys.forEach(key -> metrics.recordLoad(key, elapsed));
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Map<String, Boolean>> saveMany(Map<String, Pair<JsonNode, String>> items) {
+        long started = System.nanoTime();
+        return store.saveMany(items).whenComplete((saved, error) -> {
+            if (saved != null) {
+                long elapsed = System.nanoTime() - started;
+                saved.forEach((key, success) -> metrics.recordSave(key, elapsed, success));
+            }
+        });
+    }
+
+    private CompletableFuture<Boolean> record(String key, long started, CompletableFuture<Boolean> save) {
+        return save.whenComplete((saved, error) -> {
+            if (saved != null) {
+                metrics.recordSave(key, System.nanoTime() - started, saved);
+            }
+        });
+    }
+}
@@ -0,0 +1,85 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import java.io.IOException;
+
+/**
+ * A {@link StateCodec} for any of the formats Jackson can write a JSON tree in.
+ *
+ * <p>
+ * JSON is human readable and is what the stores have always written. Smile and CBOR are binary encodings of the
+ * same data model: they skip number and string escaping on the way in and out, and Smile also back-references
+ * repeated property names, which the deeply nested dialog state has a lot of.
+ * </p>
+ */
+public final class JacksonStateCodec implements StateCodec {
+
+    private final ObjectReader reader;
+    private final ObjectWriter writer;
+    private final String contentType;
+
+    private JacksonStateCodec(JsonFactory factory, String withContentType) {
+        ObjectMapper objectMapper = new ObjectMapper(factory);
+        reader = objectMapper.readerFor(JsonNode.class);
+        writer = objectMapper.writer();
+        contentType = withContentType;
+    }
+
+    /**
+     * Creates a codec that writes UTF-8 JSON text.
+     * @return The JSON codec.
+     */
+    public static JacksonStateCodec json() {
+        return new JacksonStateCodec(new JsonFactory(), "application/json");
+    }
+
+    /**
+     * Creates a codec that writes binary Smile.
+     * @return The Smile codec.
+     */
+    public static JacksonStateCodec smile() {
+        return new JacksonStateCodec(new SmileFactory(), "application/x-jackson-smile");
+    }
+
+    /**
+     * Creates a codec that writes binary CBOR.
+     * @return The CBOR codec.
+     */
+    public static JacksonStateCodec cbor() {
+        return new JacksonStateCodec(new CBORFactory(), "application/cbor");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] encode(JsonNode state) throws IOException {
+        return writer.writeValueAsBytes(state);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public JsonNode decode(byte[] bytes) throws IOException {
+        return reader.readValue(bytes);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+}
@@ -0,0 +1,144 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Computes and applies the subset of RFC 6902 JSON Patch needed to describe how one dialog state became another:
+ * add, remove and replace operations.
+ *
+ * <p>
+ * Objects are compared member by member. Arrays are compared index by index, with trailing elements added or
+ * removed, which suits the dialog stack: pushing or popping a dialog only touches the end of the array.
+ * </p>
+ */
+public final class JsonPatch {
+
+    private JsonPatch() { }
+
+    /**
+     * Computes the operations that turn source into target.
+     *
+     * @param source The old document.
+     * @param target The new document.
+     * @return The patch, empty if the documents are equal.
+     */
+    public static ArrayNode diff(JsonNode source, JsonNode target) {
+        ArrayNode patch = JsonNodeFactory.instance.arrayNode();
+        diff(patch, "", source, target);
+        return patch;
+    }
+
+    /**
+     * Applies a patch. The document passed in is not modified.
+     *
+     * @param document The document to patch.
+     * @param patch The operations, as produced by {@link #diff(JsonNode, JsonNode)}.
+     * @return The patched document.
+     */
+    public static JsonNode apply(JsonNode document, JsonNode patch) {
+        JsonNode result = document != null ? document.deepCopy() : null;
+        for (JsonNode operation : patch) {
+            String op = operation.get("op").asText();
+            String path = operation.get("path").asText();
+            JsonNode value = operation.get("value");
+
+            if (path.isEmpty()) {
+                if (!"replace".equals(op)) {
+                    throw new IllegalArgumentException("Only replace can target the whole document");
+                }
+                result = value.deepCopy();
+                continue;
+            }
+
+            int split = path.lastIndexOf('/');
+            JsonNode parent = result.at(path.substring(0, split));
+            String name = unescape(path.substring(split + 1));
+            if (parent.isObject()) {
+                if ("remove".equals(op)) {
+                    ((ObjectNode) parent).remove(name);
+                } else {
+                    ((ObjectNode) parent).set(name, value.deepCopy());
+                }
+            } else if (parent.isArray()) {
+                ArrayNode array = (ArrayNode) parent;
+                int index = "-".equals(name) ? array.size() : Integer.parseInt(name);
+                switch (op) {
+                    case "add":
+                        array.insert(index, value.deepCopy());
+                        break;
+                    case "remove":
+                        array.remove(index);
+                        break;
+                    default:
+                        array.set(index, value.deepCopy());
+                        break;
+                }
+            } else {
+                throw new IllegalArgumentException(String.format("No container at %s", path));
+            }
+        }
+        return result;
+    }
+
+    private static void diff(ArrayNode patch, String path, JsonNode source, JsonNode target) {
+        if (source == null ? target == null : source.equals(target)) {
+            return;
+        }
+
+        if (source != null && target != null && source.isObject() && target.isObject()) {
+            Iterator<Map.Entry<String, JsonNode>> fields = source.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                String childPath = path + "/" + escape(field.getKey());
+                if (!target.has(field.getKey())) {
+                    patch.addObject().put("op", "remove").put("path", childPath);
+                } else {
+                    diff(patch, childPath, field.getValue(), target.get(field.getKey()));
+                }
+            }
+            fields = target.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                if (!source.has(field.getKey())) {
+                    String childPath = path + "/" + escape(field.getKey());
+                    patch.addObject().put("op", "add").put("path", childPath).set("value", field.getValue());
+                }
+            }
+            return;
+        }
+
+        if (source != null && target != null && source.isArray() && target.isArray()) {
+            int common = Math.min(source.size(), target.size());
+            for (int i = 0; i < common; i++) {
+                diff(patch, path + "/" + i, source.get(i), target.get(i));
+            }
+            for (int i = common; i < target.size(); i++) {
+                patch.addObject().put("op", "add").put("path", path + "/" + i).set("value", target.get(i));
+            }
+            // Remove from the end so the earlier indexes stay valid.
+            for (int i = source.size() - 1; i >= common; i--) {
+                patch.addObject().put("op", "remove").put("path", path + "/" + i);
+            }
+            return;
+        }
+
+        patch.addObject().put("op", "replace").put("path", path).set("value", target);
+    }
+
+    private static String escape(String name) {
+        return name.replace("~", "~0").replace("/", "~1");
+    }
+
+    private static String unescape(String name) {
+        return name.replace("~1", "/").replace("~0", "~");
+    }
+}
@@ -0,0 +1,394 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Short, renewable leases on conversation keys, so that one node at a time owns a conversation.
+ *
+ * <p>
+ * A lease is a small document kept in a {@link Store} next to the state, naming the owning node and when the
+ * lease expires. It is taken and renewed with the store's etag check, so two nodes can never both think they
+ * took it. The owner holds on to the lease while the conversation is in use, renewing it in the background, and
+ * lets it go once the conversation has been idle for a lease's duration. Other nodes forward the conversation's
+ * Activities to the owner, or wait for the lease to expire, instead of running the dialog themselves and losing
+ * the etag race on the state.
+ * </p>
+ *
+ * <p>
+ * Leases only reduce wasted work: the state is still saved with its own etag check, so a node that acts on an
+ * out of date lease can lose a save but cannot overwrite another node's. Expiry times are wall clock times, and a
+ * node treats its own lease as lost a quarter of a duration early to allow for clock skew between nodes and for a
+ * renewal that is late.
+ * </p>
+ */
+public class LeaseManager implements AutoCloseable {
+
+    /**
+     * The... ummm... logger.
+     */
+    private static Logger logger = LoggerFactory.getLogger(LeaseManager.class);
+
+    private static final String KEY_PREFIX = "leases/";
+
+    private final String nodeId;
+    private final Store store;
+    private final long durationMillis;
+    private final long marginMillis;
+    private final ConcurrentMap<String, Held> held = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CompletableFuture<Lease>> acquiring = new ConcurrentHashMap<>();
+    private final AtomicLong tokens = new AtomicLong();
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService renewer;
+
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong renewed = new AtomicLong();
+    private final AtomicLong released = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+    private final AtomicLong contended = new AtomicLong();
+
+    /**
+     * Initializes a new instance of the {@link LeaseManager} class.
+     *
+     * @param withNodeId The id this node's leases are taken under.
+     * @param withStore Where the leases are kept. Every node must use the same one.
+     * @param withDurationMillis How long a lease lasts without being renewed, and how long a conversation can be
+     *                           idle before its lease is let go.
+     */
+    public LeaseManager(String withNodeId, Store withStore, long withDurationMillis) {
+        if (withNodeId == null) {
+            throw new IllegalArgumentException("withNodeId cannot be null");
+        }
+        if (withStore == null) {
+            throw new IllegalArgumentException("withStore cannot be null");
+        }
+        if (withDurationMillis < 4) {
+            throw new IllegalArgumentException("withDurationMillis must be at least 4");
+        }
+        nodeId = withNodeId;
+        store = withStore;
+        durationMillis = withDurationMillis;
+        marginMillis = withDurationMillis / 4;
+
+        renewer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lease-renewer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        renewer.scheduleWithFixedDelay(this::renewSafely, marginMillis, marginMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes the lease on a key for this node, unless another node holds it. A lease this node already holds is
+     * returned without touching the store.
+     *
+     * @param key The conversation key.
+     * @return The lease as it now stands: this node's, or the other node's that holds it.
+     */
+    public CompletableFuture<Lease> acquire(String key) {
+        if (key == null) {
+            throw new IllegalArgumentException("key cannot be null");
+        }
+
+        Held current = held.get(key);
+        if (current != null && isValid(current)) {
+            current.touch();
+            return CompletableFuture.completedFuture(new Lease(nodeId, current.expiresAt));
+        }
+
+        // Turns for one key arriving together share a single round trip to the store.
+        CompletableFuture<Lease> pending = new CompletableFuture<>();
+        CompletableFuture<Lease> existing = acquiring.putIfAbsent(key, pending);
+        if (existing != null) {
+            return existing;
+        }
+        take(key).whenComplete((lease, error) -> {
+            acquiring.remove(key, pending);
+            if (error != null) {
+                pending.completeExceptionally(error);
+            } else {
+                pending.complete(lease);
+            }
+        });
+        return pending;
+    }
+
+    /**
+     * Waits for another node's lease to run out, then tries to take it. The wait holds no thread.
+     *
+     * @param key The conversation key.
+     * @param other The lease held by the other node.
+     * @return The lease as it stands after the wait. It is still the other node's if that node renewed it.
+     */
+    public CompletableFuture<Lease> acquireAfter(String key, Lease other) {
+        long delay = Math.max(0, Math.min(other.getExpiresAt() - System.currentTimeMillis(), durationMillis));
+        CompletableFuture<Lease> result = new CompletableFuture<>();
+        renewer.schedule(() -> acquire(key).whenComplete((lease, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(lease);
+            }
+        }), delay, TimeUnit.MILLISECONDS);
+        return result;
+    }
+
+    /**
+     * Gets a number that identifies this node's current hold on a key. It changes whenever the lease is taken
+     * afresh, so anything cached under one hold is known to be stale under the next.
+     *
+     * @param key The conversation key.
+     * @return The hold's token, or -1 if this node does not hold the lease.
+     */
+    public long token(String key) {
+        Held current = held.get(key);
+        return current != null && isValid(current) ? current.token : -1;
+    }
+
+    /**
+     * Adds a callback that is told the key of every lease this node stops holding, whether it was let go while
+     * idle, lost to another node, or ran out without being renewed. Anything kept under the hold can be dropped.
+     * It is called while renewing, so it must be quick.
+     *
+     * @param listener The callback.
+     */
+    public void addListener(Consumer<String> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Gets the id this node's leases are taken under.
+     *
+     * @return The node id.
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Gets the number of leases this node holds.
+     *
+     * @return The held count.
+     */
+    public int getHeld() {
+        return held.size();
+    }
+
+    /**
+     * Summarizes the leases for reporting.
+     *
+     * @return The held count and lease counters.
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("held", getHeld());
+        snapshot.put("acquired", acquired.get());
+        snapshot.put("renewed", renewed.get());
+        snapshot.put("released", released.get());
+        snapshot.put("lost", lost.get());
+        snapshot.put("contended", contended.get());
+        return snapshot;
+    }
+
+    /**
+     * Stops renewing. Held leases are left to expire.
+     */
+    @Override
+    public void close() {
+        renewer.shutdownNow();
+    }
+
+    /**
+     * Renews the leases of conversations used within the last duration, and lets the others go.
+     * This runs on the renewer on its own, and is only public so that it can be run on demand.
+     */
+    public void renew() {
+        long now = System.currentTimeMillis();
+        held.forEach((key, current) -> {
+            if (!isValid(current)) {
+                // A renewal kept failing, or the etag was unknown. Taking the lease again starts a new hold.
+                if (held.remove(key, current)) {
+                    lost.incrementAndGet();
+                    stopped(key);
+                }
+            } else if (now - current.lastUsed > durationMillis) {
+                release(key, current);
+            } else if (current.expiresAt - now < durationMillis - marginMillis) {
+                extend(key, current);
+            }
+        });
+    }
+
+    // Reads the lease, and writes this node's over it if it is free, expired or already this node's.
+    private CompletableFuture<Lease> take(String key) {
+        return store.load(KEY_PREFIX + key).thenCompose(loaded -> {
+            JsonNode document = loaded.getLeft();
+            String owner = document != null && document.hasNonNull("owner") ? document.get("owner").asText() : null;
+            long expiresAt = document != null ? document.path("expiresAt").asLong() : 0;
+            long now = System.currentTimeMillis();
+            if (owner != null && !owner.equals(nodeId) && expiresAt > now) {
+                contended.incrementAndGet();
+                return CompletableFuture.completedFuture(new Lease(owner, expiresAt));
+            }
+
+            long newExpiresAt = now + durationMillis;
+            return store.saveAndGetETag(KEY_PREFIX + key, document(nodeId, newExpiresAt), loaded.getRight())
+                .thenCompose(saved -> {
+                    if (!saved.getLeft()) {
+                        // Another node took it in between. Read it again to find out who.
+                        return take(key);
+                    }
+                    acquired.incrementAndGet();
+                    held.put(key, new Held(saved.getRight(), newExpiresAt, tokens.incrementAndGet()));
+                    return CompletableFuture.completedFuture(new Lease(nodeId, newExpiresAt));
+                });
+        });
+    }
+
+    // A lease whose etag is unknown cannot be renewed, and is taken afresh once it runs out instead.
+    private void extend(String key, Held current) {
+        if (current.etag == null) {
+            return;
+        }
+        long expiresAt = System.currentTimeMillis() + durationMillis;
+        store.saveAndGetETag(KEY_PREFIX + key, document(nodeId, expiresAt), current.etag)
+            .whenComplete((saved, error) -> {
+                if (error != null) {
+                    logger.warn("Renewal of the lease on {} failed", key, error);
+                } else if (!saved.getLeft()) {
+                    if (held.remove(key, current)) {
+                        lost.incrementAndGet();
+                        stopped(key);
+                    }
+                } else {
+                    renewed.incrementAndGet();
+                    Held extended = new Held(saved.getRight(), expiresAt, current.token);
+                    extended.lastUsed = current.lastUsed;
+                    held.replace(key, current, extended);
+                }
+            });
+    }
+
+    // Written as expired rather than deleted, because the Store interface has no delete.
+    private void release(String key, Held current) {
+        if (!held.remove(key, current)) {
+            return;
+        }
+        released.incrementAndGet();
+        stopped(key);
+        if (current.etag == null) {
+            return;
+        }
+        store.save(KEY_PREFIX + key, document(nodeId, 0), current.etag)
+            .whenComplete((saved, error) -> {
+                if (error != null) {
+                    logger.warn("Release of the lease on {} failed", key, error);
+                }
+            });
+    }
+
+    private void stopped(String key) {
+        for (Consumer<String> listener : listeners) {
+            listener.accept(key);
+        }
+    }
+
+    private void renewSafely() {
+        try {
+            renew();
+        } catch (RuntimeException e) {
+            logger.error("Lease renewal failed", e);
+        }
+    }
+
+    private boolean isValid(Held current) {
+        return current.expiresAt - System.currentTimeMillis() > marginMillis;
+    }
+
+    private static ObjectNode document(String owner, long expiresAt) {
+        ObjectNode document = JsonNodeFactory.instance.objectNode();
+        document.put("owner", owner);
+        document.put("expiresAt", expiresAt);
+        return document;
+    }
+
+    /**
+     * Who holds the lease on a key, and until when.
+     */
+    public static final class Lease {
+        private final String owner;
+        private final long expiresAt;
+
+        Lease(String withOwner, long withExpiresAt) {
+            owner = withOwner;
+            expiresAt = withExpiresAt;
+        }
+
+        /**
+         * Gets the id of the node holding the lease.
+         *
+         * @return The owner.
+         */
+        public String getOwner() {
+            return owner;
+        }
+
+        /**
+         * Gets when the lease expires unless it is renewed, in milliseconds since the epoch.
+         *
+         * @return The expiry time.
+         */
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        /**
+         * Tells whether a node holds the lease.
+         *
+         * @param nodeId The id of the node.
+         * @return True if that node is the owner.
+         */
+        public boolean isHeldBy(String nodeId) {
+            return nodeId != null && nodeId.equals(owner);
+        }
+    }
+
+    /**
+     * A lease this node holds. Identity is what renewal compares, so only the use time ever changes.
+     */
+    private static final class Held {
+        private final String etag;
+        private final long expiresAt;
+        private final long token;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        Held(String withEtag, long withExpiresAt, long withToken) {
+            etag = withEtag;
+            expiresAt = withExpiresAt;
+            token = withToken;
+        }
+
+        void touch() {
+            lastUsed = System.currentTimeMillis();
+        }
+    }
+}
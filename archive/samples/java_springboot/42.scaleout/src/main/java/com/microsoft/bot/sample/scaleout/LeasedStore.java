@@ -0,0 +1,205 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.microsoft.bot.schema.Pair;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps a Store and keeps the state of the conversations whose lease this node holds in memory, so that while a
+ * node owns a conversation each turn loads nothing from storage.
+ *
+ * <p>
+ * Saves always go through to the wrapped store with their etag, and on success the saved state and its new etag
+ * are kept. A kept state is only used under the same hold of the lease it was kept under, as told by
+ * {@link LeaseManager#token}. Once the lease lapses or moves to another node and back, the state is loaded from
+ * storage again, because another node may have changed it in between. The kept state is dropped as soon as the
+ * lease is let go, lost or runs out, so only the conversations this node holds take up memory. If a save still
+ * loses the etag race, the kept state is dropped and the retried turn loads it from storage. Like
+ * {@link MemoryStore}, the state is kept as the tree that was saved, and handed out as is, because dialog turns
+ * never change the state they are given.
+ * </p>
+ *
+ * <p>
+ * The etag a save produced is taken from {@link Store#saveAndGetETag}, which {@link BlobStore} answers from the
+ * upload's response, so an owned conversation on Blob Storage costs one write per turn and no reads.
+ * </p>
+ */
+public class LeasedStore implements DeltaStore {
+
+    private final Store store;
+    private final LeaseManager leases;
+    private final ConcurrentMap<String, Kept> kept = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Initializes a new instance of the {@link LeasedStore} class.
+     *
+     * @param withStore The store the state is kept in.
+     * @param withLeases The leases that decide which conversations this node owns.
+     */
+    public LeasedStore(Store withStore, LeaseManager withLeases) {
+        if (withStore == null) {
+            throw new IllegalArgumentException("withStore cannot be null");
+        }
+        if (withLeases == null) {
+            throw new IllegalArgumentException("withLeases cannot be null");
+        }
+        store = withStore;
+        leases = withLeases;
+        leases.addListener(this::forget);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Pair<JsonNode, String>> load(String key) {
+        long token = leases.token(key);
+        Kept entry = kept.get(key);
+        if (entry != null && token != -1 && entry.token == token) {
+            hits.incrementAndGet();
+            return CompletableFuture.completedFuture(new Pair<>(entry.content, entry.etag));
+        }
+
+        misses.incrementAndGet();
+        kept.remove(key);
+        return store.load(key).thenApply(loaded -> {
+            if (token != -1 && loaded.getLeft() != null && loaded.getRight() != null) {
+                kept.put(key, new Kept(loaded.getLeft(), loaded.getRight(), token));
+            }
+            return loaded;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Boolean> save(String key, JsonNode content, String etag) {
+        return saveAndGetETag(key, content, etag).thenApply(Pair::getLeft);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Pair<Boolean, String>> saveAndGetETag(String key, JsonNode content, String etag) {
+        long token = leases.token(key);
+        kept.remove(key);
+        return store.saveAndGetETag(key, content, etag).thenApply(saved -> {
+            keep(key, content, saved.getRight(), token);
+            return saved;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * When the wrapped store saves deltas, the new etag is read back from it, as by the default saveAndGetETag.
+     */
+    @Override
+    public CompletableFuture<Boolean> saveDelta(String key, JsonNode patch, JsonNode content, String etag) {
+        if (!supportsDeltas()) {
+            return save(key, content, etag);
+        }
+
+        long token = leases.token(key);
+        kept.remove(key);
+        return ((DeltaStore) store).saveDelta(key, patch, content, etag).thenCompose(saved -> {
+            if (!saved || token == -1) {
+                return CompletableFuture.completedFuture(saved);
+            }
+            return store.load(key).thenApply(loaded -> {
+                if (content.equals(loaded.getLeft())) {
+                    keep(key, content, loaded.getRight(), token);
+                }
+                return true;
+            });
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean supportsDeltas() {
+        return store instanceof DeltaStore && ((DeltaStore) store).supportsDeltas();
+    }
+
+    /**
+     * Gets the wrapped store.
+     *
+     * @return The store.
+     */
+    public Store getStore() {
+        return store;
+    }
+
+    /**
+     * Gets the number of loads served from memory.
+     *
+     * @return The hit count.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of loads that went to the wrapped store.
+     *
+     * @return The miss count.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Summarizes the store and its leases for reporting.
+     *
+     * @return The kept state count, hit and miss counts, and the lease counters.
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("kept", kept.size());
+        snapshot.put("hits", getHits());
+        snapshot.put("misses", getMisses());
+        snapshot.put("leases", leases.snapshot());
+        return snapshot;
+    }
+
+    // Called when a hold on the lease ends. The key may already be held again, and its state kept under the new hold.
+    private void forget(String key) {
+        kept.computeIfPresent(key, (k, entry) -> entry.token == leases.token(k) ? entry : null);
+    }
+
+    // Kept only if the etag is known and the lease was held throughout.
+    private void keep(String key, JsonNode content, String etag, long token) {
+        if (etag != null && token != -1 && leases.token(key) == token) {
+            kept.put(key, new Kept(content, etag, token));
+        }
+    }
+
+    /**
+     * A state this node saved or loaded, with its etag and the hold of the lease it was kept under.
+     */
+    private static final class Kept {
+        private final JsonNode content;
+        private final String etag;
+        private final long token;
+
+        Kept(JsonNode withContent, String withEtag, long withToken) {
+            content = withContent;
+            etag = withEtag;
+            token = withToken;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * A {@link Membership} whose nodes are joined and removed explicitly. It stands in for real service discovery,
+ * either from a static list in configuration or, shared between several nodes in one process, in tests.
+ */
+public class LocalMembership implements Membership {
+
+    private final List<Consumer<Map<String, String>>> listeners = new CopyOnWriteArrayList<>();
+    private volatile Map<String, String> members = Collections.emptyMap();
+
+    /**
+     * Creates a membership from a comma separated list of id=url pairs, for example
+     * {@code node1=http://10.0.0.4:3978,node2=http://10.0.0.5:3978}.
+     *
+     * @param nodes The list of nodes. May be blank.
+     * @return The membership.
+     */
+    public static LocalMembership parse(String nodes) {
+        LocalMembership membership = new LocalMembership();
+        if (StringUtils.isBlank(nodes)) {
+            return membership;
+        }
+        for (String node : nodes.split(",")) {
+            String[] parts = node.trim().split("=", 2);
+            if (parts.length != 2 || StringUtils.isBlank(parts[0]) || StringUtils.isBlank(parts[1])) {
+                throw new IllegalArgumentException(String.format("Expected id=url but found '%s'", node));
+            }
+            membership.join(parts[0].trim(), parts[1].trim());
+        }
+        return membership;
+    }
+
+    /**
+     * Adds a node, or updates its address.
+     *
+     * @param nodeId The id of the node.
+     * @param address The base URL of the node.
+     */
+    public synchronized void join(String nodeId, String address) {
+        Map<String, String> updated = new LinkedHashMap<>(members);
+        updated.put(nodeId, address);
+        publish(updated);
+    }
+
+    /**
+     * Removes a node.
+     *
+     * @param nodeId The id of the node.
+     */
+    public synchronized void leave(String nodeId) {
+        Map<String, String> updated = new LinkedHashMap<>(members);
+        if (updated.remove(nodeId) != null) {
+            publish(updated);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, String> getMembers() {
+        return members;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addListener(Consumer<Map<String, String>> listener) {
+        listeners.add(listener);
+    }
+
+    private void publish(Map<String, String> updated) {
+        members = Collections.unmodifiableMap(updated);
+        for (Consumer<Map<String, String>> listener : listeners) {
+            listener.accept(members);
+        }
+    }
+}
@@ -0,0 +1,582 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.microsoft.bot.schema.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * An ETag aware Store that keeps state on local disk, for single node and edge deployments that should
+ * survive a restart without a cloud dependency.
+ *
+ * <p>
+ * Every save appends a record to the active segment, a fixed size memory-mapped file. An in-memory index maps
+ * each key to the location of its latest record, so a load is a single copy out of the mapping. The record's
+ * version number is the etag. Segments whose records have mostly been superseded are compacted in the background
+ * by copying their live records forward and deleting the file. On startup the segments are scanned to rebuild
+ * the index, stopping at the first torn or corrupt record.
+ * </p>
+ *
+ * <p>
+ * Through {@link #saveDelta(String, JsonNode, JsonNode, String)} a save can append just the JSON Patch from the
+ * previous version. A load then replays the patches on top of the last full snapshot of the value, so after a
+ * fixed number of deltas a full snapshot is written instead to bound that replay.
+ * </p>
+ *
+ * <p>
+ * Writes reach the OS page cache immediately, which survives a process crash. They are forced to the device
+ * on the compaction timer and on {@link #close()}.
+ * </p>
+ */
+public class LogStore implements DeltaStore, AutoCloseable {
+
+    /**
+     * The... ummm... logger.
+     */
+    private static Logger logger = LoggerFactory.getLogger(LogStore.class);
+
+    private static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+    private static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+    private static final long DEFAULT_COMPACTION_INTERVAL_MILLIS = 1000;
+
+    private static final int MAX_DELTA_CHAIN = 16;
+
+    // length, crc, type, version, base version, key length; followed by the key, the value length and the value.
+    private static final int HEADER_BYTES =
+        Integer.BYTES + Integer.BYTES + Byte.BYTES + Long.BYTES + Long.BYTES + Short.BYTES;
+    private static final byte FULL = 0;
+    private static final byte DELTA = 1;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final StateCodec codec;
+    private final Path directory;
+    private final int segmentBytes;
+    private final double compactionThreshold;
+
+    private final ConcurrentMap<String, Location> index = new ConcurrentHashMap<>();
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService compactor;
+
+    // Guards appends, the active segment and the compare-and-set of the index.
+    private final Object writeLock = new Object();
+    private Segment active;
+    private long lastVersion;
+
+    /**
+     * The constructor of the {@link LogStore} class, using 64MB segments of JSON records.
+     * @param withDirectory The directory holding the segment files. It is created if needed.
+     */
+    public LogStore(Path withDirectory) {
+        this(withDirectory, JacksonStateCodec.json());
+    }
+
+    /**
+     * The constructor of the {@link LogStore} class, using 64MB segments.
+     * @param withDirectory The directory holding the segment files. It is created if needed.
+     * @param withCodec The encoding of the records. Existing segments must have been written with the same one.
+     */
+    public LogStore(Path withDirectory, StateCodec withCodec) {
+        this(
+            withDirectory,
+            withCodec,
+            DEFAULT_SEGMENT_BYTES,
+            DEFAULT_COMPACTION_THRESHOLD,
+            DEFAULT_COMPACTION_INTERVAL_MILLIS);
+    }
+
+    /**
+     * The constructor of the {@link LogStore} class.
+     * @param withDirectory The directory holding the segment files. It is created if needed.
+     * @param withCodec The encoding of the records. Existing segments must have been written with the same one.
+     * @param withSegmentBytes The size of each segment file.
+     * @param withCompactionThreshold Segments whose live fraction falls below this are compacted.
+     * @param compactionIntervalMillis How often to look for segments to compact and to force writes to disk.
+     */
+    public LogStore(
+        Path withDirectory,
+        StateCodec withCodec,
+        int withSegmentBytes,
+        double withCompactionThreshold,
+        long compactionIntervalMillis) {
+        if (withDirectory == null) {
+            throw new IllegalArgumentException("withDirectory cannot be null");
+        }
+        if (withCodec == null) {
+            throw new IllegalArgumentException("withCodec cannot be null");
+        }
+        if (withSegmentBytes < 4096) {
+            throw new IllegalArgumentException("withSegmentBytes must be at least 4096");
+        }
+        if (withCompactionThreshold < 0 || withCompactionThreshold >= 1) {
+            throw new IllegalArgumentException("withCompactionThreshold must be in [0, 1)");
+        }
+        directory = withDirectory;
+        codec = withCodec;
+        segmentBytes = withSegmentBytes;
+        compactionThreshold = withCompactionThreshold;
+
+        try {
+            Files.createDirectories(directory);
+            recover();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "log-store-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(
+            this::compactAndFlush, compactionIntervalMillis, compactionIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Pair<JsonNode, String>> load(String key) {
+        Location location = index.get(key);
+        if (location == null) {
+            return CompletableFuture.completedFuture(new Pair<>(null, null));
+        }
+        try {
+            // A location that compaction has since moved still points at an intact copy, because segments
+            // are never overwritten and a deleted file stays mapped until the buffer is collected.
+            JsonNode content = materialize(location);
+            return CompletableFuture.completedFuture(new Pair<>(content, Long.toString(location.version)));
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Boolean> save(String key, JsonNode content, String etag) {
+        if (key == null) {
+            throw new IllegalArgumentException("key cannot be null");
+        }
+        if (content == null) {
+            throw new IllegalArgumentException("content cannot be null");
+        }
+        try {
+            byte[] value = codec.encode(content);
+            synchronized (writeLock) {
+                Location current = index.get(key);
+                if (etag != null && current != null && !etag.equals(Long.toString(current.version))) {
+                    return CompletableFuture.completedFuture(false);
+                }
+                append(key, FULL, value, ++lastVersion);
+            }
+            return CompletableFuture.completedFuture(true);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * The values are encoded first, then the whole batch is checked and appended under a single
+     * acquisition of the write lock.
+     */
+    @Override
+    public CompletableFuture<Map<String, Boolean>> saveMany(Map<String, Pair<JsonNode, String>> items) {
+        try {
+            Map<String, byte[]> values = new LinkedHashMap<>();
+            for (Map.Entry<String, Pair<JsonNode, String>> item : items.entrySet()) {
+                if (item.getValue().getLeft() == null) {
+                    throw new IllegalArgumentException("content cannot be null");
+                }
+                values.put(item.getKey(), codec.encode(item.getValue().getLeft()));
+            }
+
+            Map<String, Boolean> results = new LinkedHashMap<>();
+            synchronized (writeLock) {
+                for (Map.Entry<String, byte[]> value : values.entrySet()) {
+                    String etag = items.get(value.getKey()).getRight();
+                    Location current = index.get(value.getKey());
+                    boolean matches = etag == null || current == null || etag.equals(Long.toString(current.version));
+                    if (matches) {
+                        append(value.getKey(), FULL, value.getValue(), ++lastVersion);
+                    }
+                    results.put(value.getKey(), matches);
+                }
+            }
+            return CompletableFuture.completedFuture(results);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Boolean> saveDelta(String key, JsonNode patch, JsonNode content, String etag) {
+        if (patch == null) {
+            throw new IllegalArgumentException("patch cannot be null");
+        }
+
+        // Without a base version to patch, or once the chain is long enough, write a full snapshot.
+        Location base = index.get(key);
+        if (etag == null || base == null || base.depth + 1 >= MAX_DELTA_CHAIN) {
+            return save(key, content, etag);
+        }
+
+        try {
+            byte[] value = codec.encode(patch);
+            synchronized (writeLock) {
+                Location current = index.get(key);
+                if (current == null || !etag.equals(Long.toString(current.version))) {
+                    return CompletableFuture.completedFuture(false);
+                }
+                append(key, DELTA, value, ++lastVersion);
+            }
+            return CompletableFuture.completedFuture(true);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Gets the number of keys in the store.
+     * @return The key count.
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Gets the number of segment files, including the active one.
+     * @return The segment count.
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Stops compaction and forces every segment to disk.
+     */
+    @Override
+    public void close() {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (writeLock) {
+            for (Segment segment : segments) {
+                segment.close();
+            }
+        }
+    }
+
+    // Reads the last snapshot of a value and replays the deltas written after it.
+    private JsonNode materialize(Location head) throws IOException {
+        Deque<Location> chain = new ArrayDeque<>();
+        for (Location location = head; location != null; location = location.previous) {
+            chain.push(location);
+        }
+        Location snapshot = chain.pop();
+        JsonNode content = codec.decode(snapshot.segment.readValue(snapshot.offset));
+        for (Location delta : chain) {
+            content = JsonPatch.apply(content, codec.decode(delta.segment.readValue(delta.offset)));
+        }
+        return content;
+    }
+
+    // Must be called holding writeLock. A delta is always relative to the current location of the key.
+    private void append(String key, byte type, byte[] value, long version) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("key cannot be longer than 65535 bytes");
+        }
+        int length = HEADER_BYTES + keyBytes.length + Integer.BYTES + value.length;
+        if (active == null || !active.hasRoom(length)) {
+            roll(length);
+        }
+
+        Location current = index.get(key);
+        long baseVersion = type == DELTA ? current.version : 0;
+        int offset = active.write(keyBytes, type, value, version, baseVersion, length);
+        link(key, current, active, offset, length, type, version);
+    }
+
+    // Makes a record the current location of its key. A snapshot releases the chain it replaces.
+    private void link(String key, Location current, Segment segment, int offset, int length, byte type, long version) {
+        if (type == DELTA) {
+            index.put(key, new Location(segment, offset, length, version, current, current.depth + 1));
+        } else {
+            index.put(key, new Location(segment, offset, length, version, null, 0));
+            for (Location released = current; released != null; released = released.previous) {
+                released.segment.liveBytes.addAndGet(-released.length);
+            }
+        }
+    }
+
+    // Must be called holding writeLock. The segment left behind is forced once, so records moved into it by a
+    // compaction are durable before the segment they came from is deleted.
+    private void roll(int minimumBytes) throws IOException {
+        if (active != null) {
+            active.force();
+        }
+        long id = active == null ? 0 : active.id + 1;
+        active = Segment.open(segmentPath(id), id, Math.max(segmentBytes, minimumBytes));
+        segments.add(active);
+    }
+
+    private Path segmentPath(long id) {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private void recover() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream =
+            Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(paths::add);
+        }
+        paths.sort(null);
+
+        for (Path path : paths) {
+            String name = path.getFileName().toString();
+            long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            Segment segment = Segment.open(path, id, (int) Math.max(segmentBytes, Files.size(path)));
+            segment.scan((key, offset, length, type, version, baseVersion) -> {
+                Location current = index.get(key);
+                // A snapshot wins over anything older, including the chain it was compacted from. A delta only
+                // counts if the version it was written against survived.
+                boolean accepted = type == FULL
+                    ? current == null || current.version <= version
+                    : current != null && current.version == baseVersion && version > baseVersion;
+                if (accepted) {
+                    segment.liveBytes.addAndGet(length);
+                    link(key, current, segment, offset, length, type, version);
+                }
+                lastVersion = Math.max(lastVersion, version);
+            });
+            segments.add(segment);
+            active = segment;
+        }
+        logger.info("Recovered {} keys from {} segments in {}", index.size(), segments.size(), directory);
+    }
+
+    private void compactAndFlush() {
+        try {
+            for (Segment segment : segments) {
+                if (segment != active && segment.liveFraction() < compactionThreshold) {
+                    compact(segment);
+                }
+            }
+            Segment current = active;
+            if (current != null) {
+                current.force();
+            }
+        } catch (Throwable t) {
+            logger.error("LogStore compaction failed: {}", t.toString());
+        }
+    }
+
+    private void compact(Segment segment) throws IOException {
+        // Each key whose current chain still reads from this segment gets a fresh snapshot at its current
+        // version. The lock is taken per record so saves are only held up for the length of one append.
+        segment.scan((key, offset, length, type, version, baseVersion) -> {
+            synchronized (writeLock) {
+                Location current = index.get(key);
+                if (current != null && current.reads(segment, offset)) {
+                    append(key, FULL, codec.encode(materialize(current)), current.version);
+                }
+            }
+        });
+
+        // Everything in the segment is now superseded, so the moved records must be durable before it goes. Any
+        // segment the moves filled was forced when it was rolled over.
+        synchronized (writeLock) {
+            active.force();
+            segments.remove(segment);
+            segment.close();
+        }
+        Files.deleteIfExists(segment.path);
+        logger.debug("Compacted segment {}", segment.path);
+    }
+
+    /**
+     * Where a record for a key lives. The current location of a key is the head of its chain: a delta links to
+     * the location it was written against, back to a full snapshot.
+     */
+    private static final class Location {
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+        private final long version;
+        private final Location previous;
+        private final int depth;
+
+        Location(Segment withSegment, int withOffset, int withLength, long withVersion, Location withPrevious,
+            int withDepth) {
+            segment = withSegment;
+            offset = withOffset;
+            length = withLength;
+            version = withVersion;
+            previous = withPrevious;
+            depth = withDepth;
+        }
+
+        boolean reads(Segment other, int otherOffset) {
+            for (Location location = this; location != null; location = location.previous) {
+                if (location.segment == other && location.offset == otherOffset) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Receives the records found when scanning a segment.
+     */
+    @FunctionalInterface
+    private interface RecordVisitor {
+        void visit(String key, int offset, int length, byte type, long version, long baseVersion) throws IOException;
+    }
+
+    /**
+     * One memory-mapped segment file.
+     */
+    private static final class Segment {
+        private final Path path;
+        private final long id;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final AtomicLong liveBytes = new AtomicLong();
+        private int writePosition;
+
+        private Segment(Path withPath, long withId, FileChannel withChannel, MappedByteBuffer withBuffer) {
+            path = withPath;
+            id = withId;
+            channel = withChannel;
+            buffer = withBuffer;
+        }
+
+        static Segment open(Path path, long id, int capacity) throws IOException {
+            FileChannel channel = FileChannel.open(
+                path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            return new Segment(path, id, channel, buffer);
+        }
+
+        boolean hasRoom(int length) {
+            // Leave room for the zero length that marks the end of the written records.
+            return writePosition + length + Integer.BYTES <= buffer.capacity();
+        }
+
+        int write(byte[] key, byte type, byte[] value, long version, long baseVersion, int length) {
+            int offset = writePosition;
+            ByteBuffer record = buffer.duplicate();
+            record.position(offset + Integer.BYTES * 2);
+            record.put(type);
+            record.putLong(version);
+            record.putLong(baseVersion);
+            record.putShort((short) key.length);
+            record.put(key);
+            record.putInt(value.length);
+            record.put(value);
+            record.putInt(offset + Integer.BYTES, checksum(offset, length));
+            // The length goes in last, so a torn write is never mistaken for a whole record on recovery.
+            record.putInt(offset, length);
+            writePosition += length;
+            liveBytes.addAndGet(length);
+            return offset;
+        }
+
+        byte[] readValue(int offset) {
+            ByteBuffer record = buffer.duplicate();
+            record.position(offset + HEADER_BYTES - Short.BYTES);
+            int keyLength = record.getShort() & 0xFFFF;
+            record.position(record.position() + keyLength);
+            byte[] value = new byte[record.getInt()];
+            record.get(value);
+            return value;
+        }
+
+        void scan(RecordVisitor visitor) throws IOException {
+            ByteBuffer record = buffer.duplicate();
+            int offset = 0;
+            while (offset + HEADER_BYTES <= record.capacity()) {
+                int length = record.getInt(offset);
+                if (length < HEADER_BYTES || offset + length > record.capacity()
+                    || record.getInt(offset + Integer.BYTES) != checksum(offset, length)) {
+                    break;
+                }
+                record.position(offset + Integer.BYTES * 2);
+                byte type = record.get();
+                long version = record.getLong();
+                long baseVersion = record.getLong();
+                byte[] key = new byte[record.getShort() & 0xFFFF];
+                record.get(key);
+                visitor.visit(new String(key, StandardCharsets.UTF_8), offset, length, type, version, baseVersion);
+                offset += length;
+            }
+            writePosition = Math.max(writePosition, offset);
+        }
+
+        double liveFraction() {
+            return writePosition == 0 ? 1 : (double) liveBytes.get() / writePosition;
+        }
+
+        void force() {
+            buffer.force();
+        }
+
+        void close() {
+            try {
+                buffer.force();
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close segment {}: {}", path, e.toString());
+            }
+        }
+
+        private int checksum(int offset, int length) {
+            ByteBuffer covered = buffer.duplicate();
+            covered.position(offset + Integer.BYTES * 2);
+            covered.limit(offset + length);
+            CRC32 crc = new CRC32();
+            crc.update(covered);
+            return (int) crc.getValue();
+        }
+    }
+}
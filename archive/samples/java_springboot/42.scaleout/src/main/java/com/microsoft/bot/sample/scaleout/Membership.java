@@ -0,0 +1,26 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * The set of nodes sharing the conversations of a scaled out bot, and where to reach each of them.
+ * A production deployment would back this with its service discovery, the sample uses {@link LocalMembership}.
+ */
+public interface Membership {
+
+    /**
+     * Gets the current members.
+     * @return A map from node id to the base URL of the node.
+     */
+    Map<String, String> getMembers();
+
+    /**
+     * Registers a callback that is invoked with the new members whenever a node joins or leaves.
+     * @param listener The callback.
+     */
+    void addListener(Consumer<Map<String, String>> listener);
+}
@@ -6,43 +6,38 @@ package com.microsoft.bot.sample.scaleout;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.microsoft.bot.schema.Pair;
 
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A thread safe implementation of the IStore abstraction intended for testing.
+ *
+ * <p>
+ * Entries are held in a {@link ConcurrentHashMap} so unrelated keys never contend with each other. Each save is a
+ * compare-and-set of a versioned entry for its key, and the etag is the entry's version number. Versions are taken
+ * from a single counter so they increase monotonically across the whole store.
+ * </p>
  */
 public class MemoryStore implements Store {
 
-    private Map<String, Pair<JsonNode, String>> store = new HashMap<>();
-
-    // When setting up the database, calls are made to CosmosDB. If multiple calls are made, we'll end up setting the
-    // collectionLink member variable more than once. The semaphore is for making sure the initialization of the
-    // database is done only once.
-    private Semaphore semaphore = new Semaphore(1);
+    private final ConcurrentMap<String, Entry> store = new ConcurrentHashMap<>();
+    private final AtomicLong versions = new AtomicLong();
 
     /**
      * {@inheritDoc}
      */
     @Override
     public CompletableFuture<Pair<JsonNode, String>> load(String key) {
-        try {
-            semaphore.acquire();
-
-            Pair<JsonNode, String> value = store.get(key);
-            if (value != null) {
-                return CompletableFuture.completedFuture(value);
-            }
-            return CompletableFuture.completedFuture(new Pair<>(null, null));
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-            return CompletableFuture.completedFuture(new Pair<>(null, null));
-        } finally {
-            semaphore.release();
+        Entry entry = store.get(key);
+        if (entry != null) {
+            return CompletableFuture.completedFuture(new Pair<>(entry.content, entry.etag()));
         }
+        return CompletableFuture.completedFuture(new Pair<>(null, null));
     }
 
     /**
@@ -50,22 +45,61 @@ public class MemoryStore implements Store {
      */
     @Override
     public CompletableFuture<Boolean> save(String key, JsonNode content, String eTag) {
-        try {
-            semaphore.acquire();
-            Pair<JsonNode, String> value = store.get(key);
-            if (eTag != null && value != null) {
-                if (eTag != value.getRight()) {
-                    return CompletableFuture.completedFuture(false);
-                }
+        while (true) {
+            Entry current = store.get(key);
+            if (eTag != null && current != null && !eTag.equals(current.etag())) {
+                return CompletableFuture.completedFuture(false);
             }
 
-            store.put(key, new Pair<>(content, UUID.randomUUID().toString()));
-            return CompletableFuture.completedFuture(true);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-            return CompletableFuture.completedFuture(false);
-        } finally {
-            semaphore.release();
+            Entry updated = new Entry(content, versions.incrementAndGet());
+            boolean swapped = current == null
+                ? store.putIfAbsent(key, updated) == null
+                : store.replace(key, current, updated);
+            if (swapped) {
+                return CompletableFuture.completedFuture(true);
+            }
+            // Another writer got in between the read and the swap. Re-check its etag against ours.
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Each key is read straight from the map, so the whole batch costs one completed future.
+     */
+    @Override
+    public CompletableFuture<Map<String, Pair<JsonNode, String>>> loadMany(Collection<String> keys) {
+        Map<String, Pair<JsonNode, String>> results = new LinkedHashMap<>();
+        for (String key : keys) {
+            results.put(key, load(key).join());
+        }
+        return CompletableFuture.completedFuture(results);
+    }
+
+    /**
+     * {@inheritDoc}
+     * Each key is compared and set on its own, so the batch never holds up writers of other keys.
+     */
+    @Override
+    public CompletableFuture<Map<String, Boolean>> saveMany(Map<String, Pair<JsonNode, String>> items) {
+        Map<String, Boolean> results = new LinkedHashMap<>();
+        items.forEach((key, item) -> results.put(key, save(key, item.getLeft(), item.getRight()).join()));
+        return CompletableFuture.completedFuture(results);
+    }
+
+    /**
+     * An immutable, versioned value. Identity is what the compare-and-set in save compares.
+     */
+    private static final class Entry {
+        private final JsonNode content;
+        private final long version;
+
+        Entry(JsonNode withContent, long withVersion) {
+            content = withContent;
+            version = withVersion;
+        }
+
+        String etag() {
+            return Long.toString(version);
         }
     }
 }
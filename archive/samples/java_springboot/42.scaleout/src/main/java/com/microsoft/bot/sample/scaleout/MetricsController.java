@@ -0,0 +1,74 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.microsoft.bot.builder.Bot;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Serves the {@link ScaleoutMetrics} of this node as JSON at /api/metrics, together with the queues of its
+ * {@link ConversationMailbox} and the counters of its {@link AffinityRouter}.
+ *
+ * <p>
+ * The hot keys are the conversations whose saves lose the etag race most often. When the same conversations keep
+ * showing up they are being processed on more than one node, which points at the affinity configuration.
+ * </p>
+ *
+ * @see Application
+ */
+@RestController
+public class MetricsController {
+
+    private final ScaleoutMetrics metrics;
+    private final AffinityRouter router;
+    private final Bot bot;
+
+    /**
+     * Initializes a new instance of the {@link MetricsController} class.
+     * @param withMetrics The metrics. Note is is provided by dependency injection via the constructor.
+     * @param withRouter The router. Note is is provided by dependency injection via the constructor.
+     * @param withBot The bot. Note is is provided by dependency injection via the constructor.
+     */
+    @Autowired
+    public MetricsController(ScaleoutMetrics withMetrics, AffinityRouter withRouter, Bot withBot) {
+        metrics = withMetrics;
+        router = withRouter;
+        bot = withBot;
+    }
+
+    /**
+     * Returns the metrics of this node.
+     * @param hotKeys The number of most conflicted conversations to list.
+     * @return The metrics.
+     */
+    @GetMapping("/api/metrics")
+    public Map<String, Object> metrics(@RequestParam(value = "hotKeys", defaultValue = "20") int hotKeys) {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("state", metrics.snapshot(hotKeys));
+
+        Map<String, Object> routing = new LinkedHashMap<>();
+        routing.put("nodeId", router.getNodeId());
+        routing.put("handledLocally", router.getHandledLocally());
+        routing.put("forwarded", router.getForwarded());
+        routing.put("forwardFailures", router.getForwardFailures());
+        routing.put("forwardedToLeaseHolder", router.getForwardedToLeaseHolder());
+        routing.put("waitedForLease", router.getWaitedForLease());
+        snapshot.put("routing", routing);
+
+        if (bot instanceof ScaleoutBot) {
+            ConversationMailbox mailbox = ((ScaleoutBot<?>) bot).getMailbox();
+            Map<String, Object> queues = new LinkedHashMap<>();
+            queues.put("activeKeys", mailbox.getActiveKeys());
+            queues.put("queueDepths", mailbox.getQueueDepths());
+            snapshot.put("mailbox", queues);
+        }
+        return snapshot;
+    }
+}
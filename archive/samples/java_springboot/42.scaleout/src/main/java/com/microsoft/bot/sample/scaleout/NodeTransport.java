@@ -0,0 +1,28 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.microsoft.bot.builder.InvokeResponse;
+import com.microsoft.bot.schema.Activity;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Hands an inbound Activity to the node that owns its conversation.
+ *
+ * @see AffinityRouter
+ */
+public interface NodeTransport {
+
+    /**
+     * Delivers an Activity to another node, which processes it as a forwarded turn.
+     * @param address The base URL of the owning node, as published by the {@link Membership}.
+     * @param authHeader The Authorization header the channel sent, so the owner can authenticate the Activity.
+     * @param activity The inbound Activity.
+     * @return The owner's response to the Activity, null if it had none. An error status from the owner is a
+     *     response too. The future completes with a {@link NodeUnreachableException} only if the Activity was never
+     *     sent, and with any other exception if the owner may have received it.
+     */
+    CompletableFuture<InvokeResponse> deliver(String address, String authHeader, Activity activity);
+}
@@ -0,0 +1,37 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a {@link NodeTransport} when no connection to the other node could be made, so the Activity was
+ * never sent and can safely be processed somewhere else.
+ */
+public class NodeUnreachableException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String address;
+
+    /**
+     * Initializes a new instance of the {@link NodeUnreachableException} class.
+     *
+     * @param withAddress The base URL of the node.
+     * @param cause Why the connection failed.
+     */
+    public NodeUnreachableException(String withAddress, Throwable cause) {
+        super(String.format("Could not connect to %s", withAddress), cause);
+        address = withAddress;
+    }
+
+    /**
+     * Gets the base URL of the node that could not be reached.
+     *
+     * @return The address.
+     */
+    public String getAddress() {
+        return address;
+    }
+}
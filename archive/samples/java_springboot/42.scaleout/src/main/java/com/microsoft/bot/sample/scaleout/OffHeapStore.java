@@ -0,0 +1,223 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.microsoft.bot.connector.Async;
+import com.microsoft.bot.schema.Pair;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory Store that keeps each conversation's state serialized in off-heap memory, for nodes holding so many
+ * conversations that their JsonNode trees would fill the old generation and lengthen GC pauses.
+ *
+ * <p>
+ * States are encoded with a {@link StateCodec} and copied into chunks handed out by a {@link SlabAllocator}. The
+ * heap only holds the index: for each key, the handle, length and version of its chunk. A load copies the bytes
+ * back out and decodes them, so every load returns a fresh tree that the caller is free to change.
+ * </p>
+ *
+ * <p>
+ * Keys are spread over a fixed number of read/write locks. A save takes its key's lock for writing, checks the
+ * etag, and swaps in the new chunk before freeing the old one. A load takes the lock for reading while it copies,
+ * so a chunk is never freed and reused under a reader. Encoding and decoding happen outside the locks.
+ * </p>
+ */
+public class OffHeapStore implements Store {
+
+    private static final int DEFAULT_SLAB_BYTES = 1 << 20;
+    private static final long DEFAULT_MAX_BYTES = 1L << 30;
+    private static final int STRIPES = 64;
+
+    private final SlabAllocator allocator;
+    private final StateCodec codec;
+    private final ConcurrentMap<String, Location> index = new ConcurrentHashMap<>();
+    private final ReadWriteLock[] locks = new ReadWriteLock[STRIPES];
+    private final AtomicLong versions = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+
+    /**
+     * Initializes a new instance of the {@link OffHeapStore} class, reserving up to 1GB of off-heap memory
+     * for JSON encoded states.
+     */
+    public OffHeapStore() {
+        this(DEFAULT_MAX_BYTES, JacksonStateCodec.json());
+    }
+
+    /**
+     * Initializes a new instance of the {@link OffHeapStore} class, with 1MB slabs.
+     *
+     * @param withMaxBytes The most off-heap memory to reserve. Saves fail once it is all in use.
+     * @param withCodec The encoding the states are kept in.
+     */
+    public OffHeapStore(long withMaxBytes, StateCodec withCodec) {
+        this(new SlabAllocator(DEFAULT_SLAB_BYTES, withMaxBytes), withCodec);
+    }
+
+    /**
+     * Initializes a new instance of the {@link OffHeapStore} class.
+     *
+     * @param withAllocator Where the states are kept. Its slab size is the largest state the store can hold.
+     * @param withCodec The encoding the states are kept in.
+     */
+    public OffHeapStore(SlabAllocator withAllocator, StateCodec withCodec) {
+        if (withAllocator == null) {
+            throw new IllegalArgumentException("withAllocator cannot be null");
+        }
+        if (withCodec == null) {
+            throw new IllegalArgumentException("withCodec cannot be null");
+        }
+        allocator = withAllocator;
+        codec = withCodec;
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Pair<JsonNode, String>> load(String key) {
+        Location location;
+        byte[] bytes;
+        ReadWriteLock lock = lockFor(key);
+        lock.readLock().lock();
+        try {
+            location = index.get(key);
+            if (location == null) {
+                return CompletableFuture.completedFuture(new Pair<>(null, null));
+            }
+            bytes = allocator.read(location.handle, location.length);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        try {
+            return CompletableFuture.completedFuture(new Pair<>(codec.decode(bytes), location.etag()));
+        } catch (IOException e) {
+            return Async.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Boolean> save(String key, JsonNode content, String eTag) {
+        byte[] bytes;
+        try {
+            bytes = codec.encode(content);
+        } catch (IOException e) {
+            return Async.completeExceptionally(e);
+        }
+
+        ReadWriteLock lock = lockFor(key);
+        lock.writeLock().lock();
+        try {
+            Location current = index.get(key);
+            if (eTag != null && current != null && !eTag.equals(current.etag())) {
+                return CompletableFuture.completedFuture(false);
+            }
+
+            long handle = allocator.allocate(bytes.length);
+            allocator.write(handle, bytes);
+            index.put(key, new Location(handle, bytes.length, versions.incrementAndGet()));
+            storedBytes.addAndGet(bytes.length);
+            if (current != null) {
+                allocator.free(current.handle);
+                storedBytes.addAndGet(-current.length);
+            }
+            return CompletableFuture.completedFuture(true);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            // The state is larger than a slab, or the store is full.
+            return Async.completeExceptionally(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of conversations held.
+     *
+     * @return The entry count.
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Gets the size of the encoded states held.
+     *
+     * @return The stored bytes.
+     */
+    public long getStoredBytes() {
+        return storedBytes.get();
+    }
+
+    /**
+     * Gets the off-heap memory reserved.
+     *
+     * @return The reserved bytes.
+     */
+    public long getOffHeapReservedBytes() {
+        return allocator.getReservedBytes();
+    }
+
+    /**
+     * Gets the off-heap memory in use, including the unused end of each chunk.
+     *
+     * @return The allocated bytes.
+     */
+    public long getOffHeapAllocatedBytes() {
+        return allocator.getAllocatedBytes();
+    }
+
+    /**
+     * Summarizes the store for reporting.
+     *
+     * @return The entry count and off-heap byte counts.
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("entries", size());
+        snapshot.put("storedBytes", getStoredBytes());
+        snapshot.put("offHeapAllocatedBytes", getOffHeapAllocatedBytes());
+        snapshot.put("offHeapReservedBytes", getOffHeapReservedBytes());
+        return snapshot;
+    }
+
+    private ReadWriteLock lockFor(String key) {
+        int hash = key.hashCode();
+        return locks[(hash ^ hash >>> 16) & (STRIPES - 1)];
+    }
+
+    /**
+     * Where a key's state is: only primitives, so the index holds no references into the state itself.
+     */
+    private static final class Location {
+        private final long handle;
+        private final int length;
+        private final long version;
+
+        Location(long withHandle, int withLength, long withVersion) {
+            handle = withHandle;
+            length = withLength;
+            version = withVersion;
+        }
+
+        String etag() {
+            return Long.toString(version);
+        }
+    }
+}
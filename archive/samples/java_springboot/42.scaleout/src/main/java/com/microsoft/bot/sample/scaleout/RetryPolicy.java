@@ -0,0 +1,117 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Controls how often, and how far apart, ScaleoutBot retries a turn after losing an etag race.
+ *
+ * <p>
+ * Delays grow exponentially from the base delay up to the maximum delay. "Full jitter" is applied, meaning the
+ * actual delay is a random value between zero and the computed delay, so replicas competing for the same
+ * conversation spread out instead of retrying in lock step.
+ * </p>
+ */
+public class RetryPolicy {
+
+    // One daemon thread is enough, it only times the delays. The futures are completed on the common pool, because
+    // the retried attempt runs on the completing thread until a store call goes asynchronous, and with an in-memory
+    // store that is the whole turn. On the scheduler thread every retry on the node would queue behind the others.
+    private static final Executor WORKERS = ForkJoinPool.commonPool();
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "scaleout-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final LongUnaryOperator jitter;
+
+    /**
+     * Initializes a new instance of the {@link RetryPolicy} class.
+     *
+     * @param withMaxAttempts The total number of attempts, including the first one.
+     * @param withBaseDelayMillis The delay before the second attempt, before jitter.
+     * @param withMaxDelayMillis The upper bound of any single delay, before jitter.
+     */
+    public RetryPolicy(int withMaxAttempts, long withBaseDelayMillis, long withMaxDelayMillis) {
+        this(withMaxAttempts, withBaseDelayMillis, withMaxDelayMillis,
+            ceiling -> ThreadLocalRandom.current().nextLong(ceiling + 1));
+    }
+
+    // The jitter picks the actual delay given the computed one. Tests replace it to make delays predictable.
+    RetryPolicy(int withMaxAttempts, long withBaseDelayMillis, long withMaxDelayMillis, LongUnaryOperator withJitter) {
+        if (withMaxAttempts < 1) {
+            throw new IllegalArgumentException("withMaxAttempts must be at least 1");
+        }
+        if (withBaseDelayMillis < 0 || withMaxDelayMillis < withBaseDelayMillis) {
+            throw new IllegalArgumentException("delays must satisfy 0 <= withBaseDelayMillis <= withMaxDelayMillis");
+        }
+        maxAttempts = withMaxAttempts;
+        baseDelayMillis = withBaseDelayMillis;
+        maxDelayMillis = withMaxDelayMillis;
+        jitter = withJitter;
+    }
+
+    /**
+     * The policy used when none is configured: 8 attempts, starting at 10ms and capped at 1 second.
+     *
+     * @return The default RetryPolicy.
+     */
+    public static RetryPolicy defaultPolicy() {
+        return new RetryPolicy(8, 10, 1000);
+    }
+
+    /**
+     * Gets the total number of attempts, including the first one.
+     *
+     * @return The maximum number of attempts.
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Computes the jittered delay to wait before the given attempt.
+     *
+     * @param attempt The attempt about to be made, starting at 1.
+     * @return The delay in milliseconds. Always zero for the first attempt.
+     */
+    public long delayBefore(int attempt) {
+        if (attempt <= 1 || baseDelayMillis == 0) {
+            return 0;
+        }
+        // Cap the shift so the exponential cannot overflow before it is clamped.
+        long exponential = baseDelayMillis << Math.min(attempt - 2, 30);
+        long ceiling = Math.min(maxDelayMillis, exponential);
+        return jitter.applyAsLong(ceiling);
+    }
+
+    /**
+     * Returns a future that completes after the jittered delay for the given attempt, without blocking
+     * the calling thread. It is completed on a thread of the common pool.
+     *
+     * @param attempt The attempt about to be made, starting at 1.
+     * @return A future that completes when the attempt may start.
+     */
+    public CompletableFuture<Void> awaitAttempt(int attempt) {
+        long delay = delayBefore(attempt);
+        if (delay == 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> ready = new CompletableFuture<>();
+        SCHEDULER.schedule(() -> WORKERS.execute(() -> ready.complete(null)), delay, TimeUnit.MILLISECONDS);
+        return ready;
+    }
+}
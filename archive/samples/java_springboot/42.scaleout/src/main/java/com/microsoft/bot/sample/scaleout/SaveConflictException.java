@@ -0,0 +1,46 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+/**
+ * Thrown when a turn could not be saved because every attempt allowed by the {@link RetryPolicy} lost the
+ * etag race for its conversation. Nothing was sent to the user for the turn.
+ */
+public class SaveConflictException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String key;
+    private final int attempts;
+
+    /**
+     * Initializes a new instance of the {@link SaveConflictException} class.
+     *
+     * @param withKey The storage key of the conversation.
+     * @param withAttempts The number of attempts that were made.
+     */
+    public SaveConflictException(String withKey, int withAttempts) {
+        super(String.format("Giving up on %s after %d conflicting save attempts", withKey, withAttempts));
+        key = withKey;
+        attempts = withAttempts;
+    }
+
+    /**
+     * Gets the storage key of the conversation.
+     *
+     * @return The key.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Gets the number of attempts that were made.
+     *
+     * @return The number of attempts.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+}
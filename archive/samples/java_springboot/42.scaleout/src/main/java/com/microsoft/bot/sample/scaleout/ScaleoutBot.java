@@ -6,11 +6,12 @@ package com.microsoft.bot.sample.scaleout;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.microsoft.bot.builder.ActivityHandler;
 import com.microsoft.bot.builder.TurnContext;
+import com.microsoft.bot.connector.Async;
 import com.microsoft.bot.dialogs.Dialog;
+import com.microsoft.bot.schema.Activity;
 import com.microsoft.bot.schema.Pair;
 
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.CompletionException;
 
 /**
  * Represents a bot that processes incoming Activities.
@@ -21,6 +22,10 @@ public class ScaleoutBot<T extends Dialog> extends ActivityHandler {
 
     private final Store store;
     private final Dialog dialog;
+    private final RetryPolicy retryPolicy;
+    private final ScaleoutMetrics metrics;
+    private final ConflictResolver conflictResolver;
+    private final ConversationMailbox mailbox = new ConversationMailbox();
 
     /**
      * Initializes a new instance of the {@link ScaleoutBot} class.
@@ -28,6 +33,46 @@ public class ScaleoutBot<T extends Dialog> extends ActivityHandler {
      * @param withDialog The root dialog to run.
      */
     public ScaleoutBot(Store withStore, T withDialog) {
+        this(withStore, withDialog, RetryPolicy.defaultPolicy());
+    }
+
+    /**
+     * Initializes a new instance of the {@link ScaleoutBot} class.
+     * @param withStore The store we will be using.
+     * @param withDialog The root dialog to run.
+     * @param withRetryPolicy How to retry a turn whose save lost the etag race.
+     */
+    public ScaleoutBot(Store withStore, T withDialog, RetryPolicy withRetryPolicy) {
+        this(withStore, withDialog, withRetryPolicy, new ScaleoutMetrics());
+    }
+
+    /**
+     * Initializes a new instance of the {@link ScaleoutBot} class.
+     * @param withStore The store we will be using.
+     * @param withDialog The root dialog to run.
+     * @param withRetryPolicy How to retry a turn whose save lost the etag race.
+     * @param withMetrics Where to record how many attempts each turn needed.
+     */
+    public ScaleoutBot(Store withStore, T withDialog, RetryPolicy withRetryPolicy, ScaleoutMetrics withMetrics) {
+        this(withStore, withDialog, withRetryPolicy, withMetrics, null);
+    }
+
+    /**
+     * Initializes a new instance of the {@link ScaleoutBot} class.
+     * @param withStore The store we will be using.
+     * @param withDialog The root dialog to run.
+     * @param withRetryPolicy How to retry a turn whose save lost the etag race.
+     * @param withMetrics Where to record how many attempts each turn needed.
+     * @param withConflictResolver Combines a turn's state with the state that won the etag race, so the turn need
+     *                             not be run again. Null to always run it again.
+     */
+    public ScaleoutBot(
+        Store withStore,
+        T withDialog,
+        RetryPolicy withRetryPolicy,
+        ScaleoutMetrics withMetrics,
+        ConflictResolver withConflictResolver
+    ) {
         if (withStore == null) {
             throw new IllegalArgumentException("withStore can't be null");
         }
@@ -37,6 +82,18 @@ public class ScaleoutBot<T extends Dialog> extends ActivityHandler {
             throw new IllegalArgumentException("withDialog can't be null");
         }
         dialog = withDialog;
+
+        if (withRetryPolicy == null) {
+            throw new IllegalArgumentException("withRetryPolicy can't be null");
+        }
+        retryPolicy = withRetryPolicy;
+
+        if (withMetrics == null) {
+            throw new IllegalArgumentException("withMetrics can't be null");
+        }
+        metrics = withMetrics;
+
+        conflictResolver = withConflictResolver;
     }
 
     /**
@@ -51,52 +108,128 @@ public class ScaleoutBot<T extends Dialog> extends ActivityHandler {
      */
     @Override
     protected CompletableFuture<Void> onMessageActivity(TurnContext turnContext) {
-        String key = null;
-        if (turnContext.getActivity().getConversation() != null) {
-            // Create the storage key for this conversation.
-            key = String.format(
-                "%s/conversations/%s",
-                turnContext.getActivity().getChannelId(),
-                turnContext.getActivity().getConversation().getId());
+        String key = conversationKey(turnContext.getActivity());
+        // Every attempt at this turn shares one memo, so a retry does not repeat the dialog's external calls.
+        TurnMemo memo = new TurnMemo();
+        CompletableFuture<Void> turn = key == null
+            ? runAttempt(turnContext, null, 1, memo)
+            // Turns for the same conversation on this node run one at a time, so they never race each other.
+            : mailbox.submit(key, () -> runAttempt(turnContext, key, 1, memo));
+        return turn.whenComplete((result, error) -> metrics.recordMemoHits(memo.getHits()));
+    }
+
+    /**
+     * Creates the storage key for the conversation of an Activity. Every node must derive the same key, because
+     * it is what the state is stored under and what conversations are routed by.
+     * @param activity The Activity.
+     * @return The key, or null if the Activity has no conversation.
+     */
+    public static String conversationKey(Activity activity) {
+        if (activity.getConversation() == null) {
+            return null;
         }
+        return String.format("%s/conversations/%s", activity.getChannelId(), activity.getConversation().getId());
+    }
+
+    /**
+     * Gets the mailbox that orders the turns of each conversation on this node. Its queue depths show
+     * which conversations are receiving messages faster than their turns complete.
+     * @return The mailbox.
+     */
+    public ConversationMailbox getMailbox() {
+        return mailbox;
+    }
+
+    /**
+     * Gets the metrics the turns of this bot are recorded in.
+     * @return The metrics.
+     */
+    public ScaleoutMetrics getMetrics() {
+        return metrics;
+    }
 
-        final Boolean[] shouldBreak = {false};
-        String finalKey = key;
-        // The execution sits in a loop because there might be a retry if the save operation fails.
-        while (true) {
+    // A single load, run, save and send cycle. If the save loses the etag race, and the state cannot be merged
+    // with the one that won it, the next attempt is scheduled after a backoff delay, so no thread is held while
+    // waiting.
+    private CompletableFuture<Void> runAttempt(TurnContext turnContext, String key, int attempt, TurnMemo memo) {
+        return retryPolicy.awaitAttempt(attempt)
             // Load any existing state associated with this key
-            CompletableFuture<Pair<JsonNode, String>> saveTask = store.load(finalKey).thenCompose(pairOldState -> {
+            .thenCompose(ready -> store.load(key))
+            .thenCompose(pairOldState -> {
                 // Run the dialog system with the old state and inbound activity,
                 // the result is a new state and outbound activities.
-                return DialogHost.run(dialog, turnContext.getActivity(), pairOldState.getLeft())
+                return DialogHost.run(dialog, turnContext.getActivity(), pairOldState.getLeft(), memo)
                     .thenCompose(pairNewState -> {
                         // Save the updated state associated with this key.
-                        return store.save(finalKey, pairNewState.getRight(), pairOldState.getRight())
+                        return save(key, pairOldState, pairNewState.getRight())
                             .thenCompose(success -> {
                                 // Following a successful save, send any outbound Activities,
                                 // otherwise retry everything.
                                 if (success) {
-                                    if (pairNewState.getLeft().length > 0) {
-                                        // This is an actual send on the TurnContext we were given
-                                        // and so will actual do a send this time.
-                                        turnContext.sendActivities(pairNewState.getLeft())
-                                            .thenApply(result -> null);
-                                    }
-                                    shouldBreak[0] = true;
+                                    metrics.recordTurn(attempt, true);
+                                    return sendActivities(turnContext, pairNewState.getLeft());
                                 }
-                                return CompletableFuture.completedFuture(null);
+                                if (conflictResolver != null && key != null && pairOldState.getLeft() != null) {
+                                    return merge(
+                                        turnContext, key, attempt, memo, pairOldState.getLeft(), pairNewState);
+                                }
+                                return retry(turnContext, key, attempt, memo);
                             });
                     });
             });
-            if (saveTask.isCompletedExceptionally()) {
-                throw new CompletionException(new Exception());
-            }
+    }
 
-            saveTask.join();
-            if (shouldBreak[0]) {
-                break;
+    // Reads the state that won the etag race and saves this turn's changes on top of it, once. The dialog is
+    // only run again if the changes overlap or the merged state loses the race as well.
+    private CompletableFuture<Void> merge(
+        TurnContext turnContext,
+        String key,
+        int attempt,
+        TurnMemo memo,
+        JsonNode base,
+        Pair<Activity[], JsonNode> pairNewState
+    ) {
+        return store.load(key).thenCompose(pairTheirState -> {
+            JsonNode merged = conflictResolver.resolve(base, pairNewState.getRight(), pairTheirState.getLeft());
+            if (merged == null) {
+                metrics.recordMerge(false);
+                return retry(turnContext, key, attempt, memo);
             }
+            return save(key, pairTheirState, merged).thenCompose(success -> {
+                metrics.recordMerge(success);
+                if (!success) {
+                    return retry(turnContext, key, attempt, memo);
+                }
+                metrics.recordTurn(attempt, true);
+                return sendActivities(turnContext, pairNewState.getLeft());
+            });
+        });
+    }
+
+    private CompletableFuture<Void> retry(TurnContext turnContext, String key, int attempt, TurnMemo memo) {
+        if (attempt >= retryPolicy.getMaxAttempts()) {
+            metrics.recordTurn(attempt, false);
+            return Async.completeExceptionally(new SaveConflictException(key, attempt));
+        }
+        return runAttempt(turnContext, key, attempt + 1, memo);
+    }
+
+    // Stores that can persist deltas are given just the change this turn made to the state.
+    private CompletableFuture<Boolean> save(String key, Pair<JsonNode, String> oldState, JsonNode newState) {
+        if (store instanceof DeltaStore && ((DeltaStore) store).supportsDeltas()
+            && oldState.getLeft() != null && oldState.getRight() != null) {
+            JsonNode patch = DialogHost.diff(oldState.getLeft(), newState);
+            return ((DeltaStore) store).saveDelta(key, patch, newState, oldState.getRight());
+        }
+        return store.save(key, newState, oldState.getRight());
+    }
+
+    private static CompletableFuture<Void> sendActivities(TurnContext turnContext, Activity[] activities) {
+        if (activities.length == 0) {
+            return CompletableFuture.completedFuture(null);
         }
-        return CompletableFuture.completedFuture(null);
+        // This is an actual send on the TurnContext we were given
+        // and so will actual do a send this time.
+        return turnContext.sendActivities(activities).thenApply(result -> null);
     }
 }
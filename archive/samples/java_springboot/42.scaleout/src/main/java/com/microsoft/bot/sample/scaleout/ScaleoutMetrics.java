@@ -0,0 +1,351 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Counts what happens to the state of conversations: how long loads and saves take, how often a save loses the
+ * etag race, how many attempts a turn needed, and how large the stored state is.
+ *
+ * <p>
+ * {@link ScaleoutBot} records its turns here, {@link InstrumentedStore} records the calls made to any Store, and
+ * {@link InstrumentedStateCodec} records state sizes for the stores that write bytes. The totals are served as
+ * JSON by the {@link MetricsController}.
+ * </p>
+ *
+ * <p>
+ * Conflicts are counted per key prefix, the key up to its last '/', which for ScaleoutBot is the channel. They are
+ * also counted per key for up to a fixed number of keys, so the conversations that conflict most, the ones to look
+ * at when tuning affinity, can be listed.
+ * </p>
+ */
+public class ScaleoutMetrics {
+
+    private static final int DEFAULT_MAX_TRACKED_KEYS = 10_000;
+    private static final int MAX_ATTEMPTS_TRACKED = 32;
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+    private final int maxTrackedKeys;
+    private final Histogram loads = new Histogram();
+    private final Histogram saves = new Histogram();
+    private final Histogram stateBytes = new Histogram();
+    private final LongAdder conflicts = new LongAdder();
+    private final LongAdder untrackedConflicts = new LongAdder();
+    private final ConcurrentMap<String, LongAdder> conflictsByPrefix = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> conflictsByKey = new ConcurrentHashMap<>();
+    private final AtomicLongArray turnAttempts = new AtomicLongArray(MAX_ATTEMPTS_TRACKED + 1);
+    private final LongAdder turnsFailed = new LongAdder();
+    private final LongAdder merges = new LongAdder();
+    private final LongAdder unmergeable = new LongAdder();
+    private final LongAdder memoHits = new LongAdder();
+    private final ConcurrentMap<String, InstrumentedExecutor> executors = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Supplier<Map<String, Object>>> stores = new ConcurrentHashMap<>();
+
+    /**
+     * Initializes a new instance of the {@link ScaleoutMetrics} class.
+     */
+    public ScaleoutMetrics() {
+        this(DEFAULT_MAX_TRACKED_KEYS);
+    }
+
+    /**
+     * Initializes a new instance of the {@link ScaleoutMetrics} class.
+     *
+     * @param withMaxTrackedKeys The number of keys to count conflicts for individually. Conflicts on further keys
+     *                           are only counted by prefix.
+     */
+    public ScaleoutMetrics(int withMaxTrackedKeys) {
+        if (withMaxTrackedKeys < 0) {
+            throw new IllegalArgumentException("withMaxTrackedKeys cannot be negative");
+        }
+        maxTrackedKeys = withMaxTrackedKeys;
+    }
+
+    /**
+     * Records a load.
+     *
+     * @param key The key loaded.
+     * @param nanos How long the load took.
+     */
+    public void recordLoad(String key, long nanos) {
+        loads.record(nanos);
+    }
+
+    /**
+     * Records a save, and a conflict if the save lost the etag race.
+     *
+     * @param key The key saved.
+     * @param nanos How long the save took.
+     * @param saved True if the content was saved.
+     */
+    public void recordSave(String key, long nanos, boolean saved) {
+        saves.record(nanos);
+        if (!saved) {
+            recordConflict(key);
+        }
+    }
+
+    /**
+     * Records the size of a state as written to or read from storage.
+     *
+     * @param bytes The encoded size.
+     */
+    public void recordStateBytes(int bytes) {
+        stateBytes.record(bytes);
+    }
+
+    /**
+     * Records a finished turn.
+     *
+     * @param attempts The number of times the dialog was run.
+     * @param saved True if the turn saved its state, false if it ran out of attempts.
+     */
+    public void recordTurn(int attempts, boolean saved) {
+        turnAttempts.incrementAndGet(Math.max(0, Math.min(attempts, MAX_ATTEMPTS_TRACKED)));
+        if (!saved) {
+            turnsFailed.increment();
+        }
+    }
+
+    /**
+     * Records a save conflict that a {@link ConflictResolver} was asked to resolve.
+     *
+     * @param merged True if the merged state was saved, false if the turn had to be run again.
+     */
+    public void recordMerge(boolean merged) {
+        if (merged) {
+            merges.increment();
+        } else {
+            unmergeable.increment();
+        }
+    }
+
+    /**
+     * Records how many of a finished turn's external calls were answered from its {@link TurnMemo}.
+     *
+     * @param hits The memo's hit count.
+     */
+    public void recordMemoHits(long hits) {
+        memoHits.add(hits);
+    }
+
+    /**
+     * Adds an executor whose queue and latencies are reported with the other metrics.
+     *
+     * @param name The name to report it under.
+     * @param executor The executor.
+     */
+    public void addExecutor(String name, InstrumentedExecutor executor) {
+        executors.put(name, executor);
+    }
+
+    /**
+     * Adds a store whose own counters, such as evictions, are reported with the other metrics.
+     *
+     * @param name The name to report it under.
+     * @param snapshot Summarizes the store's counters when the metrics are reported.
+     */
+    public void addStore(String name, Supplier<Map<String, Object>> snapshot) {
+        stores.put(name, snapshot);
+    }
+
+    /**
+     * Gets the number of saves that lost the etag race.
+     *
+     * @return The conflict count.
+     */
+    public long getConflicts() {
+        return conflicts.sum();
+    }
+
+    /**
+     * Gets the number of conflicts per key prefix.
+     *
+     * @return A snapshot of the conflict count per prefix.
+     */
+    public Map<String, Long> getConflictsByPrefix() {
+        return counts(conflictsByPrefix, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Gets the keys with the most conflicts.
+     *
+     * @param limit The maximum number of keys to return. None are returned if it is negative.
+     * @return The conflict count per key, most conflicts first.
+     */
+    public Map<String, Long> getHotKeys(int limit) {
+        return counts(conflictsByKey, limit);
+    }
+
+    /**
+     * Gets how many turns needed each number of attempts.
+     *
+     * @return The number of turns per attempt count, for the attempt counts seen. The last bucket also counts
+     *         turns that needed more attempts.
+     */
+    public Map<Integer, Long> getTurnAttempts() {
+        Map<Integer, Long> histogram = new LinkedHashMap<>();
+        for (int attempts = 0; attempts < turnAttempts.length(); attempts++) {
+            long turns = turnAttempts.get(attempts);
+            if (turns > 0) {
+                histogram.put(attempts, turns);
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Gets the number of turns that ran out of attempts.
+     *
+     * @return The failed turn count.
+     */
+    public long getTurnsFailed() {
+        return turnsFailed.sum();
+    }
+
+    /**
+     * Gets the number of save conflicts resolved by merging, without running the turn again.
+     *
+     * @return The merge count.
+     */
+    public long getMerges() {
+        return merges.sum();
+    }
+
+    /**
+     * Gets the number of save conflicts that could not be merged, so that the turn was run again.
+     *
+     * @return The unmergeable conflict count.
+     */
+    public long getUnmergeable() {
+        return unmergeable.sum();
+    }
+
+    /**
+     * Gets the number of external calls that retried turns did not make again, because the turn's memo held
+     * their results.
+     *
+     * @return The memo hit count.
+     */
+    public long getMemoHits() {
+        return memoHits.sum();
+    }
+
+    /**
+     * Gets the load latencies, in nanoseconds.
+     *
+     * @return The load histogram.
+     */
+    public Histogram getLoads() {
+        return loads;
+    }
+
+    /**
+     * Gets the save latencies, in nanoseconds.
+     *
+     * @return The save histogram.
+     */
+    public Histogram getSaves() {
+        return saves;
+    }
+
+    /**
+     * Gets the encoded state sizes, in bytes.
+     *
+     * @return The state size histogram.
+     */
+    public Histogram getStateBytes() {
+        return stateBytes;
+    }
+
+    /**
+     * Summarizes every metric for reporting. Latencies are in milliseconds.
+     *
+     * @param hotKeys The number of most conflicted keys to include.
+     * @return The metrics, as a tree of maps that serializes to JSON.
+     */
+    public Map<String, Object> snapshot(int hotKeys) {
+        Map<String, Object> turns = new LinkedHashMap<>();
+        turns.put("attempts", getTurnAttempts());
+        turns.put("failed", getTurnsFailed());
+        turns.put("merged", getMerges());
+        turns.put("unmergeable", getUnmergeable());
+        turns.put("memoHits", getMemoHits());
+
+        Map<String, Object> conflictCounts = new LinkedHashMap<>();
+        conflictCounts.put("total", getConflicts());
+        conflictCounts.put("byPrefix", getConflictsByPrefix());
+        conflictCounts.put("hotKeys", getHotKeys(hotKeys));
+        conflictCounts.put("untracked", untrackedConflicts.sum());
+
+        Map<String, Object> executorStats = new LinkedHashMap<>();
+        executors.forEach((name, executor) -> {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("threads", executor.getThreads());
+            stats.put("queueDepth", executor.getQueueDepth());
+            stats.put("inFlight", executor.getInFlight());
+            stats.put("completed", executor.getCompleted());
+            stats.put("rejected", executor.getRejected());
+            stats.put("averageQueueMillis", executor.getAverageQueueMillis());
+            stats.put("averageRunMillis", executor.getAverageRunMillis());
+            stats.put("maxRunMillis", executor.getMaxRunMillis());
+            executorStats.put(name, stats);
+        });
+
+        Map<String, Object> storeStats = new LinkedHashMap<>();
+        stores.forEach((name, store) -> storeStats.put(name, store.get()));
+
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("turns", turns);
+        snapshot.put("conflicts", conflictCounts);
+        snapshot.put("loadMillis", loads.snapshot(NANOS_PER_MILLI));
+        snapshot.put("saveMillis", saves.snapshot(NANOS_PER_MILLI));
+        snapshot.put("stateBytes", stateBytes.snapshot(1));
+        snapshot.put("executors", executorStats);
+        snapshot.put("stores", storeStats);
+        return snapshot;
+    }
+
+    private void recordConflict(String key) {
+        conflicts.increment();
+        if (key == null) {
+            return;
+        }
+
+        int slash = key.lastIndexOf('/');
+        conflictsByPrefix.computeIfAbsent(slash < 0 ? "" : key.substring(0, slash), k -> new LongAdder()).increment();
+
+        LongAdder perKey = conflictsByKey.get(key);
+        if (perKey == null && conflictsByKey.size() < maxTrackedKeys) {
+            perKey = conflictsByKey.computeIfAbsent(key, k -> new LongAdder());
+        }
+        if (perKey != null) {
+            perKey.increment();
+        } else {
+            untrackedConflicts.increment();
+        }
+    }
+
+    private static Map<String, Long> counts(Map<String, LongAdder> counters, int limit) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>();
+        counters.forEach((key, count) -> entries.add(new AbstractMap.SimpleImmutableEntry<>(key, count.sum())));
+        entries.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : entries.subList(0, Math.max(0, Math.min(limit, entries.size())))) {
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,200 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out chunks of off-heap memory for {@link OffHeapStore}.
+ *
+ * <p>
+ * Memory is reserved in slabs, direct ByteBuffers of a fixed size, and every slab is cut into chunks of a single
+ * size class. The size classes are the powers of two from 64 bytes up to the slab size, so a value wastes less than
+ * half of its chunk. Freed chunks go on their class's free list and are handed out again before a new slab is
+ * reserved. Slabs are never given back, so the memory reserved is the high-water mark of the memory used.
+ * </p>
+ *
+ * <p>
+ * A chunk is named by a handle, a long holding its size class and its number within the class. Reading and writing
+ * a chunk takes no lock: the caller must make sure a chunk is not freed while it is being read.
+ * </p>
+ */
+public class SlabAllocator {
+
+    private static final int MIN_CHUNK_SHIFT = 6;
+    private static final int CLASS_SHIFT = 56;
+    private static final long CHUNK_MASK = 0xFFFFFFFFL;
+
+    private final int slabBytes;
+    private final long maxBytes;
+    private final SizeClass[] classes;
+    private final AtomicLong reservedBytes = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    /**
+     * Initializes a new instance of the {@link SlabAllocator} class.
+     *
+     * @param withSlabBytes The size of each slab, a power of two of at least 64. It is also the largest chunk.
+     * @param withMaxBytes The most off-heap memory to reserve.
+     */
+    public SlabAllocator(int withSlabBytes, long withMaxBytes) {
+        if (withSlabBytes < 1 << MIN_CHUNK_SHIFT || Integer.bitCount(withSlabBytes) != 1) {
+            throw new IllegalArgumentException("withSlabBytes must be a power of two of at least 64");
+        }
+        if (withMaxBytes < withSlabBytes) {
+            throw new IllegalArgumentException("withMaxBytes must be at least withSlabBytes");
+        }
+        slabBytes = withSlabBytes;
+        maxBytes = withMaxBytes;
+
+        int slabShift = Integer.numberOfTrailingZeros(withSlabBytes);
+        classes = new SizeClass[slabShift - MIN_CHUNK_SHIFT + 1];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass(1 << (MIN_CHUNK_SHIFT + i), withSlabBytes);
+        }
+    }
+
+    /**
+     * Allocates a chunk.
+     *
+     * @param length The number of bytes the chunk must hold.
+     * @return The handle of the chunk.
+     * @throws IllegalArgumentException If the length is larger than a slab.
+     * @throws IllegalStateException If a new slab is needed and the maximum is already reserved.
+     */
+    public long allocate(int length) {
+        if (length > slabBytes) {
+            throw new IllegalArgumentException(
+                String.format("%d bytes is more than the largest chunk of %d bytes", length, slabBytes));
+        }
+        int sizeClass = classOf(length);
+        int chunk = classes[sizeClass].allocate();
+        allocatedBytes.addAndGet(classes[sizeClass].chunkBytes);
+        return (long) sizeClass << CLASS_SHIFT | chunk;
+    }
+
+    /**
+     * Returns a chunk to its free list.
+     *
+     * @param handle The handle of the chunk.
+     */
+    public void free(long handle) {
+        SizeClass sizeClass = classes[(int) (handle >>> CLASS_SHIFT)];
+        sizeClass.free((int) (handle & CHUNK_MASK));
+        allocatedBytes.addAndGet(-sizeClass.chunkBytes);
+    }
+
+    /**
+     * Copies bytes into the start of a chunk.
+     *
+     * @param handle The handle of the chunk.
+     * @param bytes The bytes. They must fit in the chunk.
+     */
+    public void write(long handle, byte[] bytes) {
+        ByteBuffer view = view(handle);
+        view.put(bytes);
+    }
+
+    /**
+     * Copies bytes out of the start of a chunk.
+     *
+     * @param handle The handle of the chunk.
+     * @param length The number of bytes to copy.
+     * @return The bytes.
+     */
+    public byte[] read(long handle, int length) {
+        byte[] bytes = new byte[length];
+        view(handle).get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Gets the largest number of bytes a chunk can hold.
+     *
+     * @return The slab size.
+     */
+    public int getMaxLength() {
+        return slabBytes;
+    }
+
+    /**
+     * Gets the off-heap memory reserved in slabs.
+     *
+     * @return The reserved bytes.
+     */
+    public long getReservedBytes() {
+        return reservedBytes.get();
+    }
+
+    /**
+     * Gets the off-heap memory in chunks that are handed out, including the unused end of each chunk.
+     *
+     * @return The allocated bytes.
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    private static int classOf(int length) {
+        int shift = length <= 1 ? 0 : Integer.SIZE - Integer.numberOfLeadingZeros(length - 1);
+        return Math.max(0, shift - MIN_CHUNK_SHIFT);
+    }
+
+    private ByteBuffer view(long handle) {
+        SizeClass sizeClass = classes[(int) (handle >>> CLASS_SHIFT)];
+        int chunk = (int) (handle & CHUNK_MASK);
+        ByteBuffer view = sizeClass.slabs[chunk / sizeClass.chunksPerSlab].duplicate();
+        view.position(chunk % sizeClass.chunksPerSlab * sizeClass.chunkBytes);
+        return view;
+    }
+
+    /**
+     * The slabs of one chunk size and a stack of the chunks that are free.
+     */
+    private final class SizeClass {
+        private final int chunkBytes;
+        private final int chunksPerSlab;
+        // Replaced, never changed in place, so readers need no lock.
+        private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+        private int[] free = new int[0];
+        private int freeCount;
+
+        SizeClass(int withChunkBytes, int withSlabBytes) {
+            chunkBytes = withChunkBytes;
+            chunksPerSlab = withSlabBytes / withChunkBytes;
+        }
+
+        synchronized int allocate() {
+            if (freeCount == 0) {
+                addSlab();
+            }
+            return free[--freeCount];
+        }
+
+        synchronized void free(int chunk) {
+            free[freeCount++] = chunk;
+        }
+
+        private void addSlab() {
+            if (reservedBytes.addAndGet(slabBytes) > maxBytes) {
+                reservedBytes.addAndGet(-slabBytes);
+                throw new IllegalStateException(
+                    String.format("The off-heap store is full: %d bytes are reserved", reservedBytes.get()));
+            }
+
+            int slab = slabs.length;
+            ByteBuffer[] grown = Arrays.copyOf(slabs, slab + 1);
+            grown[slab] = ByteBuffer.allocateDirect(slabBytes);
+            slabs = grown;
+
+            free = Arrays.copyOf(free, (slab + 1) * chunksPerSlab);
+            // Pushed in reverse so the chunks are handed out from the start of the slab.
+            for (int i = chunksPerSlab - 1; i >= 0; i--) {
+                free[freeCount++] = slab * chunksPerSlab + i;
+            }
+        }
+    }
+}
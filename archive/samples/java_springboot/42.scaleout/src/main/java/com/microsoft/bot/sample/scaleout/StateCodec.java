@@ -0,0 +1,39 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+
+/**
+ * Turns the state produced by {@link DialogHost} into the bytes a Store persists, and back.
+ * Stores that write bytes take a codec so the wire format can be chosen independently of the storage technology.
+ *
+ * @see JacksonStateCodec
+ */
+public interface StateCodec {
+
+    /**
+     * Encodes a state.
+     * @param state The state to encode.
+     * @return The encoded bytes.
+     * @throws IOException If the state cannot be encoded.
+     */
+    byte[] encode(JsonNode state) throws IOException;
+
+    /**
+     * Decodes a state.
+     * @param bytes The encoded bytes.
+     * @return The decoded state.
+     * @throws IOException If the bytes are not a valid encoding.
+     */
+    JsonNode decode(byte[] bytes) throws IOException;
+
+    /**
+     * Gets the MIME type of the encoding, for stores that record one.
+     * @return The content type.
+     */
+    String getContentType();
+}
@@ -0,0 +1,114 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.jsontype.BasicPolymorphicTypeValidator;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The readers and writers for the state types that {@link DialogHost} converts to and from JSON, created once
+ * and shared by every turn.
+ *
+ * <p>
+ * Dialog state holds values of any type, so the type of every value that is not declared concretely is written
+ * alongside it. Only types in the allowed packages are ever instantiated from that type information, so a stored
+ * state cannot be used to create arbitrary classes. The allowed packages cover the Bot Framework dialogs and the
+ * JDK collections and value types they store. A bot that keeps its own classes in dialog state creates a
+ * registry that also allows their package.
+ * </p>
+ */
+public final class StateTypeRegistry {
+
+    private static final String[] DEFAULT_PACKAGES = {"com.microsoft.bot.", "java.util.", "java.lang.", "java.time."};
+
+    private final ObjectMapper objectMapper;
+    private final Map<Class<?>, ObjectReader> readers = new ConcurrentHashMap<>();
+    private final Map<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a registry that allows the Bot Framework and JDK types.
+     *
+     * @param types The state types to prepare readers and writers for up front.
+     */
+    public StateTypeRegistry(Class<?>... types) {
+        this(DEFAULT_PACKAGES, types);
+    }
+
+    /**
+     * Creates a registry.
+     *
+     * @param allowedPackages The prefixes of the class names that may be named by type information in the state.
+     * @param types The state types to prepare readers and writers for up front.
+     */
+    public StateTypeRegistry(String[] allowedPackages, Class<?>... types) {
+        if (allowedPackages == null || allowedPackages.length == 0) {
+            throw new IllegalArgumentException("allowedPackages cannot be null or empty");
+        }
+
+        BasicPolymorphicTypeValidator.Builder validator = BasicPolymorphicTypeValidator.builder();
+        for (String allowedPackage : allowedPackages) {
+            validator.allowIfSubType(allowedPackage);
+        }
+        // The same type information, in the same shape, as the enableDefaultTyping the state was first written with.
+        objectMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .findAndRegisterModules()
+            .activateDefaultTyping(validator.build(), ObjectMapper.DefaultTyping.OBJECT_AND_NON_CONCRETE);
+
+        for (Class<?> type : types) {
+            readerFor(type);
+            writerFor(type);
+        }
+    }
+
+    /**
+     * Converts JSON to a state object.
+     *
+     * @param node The JSON, or null.
+     * @param type The type of the state.
+     * @param <T> The type of the state.
+     * @return The state, or null if there was no JSON.
+     * @throws IOException If the JSON is not a valid state, or names a type that is not allowed.
+     */
+    public <T> T read(JsonNode node, Class<T> type) throws IOException {
+        if (node == null || node.isNull() || node.isMissingNode()) {
+            return null;
+        }
+        return readerFor(type).readValue(node);
+    }
+
+    /**
+     * Converts a state object to JSON.
+     *
+     * @param value The state, or null.
+     * @param type The type of the state.
+     * @return The JSON.
+     * @throws IOException If the state cannot be serialized.
+     */
+    public JsonNode write(Object value, Class<?> type) throws IOException {
+        if (value == null) {
+            return objectMapper.nullNode();
+        }
+        TokenBuffer buffer = new TokenBuffer(objectMapper, false);
+        writerFor(type).writeValue(buffer, value);
+        return buffer.asParser(objectMapper).readValueAsTree();
+    }
+
+    private ObjectReader readerFor(Class<?> type) {
+        return readers.computeIfAbsent(type, objectMapper::readerFor);
+    }
+
+    private ObjectWriter writerFor(Class<?> type) {
+        return writers.computeIfAbsent(type, objectMapper::writerFor);
+    }
+}
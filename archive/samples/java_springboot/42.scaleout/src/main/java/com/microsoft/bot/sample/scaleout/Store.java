@@ -6,6 +6,9 @@ package com.microsoft.bot.sample.scaleout;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.microsoft.bot.schema.Pair;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 
 /**
@@ -30,4 +33,61 @@ public interface Store {
      * @return True if the content was saved.
      */
     CompletableFuture<Boolean> save(String key, JsonNode content, String etag);
+
+    /**
+     * Saves a value to the Store if the etag matches, and finds out the etag it was saved with.
+     * The default saves and then loads the value back. If the value was changed again in between, the new etag is
+     * unknown. Stores that learn the new etag from the save itself override this.
+     * @param key The key.
+     * @param content The content to save.
+     * @param etag The string representing the etag.
+     * @return True if the content was saved, and the etag it was saved with or null if that is unknown.
+     */
+    default CompletableFuture<Pair<Boolean, String>> saveAndGetETag(String key, JsonNode content, String etag) {
+        return save(key, content, etag).thenCompose(saved -> {
+            if (!saved) {
+                return CompletableFuture.completedFuture(new Pair<>(false, null));
+            }
+            return load(key).thenApply(loaded -> new Pair<>(
+                true,
+                content.equals(loaded.getLeft()) ? loaded.getRight() : null));
+        });
+    }
+
+    /**
+     * Loads several values from the Store.
+     * The default issues one load per key, all at once. Stores that can group or pipeline the work override this.
+     * @param keys The keys.
+     * @return A map from each key to its pair object.
+     */
+    default CompletableFuture<Map<String, Pair<JsonNode, String>>> loadMany(Collection<String> keys) {
+        Map<String, CompletableFuture<Pair<JsonNode, String>>> loads = new LinkedHashMap<>();
+        for (String key : keys) {
+            loads.put(key, load(key));
+        }
+        return CompletableFuture.allOf(loads.values().toArray(new CompletableFuture<?>[0]))
+            .thenApply(done -> {
+                Map<String, Pair<JsonNode, String>> results = new LinkedHashMap<>();
+                loads.forEach((key, load) -> results.put(key, load.join()));
+                return results;
+            });
+    }
+
+    /**
+     * Saves several values to the Store, each only if its own etag matches.
+     * The saves are independent: some may succeed while others fail their etag check.
+     * The default issues one save per key, all at once. Stores that can group or pipeline the work override this.
+     * @param items A map from each key to the content to save and the etag it was loaded with.
+     * @return A map from each key to true if its content was saved.
+     */
+    default CompletableFuture<Map<String, Boolean>> saveMany(Map<String, Pair<JsonNode, String>> items) {
+        Map<String, CompletableFuture<Boolean>> saves = new LinkedHashMap<>();
+        items.forEach((key, item) -> saves.put(key, save(key, item.getLeft(), item.getRight())));
+        return CompletableFuture.allOf(saves.values().toArray(new CompletableFuture<?>[0]))
+            .thenApply(done -> {
+                Map<String, Boolean> results = new LinkedHashMap<>();
+                saves.forEach((key, save) -> results.put(key, save.join()));
+                return results;
+            });
+    }
 }
@@ -0,0 +1,100 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link ConflictResolver} that merges two changes to a dialog state when they touch different parts of it.
+ *
+ * <p>
+ * Each change is taken as a {@link JsonPatch} from the common base. The changes are disjoint when no path one of
+ * them touches is equal to, inside of, or around a path the other touches, and then this turn's patch is applied
+ * on top of the other turn's state. Adding or removing an array element shifts the indexes after it, so such an
+ * operation is taken to touch the whole array: two turns that both push onto or pop off the dialog stack, or that
+ * both advance the same dialog instance, always conflict, and only changes to different dialog instances or to
+ * different values merge. An operation that both changes make identically is only applied once, except for these
+ * changes to the stack and to a dialog's step: two turns that made the same one each ran the step that made it,
+ * and sent its replies, so they conflict however alike they are.
+ * </p>
+ */
+public class ThreeWayMerge implements ConflictResolver {
+
+    // Where a WaterfallDialog instance keeps the step it is on.
+    private static final String STEP_INDEX = "/stepIndex";
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public JsonNode resolve(JsonNode base, JsonNode mine, JsonNode theirs) {
+        if (base == null || mine == null || theirs == null) {
+            return null;
+        }
+
+        List<Change> ours = changes(base, mine);
+        List<Change> others = changes(base, theirs);
+        ArrayNode patch = JsonNodeFactory.instance.arrayNode();
+        for (Change change : ours) {
+            boolean applied = false;
+            for (Change other : others) {
+                if (!change.progress && change.operation.equals(other.operation)) {
+                    applied = true;
+                } else if (overlaps(change.scope, other.scope)) {
+                    return null;
+                }
+            }
+            if (!applied) {
+                patch.add(change.operation);
+            }
+        }
+        return JsonPatch.apply(theirs, patch);
+    }
+
+    private static List<Change> changes(JsonNode base, JsonNode target) {
+        List<Change> changes = new ArrayList<>();
+        for (JsonNode operation : JsonPatch.diff(base, target)) {
+            String path = operation.get("path").asText();
+            String scope = path;
+            boolean progress;
+            if ("replace".equals(operation.get("op").asText())) {
+                progress = base.at(path).isArray() || operation.get("value").isArray() || path.endsWith(STEP_INDEX);
+            } else {
+                String parent = path.substring(0, path.lastIndexOf('/'));
+                progress = base.at(parent).isArray();
+                if (progress) {
+                    scope = parent;
+                }
+            }
+            changes.add(new Change(operation, scope, progress));
+        }
+        return changes;
+    }
+
+    // Member names in the paths have their slashes escaped, so a prefix ending at a slash is an ancestor.
+    private static boolean overlaps(String path, String other) {
+        return path.equals(other) || path.startsWith(other + "/") || other.startsWith(path + "/");
+    }
+
+    /**
+     * A patch operation, with the part of the document it is taken to touch, and whether it records a turn's
+     * progress through the dialogs rather than a value.
+     */
+    private static final class Change {
+        private final JsonNode operation;
+        private final String scope;
+        private final boolean progress;
+
+        Change(JsonNode withOperation, String withScope, boolean withProgress) {
+            operation = withOperation;
+            scope = withScope;
+            progress = withProgress;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.microsoft.bot.builder.TurnContext;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Remembers the results of the external calls a dialog makes while handling one inbound Activity, so that when
+ * {@link ScaleoutBot} runs the dialog again after losing the etag race, the calls are not made again.
+ *
+ * <p>
+ * {@link DialogHost} puts the memo in the turn state of the TurnContext the dialog runs with, and the same memo is
+ * passed to every attempt of the turn. A dialog step wraps its recognizer or HTTP call like this:
+ * </p>
+ *
+ * <pre>
+ * TurnMemo.of(stepContext.getContext())
+ *     .remember("weather/" + city, () -&gt; weatherClient.forecast(city))
+ * </pre>
+ *
+ * <p>
+ * Only calls whose answer may be reused for the whole turn should be remembered. The key must identify the call
+ * and its arguments. A call that fails is forgotten, so a later attempt makes it again.
+ * </p>
+ */
+public class TurnMemo {
+
+    private final ConcurrentMap<String, CompletableFuture<?>> results = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Gets the memo of the turn a TurnContext belongs to.
+     *
+     * @param turnContext The TurnContext the dialog is running with.
+     * @return The memo, or a new one that only lasts for this attempt if the dialog is not run by
+     *         {@link DialogHost}.
+     */
+    public static TurnMemo of(TurnContext turnContext) {
+        TurnMemo memo = turnContext.getTurnState().get(TurnMemo.class);
+        return memo != null ? memo : new TurnMemo();
+    }
+
+    /**
+     * Returns the result of a call made earlier in the turn, or makes the call. Callers asking for the same key
+     * while the call is in flight share its result.
+     *
+     * @param key Identifies the call and its arguments.
+     * @param call Makes the call.
+     * @param <T> The type of the result.
+     * @return The result.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> remember(String key, Supplier<CompletableFuture<T>> call) {
+        if (key == null) {
+            throw new IllegalArgumentException("key cannot be null");
+        }
+        if (call == null) {
+            throw new IllegalArgumentException("call cannot be null");
+        }
+
+        CompletableFuture<T> pending = new CompletableFuture<>();
+        CompletableFuture<T> existing = (CompletableFuture<T>) results.putIfAbsent(key, pending);
+        if (existing != null) {
+            hits.incrementAndGet();
+            return existing;
+        }
+
+        misses.incrementAndGet();
+        CompletableFuture<T> result;
+        try {
+            result = call.get();
+        } catch (RuntimeException e) {
+            result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+        }
+        result.whenComplete((value, error) -> {
+            if (error != null) {
+                results.remove(key, pending);
+                pending.completeExceptionally(error);
+            } else {
+                pending.complete(value);
+            }
+        });
+        return pending;
+    }
+
+    /**
+     * Gets the number of calls answered from the memo.
+     *
+     * @return The hit count.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of calls made.
+     *
+     * @return The miss count.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,253 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.microsoft.bot.builder.InvokeResponse;
+import com.microsoft.bot.schema.Activity;
+import com.microsoft.bot.schema.ConversationAccount;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+public class AffinityRouterTest {
+
+    private static final String[] NODES = {"node1", "node2", "node3"};
+
+    private LocalMembership membership;
+    private Map<String, AffinityRouter> routers;
+    // Conversation id to the node that processed it last.
+    private Map<String, String> handledBy;
+
+    @Before
+    public void setup() {
+        membership = new LocalMembership();
+        routers = new ConcurrentHashMap<>();
+        handledBy = new ConcurrentHashMap<>();
+
+        // The in-process transport resolves the address straight back to the router of that node.
+        NodeTransport transport = (address, authHeader, activity) -> routers.get(address).route(authHeader, activity, true);
+        for (String node : NODES) {
+            routers.put(node, new AffinityRouter(node, membership, 64, transport, (authHeader, activity) -> {
+                handledBy.put(activity.getConversation().getId(), node);
+                return CompletableFuture.completedFuture((InvokeResponse) null);
+            }));
+            membership.join(node, node);
+        }
+    }
+
+    @Test
+    public void eachConversationIsHandledByOneNodeWhicheverNodeReceivesIt() {
+        for (int conversation = 0; conversation < 300; conversation++) {
+            String owner = null;
+            for (String entry : NODES) {
+                routers.get(entry).route("", message(conversation), false).join();
+                String node = handledBy.get(Integer.toString(conversation));
+                if (owner == null) {
+                    owner = node;
+                }
+                Assert.assertEquals(owner, node);
+            }
+        }
+    }
+
+    @Test
+    public void conversationsSpreadOverAllNodes() {
+        Map<String, Integer> counts = new HashMap<>();
+        for (int conversation = 0; conversation < 3000; conversation++) {
+            counts.merge(routers.get("node1").ownerOf(message(conversation)), 1, Integer::sum);
+        }
+
+        Assert.assertEquals(NODES.length, counts.size());
+        for (int count : counts.values()) {
+            Assert.assertTrue("unbalanced: " + counts, count > 500 && count < 1500);
+        }
+    }
+
+    @Test
+    public void onlyTheLeavingNodesConversationsMove() {
+        Map<Integer, String> before = new HashMap<>();
+        for (int conversation = 0; conversation < 1000; conversation++) {
+            before.put(conversation, routers.get("node1").ownerOf(message(conversation)));
+        }
+
+        membership.leave("node3");
+
+        for (int conversation = 0; conversation < 1000; conversation++) {
+            String after = routers.get("node1").ownerOf(message(conversation));
+            Assert.assertNotEquals("node3", after);
+            if (!"node3".equals(before.get(conversation))) {
+                Assert.assertEquals(before.get(conversation), after);
+            }
+        }
+    }
+
+    @Test
+    public void unreachableOwnerFallsBackToLocal() {
+        NodeTransport broken = (address, authHeader, activity) -> {
+            CompletableFuture<InvokeResponse> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new NodeUnreachableException(address, new ConnectException("down")));
+            return failed;
+        };
+        AffinityRouter router = new AffinityRouter("node1", membership, 64, broken, (authHeader, activity) -> {
+            handledBy.put(activity.getConversation().getId(), "node1");
+            return CompletableFuture.completedFuture((InvokeResponse) null);
+        });
+
+        for (int conversation = 0; conversation < 50; conversation++) {
+            router.route("", message(conversation), false).join();
+            Assert.assertEquals("node1", handledBy.get(Integer.toString(conversation)));
+        }
+        Assert.assertTrue(router.getForwardFailures() > 0);
+    }
+
+    @Test
+    public void refusedConnectionFallsBackToLocal() throws Exception {
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        try (InstrumentedExecutor executor = new InstrumentedExecutor("test-transport", 1, 16)) {
+            AffinityRouter router = httpRouter(executor, "http://localhost:" + closedPort, 5000);
+            Activity activity = message(ownedBy(router, "node2"));
+
+            Assert.assertNull(router.route("", activity, false).join());
+            Assert.assertEquals("node1", handledBy.get(activity.getConversation().getId()));
+            Assert.assertEquals(1, router.getForwardFailures());
+        }
+    }
+
+    @Test
+    public void ownersErrorStatusIsPassedBack() throws Exception {
+        HttpServer owner = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        owner.createContext("/api/messages", exchange -> {
+            byte[] body = "{\"error\":\"boom\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(500, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        owner.start();
+        try (InstrumentedExecutor executor = new InstrumentedExecutor("test-transport", 1, 16)) {
+            AffinityRouter router = httpRouter(executor, "http://localhost:" + owner.getAddress().getPort(), 5000);
+            Activity activity = message(ownedBy(router, "node2"));
+
+            InvokeResponse response = router.route("", activity, false).join();
+            Assert.assertEquals(500, response.getStatus());
+            Assert.assertEquals("boom", ((JsonNode) response.getBody()).get("error").asText());
+            Assert.assertFalse(handledBy.containsKey(activity.getConversation().getId()));
+            Assert.assertEquals(0, router.getForwardFailures());
+        } finally {
+            owner.stop(0);
+        }
+    }
+
+    @Test
+    public void timedOutForwardFailsTheTurn() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        HttpServer owner = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        owner.createContext("/api/messages", exchange -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(202, -1);
+            exchange.close();
+        });
+        owner.start();
+        try (InstrumentedExecutor executor = new InstrumentedExecutor("test-transport", 1, 16)) {
+            AffinityRouter router = httpRouter(executor, "http://localhost:" + owner.getAddress().getPort(), 200);
+            Activity activity = message(ownedBy(router, "node2"));
+
+            try {
+                router.route("", activity, false).join();
+                Assert.fail("the forward should have timed out");
+            } catch (CompletionException e) {
+                Assert.assertTrue(e.getCause().toString(), e.getCause() instanceof SocketTimeoutException);
+            }
+            // The owner may still run the turn, so it must not run here too.
+            Assert.assertFalse(handledBy.containsKey(activity.getConversation().getId()));
+            Assert.assertEquals(0, router.getForwardFailures());
+        } finally {
+            release.countDown();
+            owner.stop(0);
+        }
+    }
+
+    @Test
+    public void leaseHolderTakesPrecedenceOverTheRing() {
+        MemoryStore store = new MemoryStore();
+        NodeTransport transport = (address, authHeader, activity) -> routers.get(address).route(authHeader, activity, true);
+        Map<String, LeaseManager> leases = new HashMap<>();
+        for (String node : NODES) {
+            leases.put(node, new LeaseManager(node, store, 3_600_000));
+            routers.put(node, new AffinityRouter(node, membership, 64, transport, (authHeader, activity) -> {
+                handledBy.put(activity.getConversation().getId(), node);
+                return CompletableFuture.completedFuture((InvokeResponse) null);
+            }, leases.get(node)));
+        }
+
+        try {
+            int forwarded = 0;
+            for (int conversation = 0; conversation < 30; conversation++) {
+                String owner = routers.get("node1").ownerOf(message(conversation));
+                String holder = "node2".equals(owner) ? "node3" : "node2";
+                leases.get(holder).acquire(ScaleoutBot.conversationKey(message(conversation))).join();
+
+                // The ring owner, or any node the Activity was forwarded to, hands it on to the lease holder.
+                routers.get(owner).route("", message(conversation), false).join();
+                Assert.assertEquals(holder, handledBy.get(Integer.toString(conversation)));
+                forwarded++;
+            }
+            long total = 0;
+            for (AffinityRouter router : routers.values()) {
+                total += router.getForwardedToLeaseHolder();
+            }
+            Assert.assertEquals(forwarded, total);
+        } finally {
+            leases.values().forEach(LeaseManager::close);
+        }
+    }
+
+    // A node1 router whose only peer, node2, is at the given address.
+    private AffinityRouter httpRouter(InstrumentedExecutor executor, String node2Address, int timeoutMillis) {
+        LocalMembership peers = new LocalMembership();
+        peers.join("node1", "http://localhost:1");
+        peers.join("node2", node2Address);
+        return new AffinityRouter(
+            "node1", peers, 64, new HttpNodeTransport(executor, timeoutMillis), (authHeader, activity) -> {
+                handledBy.put(activity.getConversation().getId(), "node1");
+                return CompletableFuture.completedFuture((InvokeResponse) null);
+            });
+    }
+
+    private static int ownedBy(AffinityRouter router, String node) {
+        int conversation = 0;
+        while (!node.equals(router.ownerOf(message(conversation)))) {
+            conversation++;
+        }
+        return conversation;
+    }
+
+    private static Activity message(int conversation) {
+        Activity activity = Activity.createMessageActivity();
+        activity.setChannelId("test");
+        activity.setConversation(new ConversationAccount(Integer.toString(conversation)));
+        return activity;
+    }
+}
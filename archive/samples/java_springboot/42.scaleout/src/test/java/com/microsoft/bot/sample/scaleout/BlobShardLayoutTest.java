@@ -0,0 +1,67 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class BlobShardLayoutTest {
+
+    @Test
+    public void keysSpreadEvenlyOverShardsAndPrefixes() throws Exception {
+        BlobShardLayout layout = new BlobShardLayout(containers(4), true);
+        int[] shards = new int[4];
+        Map<String, Integer> prefixes = new HashMap<>();
+        for (int conversation = 0; conversation < 40000; conversation++) {
+            String key = "msteams/conversations/" + conversation;
+            shards[layout.shardOf(key)]++;
+            String name = layout.blobName(key);
+            prefixes.merge(name.substring(0, 2), 1, Integer::sum);
+            Assert.assertEquals(key, layout.keyOf(name));
+        }
+
+        for (int count : shards) {
+            Assert.assertTrue("unbalanced: " + count, count > 9000 && count < 11000);
+        }
+        Assert.assertEquals(256, prefixes.size());
+    }
+
+    @Test
+    public void addingAShardOnlyMovesKeysToIt() throws Exception {
+        BlobShardLayout before = new BlobShardLayout(containers(4), false);
+        BlobShardLayout after = new BlobShardLayout(containers(5), false);
+        int moved = 0;
+        for (int conversation = 0; conversation < 10000; conversation++) {
+            String key = "msteams/conversations/" + conversation;
+            if (!after.sameLocation(before, key)) {
+                Assert.assertEquals(4, after.shardOf(key));
+                moved++;
+            }
+        }
+        // A fifth of the keys, give or take.
+        Assert.assertTrue("moved: " + moved, moved > 1700 && moved < 2300);
+    }
+
+    @Test
+    public void singleLayoutKeepsKeysWhereTheyWere() throws Exception {
+        BlobShardLayout layout = BlobShardLayout.single(containers(1).get(0));
+        Assert.assertEquals("test/conversations/1", layout.blobFor("test/conversations/1").getName());
+        Assert.assertEquals(0, layout.shardOf("test/conversations/1"));
+    }
+
+    private static List<CloudBlobContainer> containers(int count) throws Exception {
+        List<CloudBlobContainer> containers = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            containers.add(new CloudBlobContainer(new URI("http://127.0.0.1/devstoreaccount1/dialogs-" + i)));
+        }
+        return containers;
+    }
+}
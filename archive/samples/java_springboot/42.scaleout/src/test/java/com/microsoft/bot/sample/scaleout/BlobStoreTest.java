@@ -0,0 +1,180 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.bot.schema.Pair;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+public class BlobStoreTest {
+
+    private FakeBlobService blobService;
+    private CloudBlobContainer container;
+    private InstrumentedExecutor executor;
+
+    @Before
+    public void setup() throws IOException {
+        blobService = new FakeBlobService();
+        container = blobService.container("dialogs");
+        executor = new InstrumentedExecutor("blob-store", 4, 64);
+    }
+
+    @After
+    public void tearDown() {
+        executor.close();
+        blobService.close();
+    }
+
+    @Test
+    public void largeStatesAreCompressedAndReadBack() throws Exception {
+        BlobStore store = new BlobStore(container, executor, JacksonStateCodec.json(), 1024);
+        JsonNode large = StoreBenchmark.state(512);
+        JsonNode small = StoreBenchmark.state(2);
+
+        Assert.assertTrue(store.save("test/conversations/large", large, null).join());
+        Assert.assertTrue(store.save("test/conversations/small", small, null).join());
+
+        CloudBlockBlob largeBlob = attributes("test/conversations/large");
+        Assert.assertEquals("deflate", largeBlob.getProperties().getContentEncoding());
+        Assert.assertTrue(largeBlob.getProperties().getLength() < JacksonStateCodec.json().encode(large).length / 2);
+        Assert.assertNull(attributes("test/conversations/small").getProperties().getContentEncoding());
+
+        Assert.assertEquals(large, store.load("test/conversations/large").join().getLeft());
+        Assert.assertEquals(small, store.load("test/conversations/small").join().getLeft());
+    }
+
+    @Test
+    public void uncompressedBlobsStayReadableAfterCompressionIsTurnedOn() {
+        JsonNode state = StoreBenchmark.state(512);
+        new BlobStore(container, executor, JacksonStateCodec.json()).save("test/conversations/1", state, null).join();
+
+        BlobStore compressing = new BlobStore(container, executor, JacksonStateCodec.json(), 0);
+        Pair<JsonNode, String> loaded = compressing.load("test/conversations/1").join();
+        Assert.assertEquals(state, loaded.getLeft());
+
+        // The next save compresses it, and the etag check still applies.
+        Assert.assertTrue(compressing.save("test/conversations/1", state, loaded.getRight()).join());
+        Assert.assertFalse(compressing.save("test/conversations/1", state, loaded.getRight()).join());
+        Assert.assertEquals(state, compressing.load("test/conversations/1").join().getLeft());
+    }
+
+    @Test
+    public void forcedPreconditionFailuresLoseTheEtagRace() {
+        BlobStore store = new BlobStore(container, executor, JacksonStateCodec.json());
+        JsonNode state = StoreBenchmark.state(8);
+        Assert.assertTrue(store.save("test/conversations/1", state, null).join());
+        String etag = store.load("test/conversations/1").join().getRight();
+
+        blobService.setPreconditionFailureRate(1);
+        Assert.assertFalse(store.save("test/conversations/1", StoreBenchmark.state(9), etag).join());
+        // Unconditional saves never conflict, so they are not failed.
+        Assert.assertTrue(store.save("test/conversations/2", state, null).join());
+        Assert.assertEquals(1, blobService.getInjectedPreconditionFailures());
+
+        blobService.setPreconditionFailureRate(0);
+        Assert.assertEquals(state, store.load("test/conversations/1").join().getLeft());
+        Assert.assertTrue(store.save("test/conversations/1", StoreBenchmark.state(9), etag).join());
+    }
+
+    @Test
+    public void keysMoveToANewLayoutWhileInUse() {
+        BlobStore old = new BlobStore(container, executor, JacksonStateCodec.json());
+        for (int i = 0; i < 50; i++) {
+            old.save("test/conversations/" + i, StoreBenchmark.state(i), null).join();
+        }
+
+        BlobShardLayout layout = new BlobShardLayout(
+            Arrays.asList(blobService.container("dialogs-0"), blobService.container("dialogs-1")), true);
+        BlobStore moving = new BlobStore(layout, old.getLayout(), executor, JacksonStateCodec.json(), 0);
+        // Not moved yet: read from the old layout, and created in the new one by the next save.
+        Pair<JsonNode, String> loaded = moving.load("test/conversations/0").join();
+        Assert.assertEquals(StoreBenchmark.state(0), loaded.getLeft());
+        Assert.assertTrue(moving.save("test/conversations/0", StoreBenchmark.state(100), loaded.getRight()).join());
+
+        BlobShardMigrator migrator = new BlobShardMigrator(old, moving, 8);
+        Map<String, Object> counts = migrator.run();
+        Assert.assertEquals(50L, counts.get("listed"));
+        Assert.assertEquals(49L, counts.get("copied"));
+        Assert.assertEquals(1L, counts.get("alreadyMoved"));
+
+        BlobStore moved = new BlobStore(layout, null, executor, JacksonStateCodec.json(), 0);
+        Assert.assertEquals(StoreBenchmark.state(100), moved.load("test/conversations/0").join().getLeft());
+        for (int i = 1; i < 50; i++) {
+            Assert.assertEquals(StoreBenchmark.state(i), moved.load("test/conversations/" + i).join().getLeft());
+        }
+    }
+
+    @Test
+    public void onlyOneFirstSaveOfAMovingKeyWins() {
+        BlobStore old = new BlobStore(container, executor, JacksonStateCodec.json());
+        old.save("test/conversations/0", StoreBenchmark.state(0), null).join();
+        BlobShardLayout layout = new BlobShardLayout(
+            Arrays.asList(blobService.container("dialogs-0"), blobService.container("dialogs-1")), true);
+        BlobStore first = new BlobStore(layout, old.getLayout(), executor, JacksonStateCodec.json(), 0);
+        BlobStore second = new BlobStore(layout, old.getLayout(), executor, JacksonStateCodec.json(), 0);
+
+        // Two nodes run a turn of the same conversation, both reading it from the old layout.
+        Pair<JsonNode, String> firstLoaded = first.load("test/conversations/0").join();
+        Pair<JsonNode, String> secondLoaded = second.load("test/conversations/0").join();
+        Assert.assertEquals(StoreBenchmark.state(0), secondLoaded.getLeft());
+
+        CompletableFuture<Boolean> firstSaved =
+            first.save("test/conversations/0", StoreBenchmark.state(1), firstLoaded.getRight());
+        CompletableFuture<Boolean> secondSaved =
+            second.save("test/conversations/0", StoreBenchmark.state(2), secondLoaded.getRight());
+        Assert.assertTrue(firstSaved.join() ^ secondSaved.join());
+
+        // The loser retries against the state the winner created in the new layout.
+        BlobStore loser = firstSaved.join() ? second : first;
+        JsonNode winning = firstSaved.join() ? StoreBenchmark.state(1) : StoreBenchmark.state(2);
+        Pair<JsonNode, String> reloaded = loser.load("test/conversations/0").join();
+        Assert.assertEquals(winning, reloaded.getLeft());
+        Assert.assertTrue(loser.save("test/conversations/0", StoreBenchmark.state(3), reloaded.getRight()).join());
+        Assert.assertEquals(StoreBenchmark.state(3), first.load("test/conversations/0").join().getLeft());
+    }
+
+    @Test
+    public void nearCacheRevalidatesInsteadOfDownloading() {
+        BlobStore store = new BlobStore(
+            BlobShardLayout.single(container), null, executor, JacksonStateCodec.json(), BlobStore.NO_COMPRESSION, 2);
+        BlobStore otherNode = new BlobStore(container, executor, JacksonStateCodec.json());
+        String key = "test/conversations/1";
+
+        Assert.assertTrue(store.save(key, StoreBenchmark.state(8), null).join());
+        Pair<JsonNode, String> loaded = store.load(key).join();
+        Assert.assertEquals(StoreBenchmark.state(8), loaded.getLeft());
+        Assert.assertEquals(1L, store.snapshot().get("notModified"));
+
+        // Another node's save is downloaded, and a save with the etag that was current before then loses.
+        Assert.assertTrue(otherNode.save(key, StoreBenchmark.state(9), loaded.getRight()).join());
+        Assert.assertEquals(StoreBenchmark.state(9), store.load(key).join().getLeft());
+        Assert.assertEquals(1L, store.snapshot().get("modified"));
+        Assert.assertFalse(store.save(key, StoreBenchmark.state(10), loaded.getRight()).join());
+        Assert.assertEquals(0, store.snapshot().get("nearCacheEntries"));
+
+        // Only the two most recently used keys are kept.
+        for (int i = 2; i < 5; i++) {
+            store.save("test/conversations/" + i, StoreBenchmark.state(i), null).join();
+        }
+        Assert.assertEquals(2, store.snapshot().get("nearCacheEntries"));
+        Assert.assertEquals(StoreBenchmark.state(9), store.load(key).join().getLeft());
+        Assert.assertEquals(1L, store.snapshot().get("uncached"));
+    }
+
+    private CloudBlockBlob attributes(String key) throws Exception {
+        CloudBlockBlob blob = container.getBlockBlobReference(key);
+        blob.downloadAttributes();
+        return blob;
+    }
+}
@@ -0,0 +1,135 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.microsoft.bot.schema.Pair;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BoundedMemoryStoreTest {
+
+    private static final long HOUR = 3_600_000;
+
+    @Test
+    public void leastRecentlyUsedConversationsAreEvictedWhenFull() throws InterruptedException {
+        try (BoundedMemoryStore store = new BoundedMemoryStore(10, HOUR, null, HOUR)) {
+            for (int i = 0; i < 10; i++) {
+                store.save(key(i), state(i), null).join();
+                Thread.sleep(2);
+            }
+            store.load(key(0)).join();
+
+            store.save(key(10), state(10), null).join();
+            store.sweep();
+
+            // One over the maximum, plus a tenth of the room: the two least recently used go.
+            Assert.assertEquals(9, store.size());
+            Assert.assertEquals(2, store.getOverflowed());
+            Assert.assertNull(store.load(key(1)).join().getLeft());
+            Assert.assertNull(store.load(key(2)).join().getLeft());
+            Assert.assertEquals(state(0), store.load(key(0)).join().getLeft());
+            Assert.assertEquals(state(10), store.load(key(10)).join().getLeft());
+        }
+    }
+
+    @Test
+    public void idleConversationsExpire() throws InterruptedException {
+        try (BoundedMemoryStore store = new BoundedMemoryStore(10, 50, null, HOUR)) {
+            store.save(key(0), state(0), null).join();
+            Thread.sleep(100);
+            store.save(key(1), state(1), null).join();
+            store.sweep();
+
+            Assert.assertEquals(1, store.size());
+            Assert.assertEquals(1, store.getExpired());
+            Assert.assertEquals(state(1), store.load(key(1)).join().getLeft());
+        }
+    }
+
+    @Test
+    public void evictedConversationsAreSpilledAndRestored() {
+        MemoryStore spill = new MemoryStore();
+        try (BoundedMemoryStore store = new BoundedMemoryStore(1, HOUR, spill, HOUR)) {
+            store.save(key(0), state(0), null).join();
+            store.save(key(1), state(1), null).join();
+            store.sweep();
+
+            Assert.assertEquals(1, store.getSpilled());
+            Assert.assertEquals(state(0), spill.load(key(0)).join().getLeft());
+
+            Pair<JsonNode, String> restored = store.load(key(0)).join();
+            Assert.assertEquals(state(0), restored.getLeft());
+            Assert.assertEquals(1, store.getRestored());
+            Assert.assertTrue(store.save(key(0), state(2), restored.getRight()).join());
+        }
+    }
+
+    @Test
+    public void loadsDuringASlowSpillSeeTheLatestState() throws InterruptedException {
+        // Holds an older copy of every conversation, as left by an earlier spill.
+        MemoryStore spill = new MemoryStore();
+        int conversations = 500;
+        for (int i = 0; i < conversations; i++) {
+            spill.save(key(i), state(0), null).join();
+        }
+        CompletableFuture<Void> release = new CompletableFuture<>();
+        Store slowSpill = new Store() {
+            @Override
+            public CompletableFuture<Pair<JsonNode, String>> load(String key) {
+                return spill.load(key);
+            }
+
+            @Override
+            public CompletableFuture<Boolean> save(String key, JsonNode content, String eTag) {
+                return release.thenCompose(done -> spill.save(key, content, eTag));
+            }
+        };
+
+        try (BoundedMemoryStore store = new BoundedMemoryStore(conversations, 50, slowSpill, HOUR)) {
+            for (int i = 0; i < conversations; i++) {
+                store.save(key(i), state(1), null).join();
+            }
+            Thread.sleep(100);
+
+            // Loads racing the sweep, and loads while the spills are still being written, see the latest state.
+            AtomicInteger stale = new AtomicInteger();
+            Thread loader = new Thread(() -> {
+                for (int round = 0; round < 20; round++) {
+                    for (int i = 0; i < conversations; i++) {
+                        if (!state(1).equals(store.load(key(i)).join().getLeft())) {
+                            stale.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            loader.start();
+            store.sweep();
+            loader.join();
+            Assert.assertEquals(0, stale.get());
+
+            Thread.sleep(100);
+            store.sweep();
+            Assert.assertEquals(0, store.size());
+            for (int i = 0; i < conversations; i++) {
+                Assert.assertEquals(state(1), store.load(key(i)).join().getLeft());
+            }
+            Assert.assertEquals(0, store.getSpilled());
+        } finally {
+            release.complete(null);
+        }
+    }
+
+    private static String key(int conversation) {
+        return "test/conversations/" + conversation;
+    }
+
+    private static JsonNode state(int step) {
+        return JsonNodeFactory.instance.objectNode().put("step", step);
+    }
+}
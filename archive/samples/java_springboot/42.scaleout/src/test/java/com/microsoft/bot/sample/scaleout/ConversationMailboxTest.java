@@ -0,0 +1,65 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public class ConversationMailboxTest {
+
+    @Test
+    public void turnsForOneKeyRunInOrder() {
+        ConversationMailbox mailbox = new ConversationMailbox();
+        CompletableFuture<Void> gate = new CompletableFuture<>();
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+
+        CompletableFuture<Void> first = mailbox.submit("a", () -> gate.thenRun(() -> order.add(1)));
+        CompletableFuture<Void> second = mailbox.submit("a", () -> {
+            order.add(2);
+            return CompletableFuture.completedFuture(null);
+        });
+
+        // The second turn must wait for the first, which is held by the gate.
+        Assert.assertEquals(2, mailbox.getQueueDepth("a"));
+        Assert.assertTrue(order.isEmpty());
+
+        gate.complete(null);
+        CompletableFuture.allOf(first, second).join();
+        Assert.assertEquals(Arrays.asList(1, 2), order);
+        Assert.assertEquals(0, mailbox.getActiveKeys());
+    }
+
+    @Test
+    public void differentKeysDoNotWait() {
+        ConversationMailbox mailbox = new ConversationMailbox();
+        CompletableFuture<Void> gate = new CompletableFuture<>();
+
+        mailbox.submit("a", () -> gate);
+        CompletableFuture<String> other = mailbox.submit("b", () -> CompletableFuture.completedFuture("done"));
+
+        Assert.assertEquals("done", other.join());
+        Assert.assertEquals(1, mailbox.getQueueDepth("a"));
+        gate.complete(null);
+        Assert.assertEquals(0, mailbox.getQueueDepth("a"));
+    }
+
+    @Test
+    public void failedTurnDoesNotBlockTheNext() {
+        ConversationMailbox mailbox = new ConversationMailbox();
+
+        CompletableFuture<Void> failed = mailbox.submit("a", () -> {
+            throw new IllegalStateException("boom");
+        });
+        CompletableFuture<String> next = mailbox.submit("a", () -> CompletableFuture.completedFuture("ran"));
+
+        Assert.assertTrue(failed.isCompletedExceptionally());
+        Assert.assertEquals("ran", next.join());
+    }
+}
@@ -0,0 +1,114 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.microsoft.bot.dialogs.DialogState;
+import com.microsoft.bot.schema.Activity;
+import com.microsoft.bot.schema.Pair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A turn of RootDialog through {@link DialogHost#run}, which deserializes the dialog state, runs the dialog and
+ * serializes the new state. Run with {@code mvn test -Pbenchmark -DskipTests -Djmh.args="DialogHostBenchmark"}.
+ *
+ * <p>
+ * The state is padded with extra waterfall values, which DialogHost has to carry through every turn, to show how
+ * the cost of a turn grows with the size of the state.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DialogHostBenchmark {
+
+    @Param({"0", "64", "1024"})
+    private int padding;
+
+    private RootDialog dialog;
+    private Activity activity;
+    private JsonNode state;
+    private StateTypeRegistry stateTypes;
+    private DialogState dialogState;
+
+    /**
+     * Builds a mid-conversation state by running the first two turns of RootDialog, then pads it.
+     *
+     * @throws IOException If the state cannot be read.
+     */
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dialog = new RootDialog();
+        JsonNode started = DialogHost.run(dialog, StateCodecBenchmark.message("hi"), null).join().getRight();
+        state = DialogHost.run(dialog, StateCodecBenchmark.message("7"), started).join().getRight();
+
+        // The waterfall's values are a typed map: the second element of the ["java.util.HashMap", {...}] pair.
+        ObjectNode values = (ObjectNode) state.findValue("values").get(1);
+        for (int i = 0; i < padding; i++) {
+            values.put(String.format("padding-%d", i), String.format("the answer to question %d", i));
+        }
+
+        // Every turn starts again from the same state, so each one answers the second prompt.
+        activity = StateCodecBenchmark.message("3");
+
+        stateTypes = new StateTypeRegistry(DialogState.class);
+        dialogState = stateTypes.read(state.get("DialogState"), DialogState.class);
+    }
+
+    /**
+     * Runs one turn.
+     *
+     * @return The outbound Activities and the new state.
+     */
+    @Benchmark
+    public Pair<Activity[], JsonNode> turn() {
+        return DialogHost.run(dialog, activity, state).join();
+    }
+
+    /**
+     * Runs one turn and computes the delta a {@link DeltaStore} would be given.
+     *
+     * @return The JSON Patch from the old state to the new one.
+     */
+    @Benchmark
+    public JsonNode turnAndDiff() {
+        JsonNode newState = DialogHost.run(dialog, activity, state).join().getRight();
+        return DialogHost.diff(state, newState);
+    }
+
+    /**
+     * Only the conversion of the stored JSON into the DialogState the dialogs run on, which DialogHost does at
+     * the start of every turn.
+     *
+     * @return The DialogState.
+     * @throws IOException If the state cannot be read.
+     */
+    @Benchmark
+    public DialogState readState() throws IOException {
+        return stateTypes.read(state.get("DialogState"), DialogState.class);
+    }
+
+    /**
+     * Only the conversion of the DialogState back into JSON, which DialogHost does at the end of every turn.
+     *
+     * @return The JSON.
+     * @throws IOException If the state cannot be written.
+     */
+    @Benchmark
+    public JsonNode writeState() throws IOException {
+        return stateTypes.write(dialogState, DialogState.class);
+    }
+}
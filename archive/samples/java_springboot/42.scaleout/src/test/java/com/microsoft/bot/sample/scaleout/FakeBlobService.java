@@ -0,0 +1,498 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand in for the Blob service, so {@link BlobStore} can be measured and tested without an
+ * Azure account. Only what BlobStore uses is implemented: GET and PUT of block blobs, with If-Match and
+ * If-None-Match preconditions, content properties and metadata, and listing a container's blobs in one page.
+ * Requests are not authenticated.
+ *
+ * <p>
+ * For load tests the service can behave more like a remote one under stress. Every request can be delayed by a
+ * {@link Latency}, a share of requests can fail with 503 Server Busy, and a share of conditional PUTs can be
+ * answered with 412 Precondition Failed as if another node had saved first, so the etag retry path is exercised
+ * even when nothing else is writing.
+ * </p>
+ */
+public class FakeBlobService implements AutoCloseable {
+
+    private static final String ACCOUNT = "devstoreaccount1";
+    // The well known storage emulator key. The fake never checks the signature made with it.
+    private static final String KEY =
+        "Eby8vdM02xNOcqFlqUwJPLlmEtlCDXJ1OUzFT50uSRZ6IFsuFq2UVErCz4I6tq/K1SZFPTOtr/KBHBeksoGMGw==";
+
+    static {
+        // Without this the server's separate writes of headers and body meet the client's delayed ACK,
+        // and every download takes 40ms on the loopback interface.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final Map<String, Blob> blobs = new ConcurrentHashMap<>();
+    private final AtomicLong versions = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+    private final AtomicLong injectedPreconditionFailures = new AtomicLong();
+    private volatile Latency latency = Latency.none();
+    private volatile double errorRate;
+    private volatile double preconditionFailureRate;
+
+    /**
+     * Starts the service on a free loopback port.
+     *
+     * @throws IOException If the port cannot be bound.
+     */
+    public FakeBlobService() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        handlers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "fake-blob-service");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(handlers);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * Gets a client side reference to a container on this service.
+     *
+     * @param name The container name.
+     * @return The container.
+     */
+    public CloudBlobContainer container(String name) {
+        String connectionString = String.format(
+            "DefaultEndpointsProtocol=http;AccountName=%s;AccountKey=%s;BlobEndpoint=http://127.0.0.1:%d/%s;",
+            ACCOUNT, KEY, server.getAddress().getPort(), ACCOUNT);
+        try {
+            return CloudStorageAccount.parse(connectionString).createCloudBlobClient().getContainerReference(name);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Sets how long each request is held before it is handled.
+     *
+     * @param withLatency The latency distribution.
+     */
+    public void setLatency(Latency withLatency) {
+        if (withLatency == null) {
+            throw new IllegalArgumentException("withLatency cannot be null");
+        }
+        latency = withLatency;
+    }
+
+    /**
+     * Sets the share of requests that fail with 503 Server Busy. The storage SDK retries these.
+     *
+     * @param withErrorRate A probability between 0 and 1.
+     */
+    public void setErrorRate(double withErrorRate) {
+        errorRate = probability(withErrorRate, "withErrorRate");
+    }
+
+    /**
+     * Sets the share of conditional PUTs that fail with 412 Precondition Failed, and write nothing, whether
+     * or not their etag matches.
+     *
+     * @param withPreconditionFailureRate A probability between 0 and 1.
+     */
+    public void setPreconditionFailureRate(double withPreconditionFailureRate) {
+        preconditionFailureRate = probability(withPreconditionFailureRate, "withPreconditionFailureRate");
+    }
+
+    /**
+     * Gets the number of requests received.
+     *
+     * @return The request count.
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Gets the number of requests failed with 503 on purpose.
+     *
+     * @return The injected error count.
+     */
+    public long getInjectedErrors() {
+        return injectedErrors.get();
+    }
+
+    /**
+     * Gets the number of PUTs failed with 412 on purpose.
+     *
+     * @return The injected precondition failure count.
+     */
+    public long getInjectedPreconditionFailures() {
+        return injectedPreconditionFailures.get();
+    }
+
+    /**
+     * Gets the number of blobs held.
+     *
+     * @return The blob count.
+     */
+    public int size() {
+        return blobs.size();
+    }
+
+    /**
+     * Stops the service.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        handlers.shutdownNow();
+    }
+
+    /**
+     * Handles one request, after the configured latency and failures.
+     *
+     * @param exchange The request and its response.
+     * @throws IOException If the exchange fails.
+     */
+    protected void handle(HttpExchange exchange) throws IOException {
+        try {
+            requests.incrementAndGet();
+            if (!delay()) {
+                error(exchange, 503, "ServerBusy");
+                return;
+            }
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (random.nextDouble() < errorRate) {
+                injectedErrors.incrementAndGet();
+                error(exchange, 503, "ServerBusy");
+                return;
+            }
+            Headers request = exchange.getRequestHeaders();
+            boolean conditional = request.containsKey("If-Match") || request.containsKey("If-None-Match");
+            if ("PUT".equals(exchange.getRequestMethod()) && conditional
+                && random.nextDouble() < preconditionFailureRate) {
+                injectedPreconditionFailures.incrementAndGet();
+                error(exchange, 412, "ConditionNotMet");
+                return;
+            }
+
+            String path = exchange.getRequestURI().getPath();
+            switch (exchange.getRequestMethod()) {
+                case "GET":
+                case "HEAD":
+                    String query = exchange.getRequestURI().getQuery();
+                    if (query != null && query.contains("comp=list")) {
+                        list(exchange, path);
+                    } else {
+                        get(exchange, path);
+                    }
+                    break;
+                case "PUT":
+                    put(exchange, path);
+                    break;
+                default:
+                    error(exchange, 405, "UnsupportedHttpVerb");
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // False if the wait was interrupted, which only happens when the service is closing.
+    private boolean delay() {
+        long micros = latency.nextMicros(ThreadLocalRandom.current());
+        if (micros <= 0) {
+            return true;
+        }
+        try {
+            TimeUnit.MICROSECONDS.sleep(micros);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static double probability(double value, String name) {
+        if (value < 0 || value > 1) {
+            throw new IllegalArgumentException(name + " must be between 0 and 1");
+        }
+        return value;
+    }
+
+    private void get(HttpExchange exchange, String path) throws IOException {
+        Blob blob = blobs.get(path);
+        if (blob == null) {
+            error(exchange, 404, "BlobNotFound");
+            return;
+        }
+
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("ETag", blob.etag);
+        headers.set("Last-Modified", blob.lastModified);
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (blob.etag.equals(ifNoneMatch)) {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+
+        headers.set("x-ms-blob-type", "BlockBlob");
+        blob.properties.forEach(headers::set);
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            headers.set("Content-Length", Integer.toString(blob.content.length));
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(200, blob.content.length == 0 ? -1 : blob.content.length);
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(blob.content);
+        }
+    }
+
+    private void list(HttpExchange exchange, String path) throws IOException {
+        String prefix = path + "/";
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>")
+            .append("<EnumerationResults ContainerName=\"").append(path).append("\"><Blobs>");
+        new TreeMap<>(blobs).forEach((blobPath, blob) -> {
+            if (blobPath.startsWith(prefix)) {
+                xml.append("<Blob><Name>").append(escapeXml(blobPath.substring(prefix.length()))).append("</Name>")
+                    .append("<Properties><Last-Modified>").append(blob.lastModified).append("</Last-Modified>")
+                    .append("<Etag>").append(blob.etag).append("</Etag>")
+                    .append("<Content-Length>").append(blob.content.length).append("</Content-Length>")
+                    .append("<BlobType>BlockBlob</BlobType></Properties></Blob>");
+            }
+        });
+        byte[] body = xml.append("</Blobs><NextMarker /></EnumerationResults>").toString()
+            .getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream stream = exchange.getResponseBody()) {
+            stream.write(body);
+        }
+    }
+
+    private static String escapeXml(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private void put(HttpExchange exchange, String path) throws IOException {
+        byte[] content = readAll(exchange.getRequestBody());
+        Headers request = exchange.getRequestHeaders();
+        String ifMatch = request.getFirst("If-Match");
+        String ifNoneMatch = request.getFirst("If-None-Match");
+
+        Map<String, String> properties = new HashMap<>();
+        for (Map.Entry<String, List<String>> header : request.entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.ROOT);
+            if (name.startsWith("x-ms-meta-")) {
+                properties.put(name, header.getValue().get(0));
+            } else if (name.startsWith("x-ms-blob-content-")) {
+                // The blob's content properties come back as the standard response headers.
+                String property = name.substring("x-ms-blob-".length());
+                if (!"content-md5".equals(property)) {
+                    properties.put(property, header.getValue().get(0));
+                }
+            }
+        }
+
+        boolean[] written = new boolean[1];
+        Blob stored = blobs.compute(path, (key, current) -> {
+            boolean matches = ifMatch == null
+                || "*".equals(ifMatch) && current != null
+                || current != null && current.etag.equals(ifMatch);
+            boolean absent = ifNoneMatch == null || !"*".equals(ifNoneMatch) || current == null;
+            if (!matches || !absent) {
+                return current;
+            }
+            written[0] = true;
+            return new Blob(content, String.format("\"0x%X\"", versions.incrementAndGet()), properties);
+        });
+
+        if (!written[0]) {
+            error(exchange, 412, "ConditionNotMet");
+            return;
+        }
+        exchange.getResponseHeaders().set("ETag", stored.etag);
+        exchange.getResponseHeaders().set("Last-Modified", stored.lastModified);
+        exchange.sendResponseHeaders(201, -1);
+    }
+
+    // Errors carry an XML body, as they do from the real service, and any request body is read first.
+    // Otherwise the client's keep-alive connection is left unusable, and the next request on it fails
+    // with an unexpected end of file.
+    private static void error(HttpExchange exchange, int status, String code) throws IOException {
+        readAll(exchange.getRequestBody());
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        byte[] body = String.format(
+            "<?xml version=\"1.0\" encoding=\"utf-8\"?><Error><Code>%s</Code><Message>%s</Message></Error>",
+            code, code).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.getResponseHeaders().set("x-ms-error-code", code);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream stream = exchange.getResponseBody()) {
+            stream.write(body);
+        }
+    }
+
+    private static byte[] readAll(InputStream stream) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = stream.read(buffer)) != -1) {
+            result.write(buffer, 0, read);
+        }
+        return result.toByteArray();
+    }
+
+    private static final class Blob {
+        private final byte[] content;
+        private final String etag;
+        private final String lastModified;
+        private final Map<String, String> properties;
+
+        Blob(byte[] withContent, String withEtag, Map<String, String> withProperties) {
+            content = withContent;
+            etag = withEtag;
+            properties = withProperties;
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            lastModified = format.format(new Date());
+        }
+    }
+
+    /**
+     * How long a request is held before it is handled.
+     */
+    public interface Latency {
+
+        /**
+         * Draws the delay for one request.
+         *
+         * @param random The random source.
+         * @return The delay in microseconds.
+         */
+        long nextMicros(ThreadLocalRandom random);
+
+        /**
+         * No delay.
+         *
+         * @return The latency.
+         */
+        static Latency none() {
+            return random -> 0;
+        }
+
+        /**
+         * The same delay for every request.
+         *
+         * @param millis The delay.
+         * @return The latency.
+         */
+        static Latency fixed(double millis) {
+            long micros = toMicros(millis);
+            return random -> micros;
+        }
+
+        /**
+         * A delay spread evenly between two bounds.
+         *
+         * @param minMillis The shortest delay.
+         * @param maxMillis The longest delay.
+         * @return The latency.
+         */
+        static Latency uniform(double minMillis, double maxMillis) {
+            long min = toMicros(minMillis);
+            long max = toMicros(maxMillis);
+            if (max < min) {
+                throw new IllegalArgumentException("maxMillis cannot be less than minMillis");
+            }
+            return random -> min + (max == min ? 0 : random.nextLong(max - min + 1));
+        }
+
+        /**
+         * A delay with an exponential distribution: mostly short, with a long tail of slow requests.
+         *
+         * @param meanMillis The average delay.
+         * @return The latency.
+         */
+        static Latency exponential(double meanMillis) {
+            long mean = toMicros(meanMillis);
+            return random -> (long) (-mean * Math.log(1 - random.nextDouble()));
+        }
+
+        /**
+         * Parses a latency from its description: {@code none}, {@code fixed:<millis>},
+         * {@code uniform:<min>:<max>} or {@code exponential:<mean>}.
+         *
+         * @param description The description.
+         * @return The latency.
+         */
+        static Latency parse(String description) {
+            String[] parts = description.split(":");
+            try {
+                switch (parts[0]) {
+                    case "none":
+                        return none();
+                    case "fixed":
+                        return fixed(Double.parseDouble(parts[1]));
+                    case "uniform":
+                        return uniform(Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+                    case "exponential":
+                        return exponential(Double.parseDouble(parts[1]));
+                    default:
+                        break;
+                }
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid latency: " + description, e);
+            }
+            throw new IllegalArgumentException("Invalid latency: " + description);
+        }
+
+        /**
+         * Converts a delay to whole microseconds.
+         *
+         * @param millis The delay in milliseconds.
+         * @return The delay in microseconds.
+         */
+        static long toMicros(double millis) {
+            if (millis < 0) {
+                throw new IllegalArgumentException("A delay cannot be negative");
+            }
+            return Math.round(millis * 1000);
+        }
+    }
+}
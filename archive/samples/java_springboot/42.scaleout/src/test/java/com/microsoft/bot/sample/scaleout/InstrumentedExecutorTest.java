@@ -0,0 +1,72 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+public class InstrumentedExecutorTest {
+
+    @Test
+    public void rejectsWorkWhenTheQueueIsFull() throws Exception {
+        try (InstrumentedExecutor executor = new InstrumentedExecutor("test", 1, 1)) {
+            CountDownLatch release = new CountDownLatch(1);
+            CompletableFuture<String> running = executor.supply(() -> {
+                release.await();
+                return "first";
+            });
+            while (executor.getInFlight() == 0) {
+                Thread.sleep(1);
+            }
+            CompletableFuture<String> queued = executor.supply(() -> "second");
+            CompletableFuture<String> rejected = executor.supply(() -> "third");
+
+            Assert.assertEquals(1, executor.getInFlight());
+            Assert.assertEquals(1, executor.getQueueDepth());
+            Assert.assertEquals(1, executor.getRejected());
+            try {
+                rejected.join();
+                Assert.fail("Expected the third call to be rejected");
+            } catch (CompletionException e) {
+                Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+
+            release.countDown();
+            Assert.assertEquals("first", running.join());
+            Assert.assertEquals("second", queued.join());
+        }
+    }
+
+    @Test
+    public void countsQueuedAndRunningTime() throws Exception {
+        try (InstrumentedExecutor executor = new InstrumentedExecutor("test", 1, 10)) {
+            CompletableFuture<Void> slow = executor.supply(() -> {
+                Thread.sleep(20);
+                return null;
+            });
+            CompletableFuture<Void> failing = executor.supply(() -> {
+                throw new IllegalStateException("failed");
+            });
+            slow.join();
+            Assert.assertTrue(failing.handle((result, error) -> error).join() instanceof IllegalStateException);
+            while (executor.getCompleted() < 2) {
+                Thread.sleep(1);
+            }
+
+            Assert.assertEquals(0, executor.getInFlight());
+            Assert.assertEquals(0, executor.getQueueDepth());
+            Assert.assertEquals(0, executor.getRejected());
+            Assert.assertEquals(1, executor.getThreads());
+            Assert.assertTrue(executor.getMaxRunMillis() >= 20);
+            Assert.assertTrue(executor.getAverageRunMillis() >= 10);
+            // The failing call waited behind the slow one.
+            Assert.assertTrue(executor.getAverageQueueMillis() >= 10);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.microsoft.bot.dialogs.DialogState;
+import com.microsoft.bot.schema.Activity;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+public class JacksonStateCodecTest {
+
+    private static final List<JacksonStateCodec> CODECS =
+        Arrays.asList(JacksonStateCodec.json(), JacksonStateCodec.smile(), JacksonStateCodec.cbor());
+
+    @Test
+    public void dialogStateRoundTrips() throws IOException {
+        RootDialog dialog = new RootDialog();
+        JsonNode started = DialogHost.run(dialog, StateCodecBenchmark.message("hi"), null).join().getRight();
+        JsonNode state = DialogHost.run(dialog, StateCodecBenchmark.message("7"), started).join().getRight();
+        StateTypeRegistry stateTypes = new StateTypeRegistry(DialogState.class);
+        // Small numbers that were longs in memory read back as ints, whatever the encoding.
+        JsonNode stored = JacksonStateCodec.json().decode(JacksonStateCodec.json().encode(state));
+
+        for (JacksonStateCodec codec : CODECS) {
+            JsonNode decoded = codec.decode(codec.encode(state));
+            Assert.assertEquals(codec.getContentType(), stored, decoded);
+
+            // The type information of the polymorphic values in the dialog stack survives the encoding.
+            DialogState read = stateTypes.read(decoded.get("DialogState"), DialogState.class);
+            Assert.assertEquals(codec.getContentType(), "root", read.getDialogStack().get(0).getId());
+            Assert.assertEquals(
+                codec.getContentType(), state.get("DialogState"), stateTypes.write(read, DialogState.class));
+
+            // And the dialog carries on, reading back the Long it stored on the last turn.
+            Activity[] replies = DialogHost.run(dialog, StateCodecBenchmark.message("8"), decoded).join().getLeft();
+            Assert.assertEquals(
+                codec.getContentType(), "The result of the first minus the second is -1.", replies[0].getText());
+        }
+    }
+
+    @Test
+    public void valuesKeepTheirTypes() throws IOException {
+        ObjectNode state = JsonNodeFactory.instance.objectNode();
+        state.put("int", 7);
+        state.put("long", Long.MAX_VALUE);
+        state.put("double", 0.1);
+        state.put("boolean", true);
+        state.put("text", "a \"quoted\" line\nand é");
+        state.putNull("nothing");
+        state.putArray("repeated").addObject().put("name", "a");
+        state.withArray("repeated").addObject().put("name", "b");
+
+        for (JacksonStateCodec codec : CODECS) {
+            JsonNode decoded = codec.decode(codec.encode(state));
+            Assert.assertEquals(codec.getContentType(), state, decoded);
+            Assert.assertTrue(codec.getContentType(), decoded.get("long").isLong());
+            Assert.assertTrue(codec.getContentType(), decoded.get("double").isFloatingPointNumber());
+        }
+    }
+
+    @Test
+    public void typesOutsideTheAllowedPackagesAreRejectedAfterDecoding() throws IOException {
+        JsonNode state = new ObjectMapper().readTree(
+            "{\"dialogStack\":[\"java.util.ArrayList\",[{\"id\":\"root\","
+                + "\"state\":[\"javax.naming.InitialContext\",{}]}]]}");
+        StateTypeRegistry stateTypes = new StateTypeRegistry(DialogState.class);
+
+        for (JacksonStateCodec codec : CODECS) {
+            JsonNode decoded = codec.decode(codec.encode(state));
+            try {
+                stateTypes.read(decoded, DialogState.class);
+                Assert.fail(codec.getContentType());
+            } catch (JsonMappingException e) {
+                Assert.assertTrue(e.getMessage(), e.getMessage().contains("javax.naming.InitialContext"));
+            }
+        }
+    }
+}
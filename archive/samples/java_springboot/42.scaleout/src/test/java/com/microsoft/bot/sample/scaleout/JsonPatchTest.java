@@ -0,0 +1,54 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class JsonPatchTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void roundTripsObjectChanges() throws IOException {
+        assertRoundTrip(
+            "{\"a\":1,\"b\":{\"c\":\"x\",\"d/e~f\":true},\"gone\":0}",
+            "{\"a\":2,\"b\":{\"c\":\"x\",\"d/e~f\":false,\"new\":[1]}}");
+    }
+
+    @Test
+    public void roundTripsStackPushAndPop() throws IOException {
+        assertRoundTrip("{\"stack\":[{\"id\":\"root\"}]}", "{\"stack\":[{\"id\":\"root\"},{\"id\":\"prompt\"}]}");
+        assertRoundTrip("{\"stack\":[{\"id\":\"root\"},{\"id\":\"a\"},{\"id\":\"b\"}]}", "{\"stack\":[{\"id\":\"root\"}]}");
+    }
+
+    @Test
+    public void onlyTouchesWhatChanged() throws IOException {
+        JsonNode patch = JsonPatch.diff(
+            objectMapper.readTree("{\"stack\":[{\"state\":{\"stepIndex\":0}},{\"id\":\"number\"}]}"),
+            objectMapper.readTree("{\"stack\":[{\"state\":{\"stepIndex\":1}},{\"id\":\"number\"}]}"));
+
+        Assert.assertEquals(1, patch.size());
+        Assert.assertEquals("/stack/0/state/stepIndex", patch.get(0).get("path").asText());
+    }
+
+    @Test
+    public void equalDocumentsHaveAnEmptyPatch() throws IOException {
+        JsonNode document = objectMapper.readTree("{\"a\":[1,2,{\"b\":null}]}");
+        Assert.assertEquals(0, JsonPatch.diff(document, document.deepCopy()).size());
+    }
+
+    private void assertRoundTrip(String source, String target) throws IOException {
+        JsonNode sourceNode = objectMapper.readTree(source);
+        JsonNode targetNode = objectMapper.readTree(target);
+        JsonNode patched = JsonPatch.apply(sourceNode, JsonPatch.diff(sourceNode, targetNode));
+
+        Assert.assertEquals(targetNode, patched);
+        Assert.assertEquals(objectMapper.readTree(source), sourceNode);
+    }
+}
@@ -0,0 +1,143 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.microsoft.bot.schema.Pair;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LeaseManagerTest {
+
+    private static final long HOUR = 3_600_000;
+
+    @Test
+    public void onlyOneNodeHoldsALease() {
+        MemoryStore store = new MemoryStore();
+        try (LeaseManager first = new LeaseManager("first", store, HOUR);
+             LeaseManager second = new LeaseManager("second", store, HOUR)) {
+            Assert.assertTrue(first.acquire(key(0)).join().isHeldBy("first"));
+
+            LeaseManager.Lease lease = second.acquire(key(0)).join();
+            Assert.assertTrue(lease.isHeldBy("first"));
+            Assert.assertEquals(-1, second.token(key(0)));
+            Assert.assertNotEquals(-1, first.token(key(0)));
+            Assert.assertEquals(1L, second.snapshot().get("contended"));
+
+            // A held lease is answered from memory.
+            Assert.assertTrue(first.acquire(key(0)).join().isHeldBy("first"));
+            Assert.assertEquals(1L, first.snapshot().get("acquired"));
+        }
+    }
+
+    @Test
+    public void expiredLeasesAreTakenOver() throws InterruptedException {
+        MemoryStore store = new MemoryStore();
+        LeaseManager first = new LeaseManager("first", store, 200);
+        try (LeaseManager second = new LeaseManager("second", store, 200)) {
+            first.acquire(key(0)).join();
+            LeaseManager.Lease other = second.acquire(key(0)).join();
+            Assert.assertTrue(other.isHeldBy("first"));
+
+            // Stop the first node renewing, as if it had gone away.
+            first.close();
+            LeaseManager.Lease lease = second.acquireAfter(key(0), other).join();
+            if (!lease.isHeldBy("second")) {
+                Thread.sleep(50);
+                lease = second.acquire(key(0)).join();
+            }
+            Assert.assertTrue(lease.isHeldBy("second"));
+            Assert.assertEquals(-1, first.token(key(0)));
+        }
+    }
+
+    @Test
+    public void idleLeasesAreReleased() throws InterruptedException {
+        MemoryStore store = new MemoryStore();
+        try (LeaseManager first = new LeaseManager("first", store, HOUR);
+             LeaseManager second = new LeaseManager("second", store, HOUR)) {
+            first.acquire(key(0)).join();
+            Thread.sleep(10);
+
+            // An hour has not passed, so renewing keeps the lease.
+            first.renew();
+            Assert.assertEquals(1, first.getHeld());
+            Assert.assertTrue(second.acquire(key(0)).join().isHeldBy("first"));
+        }
+
+        try (LeaseManager first = new LeaseManager("first", store, 40);
+             LeaseManager second = new LeaseManager("second", store, HOUR)) {
+            first.acquire(key(1)).join();
+            Thread.sleep(100);
+            first.renew();
+
+            Assert.assertEquals(0, first.getHeld());
+            Assert.assertTrue(second.acquire(key(1)).join().isHeldBy("second"));
+        }
+    }
+
+    @Test
+    public void leasedStoreKeepsOwnedStateInMemory() {
+        MemoryStore store = new MemoryStore();
+        try (LeaseManager leases = new LeaseManager("first", store, HOUR)) {
+            LeasedStore leased = new LeasedStore(store, leases);
+            leased.save(key(0), state(0), null).join();
+
+            // Not leased: every load goes to the store.
+            leased.load(key(0)).join();
+            Assert.assertEquals(0, leased.getHits());
+            Assert.assertEquals(1, leased.getMisses());
+
+            leases.acquire(key(0)).join();
+            Pair<JsonNode, String> loaded = leased.load(key(0)).join();
+            Assert.assertTrue(leased.save(key(0), state(1), loaded.getRight()).join());
+            loaded = leased.load(key(0)).join();
+            Assert.assertEquals(state(1), loaded.getLeft());
+            Assert.assertEquals(store.load(key(0)).join().getRight(), loaded.getRight());
+            Assert.assertEquals(1, leased.getHits());
+            Assert.assertEquals(2, leased.getMisses());
+
+            // Another writer changes the state anyway: the save loses, and the next load goes to the store.
+            store.save(key(0), state(2), null).join();
+            Assert.assertFalse(leased.save(key(0), state(3), loaded.getRight()).join());
+            Assert.assertEquals(state(2), leased.load(key(0)).join().getLeft());
+            Assert.assertEquals(3, leased.getMisses());
+        }
+    }
+
+    @Test
+    public void leasedStoreForgetsStateOnceTheLeaseLapses() throws InterruptedException {
+        MemoryStore store = new MemoryStore();
+        try (LeaseManager leases = new LeaseManager("first", store, 40)) {
+            LeasedStore leased = new LeasedStore(store, leases);
+            leases.acquire(key(0)).join();
+            leases.acquire(key(1)).join();
+            leased.save(key(0), state(0), null).join();
+            leased.save(key(1), state(1), null).join();
+            Assert.assertEquals(2, leased.snapshot().get("kept"));
+
+            // Conversation 1 stays in use while conversation 0 goes idle and its lease is let go.
+            long idleUntil = System.currentTimeMillis() + 100;
+            while (System.currentTimeMillis() < idleUntil) {
+                Thread.sleep(5);
+                leases.acquire(key(1)).join();
+            }
+            leases.renew();
+
+            Assert.assertEquals(-1, leases.token(key(0)));
+            Assert.assertEquals(1, leased.snapshot().get("kept"));
+            Assert.assertEquals(state(1), leased.load(key(1)).join().getLeft());
+            Assert.assertEquals(1, leased.getHits());
+        }
+    }
+
+    private static String key(int conversation) {
+        return "test/conversations/" + conversation;
+    }
+
+    private static JsonNode state(int step) {
+        return JsonNodeFactory.instance.objectNode().put("step", step);
+    }
+}
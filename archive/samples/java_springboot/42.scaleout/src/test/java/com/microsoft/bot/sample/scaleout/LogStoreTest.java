@@ -0,0 +1,235 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.microsoft.bot.schema.Pair;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.Stream;
+
+public class LogStoreTest {
+
+    // Long enough that compaction never runs during a test that doesn't wait for it.
+    private static final long NO_COMPACTION = 60_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void savesSurviveAReopen() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        String etag;
+        try (LogStore store = open(directory, NO_COMPACTION)) {
+            Assert.assertNull(store.load("test/conversations/1").join().getLeft());
+            Assert.assertTrue(store.save("test/conversations/1", StoreBenchmark.state(4), null).join());
+            Assert.assertTrue(store.save("test/conversations/2", StoreBenchmark.state(6), null).join());
+            etag = store.load("test/conversations/1").join().getRight();
+        }
+
+        try (LogStore store = open(directory, NO_COMPACTION)) {
+            Assert.assertEquals(2, store.size());
+            Pair<JsonNode, String> loaded = store.load("test/conversations/1").join();
+            Assert.assertEquals(StoreBenchmark.state(4), loaded.getLeft());
+            Assert.assertEquals(etag, loaded.getRight());
+            Assert.assertEquals(StoreBenchmark.state(6), store.load("test/conversations/2").join().getLeft());
+
+            // Versions carry on from the recovered ones, so the old etag is now stale.
+            Assert.assertTrue(store.save("test/conversations/1", StoreBenchmark.state(5), etag).join());
+            Assert.assertFalse(store.save("test/conversations/1", StoreBenchmark.state(7), etag).join());
+        }
+    }
+
+    @Test
+    public void savesAreCheckedAgainstTheEtag() {
+        try (LogStore store = open(folder.getRoot().toPath(), NO_COMPACTION)) {
+            Assert.assertTrue(store.save("test/conversations/1", StoreBenchmark.state(1), null).join());
+            String etag = store.load("test/conversations/1").join().getRight();
+
+            Assert.assertTrue(store.save("test/conversations/1", StoreBenchmark.state(2), etag).join());
+            Assert.assertFalse(store.save("test/conversations/1", StoreBenchmark.state(3), etag).join());
+            Assert.assertFalse(store.saveDelta(
+                "test/conversations/1",
+                JsonPatch.diff(StoreBenchmark.state(1), StoreBenchmark.state(3)),
+                StoreBenchmark.state(3),
+                etag).join());
+            Assert.assertEquals(StoreBenchmark.state(2), store.load("test/conversations/1").join().getLeft());
+
+            // A save without an etag always wins.
+            Assert.assertTrue(store.save("test/conversations/1", StoreBenchmark.state(4), null).join());
+            Assert.assertEquals(StoreBenchmark.state(4), store.load("test/conversations/1").join().getLeft());
+        }
+    }
+
+    @Test
+    public void aTornTailIsWrittenOver() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (LogStore store = open(directory, NO_COMPACTION)) {
+            store.save("test/conversations/1", StoreBenchmark.state(1), null).join();
+            store.save("test/conversations/2", StoreBenchmark.state(2), null).join();
+        }
+
+        // The length of a record is written last, so a write cut short leaves a zero length.
+        Path segment = directory.resolve(String.format("segment-%016d.log", 0));
+        int first = readInt(segment, 0);
+        writeInt(segment, first, 0);
+
+        try (LogStore store = open(directory, NO_COMPACTION)) {
+            Assert.assertEquals(1, store.size());
+            Assert.assertEquals(StoreBenchmark.state(1), store.load("test/conversations/1").join().getLeft());
+            Assert.assertNull(store.load("test/conversations/2").join().getLeft());
+            Assert.assertTrue(store.save("test/conversations/3", StoreBenchmark.state(3), null).join());
+        }
+
+        // The next save went where the torn record was, and is found after it.
+        Assert.assertNotEquals(0, readInt(segment, first));
+        try (LogStore store = open(directory, NO_COMPACTION)) {
+            Assert.assertEquals(2, store.size());
+            Assert.assertEquals(StoreBenchmark.state(1), store.load("test/conversations/1").join().getLeft());
+            Assert.assertEquals(StoreBenchmark.state(3), store.load("test/conversations/3").join().getLeft());
+        }
+    }
+
+    @Test
+    public void aCorruptRecordStopsRecovery() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (LogStore store = open(directory, NO_COMPACTION)) {
+            store.save("test/conversations/1", StoreBenchmark.state(1), null).join();
+            store.save("test/conversations/2", StoreBenchmark.state(2), null).join();
+            store.save("test/conversations/3", StoreBenchmark.state(3), null).join();
+        }
+
+        // Flip the last byte of the second record's value.
+        Path segment = directory.resolve(String.format("segment-%016d.log", 0));
+        int first = readInt(segment, 0);
+        int second = readInt(segment, first);
+        int last = first + second - Integer.BYTES;
+        writeInt(segment, last, readInt(segment, last) ^ 1);
+
+        // The third record is whole, but nothing after a corrupt record is trusted.
+        try (LogStore store = open(directory, NO_COMPACTION)) {
+            Assert.assertEquals(1, store.size());
+            Assert.assertEquals(StoreBenchmark.state(1), store.load("test/conversations/1").join().getLeft());
+            Assert.assertNull(store.load("test/conversations/2").join().getLeft());
+            Assert.assertNull(store.load("test/conversations/3").join().getLeft());
+        }
+    }
+
+    @Test
+    public void compactionKeepsTheLatestVersion() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        Pair<JsonNode, String> latest;
+        Pair<JsonNode, String> untouched;
+        try (LogStore store = open(directory, 20)) {
+            store.save("test/conversations/untouched", StoreBenchmark.state(3), null).join();
+            for (int i = 0; i < 200; i++) {
+                store.save("test/conversations/busy", StoreBenchmark.state(i % 10 + 1), null).join();
+            }
+            latest = store.load("test/conversations/busy").join();
+            untouched = store.load("test/conversations/untouched").join();
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (store.getSegmentCount() > 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            Assert.assertTrue(store.getSegmentCount() <= 2);
+
+            // The segments left are the newest of the many written.
+            try (Stream<Path> files = Files.list(directory)) {
+                Assert.assertTrue(files.allMatch(file -> file.getFileName().toString().compareTo(
+                    String.format("segment-%016d.log", 4)) > 0));
+            }
+            assertLoads(latest, store, "test/conversations/busy");
+            assertLoads(untouched, store, "test/conversations/untouched");
+        }
+
+        try (LogStore store = open(directory, NO_COMPACTION)) {
+            Assert.assertTrue(store.getSegmentCount() <= 2);
+            assertLoads(latest, store, "test/conversations/busy");
+            assertLoads(untouched, store, "test/conversations/untouched");
+        }
+    }
+
+    @Test
+    public void deltasReplayAcrossTheChainLimit() {
+        Path directory = folder.getRoot().toPath();
+        JsonNode state = JsonNodeFactory.instance.objectNode();
+        String etag;
+        try (LogStore store = open(directory, NO_COMPACTION)) {
+            // With nothing to patch, a delta is saved as a full snapshot.
+            Assert.assertTrue(store.saveDelta(
+                "test/conversations/1", JsonPatch.diff(state, step(state, 0)), step(state, 0), null).join());
+            state = step(state, 0);
+            etag = store.load("test/conversations/1").join().getRight();
+
+            // Enough deltas to pass the chain limit twice over.
+            for (int i = 1; i < 40; i++) {
+                JsonNode next = step(state, i);
+                Assert.assertTrue(store.saveDelta(
+                    "test/conversations/1", DialogHost.diff(state, next), next, etag).join());
+                state = next;
+
+                Pair<JsonNode, String> loaded = store.load("test/conversations/1").join();
+                Assert.assertEquals(state, loaded.getLeft());
+                Assert.assertNotEquals(etag, loaded.getRight());
+                etag = loaded.getRight();
+            }
+        }
+
+        try (LogStore store = open(directory, NO_COMPACTION)) {
+            Pair<JsonNode, String> loaded = store.load("test/conversations/1").join();
+            Assert.assertEquals(state, loaded.getLeft());
+            Assert.assertEquals(etag, loaded.getRight());
+
+            // The recovered chain can be extended.
+            JsonNode next = step(state, 40);
+            Assert.assertTrue(store.saveDelta("test/conversations/1", DialogHost.diff(state, next), next, etag).join());
+            Assert.assertEquals(next, store.load("test/conversations/1").join().getLeft());
+        }
+    }
+
+    private static void assertLoads(Pair<JsonNode, String> expected, LogStore store, String key) {
+        Pair<JsonNode, String> loaded = store.load(key).join();
+        Assert.assertEquals(expected.getLeft(), loaded.getLeft());
+        Assert.assertEquals(expected.getRight(), loaded.getRight());
+    }
+
+    private static LogStore open(Path directory, long compactionIntervalMillis) {
+        return new LogStore(directory, JacksonStateCodec.json(), 4096, 0.5, compactionIntervalMillis);
+    }
+
+    private static JsonNode step(JsonNode state, int turn) {
+        ObjectNode next = state.deepCopy();
+        next.put("turn", turn);
+        next.withArray("answers").add("answer " + turn);
+        return next;
+    }
+
+    private static int readInt(Path path, int offset) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
+            channel.read(buffer, offset);
+            buffer.flip();
+            return buffer.getInt();
+        }
+    }
+
+    private static void writeInt(Path path, int offset, int value) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
+            buffer.putInt(value).flip();
+            channel.write(buffer, offset);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.microsoft.bot.schema.Pair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Contention benchmark for the in-memory Store. Compares {@link MemoryStore} with the single semaphore
+ * implementation it replaced. Run with {@code mvn test -Pbenchmark -Djmh.args="MemoryStoreBenchmark"}.
+ *
+ * <p>
+ * The number of keys sets the contention level: with one key every thread fights over the same conversation,
+ * with many keys the threads mostly touch different conversations.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(8)
+public class MemoryStoreBenchmark {
+
+    @Param({"semaphore", "concurrent"})
+    private String implementation;
+
+    @Param({"1", "64", "4096"})
+    private int keyCount;
+
+    private Store store;
+    private String[] keys;
+    private JsonNode content;
+
+    /**
+     * Creates the store and seeds every key.
+     */
+    @Setup(Level.Trial)
+    public void setup() {
+        store = "semaphore".equals(implementation) ? new SemaphoreMemoryStore() : new MemoryStore();
+        content = JsonNodeFactory.instance.objectNode().put("step", 1);
+        keys = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = String.format("test/conversations/%d", i);
+            store.save(keys[i], content, null).join();
+        }
+    }
+
+    /**
+     * A load of a random conversation.
+     *
+     * @return The loaded value.
+     */
+    @Benchmark
+    public Pair<JsonNode, String> load() {
+        return store.load(randomKey()).join();
+    }
+
+    /**
+     * The load then conditional save cycle that ScaleoutBot performs on every turn.
+     *
+     * @return True if the save won the etag race.
+     */
+    @Benchmark
+    public boolean loadThenSave() {
+        String key = randomKey();
+        Pair<JsonNode, String> loaded = store.load(key).join();
+        return store.save(key, content, loaded.getRight()).join();
+    }
+
+    private String randomKey() {
+        return keys[ThreadLocalRandom.current().nextInt(keys.length)];
+    }
+
+    /**
+     * The previous MemoryStore: a HashMap guarded by a single semaphore, with random UUID etags.
+     */
+    private static class SemaphoreMemoryStore implements Store {
+        private final Map<String, Pair<JsonNode, String>> store = new HashMap<>();
+        private final Semaphore semaphore = new Semaphore(1);
+
+        @Override
+        public CompletableFuture<Pair<JsonNode, String>> load(String key) {
+            try {
+                semaphore.acquire();
+                Pair<JsonNode, String> value = store.get(key);
+                return CompletableFuture.completedFuture(value != null ? value : new Pair<>(null, null));
+            } catch (InterruptedException e) {
+                return CompletableFuture.completedFuture(new Pair<>(null, null));
+            } finally {
+                semaphore.release();
+            }
+        }
+
+        @Override
+        public CompletableFuture<Boolean> save(String key, JsonNode content, String eTag) {
+            try {
+                semaphore.acquire();
+                Pair<JsonNode, String> value = store.get(key);
+                if (eTag != null && value != null && !eTag.equals(value.getRight())) {
+                    return CompletableFuture.completedFuture(false);
+                }
+                store.put(key, new Pair<>(content, UUID.randomUUID().toString()));
+                return CompletableFuture.completedFuture(true);
+            } catch (InterruptedException e) {
+                return CompletableFuture.completedFuture(false);
+            } finally {
+                semaphore.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.microsoft.bot.schema.Pair;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CompletionException;
+
+public class OffHeapStoreTest {
+
+    @Test
+    public void savesAreCheckedAgainstTheEtag() {
+        OffHeapStore store = new OffHeapStore();
+        JsonNode state = StoreBenchmark.state(8);
+
+        Assert.assertNull(store.load("test/conversations/1").join().getLeft());
+        Assert.assertTrue(store.save("test/conversations/1", state, null).join());
+
+        Pair<JsonNode, String> loaded = store.load("test/conversations/1").join();
+        Assert.assertEquals(state, loaded.getLeft());
+        Assert.assertTrue(store.save("test/conversations/1", StoreBenchmark.state(9), loaded.getRight()).join());
+        Assert.assertFalse(store.save("test/conversations/1", state, loaded.getRight()).join());
+        Assert.assertEquals(StoreBenchmark.state(9), store.load("test/conversations/1").join().getLeft());
+    }
+
+    @Test
+    public void freedChunksAreReused() {
+        OffHeapStore store = new OffHeapStore(new SlabAllocator(4096, 1 << 20), JacksonStateCodec.json());
+        for (int i = 0; i < 20; i++) {
+            store.save("test/conversations/" + i % 10, StoreBenchmark.state(i), null).join();
+        }
+        long reserved = store.getOffHeapReservedBytes();
+
+        // Overwriting the same conversations with states of the same sizes needs no more memory.
+        for (int i = 0; i < 1000; i++) {
+            store.save("test/conversations/" + i % 10, StoreBenchmark.state(i % 20), null).join();
+        }
+        Assert.assertEquals(10, store.size());
+        Assert.assertEquals(reserved, store.getOffHeapReservedBytes());
+        Assert.assertTrue(store.getOffHeapAllocatedBytes() >= store.getStoredBytes());
+    }
+
+    @Test
+    public void savesFailOnceTheStoreIsFull() {
+        OffHeapStore store = new OffHeapStore(new SlabAllocator(1024, 2048), JacksonStateCodec.json());
+        Assert.assertTrue(store.save("test/conversations/1", StoreBenchmark.state(20), null).join());
+        Assert.assertTrue(store.save("test/conversations/2", StoreBenchmark.state(20), null).join());
+        try {
+            store.save("test/conversations/3", StoreBenchmark.state(20), null).join();
+            Assert.fail("the store should be full");
+        } catch (CompletionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertEquals(StoreBenchmark.state(20), store.load("test/conversations/1").join().getLeft());
+    }
+}
@@ -0,0 +1,67 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void delaysDoubleUpToTheMaximum() {
+        RetryPolicy policy = new RetryPolicy(8, 10, 100, ceiling -> ceiling);
+
+        Assert.assertEquals(0, policy.delayBefore(1));
+        Assert.assertEquals(10, policy.delayBefore(2));
+        Assert.assertEquals(20, policy.delayBefore(3));
+        Assert.assertEquals(40, policy.delayBefore(4));
+        Assert.assertEquals(80, policy.delayBefore(5));
+        Assert.assertEquals(100, policy.delayBefore(6));
+        // Far past the point where the shift would overflow.
+        Assert.assertEquals(100, policy.delayBefore(1000));
+    }
+
+    @Test
+    public void jitterStaysWithinTheComputedDelay() {
+        RetryPolicy policy = new RetryPolicy(8, 10, 1000);
+        for (int attempt = 2; attempt <= 8; attempt++) {
+            long ceiling = Math.min(1000, 10L << (attempt - 2));
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (int i = 0; i < 2000; i++) {
+                long delay = policy.delayBefore(attempt);
+                Assert.assertTrue(delay + " > " + ceiling, delay >= 0 && delay <= ceiling);
+                min = Math.min(min, delay);
+                max = Math.max(max, delay);
+            }
+            // Spread over the whole range, not bunched at either end.
+            Assert.assertTrue(min < ceiling / 4);
+            Assert.assertTrue(max > ceiling * 3 / 4);
+        }
+    }
+
+    @Test
+    public void awaitingAnAttemptDoesNotBlock() {
+        RetryPolicy policy = new RetryPolicy(2, 500, 500, ceiling -> ceiling);
+        Assert.assertTrue(policy.awaitAttempt(1).isDone());
+
+        long started = System.nanoTime();
+        CompletableFuture<Void> ready = policy.awaitAttempt(2);
+        Assert.assertFalse(ready.isDone());
+
+        // What follows the delay is handed to the common pool, not run on the one scheduler thread.
+        Thread thread = ready.thenApply(done -> Thread.currentThread()).join();
+        Assert.assertTrue(thread.getName(), thread instanceof ForkJoinWorkerThread);
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) >= 500);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsABaseDelayAboveTheMaximum() {
+        new RetryPolicy(3, 100, 10);
+    }
+}
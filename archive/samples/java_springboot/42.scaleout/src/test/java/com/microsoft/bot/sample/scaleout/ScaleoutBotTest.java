@@ -0,0 +1,170 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.microsoft.bot.builder.MessageFactory;
+import com.microsoft.bot.builder.TurnContextImpl;
+import com.microsoft.bot.dialogs.Dialog;
+import com.microsoft.bot.dialogs.DialogContext;
+import com.microsoft.bot.dialogs.DialogTurnResult;
+import com.microsoft.bot.schema.Activity;
+import com.microsoft.bot.schema.ConversationAccount;
+import com.microsoft.bot.schema.Pair;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ScaleoutBotTest {
+
+    @Test
+    public void retriesUntilTheSaveWins() {
+        ConflictingStore store = new ConflictingStore(3);
+        ScaleoutMetrics metrics = new ScaleoutMetrics();
+        ScaleoutBot<Dialog> bot = new ScaleoutBot<>(store, new Reply(), new RetryPolicy(5, 1, 5), metrics);
+        DialogHostAdapter adapter = new DialogHostAdapter();
+
+        bot.onTurn(new TurnContextImpl(adapter, message("retries"))).join();
+
+        Assert.assertEquals(4, store.saves.get());
+        Assert.assertEquals(Collections.singletonMap(4, 1L), metrics.getTurnAttempts());
+        Assert.assertEquals(0, metrics.getTurnsFailed());
+        // Only the attempt that was saved sends its reply.
+        Assert.assertEquals(1, replies(adapter));
+    }
+
+    @Test
+    public void givesUpAfterTheLastAttempt() {
+        ConflictingStore store = new ConflictingStore(Integer.MAX_VALUE);
+        ScaleoutMetrics metrics = new ScaleoutMetrics();
+        ScaleoutBot<Dialog> bot = new ScaleoutBot<>(store, new Reply(), new RetryPolicy(3, 1, 5), metrics);
+        DialogHostAdapter adapter = new DialogHostAdapter();
+
+        try {
+            bot.onTurn(new TurnContextImpl(adapter, message("gives-up"))).join();
+            Assert.fail("Expected the turn to fail");
+        } catch (CompletionException e) {
+            Assert.assertTrue(e.getCause() instanceof SaveConflictException);
+            SaveConflictException conflict = (SaveConflictException) e.getCause();
+            Assert.assertEquals(3, conflict.getAttempts());
+            Assert.assertEquals("test/conversations/gives-up", conflict.getKey());
+        }
+
+        Assert.assertEquals(3, store.saves.get());
+        Assert.assertEquals(1, metrics.getTurnsFailed());
+        Assert.assertEquals(0, replies(adapter));
+    }
+
+    @Test
+    public void patchesAreOnlyComputedForStoresThatSaveThem() {
+        ScaleoutMetrics metrics = new ScaleoutMetrics();
+        for (boolean deltas : new boolean[] {false, true}) {
+            DeltaCountingStore inner = new DeltaCountingStore(deltas);
+            InstrumentedStore store = new InstrumentedStore(inner, metrics);
+            Assert.assertEquals(deltas, store.supportsDeltas());
+            ScaleoutBot<Dialog> bot = new ScaleoutBot<>(store, new Reply(), new RetryPolicy(3, 1, 5), metrics);
+
+            // The first turn has no state to patch; the second saves a delta only if the store keeps one.
+            bot.onTurn(new TurnContextImpl(new DialogHostAdapter(), message("deltas-" + deltas))).join();
+            bot.onTurn(new TurnContextImpl(new DialogHostAdapter(), message("deltas-" + deltas))).join();
+            Assert.assertEquals(deltas ? 1 : 0, inner.deltas.get());
+        }
+
+        LeaseManager leases = new LeaseManager("node1", new MemoryStore(), 60_000);
+        try {
+            Assert.assertFalse(new InstrumentedStore(new MemoryStore(), metrics).supportsDeltas());
+            Assert.assertFalse(new LeasedStore(new InstrumentedStore(new MemoryStore(), metrics), leases)
+                .supportsDeltas());
+            Assert.assertTrue(new LeasedStore(new InstrumentedStore(new DeltaCountingStore(true), metrics), leases)
+                .supportsDeltas());
+        } finally {
+            leases.close();
+        }
+    }
+
+    private static long replies(DialogHostAdapter adapter) {
+        return adapter.getResponses().stream().filter(activity -> "reply".equals(activity.getText())).count();
+    }
+
+    private static Activity message(String conversation) {
+        Activity activity = Activity.createMessageActivity();
+        activity.setChannelId("test");
+        activity.setText("hello");
+        activity.setConversation(new ConversationAccount(conversation));
+        return activity;
+    }
+
+    // Replies to every message.
+    private static final class Reply extends Dialog {
+        Reply() {
+            super("reply");
+        }
+
+        @Override
+        public CompletableFuture<DialogTurnResult> beginDialog(DialogContext dc, Object options) {
+            return dc.getContext().sendActivity(MessageFactory.text("reply"))
+                .thenCompose(sent -> dc.endDialog());
+        }
+    }
+
+    // Counts the deltas it is given, which it saves as full content.
+    private static final class DeltaCountingStore implements DeltaStore {
+        private final MemoryStore memory = new MemoryStore();
+        private final boolean supportsDeltas;
+        private final AtomicInteger deltas = new AtomicInteger();
+
+        DeltaCountingStore(boolean withSupportsDeltas) {
+            supportsDeltas = withSupportsDeltas;
+        }
+
+        @Override
+        public CompletableFuture<Pair<JsonNode, String>> load(String key) {
+            return memory.load(key);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> save(String key, JsonNode content, String etag) {
+            return memory.save(key, content, etag);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> saveDelta(String key, JsonNode patch, JsonNode content, String etag) {
+            deltas.incrementAndGet();
+            return memory.save(key, content, etag);
+        }
+
+        @Override
+        public boolean supportsDeltas() {
+            return supportsDeltas;
+        }
+    }
+
+    // Loses the etag race for the first saves.
+    private static final class ConflictingStore implements Store {
+        private final MemoryStore memory = new MemoryStore();
+        private final int conflicts;
+        private final AtomicInteger saves = new AtomicInteger();
+
+        ConflictingStore(int withConflicts) {
+            conflicts = withConflicts;
+        }
+
+        @Override
+        public CompletableFuture<Pair<JsonNode, String>> load(String key) {
+            return memory.load(key);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> save(String key, JsonNode content, String etag) {
+            if (saves.incrementAndGet() <= conflicts) {
+                return CompletableFuture.completedFuture(false);
+            }
+            return memory.save(key, content, etag);
+        }
+    }
+}
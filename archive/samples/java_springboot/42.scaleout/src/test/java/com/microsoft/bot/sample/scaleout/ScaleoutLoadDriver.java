@@ -0,0 +1,199 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.bot.builder.TurnContextImpl;
+import com.microsoft.bot.schema.Activity;
+import com.microsoft.bot.schema.ConversationAccount;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs several ScaleoutBot nodes against one {@link FakeBlobService} and reports the throughput of turns and how
+ * often saves lost the etag race. Run with {@code mvn test -Pload -DskipTests -Dload.args="nodes=4 clients=32"}.
+ *
+ * <p>
+ * Each node has its own BlobStore, executor and mailbox, as a separate process would, and shares nothing with the
+ * others but the blob service. Clients send messages to random conversations through random nodes, as a load
+ * balancer without affinity would, so the fewer conversations there are per client the more often two nodes run
+ * a turn of the same conversation at the same time. The blob service's latency, error rate and forced 412 rate
+ * are set from the options as well. Injected 503s are retried by the storage SDK with its default policy, which
+ * waits at least 3 seconds, so even a small error rate shows in the tail latencies.
+ * </p>
+ *
+ * <p>
+ * Options are given as name=value pairs: nodes (4), clients (32), conversations (64), seconds (30),
+ * threads per node (16), latency (exponential:2, see {@link FakeBlobService.Latency#parse}), errorRate (0),
+ * preconditionFailureRate (0), merge (true), which merges conflicting saves with {@link ThreeWayMerge}, and
+ * shards (1), the number of containers in the {@link BlobShardLayout}, which hash prefixes blob names when
+ * there is more than one, and nearCache (0), the most states each node's BlobStore keeps for revalidation.
+ * </p>
+ */
+public final class ScaleoutLoadDriver {
+
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+    private final Map<String, String> options;
+    private final LongAdder turns = new LongAdder();
+    private final LongAdder conflictedTurns = new LongAdder();
+    private final LongAdder failedTurns = new LongAdder();
+    private final Histogram turnNanos = new Histogram();
+    private volatile boolean running = true;
+
+    private ScaleoutLoadDriver(Map<String, String> withOptions) {
+        options = withOptions;
+    }
+
+    /**
+     * Runs the load test and prints its report.
+     *
+     * @param args The options, as name=value pairs.
+     * @throws Exception If the blob service cannot be started or a client thread is interrupted.
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("nodes", "4");
+        options.put("clients", "32");
+        options.put("conversations", "64");
+        options.put("seconds", "30");
+        options.put("threads", "16");
+        options.put("latency", "exponential:2");
+        options.put("errorRate", "0");
+        options.put("preconditionFailureRate", "0");
+        options.put("merge", "true");
+        options.put("shards", "1");
+        options.put("nearCache", "0");
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0 || !options.containsKey(arg.substring(0, equals))) {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+
+        new ScaleoutLoadDriver(options).run();
+    }
+
+    private void run() throws IOException, InterruptedException {
+        ScaleoutMetrics metrics = new ScaleoutMetrics();
+        List<ScaleoutBot<RootDialog>> nodes = new ArrayList<>();
+        List<InstrumentedExecutor> executors = new ArrayList<>();
+        List<BlobStore> blobStores = new ArrayList<>();
+
+        try (FakeBlobService blobService = new FakeBlobService()) {
+            blobService.setLatency(FakeBlobService.Latency.parse(options.get("latency")));
+            blobService.setErrorRate(Double.parseDouble(options.get("errorRate")));
+            blobService.setPreconditionFailureRate(Double.parseDouble(options.get("preconditionFailureRate")));
+
+            for (int i = 0; i < intOption("nodes"); i++) {
+                List<CloudBlobContainer> containers = new ArrayList<>();
+                for (int shard = 0; shard < intOption("shards"); shard++) {
+                    containers.add(blobService.container(String.format("dialogs-%d", shard)));
+                }
+                BlobShardLayout layout = new BlobShardLayout(containers, containers.size() > 1);
+                InstrumentedExecutor executor =
+                    new InstrumentedExecutor(String.format("node-%d", i), intOption("threads"), 1024);
+                executors.add(executor);
+                metrics.addExecutor(String.format("node-%d", i), executor);
+                BlobStore blobStore = new BlobStore(layout, null, executor, JacksonStateCodec.json(),
+                    BlobStore.NO_COMPRESSION, intOption("nearCache"));
+                blobStores.add(blobStore);
+                Store store = new InstrumentedStore(blobStore, metrics);
+                ConflictResolver conflictResolver = Boolean.parseBoolean(options.get("merge")) ? new ThreeWayMerge() : null;
+                nodes.add(new ScaleoutBot<>(
+                    store, new RootDialog(), RetryPolicy.defaultPolicy(), metrics, conflictResolver));
+            }
+
+            List<Thread> clients = new ArrayList<>();
+            for (int i = 0; i < intOption("clients"); i++) {
+                Thread client = new Thread(() -> sendMessages(nodes), String.format("load-client-%d", i));
+                client.setDaemon(true);
+                clients.add(client);
+            }
+
+            long started = System.nanoTime();
+            clients.forEach(Thread::start);
+            TimeUnit.SECONDS.sleep(intOption("seconds"));
+            running = false;
+            for (Thread client : clients) {
+                client.join();
+            }
+            double seconds = (System.nanoTime() - started) / NANOS_PER_MILLI / 1000;
+
+            report(metrics, blobService, blobStores, seconds);
+        } finally {
+            executors.forEach(InstrumentedExecutor::close);
+        }
+    }
+
+    private void sendMessages(List<ScaleoutBot<RootDialog>> nodes) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int conversations = intOption("conversations");
+        while (running) {
+            Activity activity = StateCodecBenchmark.message(Integer.toString(random.nextInt(100)));
+            activity.setConversation(new ConversationAccount(String.format("conversation-%d",
+                random.nextInt(conversations))));
+            ScaleoutBot<RootDialog> node = nodes.get(random.nextInt(nodes.size()));
+
+            long start = System.nanoTime();
+            try {
+                node.onTurn(new TurnContextImpl(new DialogHostAdapter(), activity)).join();
+                turnNanos.record(System.nanoTime() - start);
+                turns.increment();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof SaveConflictException) {
+                    conflictedTurns.increment();
+                } else {
+                    failedTurns.increment();
+                }
+            }
+        }
+    }
+
+    private void report(
+        ScaleoutMetrics metrics,
+        FakeBlobService blobService,
+        List<BlobStore> blobStores,
+        double seconds) {
+        long saves = metrics.getSaves().getCount();
+        System.out.println("Options:");
+        options.forEach((name, value) -> System.out.printf("  %s=%s%n", name, value));
+        System.out.println("Turns:");
+        System.out.printf("  completed          %d (%.1f/s)%n", turns.sum(), turns.sum() / seconds);
+        System.out.printf("  out of attempts    %d%n", conflictedTurns.sum());
+        System.out.printf("  failed             %d%n", failedTurns.sum());
+        System.out.printf("  attempts           %s%n", metrics.getTurnAttempts());
+        System.out.printf("  merged             %d (unmergeable %d)%n", metrics.getMerges(), metrics.getUnmergeable());
+        System.out.printf("  latency ms         %s%n", turnNanos.snapshot(NANOS_PER_MILLI));
+        System.out.println("Saves:");
+        System.out.printf("  total              %d%n", saves);
+        System.out.printf("  conflicts          %d (%.2f%%)%n",
+            metrics.getConflicts(), saves == 0 ? 0 : 100.0 * metrics.getConflicts() / saves);
+        System.out.printf("  latency ms         %s%n", metrics.getSaves().snapshot(NANOS_PER_MILLI));
+        System.out.printf("  hot keys           %s%n", metrics.getHotKeys(5));
+        System.out.println("Blob service:");
+        System.out.printf("  requests           %d%n", blobService.getRequests());
+        System.out.printf("  injected 503s      %d%n", blobService.getInjectedErrors());
+        System.out.printf("  injected 412s      %d%n", blobService.getInjectedPreconditionFailures());
+        if (intOption("nearCache") > 0) {
+            System.out.println("Near caches:");
+            for (int i = 0; i < blobStores.size(); i++) {
+                System.out.printf("  node-%d             %s%n", i, blobStores.get(i).snapshot());
+            }
+        }
+    }
+
+    private int intOption(String name) {
+        return Integer.parseInt(options.get(name));
+    }
+}
@@ -0,0 +1,79 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+
+public class ScaleoutMetricsTest {
+
+    @Test
+    public void storeConflictsAreCountedByPrefixAndKey() {
+        ScaleoutMetrics metrics = new ScaleoutMetrics();
+        Store store = new InstrumentedStore(new MemoryStore(), metrics);
+        JsonNode content = JsonNodeFactory.instance.objectNode().put("step", 1);
+
+        store.save("msteams/conversations/a", content, null).join();
+        store.save("msteams/conversations/b", content, null).join();
+        store.save("slack/conversations/c", content, null).join();
+        for (int i = 0; i < 3; i++) {
+            Assert.assertFalse(store.save("msteams/conversations/a", content, "stale").join());
+        }
+        Assert.assertFalse(store.save("msteams/conversations/b", content, "stale").join());
+        Assert.assertFalse(store.save("slack/conversations/c", content, "stale").join());
+        store.load("slack/conversations/c").join();
+
+        Assert.assertEquals(5, metrics.getConflicts());
+        Assert.assertEquals(Long.valueOf(4), metrics.getConflictsByPrefix().get("msteams/conversations"));
+        Assert.assertEquals(Long.valueOf(1), metrics.getConflictsByPrefix().get("slack/conversations"));
+
+        Map<String, Long> hotKeys = metrics.getHotKeys(1);
+        Assert.assertEquals(1, hotKeys.size());
+        Assert.assertEquals(Long.valueOf(3), hotKeys.get("msteams/conversations/a"));
+        Assert.assertTrue(metrics.getHotKeys(-1).isEmpty());
+
+        Assert.assertEquals(8, metrics.getSaves().getCount());
+        Assert.assertEquals(1, metrics.getLoads().getCount());
+    }
+
+    @Test
+    public void conflictsBeyondTheTrackedKeysAreStillCountedByPrefix() {
+        ScaleoutMetrics metrics = new ScaleoutMetrics(2);
+        for (int i = 0; i < 5; i++) {
+            metrics.recordSave("test/conversations/" + i, 0, false);
+        }
+
+        Assert.assertEquals(2, metrics.getHotKeys(10).size());
+        Assert.assertEquals(Long.valueOf(5), metrics.getConflictsByPrefix().get("test/conversations"));
+    }
+
+    @Test
+    public void turnAttemptsAndPercentiles() {
+        ScaleoutMetrics metrics = new ScaleoutMetrics();
+        for (int i = 0; i < 98; i++) {
+            metrics.recordTurn(1, true);
+        }
+        metrics.recordTurn(2, true);
+        metrics.recordTurn(8, false);
+
+        Map<Integer, Long> attempts = metrics.getTurnAttempts();
+        Assert.assertEquals(Long.valueOf(98), attempts.get(1));
+        Assert.assertEquals(Long.valueOf(1), attempts.get(2));
+        Assert.assertEquals(Long.valueOf(1), attempts.get(8));
+        Assert.assertEquals(1, metrics.getTurnsFailed());
+
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i <= 99 ? 10 : 5000);
+        }
+        Assert.assertEquals(15, histogram.getPercentile(0.5));
+        Assert.assertEquals(15, histogram.getPercentile(0.99));
+        Assert.assertEquals(5000, histogram.getPercentile(1.0));
+        Assert.assertEquals(5000, histogram.getMax());
+    }
+}
@@ -0,0 +1,120 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.microsoft.bot.schema.Activity;
+import com.microsoft.bot.schema.ChannelAccount;
+import com.microsoft.bot.schema.ConversationAccount;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the state codecs on the state RootDialog produces. Run with
+ * {@code mvn test -Pbenchmark -DskipTests -Djmh.args="StateCodecBenchmark"}.
+ *
+ * <p>
+ * The encoded size of the state for each codec is printed when the trial starts. The turn benchmark is what a
+ * Store that persists bytes pays per turn: decode the old state, run the dialog, encode the new state.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StateCodecBenchmark {
+
+    @Param({"json", "smile", "cbor"})
+    private String codecName;
+
+    private StateCodec codec;
+    private RootDialog dialog;
+    private Activity activity;
+    private JsonNode state;
+    private byte[] encoded;
+
+    /**
+     * Builds a mid-conversation state by running the first two turns of RootDialog.
+     *
+     * @throws IOException If the state cannot be encoded.
+     */
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        switch (codecName) {
+            case "smile":
+                codec = JacksonStateCodec.smile();
+                break;
+            case "cbor":
+                codec = JacksonStateCodec.cbor();
+                break;
+            default:
+                codec = JacksonStateCodec.json();
+                break;
+        }
+
+        dialog = new RootDialog();
+        JsonNode started = DialogHost.run(dialog, message("hi"), null).join().getRight();
+        state = DialogHost.run(dialog, message("7"), started).join().getRight();
+        encoded = codec.encode(state);
+        // Every turn starts again from the stored state, so each one answers the second prompt.
+        activity = message("3");
+
+        System.out.printf("%n%s: %d bytes per state%n", codecName, encoded.length);
+    }
+
+    /**
+     * Encodes the state.
+     *
+     * @return The encoded bytes.
+     * @throws IOException If the state cannot be encoded.
+     */
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return codec.encode(state);
+    }
+
+    /**
+     * Decodes the state.
+     *
+     * @return The decoded state.
+     * @throws IOException If the bytes cannot be decoded.
+     */
+    @Benchmark
+    public JsonNode decode() throws IOException {
+        return codec.decode(encoded);
+    }
+
+    /**
+     * Decodes the stored state, runs a turn, and encodes the result.
+     *
+     * @return The encoded new state.
+     * @throws IOException If the state cannot be encoded or decoded.
+     */
+    @Benchmark
+    public byte[] turn() throws IOException {
+        JsonNode oldState = codec.decode(encoded);
+        JsonNode newState = DialogHost.run(dialog, activity, oldState).join().getRight();
+        return codec.encode(newState);
+    }
+
+    static Activity message(String text) {
+        Activity activity = Activity.createMessageActivity();
+        activity.setText(text);
+        activity.setChannelId("test");
+        activity.setServiceUrl("https://test.example.com");
+        activity.setConversation(new ConversationAccount("conversation"));
+        activity.setFrom(new ChannelAccount("user"));
+        activity.setRecipient(new ChannelAccount("bot"));
+        return activity;
+    }
+}
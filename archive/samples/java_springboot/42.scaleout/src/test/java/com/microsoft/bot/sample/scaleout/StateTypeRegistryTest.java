@@ -0,0 +1,50 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.bot.dialogs.DialogState;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class StateTypeRegistryTest {
+
+    @Test
+    public void readsAndWritesStateInTheFormatDefaultTypingWrote() throws IOException {
+        RootDialog dialog = new RootDialog();
+        JsonNode started = DialogHost.run(dialog, StateCodecBenchmark.message("hi"), null).join().getRight();
+        JsonNode state = DialogHost.run(dialog, StateCodecBenchmark.message("7"), started).join().getRight();
+
+        // The mapper DialogHost used before, with unrestricted default typing.
+        ObjectMapper legacy = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .findAndRegisterModules()
+            .enableDefaultTyping();
+        JsonNode written = legacy.valueToTree(legacy.treeToValue(state.get("DialogState"), DialogState.class));
+
+        StateTypeRegistry stateTypes = new StateTypeRegistry(DialogState.class);
+        DialogState read = stateTypes.read(written, DialogState.class);
+        Assert.assertEquals(written, stateTypes.write(read, DialogState.class));
+    }
+
+    @Test
+    public void missingStateReadsAsNull() throws IOException {
+        StateTypeRegistry stateTypes = new StateTypeRegistry(DialogState.class);
+        Assert.assertNull(stateTypes.read(null, DialogState.class));
+        Assert.assertTrue(stateTypes.write(null, DialogState.class).isNull());
+    }
+
+    @Test(expected = JsonMappingException.class)
+    public void typesOutsideTheAllowedPackagesAreRejected() throws IOException {
+        JsonNode state = new ObjectMapper().readTree(
+            "{\"dialogStack\":[\"java.util.ArrayList\",[{\"id\":\"root\","
+                + "\"state\":[\"javax.naming.InitialContext\",{}]}]]}");
+        new StateTypeRegistry(DialogState.class).read(state, DialogState.class);
+    }
+}
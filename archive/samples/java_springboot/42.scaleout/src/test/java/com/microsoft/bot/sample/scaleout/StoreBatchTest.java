@@ -0,0 +1,103 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.microsoft.bot.schema.Pair;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+public class StoreBatchTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void memoryStoreBatches() {
+        checkBatches(new MemoryStore());
+    }
+
+    @Test
+    public void logStoreBatches() {
+        try (LogStore store = new LogStore(folder.getRoot().toPath())) {
+            checkBatches(store);
+        }
+    }
+
+    @Test
+    public void blobStoreBatches() throws Exception {
+        try (FakeBlobService blobService = new FakeBlobService();
+            InstrumentedExecutor executor = new InstrumentedExecutor("blob-store", 2, 64)) {
+            checkBatches(new BlobStore(blobService.container("dialogs"), executor, JacksonStateCodec.json()));
+        }
+    }
+
+    @Test
+    public void defaultBatchesCallTheSingleKeyMethods() {
+        MemoryStore inner = new MemoryStore();
+        checkBatches(new Store() {
+            @Override
+            public CompletableFuture<Pair<JsonNode, String>> load(String key) {
+                return inner.load(key);
+            }
+
+            @Override
+            public CompletableFuture<Boolean> save(String key, JsonNode content, String etag) {
+                return inner.save(key, content, etag);
+            }
+        });
+    }
+
+    // Each key of a batch is checked against its own etag, so one stale key fails alone.
+    private static void checkBatches(Store store) {
+        Assert.assertTrue(store.loadMany(Collections.emptyList()).join().isEmpty());
+        Assert.assertTrue(store.saveMany(Collections.emptyMap()).join().isEmpty());
+
+        store.save("test/conversations/stale", StoreBenchmark.state(1), null).join();
+        store.save("test/conversations/fresh", StoreBenchmark.state(1), null).join();
+        Map<String, Pair<JsonNode, String>> loaded = store.loadMany(
+            Arrays.asList("test/conversations/stale", "test/conversations/fresh")).join();
+        Assert.assertEquals(StoreBenchmark.state(1), loaded.get("test/conversations/stale").getLeft());
+        Assert.assertEquals(StoreBenchmark.state(1), loaded.get("test/conversations/fresh").getLeft());
+
+        // Another writer gets to one of the keys first.
+        String staleEtag = loaded.get("test/conversations/stale").getRight();
+        Assert.assertTrue(store.save("test/conversations/stale", StoreBenchmark.state(2), staleEtag).join());
+
+        Map<String, Pair<JsonNode, String>> batch = new LinkedHashMap<>();
+        batch.put("test/conversations/stale", new Pair<>(StoreBenchmark.state(3), staleEtag));
+        batch.put("test/conversations/fresh", new Pair<>(
+            StoreBenchmark.state(3), loaded.get("test/conversations/fresh").getRight()));
+        batch.put("test/conversations/new", new Pair<>(StoreBenchmark.state(3), null));
+        Map<String, Boolean> saved = store.saveMany(batch).join();
+        Assert.assertEquals(
+            Arrays.asList("test/conversations/stale", "test/conversations/fresh", "test/conversations/new"),
+            Arrays.asList(saved.keySet().toArray()));
+        Assert.assertFalse(saved.get("test/conversations/stale"));
+        Assert.assertTrue(saved.get("test/conversations/fresh"));
+        Assert.assertTrue(saved.get("test/conversations/new"));
+
+        Map<String, Pair<JsonNode, String>> after = store.loadMany(Arrays.asList(
+            "test/conversations/stale",
+            "test/conversations/fresh",
+            "test/conversations/new",
+            "test/conversations/missing")).join();
+        Assert.assertEquals(4, after.size());
+        Assert.assertEquals(StoreBenchmark.state(2), after.get("test/conversations/stale").getLeft());
+        Assert.assertEquals(StoreBenchmark.state(3), after.get("test/conversations/fresh").getLeft());
+        Assert.assertEquals(StoreBenchmark.state(3), after.get("test/conversations/new").getLeft());
+        // BlobStore reads a missing key as a JSON null, the others as no node at all.
+        JsonNode missing = after.get("test/conversations/missing").getLeft();
+        Assert.assertTrue(missing == null || missing.isNull());
+        Assert.assertNull(after.get("test/conversations/missing").getRight());
+    }
+}
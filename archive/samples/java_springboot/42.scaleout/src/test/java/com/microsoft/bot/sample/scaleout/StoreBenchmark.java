@@ -0,0 +1,152 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.microsoft.bot.schema.Pair;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The load then conditional save cycle of a turn, against each Store implementation. {@link BlobStore} runs
+ * against a {@link FakeBlobService} on the loopback interface, so its numbers include the storage SDK and
+ * HTTP but not the network. Run with {@code mvn test -Pbenchmark -DskipTests -Djmh.args="StoreBenchmark"}.
+ *
+ * <p>
+ * The number of keys sets the contention level, as in {@link MemoryStoreBenchmark}, and the number of entries
+ * sets the size of the state. Throughput and the sampled latency percentiles, including p99, are both reported.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(8)
+public class StoreBenchmark {
+
+    @Param({"memory", "offheap", "log", "blob", "blob-deflate"})
+    private String storeName;
+
+    @Param({"1", "64", "4096"})
+    private int keyCount;
+
+    @Param({"8", "512"})
+    private int stateEntries;
+
+    private Store store;
+    private FakeBlobService blobService;
+    private Path directory;
+    private String[] keys;
+    private JsonNode content;
+
+    /**
+     * Creates the store and seeds every key.
+     *
+     * @throws IOException If the fake blob service or log directory cannot be created.
+     */
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        switch (storeName) {
+            case "offheap":
+                store = new OffHeapStore();
+                break;
+            case "log":
+                directory = Files.createTempDirectory("store-benchmark");
+                store = new LogStore(directory);
+                break;
+            case "blob":
+            case "blob-deflate":
+                blobService = new FakeBlobService();
+                store = new BlobStore(
+                    blobService.container("dialogs"),
+                    new InstrumentedExecutor("blob-store", 16, 1024),
+                    JacksonStateCodec.json(),
+                    "blob-deflate".equals(storeName) ? 1024 : BlobStore.NO_COMPRESSION);
+                break;
+            default:
+                store = new MemoryStore();
+                break;
+        }
+
+        content = state(stateEntries);
+        keys = new String[keyCount];
+        Map<String, Pair<JsonNode, String>> seed = new LinkedHashMap<>();
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = String.format("test/conversations/%d", i);
+            seed.put(keys[i], new Pair<>(content, null));
+        }
+        store.saveMany(seed).join();
+    }
+
+    /**
+     * Closes the store and removes anything it wrote.
+     *
+     * @throws IOException If the log directory cannot be removed.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (store instanceof LogStore) {
+            ((LogStore) store).close();
+            FileUtils.deleteDirectory(directory.toFile());
+        }
+        if (store instanceof BlobStore) {
+            ((BlobStore) store).getExecutor().close();
+            blobService.close();
+        }
+    }
+
+    /**
+     * A load of a random conversation.
+     *
+     * @return The loaded value.
+     */
+    @Benchmark
+    public Pair<JsonNode, String> load() {
+        return store.load(randomKey()).join();
+    }
+
+    /**
+     * The load then conditional save cycle that ScaleoutBot performs on every turn.
+     *
+     * @return True if the save won the etag race.
+     */
+    @Benchmark
+    public boolean loadThenSave() {
+        String key = randomKey();
+        Pair<JsonNode, String> loaded = store.load(key).join();
+        return store.save(key, content, loaded.getRight()).join();
+    }
+
+    private String randomKey() {
+        return keys[ThreadLocalRandom.current().nextInt(keys.length)];
+    }
+
+    // A flat state of the given number of short string entries.
+    static JsonNode state(int entries) {
+        ObjectNode state = JsonNodeFactory.instance.objectNode();
+        for (int i = 0; i < entries; i++) {
+            state.put(String.format("value-%d", i), String.format("the answer to question %d", i));
+        }
+        return state;
+    }
+}
@@ -0,0 +1,78 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class ThreeWayMergeTest {
+
+    private static final String BASE =
+        "{\"DialogState\":{\"dialogStack\":[{\"id\":\"root\",\"state\":{\"stepIndex\":0}},"
+            + "{\"id\":\"number\",\"state\":{\"values\":{\"a\":1}}}]}}";
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ConflictResolver merge = new ThreeWayMerge();
+
+    @Test
+    public void changesToDifferentDialogInstancesMerge() throws IOException {
+        JsonNode merged = merge.resolve(
+            read(BASE),
+            read(BASE.replace("\"stepIndex\":0", "\"stepIndex\":1")),
+            read(BASE.replace("\"a\":1", "\"a\":1,\"b\":2")));
+
+        Assert.assertEquals(read(BASE.replace("\"stepIndex\":0", "\"stepIndex\":1").replace("\"a\":1", "\"a\":1,\"b\":2")),
+            merged);
+    }
+
+    @Test
+    public void changesToTheSameValueConflict() throws IOException {
+        Assert.assertNull(merge.resolve(
+            read(BASE),
+            read(BASE.replace("\"stepIndex\":0", "\"stepIndex\":1")),
+            read(BASE.replace("\"stepIndex\":0", "\"stepIndex\":2"))));
+        // One side replaced what the other changed inside of.
+        Assert.assertNull(merge.resolve(
+            read(BASE),
+            read(BASE.replace("\"a\":1", "\"a\":3")),
+            read(BASE.replace("{\"a\":1}", "null"))));
+    }
+
+    @Test
+    public void stackChangesConflictWithAnyOtherStackChange() throws IOException {
+        String popped = "{\"DialogState\":{\"dialogStack\":[{\"id\":\"root\",\"state\":{\"stepIndex\":0}}]}}";
+        Assert.assertNull(merge.resolve(read(BASE), read(popped), read(BASE.replace("\"a\":1", "\"a\":2"))));
+
+        String pushed = BASE.replace("]}}", ",{\"id\":\"confirm\"}]}}");
+        Assert.assertNull(merge.resolve(read(BASE), read(pushed), read(popped)));
+    }
+
+    @Test
+    public void identicalValueChangesAreAppliedOnce() throws IOException {
+        String changed = BASE.replace("\"a\":1", "\"a\":1,\"b\":2");
+        Assert.assertEquals(read(changed), merge.resolve(read(BASE), read(changed), read(changed)));
+    }
+
+    @Test
+    public void identicalPushesConflict() throws IOException {
+        // Both turns began the same dialog, and both sent its prompt.
+        String pushed = BASE.replace("]}}", ",{\"id\":\"confirm\"}]}}");
+        Assert.assertNull(merge.resolve(read(BASE), read(pushed), read(pushed)));
+    }
+
+    @Test
+    public void identicalStepAdvancesConflict() throws IOException {
+        // Both turns ran the same waterfall step.
+        String advanced = BASE.replace("\"stepIndex\":0", "\"stepIndex\":1");
+        Assert.assertNull(merge.resolve(read(BASE), read(advanced), read(advanced)));
+    }
+
+    private JsonNode read(String json) throws IOException {
+        return objectMapper.readTree(json);
+    }
+}
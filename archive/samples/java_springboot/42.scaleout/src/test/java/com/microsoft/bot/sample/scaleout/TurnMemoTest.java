@@ -0,0 +1,82 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.microsoft.bot.sample.scaleout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.microsoft.bot.builder.TurnContextImpl;
+import com.microsoft.bot.dialogs.Dialog;
+import com.microsoft.bot.dialogs.DialogContext;
+import com.microsoft.bot.dialogs.DialogTurnResult;
+import com.microsoft.bot.schema.Activity;
+import com.microsoft.bot.schema.ConversationAccount;
+import com.microsoft.bot.schema.Pair;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TurnMemoTest {
+
+    @Test
+    public void retriedTurnsReuseTheResultsOfExternalCalls() {
+        AtomicInteger calls = new AtomicInteger();
+        AtomicInteger runs = new AtomicInteger();
+        Dialog dialog = new Dialog("lookup") {
+            @Override
+            public CompletableFuture<DialogTurnResult> beginDialog(DialogContext dc, Object options) {
+                runs.incrementAndGet();
+                return TurnMemo.of(dc.getContext())
+                    .remember("lookup/" + dc.getContext().getActivity().getText(),
+                        () -> CompletableFuture.completedFuture(calls.incrementAndGet()))
+                    .thenCompose(result -> dc.endDialog(result));
+            }
+        };
+
+        // The first save loses the etag race, so the dialog runs twice.
+        MemoryStore memory = new MemoryStore();
+        AtomicInteger saves = new AtomicInteger();
+        Store store = new Store() {
+            @Override
+            public CompletableFuture<Pair<JsonNode, String>> load(String key) {
+                return memory.load(key);
+            }
+
+            @Override
+            public CompletableFuture<Boolean> save(String key, JsonNode content, String etag) {
+                if (saves.incrementAndGet() == 1) {
+                    return CompletableFuture.completedFuture(false);
+                }
+                return memory.save(key, content, etag);
+            }
+        };
+        ScaleoutMetrics metrics = new ScaleoutMetrics();
+        ScaleoutBot<Dialog> bot = new ScaleoutBot<>(store, dialog, RetryPolicy.defaultPolicy(), metrics);
+
+        Activity activity = Activity.createMessageActivity();
+        activity.setChannelId("test");
+        activity.setText("weather");
+        activity.setConversation(new ConversationAccount("memo"));
+        bot.onTurn(new TurnContextImpl(new DialogHostAdapter(), activity)).join();
+
+        Assert.assertEquals(2, runs.get());
+        Assert.assertEquals(1, calls.get());
+        Assert.assertEquals(1, metrics.getMemoHits());
+    }
+
+    @Test
+    public void failedCallsAreForgotten() {
+        TurnMemo memo = new TurnMemo();
+        CompletableFuture<String> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalStateException("unavailable"));
+
+        Assert.assertTrue(memo.remember("call", () -> failed).isCompletedExceptionally());
+        Assert.assertEquals("answer",
+            memo.remember("call", () -> CompletableFuture.completedFuture("answer")).join());
+        Assert.assertEquals("answer",
+            memo.remember("call", () -> CompletableFuture.completedFuture("other")).join());
+        Assert.assertEquals(1, memo.getHits());
+        Assert.assertEquals(2, memo.getMisses());
+    }
+}